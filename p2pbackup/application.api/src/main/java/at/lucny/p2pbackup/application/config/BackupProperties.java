@@ -0,0 +1,169 @@
+package at.lucny.p2pbackup.application.config;
+
+import lombok.Data;
+import lombok.ToString;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+
+@Data
+@ToString
+public class BackupProperties {
+
+    /**
+     * Files whose size, modification-time, change-time and file-key are unchanged since the last backup are not read again.
+     * Every n-th backup of a root-directory all files are hashed regardless of their metadata, to detect changes that did not
+     * modify the metadata. Defaults to every 10th backup, 0 disables the full rehash.
+     */
+    @NotNull
+    @Min(0)
+    private Integer paranoidRehashInterval = 10;
+
+    /**
+     * The number of root-directories that are backed up in parallel.
+     * Defaults to 4.
+     */
+    @NotNull
+    @Min(1)
+    private Integer rootDirectoryWorkers = 4;
+
+    /**
+     * The number of root-directories on the same device (file-store) that are backed up in parallel. Root-directories on
+     * different devices are backed up at the same time, root-directories on the same device one after another, so that
+     * a disk is not slowed down by concurrent reads.
+     * Defaults to 1.
+     */
+    @NotNull
+    @Min(1)
+    private Integer rootDirectoryWorkersPerDevice = 1;
+
+    /**
+     * The number of files that are processed in parallel during a backup.
+     * Defaults to 2.
+     */
+    @NotNull
+    @Min(1)
+    private Integer fileWorkers = 2;
+
+    /**
+     * The number of blocks that are encrypted and stored in parallel during a backup.
+     * Defaults to the number of available processors.
+     */
+    @NotNull
+    @Min(1)
+    private Integer blockWorkers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of files and blocks that can wait for a free worker. If the queue is full the producer processes the
+     * file or block itself, which limits the number of blocks held in memory.
+     * Defaults to 16.
+     */
+    @NotNull
+    @Min(1)
+    private Integer queueSize = 16;
+
+    /**
+     * Blocks that are completely processed (enough verified replicas and verification-values) are remembered in the
+     * block-hash-index, so that they are not looked up in the database during a backup. After this duration the state
+     * of a block is checked against the database again.
+     * Defaults to 1 day.
+     */
+    @NotNull
+    private Duration blockHashIndexValidity = Duration.ofDays(1);
+
+    /**
+     * If enabled the root-directories are watched for changes and changed paths are backed up shortly after the change.
+     * Defaults to false.
+     */
+    @NotNull
+    private Boolean continuous = Boolean.FALSE;
+
+    /**
+     * In continuous mode changes are collected until no further change happened for this duration, then the changed
+     * paths are backed up together.
+     * Defaults to 10 seconds.
+     */
+    @NotNull
+    private Duration continuousDebounce = Duration.ofSeconds(10);
+
+    /**
+     * In continuous mode all root-directories are completely backed up in this interval, to catch changes that were
+     * not reported by the file-system.
+     * Defaults to 6 hours.
+     */
+    @NotNull
+    private Duration continuousReconciliationInterval = Duration.ofHours(6);
+
+    /**
+     * Files smaller than this size are not stored in their own block, but packed together with other small files into
+     * blocks of roughly the block-size. This reduces the number of blocks (and their metadata, uploads and replicas) for
+     * directories with many small files. Defaults to 0, which disables the packing.
+     */
+    @NotNull
+    private DataSize packThreshold = DataSize.ofBytes(0);
+
+    /**
+     * The codec blocks are compressed with before they are encrypted. Available codecs are "deflate" and "none", which
+     * disables the compression. Blocks are always restored with the codec they were compressed with.
+     * Defaults to deflate.
+     */
+    @NotNull
+    private String compression = "deflate";
+
+    /**
+     * Blocks whose sampled entropy is above this value (in bits per byte) are considered already compressed and are
+     * stored without trying to compress them.
+     * Defaults to 7.5.
+     */
+    @NotNull
+    @DecimalMin("0")
+    @DecimalMax("8")
+    private Double compressionMaxEntropy = 7.5;
+
+    /**
+     * The metadata of new blocks (block-meta-data, cloud-upload and verification-values) is collected and persisted in
+     * a single transaction together with the next version of a file, or as soon as this number of blocks is reached.
+     * Defaults to 500.
+     */
+    @NotNull
+    @Min(1)
+    private Integer metadataBatchSize = 500;
+
+    /**
+     * The progress of a backup of a root-directory is saved in this interval, so that an interrupted backup resumes from
+     * the last checkpoint instead of starting over.
+     * Defaults to 1 minute.
+     */
+    @NotNull
+    private Duration checkpointInterval = Duration.ofMinutes(1);
+
+    /**
+     * The number of digest-trees that are kept for every root-directory. Older digest-trees are deleted after a backup
+     * of all root-directories, together with the directory-nodes no kept digest-tree references. Only backups with a
+     * kept digest-tree can be compared.
+     * Defaults to 30.
+     */
+    @NotNull
+    @Min(1)
+    private Integer directorySnapshotsToKeep = 30;
+
+    /**
+     * The algorithm used to hash blocks and files. The algorithm is recorded for every block and version, existing
+     * versions keep their algorithm until the file is touched. Blocks hashed with different algorithms are not deduplicated.
+     * Defaults to SHA-256.
+     */
+    @NotNull
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.SHA_256;
+
+    /**
+     * The cipher new blocks are encrypted with. The cipher is recorded in the header of every block, so blocks encrypted
+     * with another cipher remain decryptable. The throughput of every cipher on the current host is logged at startup.
+     * Defaults to AES-256-GCM.
+     */
+    @NotNull
+    private BlockCipher blockCipher = BlockCipher.AES_256_GCM;
+}
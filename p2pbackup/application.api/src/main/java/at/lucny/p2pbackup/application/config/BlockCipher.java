@@ -0,0 +1,14 @@
+package at.lucny.p2pbackup.application.config;
+
+public enum BlockCipher {
+
+    /**
+     * encrypts blocks with AES-256 in GCM-mode. fastest on CPUs with AES-instructions.
+     */
+    AES_256_GCM,
+
+    /**
+     * encrypts blocks with ChaCha20-Poly1305. faster than AES on CPUs without AES-instructions, e.g. low-end ARM-boards.
+     */
+    CHACHA20_POLY1305;
+}
@@ -0,0 +1,79 @@
+package at.lucny.p2pbackup.application.config;
+
+import lombok.Data;
+import lombok.ToString;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+
+@Data
+@ToString
+public class ChunkerProperties {
+
+    /**
+     * The algorithm used to cut files into blocks.
+     * Defaults to fixed-size blocks of {@link P2PBackupProperties#getBlockSize()}.
+     */
+    @NotNull
+    private ChunkerType type = ChunkerType.FIXED;
+
+    /**
+     * The minimal size of a content-defined block. No boundary is searched before this size is reached.
+     * Defaults to 128 KB.
+     */
+    @NotNull
+    private DataSize minSize = DataSize.ofKilobytes(128);
+
+    /**
+     * The targeted average size of a content-defined block.
+     * Defaults to 512 KB.
+     */
+    @NotNull
+    private DataSize averageSize = DataSize.ofKilobytes(512);
+
+    /**
+     * The maximal size of a content-defined block. A block is cut at this size if no boundary was found.
+     * Defaults to 2 MB.
+     */
+    @NotNull
+    private DataSize maxSize = DataSize.ofMegabytes(2);
+
+    /**
+     * If enabled the block-size is chosen per file: the block-size (or the average size of content-defined blocks) is
+     * doubled until the file has at most {@link #maxBlocksPerFile} blocks or {@link #maxBlockSize} is reached. Large
+     * files are cut into fewer, larger blocks, small files keep the default block-size.
+     * Defaults to true.
+     */
+    @NotNull
+    private Boolean adaptiveBlockSize = Boolean.TRUE;
+
+    /**
+     * The number of blocks per file above which the block-size is doubled, if the block-size is adaptive.
+     * Defaults to 1024.
+     */
+    @NotNull
+    @Min(1)
+    private Integer maxBlocksPerFile = 1024;
+
+    /**
+     * The largest block-size an adaptive block-size can reach.
+     * Defaults to 8 MB.
+     */
+    @NotNull
+    private DataSize maxBlockSize = DataSize.ofMegabytes(8);
+
+    /**
+     * Files of at least this size are memory-mapped instead of read into buffers, so that their blocks are not copied.
+     * Defaults to 64 MB.
+     */
+    @NotNull
+    private DataSize mappedReadThreshold = DataSize.ofMegabytes(64);
+
+    /**
+     * The size of the window of a memory-mapped file. Larger files are mapped window by window.
+     * Defaults to 256 MB.
+     */
+    @NotNull
+    private DataSize mappedWindowSize = DataSize.ofMegabytes(256);
+}
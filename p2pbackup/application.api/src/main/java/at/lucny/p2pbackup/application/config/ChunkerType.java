@@ -0,0 +1,14 @@
+package at.lucny.p2pbackup.application.config;
+
+public enum ChunkerType {
+
+    /**
+     * cuts files in blocks of the configured block-size.
+     */
+    FIXED,
+
+    /**
+     * cuts files at content-defined boundaries calculated by a rolling gear-hash (FastCDC).
+     */
+    CONTENT_DEFINED;
+}
@@ -0,0 +1,14 @@
+package at.lucny.p2pbackup.application.config;
+
+public enum HashAlgorithm {
+
+    /**
+     * hashes blocks and files with SHA-256.
+     */
+    SHA_256,
+
+    /**
+     * hashes blocks with BLAKE3. files are hashed as a tree of BLAKE3-hashed leaves, so that the leaves of large files are hashed in parallel.
+     */
+    BLAKE3;
+}
@@ -7,6 +7,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.Resource;
 import org.springframework.util.unit.DataSize;
 
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 import java.nio.file.Path;
@@ -36,6 +37,35 @@ public class P2PBackupProperties {
     @NotNull
     private Path storageDir;
 
+    /**
+     * The number of levels of bucket-directories the blocks of a storage-directory are distributed into. Every level has
+     * 256 buckets. Storage-directories written with another number of levels are migrated at startup.
+     * Defaults to 2, 0 stores all blocks directly in the storage-directory.
+     */
+    @NotNull
+    @Min(0)
+    @Max(3)
+    private Integer storageFanOutLevels = 2;
+
+    /**
+     * How the blocks of other users are stored.
+     * Defaults to a file per block.
+     */
+    @NotNull
+    private PeerStorageType peerStorageType = PeerStorageType.FILES;
+
+    /**
+     * The settings of the segment-files, if {@link #peerStorageType} is {@link PeerStorageType#PACK_FILES}.
+     */
+    @NotNull
+    private PackStorageProperties packStorageProperties = new PackStorageProperties();
+
+    /**
+     * The settings of the sweeper, that deletes the data of removed blocks of other users.
+     */
+    @NotNull
+    private SweeperProperties sweeperProperties = new SweeperProperties();
+
     @NotNull
     private NetworkProperties network = new NetworkProperties();
 
@@ -51,4 +81,18 @@ public class P2PBackupProperties {
 
     @NotNull
     private DataSize blockSize = DataSize.ofKilobytes(500);
+
+    /**
+     * The direct memory of all buffers that are pooled for compression and encryption. If the limit is reached, idle
+     * buffers are released and further buffers are allocated on the heap.
+     * Defaults to 256MB.
+     */
+    @NotNull
+    private DataSize maxDirectBufferMemory = DataSize.ofMegabytes(256);
+
+    @NotNull
+    private BackupProperties backupProperties = new BackupProperties();
+
+    @NotNull
+    private ChunkerProperties chunkerProperties = new ChunkerProperties();
 }
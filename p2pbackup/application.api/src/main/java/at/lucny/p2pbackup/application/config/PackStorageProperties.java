@@ -0,0 +1,40 @@
+package at.lucny.p2pbackup.application.config;
+
+import lombok.Data;
+import lombok.ToString;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+
+@Data
+@ToString
+public class PackStorageProperties {
+
+    /**
+     * The size after which a segment-file is sealed and blocks are appended to a new segment-file.
+     * Defaults to 256 MB.
+     */
+    @NotNull
+    private DataSize segmentSize = DataSize.ofMegabytes(256);
+
+    /**
+     * The percentage of a sealed segment-file that must be occupied by removed blocks, before its remaining blocks are
+     * copied to the current segment-file and the segment-file is deleted. Removed blocks count as occupied until their
+     * grace-period ended.
+     * Defaults to 50.
+     */
+    @NotNull
+    @Min(1)
+    @Max(100)
+    private Integer compactionThreshold = 50;
+
+    /**
+     * The duration between two compactions.
+     * Defaults to 6 hours.
+     */
+    @NotNull
+    private Duration durationBetweenCompactions = Duration.ofHours(6);
+}
@@ -0,0 +1,14 @@
+package at.lucny.p2pbackup.application.config;
+
+public enum PeerStorageType {
+
+    /**
+     * stores every block of another user in its own file.
+     */
+    FILES,
+
+    /**
+     * appends the blocks of another user to large segment-files and keeps an index of their locations.
+     */
+    PACK_FILES;
+}
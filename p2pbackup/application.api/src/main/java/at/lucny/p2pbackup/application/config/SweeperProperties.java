@@ -0,0 +1,45 @@
+package at.lucny.p2pbackup.application.config;
+
+import lombok.Data;
+import lombok.ToString;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+
+@Data
+@ToString
+public class SweeperProperties {
+
+    /**
+     * The duration between two sweeps, that delete the data of removed blocks whose grace-period ended.
+     * Defaults to 1 day.
+     */
+    @NotNull
+    private Duration durationBetweenSweeps = Duration.ofDays(1);
+
+    /**
+     * The maximal number of removed blocks a sweep deletes per second, so the sweep doesn't slow down the storage.
+     * Defaults to 100.
+     */
+    @NotNull
+    @Min(1)
+    private Integer maxDeletionsPerSecond = 100;
+
+    /**
+     * If the usable space of the storage-directory falls below this size, the data of removed blocks is deleted
+     * immediately and without rate-limit. If that is not enough, removed blocks are deleted before their grace-period
+     * ended, oldest first.
+     * Defaults to 5 GB.
+     */
+    @NotNull
+    private DataSize minFreeSpace = DataSize.ofGigabytes(5);
+
+    /**
+     * The duration between two checks of the usable space of the storage-directory.
+     * Defaults to 5 minutes.
+     */
+    @NotNull
+    private Duration durationBetweenFreeSpaceChecks = Duration.ofMinutes(5);
+}
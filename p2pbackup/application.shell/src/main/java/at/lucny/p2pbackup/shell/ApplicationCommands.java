@@ -3,7 +3,9 @@ package at.lucny.p2pbackup.shell;
 import at.lucny.p2pbackup.application.service.BackupAgent;
 import at.lucny.p2pbackup.application.service.CloudUploadAgent;
 import at.lucny.p2pbackup.application.service.DistributionAgent;
+import at.lucny.p2pbackup.application.service.SweeperAgent;
 import at.lucny.p2pbackup.application.support.StopApplicationEvent;
+import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
@@ -12,6 +14,7 @@ import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.shell.ExitRequest;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
 import org.springframework.shell.standard.commands.Quit;
 
 import java.util.List;
@@ -31,12 +34,18 @@ public class ApplicationCommands implements Quit.Command {
 
     private final List<AsyncTaskExecutor> asyncTaskExecutors;
 
-    public ApplicationCommands(ApplicationEventPublisher publisher, DistributionAgent distributionAgent, BackupAgent backupAgent, CloudUploadAgent cloudUploadAgent, List<AsyncTaskExecutor> asyncTaskExecutors) {
+    private final LocalStorageService localStorageService;
+
+    private final SweeperAgent sweeperAgent;
+
+    public ApplicationCommands(ApplicationEventPublisher publisher, DistributionAgent distributionAgent, BackupAgent backupAgent, CloudUploadAgent cloudUploadAgent, List<AsyncTaskExecutor> asyncTaskExecutors, LocalStorageService localStorageService, SweeperAgent sweeperAgent) {
         this.publisher = publisher;
         this.distributionAgent = distributionAgent;
         this.backupAgent = backupAgent;
         this.cloudUploadAgent = cloudUploadAgent;
         this.asyncTaskExecutors = asyncTaskExecutors;
+        this.localStorageService = localStorageService;
+        this.sweeperAgent = sweeperAgent;
     }
 
     @ShellMethod(value = "quit the application", key = {"exit", "quit", "stop"})
@@ -69,4 +78,18 @@ public class ApplicationCommands implements Quit.Command {
         this.distributionAgent.distribute();
     }
 
+    @ShellMethod("moves all blocks of the local storage into the configured layout of bucket-directories")
+    public void migrateStorageLayout() {
+        long nrOfMovedBlocks = this.localStorageService.migrateStorageLayout();
+        LOGGER.info("moved {} blocks", nrOfMovedBlocks);
+    }
+
+    @ShellMethod("deletes the data of removed blocks of other users whose grace-period ended")
+    public void sweepRemovedBlocks(@ShellOption(help = "reclaim space immediately without rate-limit", defaultValue = "false") boolean now) {
+        if (now) {
+            this.sweeperAgent.reclaimNow();
+        } else {
+            this.sweeperAgent.sweep();
+        }
+    }
 }
@@ -1,22 +1,99 @@
 package at.lucny.p2pbackup.shell;
 
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.backup.domain.BackupRunFile;
+import at.lucny.p2pbackup.backup.domain.RootDirectorySnapshot;
+import at.lucny.p2pbackup.backup.dto.SnapshotDifference;
+import at.lucny.p2pbackup.backup.service.BackupRunService;
 import at.lucny.p2pbackup.backup.service.BackupService;
+import at.lucny.p2pbackup.backup.service.DirectorySnapshotService;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
 
 import jakarta.validation.constraints.NotNull;
+import java.util.List;
+import java.util.Optional;
 
 @ShellComponent
 public class BackupCommands {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupCommands.class);
+
     private final BackupService backupService;
 
-    public BackupCommands(BackupService backupService) {
+    private final BackupRunService backupRunService;
+
+    private final DirectorySnapshotService directorySnapshotService;
+
+    public BackupCommands(BackupService backupService, BackupRunService backupRunService, DirectorySnapshotService directorySnapshotService) {
         this.backupService = backupService;
+        this.backupRunService = backupRunService;
+        this.directorySnapshotService = directorySnapshotService;
     }
 
     @ShellMethod("Add a new path to be backed up by the backup solution")
     public void addRootDirectory(@NotNull String name, @NotNull String path) {
         this.backupService.addRootDirectory(name, path);
     }
+
+    @ShellMethod("Shows all unfinished backups, they are resumed by the next backup")
+    public void listBackupRuns() {
+        List<BackupRun> backupRuns = this.backupRunService.getBackupRuns();
+        if (backupRuns.isEmpty()) {
+            LOGGER.info("no unfinished backups");
+        }
+        for (BackupRun backupRun : backupRuns) {
+            LOGGER.info("Root-Directory: {}, Backup: {}, Started: {}, Last checkpoint: {}, Last completed path: {}",
+                    backupRun.getRootDirectory().getName(), backupRun.getNrOfBackup(), backupRun.getDateCreated(), backupRun.getDateUpdated(), backupRun.getLastCompletedPath());
+            for (BackupRunFile file : backupRun.getFiles()) {
+                LOGGER.info("    in progress: {} with {} persisted blocks", file.getPath(), file.getBlocks().size());
+            }
+        }
+    }
+
+    @ShellMethod("Discards the unfinished backup of the given directory, so that the next backup starts over")
+    public void discardBackupRun(@NotNull String name) {
+        Optional<RootDirectory> optionalRootDirectory = this.backupService.getRootDirectory(name);
+        if (optionalRootDirectory.isEmpty()) {
+            LOGGER.info("backup-directory {} is not configured", name);
+            return;
+        }
+
+        if (!this.backupRunService.discardBackupRun(optionalRootDirectory.get())) {
+            LOGGER.info("backup-directory {} has no unfinished backup", name);
+        }
+    }
+
+    @ShellMethod("Shows the completed backups of the given directory")
+    public void listSnapshots(@NotNull String name) {
+        Optional<RootDirectory> optionalRootDirectory = this.backupService.getRootDirectory(name);
+        if (optionalRootDirectory.isEmpty()) {
+            LOGGER.info("backup-directory {} is not configured", name);
+            return;
+        }
+
+        for (RootDirectorySnapshot snapshot : this.directorySnapshotService.getSnapshots(optionalRootDirectory.get())) {
+            LOGGER.info("Backup: {}, Finished: {}", snapshot.getNrOfBackup(), snapshot.getDate());
+        }
+    }
+
+    @ShellMethod("Shows the paths that changed between two completed backups of the given directory")
+    public void diffSnapshots(@NotNull String name, int fromBackup, int toBackup) {
+        Optional<RootDirectory> optionalRootDirectory = this.backupService.getRootDirectory(name);
+        if (optionalRootDirectory.isEmpty()) {
+            LOGGER.info("backup-directory {} is not configured", name);
+            return;
+        }
+
+        List<SnapshotDifference> differences = this.directorySnapshotService.diff(optionalRootDirectory.get(), fromBackup, toBackup);
+        if (differences.isEmpty()) {
+            LOGGER.info("no differences between backup {} and {}", fromBackup, toBackup);
+        }
+        for (SnapshotDifference difference : differences) {
+            LOGGER.info("{} {}", difference.type(), difference.path());
+        }
+    }
 }
@@ -1,5 +1,9 @@
 package at.lucny.p2pbackup.shell;
 
+import at.lucny.p2pbackup.core.dto.ByteBufferPoolStatistics;
+import at.lucny.p2pbackup.core.service.ByteBufferPoolService;
+import at.lucny.p2pbackup.localstorage.dto.PeerStorageUsage;
+import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
 import at.lucny.p2pbackup.upload.service.DistributionService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +21,14 @@ public class StatisticCommands {
 
     private final DistributionService distributionService;
 
-    public StatisticCommands(DistributionService distributionService) {
+    private final ByteBufferPoolService byteBufferPoolService;
+
+    private final LocalStorageService localStorageService;
+
+    public StatisticCommands(DistributionService distributionService, ByteBufferPoolService byteBufferPoolService, LocalStorageService localStorageService) {
         this.distributionService = distributionService;
+        this.byteBufferPoolService = byteBufferPoolService;
+        this.localStorageService = localStorageService;
     }
 
     @ShellMethod("prints a statistic about all replicas")
@@ -39,4 +49,29 @@ public class StatisticCommands {
         }
         LOGGER.info("{}", sb);
     }
+
+    @ShellMethod("prints a statistic about the pooled buffers")
+    public void printBufferPoolStatistic() {
+        ByteBufferPoolStatistics statistics = this.byteBufferPoolService.getStatistics();
+        StringBuilder sb = new StringBuilder("\nStatistic about pooled buffers\n");
+        sb.append(LINE);
+        sb.append("hits: ").append(statistics.hits()).append("\n");
+        sb.append("misses: ").append(statistics.misses()).append("\n");
+        sb.append("heap fallbacks: ").append(statistics.heapFallbacks()).append("\n");
+        sb.append("borrowed: ").append(statistics.outstandingBytes()).append(" bytes\n");
+        sb.append("direct memory: ").append(statistics.directBytes()).append(" bytes\n");
+        sb.append(LINE);
+        LOGGER.info("{}", sb);
+    }
+
+    @ShellMethod("prints a statistic about the blocks other users saved")
+    public void printStorageUsageStatistic() {
+        StringBuilder sb = new StringBuilder("\nStatistic about the blocks of other users\n");
+        sb.append(LINE);
+        for (PeerStorageUsage usage : this.localStorageService.getStorageUsage()) {
+            sb.append(usage.userId()).append(": ").append(usage.nrOfBlocks()).append(" blocks with ").append(usage.bytes()).append(" bytes\n");
+        }
+        sb.append(LINE);
+        LOGGER.info("{}", sb);
+    }
 }
@@ -1,11 +1,20 @@
 package at.lucny.p2pbackup.test.integration;
 
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.backup.domain.RootDirectorySnapshot;
 import at.lucny.p2pbackup.backup.dto.BackupIndex;
 import at.lucny.p2pbackup.backup.dto.PathDataVersion;
+import at.lucny.p2pbackup.backup.dto.SnapshotDifference;
+import at.lucny.p2pbackup.backup.repository.BackupRunRepository;
+import at.lucny.p2pbackup.backup.service.BackupRunService;
 import at.lucny.p2pbackup.backup.service.BackupService;
+import at.lucny.p2pbackup.backup.service.DirectorySnapshotService;
+import at.lucny.p2pbackup.backup.service.worker.BackupServiceWorker;
 import at.lucny.p2pbackup.backup.support.BackupConstants;
 import at.lucny.p2pbackup.backup.support.BackupUtils;
 import at.lucny.p2pbackup.core.domain.*;
+import at.lucny.p2pbackup.core.service.BlockCompressionService;
 import at.lucny.p2pbackup.core.service.BlockEncryptionService;
 import at.lucny.p2pbackup.core.support.HashUtils;
 import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
@@ -14,6 +23,7 @@ import at.lucny.p2pbackup.verification.domain.VerificationValue;
 import at.lucny.p2pbackup.verification.service.VerificationValueService;
 import com.google.protobuf.InvalidProtocolBufferException;
 import lombok.SneakyThrows;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -27,6 +37,7 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -34,11 +45,17 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -53,9 +70,24 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
     @Autowired
     private LocalStorageService localStorageService;
 
+    @Autowired
+    private BackupServiceWorker backupServiceWorker;
+
+    @Autowired
+    private BackupRunService backupRunService;
+
+    @Autowired
+    private BackupRunRepository backupRunRepository;
+
+    @Autowired
+    private DirectorySnapshotService directorySnapshotService;
+
     @Autowired
     private BlockEncryptionService blockEncryptionService;
 
+    @Autowired
+    private BlockCompressionService blockCompressionService;
+
     @Autowired
     private VerificationValueService verificationValueService;
 
@@ -69,16 +101,20 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
 
     @AfterEach
     void afterEach() {
+        this.backupRunRepository.deleteAll();
+        this.deleteSnapshots();
         this.verificationValueRepository.deleteAll();
         this.cloudUploadRepository.deleteAll();
         this.pathDataRepository.deleteAll();
         this.blockMetaDataRepository.deleteAll();
+        this.blockHashIndexService.rebuild();
+        this.rootDirectoryRepository.findByName("datadir2").ifPresent(this.rootDirectoryRepository::delete);
     }
 
     private RootDirectory getConfiguredRootDirectory() {
-        List<RootDirectory> rootDirectoryList = this.rootDirectoryRepository.findAll();
-        assertThat(rootDirectoryList).hasSize(1);
-        return rootDirectoryList.get(0);
+        Optional<RootDirectory> rootDirectory = this.rootDirectoryRepository.findByName("datadir");
+        assertThat(rootDirectory).isPresent();
+        return rootDirectory.get();
     }
 
     @DisplayName("backups two new files, creates for each file one version-bmd and data-bmd, saves them in local storage and generates per bmd 12 verification values")
@@ -195,9 +231,13 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
         byte[] encryptedData = Files.readAllBytes(pathToBlock);
         ByteBuffer plainDataBuffer = ByteBuffer.allocate((int) (this.p2PBackupProperties.getBlockSize().toBytes() * 10));
         this.blockEncryptionService.decrypt(ByteBuffer.wrap(encryptedData), bmdId.getBytes(StandardCharsets.UTF_8), plainDataBuffer);
-        byte[] plainData = new byte[plainDataBuffer.remaining()];
-        plainDataBuffer.get(plainData);
-        return plainData;
+        AtomicReference<byte[]> plainData = new AtomicReference<>();
+        this.blockCompressionService.decompress(plainDataBuffer, true, decompressedDataBuffer -> {
+            byte[] data = new byte[decompressedDataBuffer.remaining()];
+            decompressedDataBuffer.get(data);
+            plainData.set(data);
+        });
+        return plainData.get();
     }
 
     @DisplayName("changes and then deletes a file and generates a new version each time")
@@ -396,6 +436,303 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
         });
     }
 
+    @DisplayName("backup a file with more blocks than the metadata-batch-size, duplicate blocks in the file are only persisted once")
+    @Test
+    void testBackupRootDirectory_adaptiveBlockSize() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        this.p2PBackupProperties.getChunkerProperties().setMaxBlocksPerFile(2);
+
+        try {
+            int blockSize = (int) this.p2PBackupProperties.getBlockSize().toBytes();
+            Path file1Path = getDataDir().resolve("testfile_big.txt");
+            byte[] content = new byte[5 * blockSize];
+            BackupUtils.RANDOM.nextBytes(content);
+            Files.write(file1Path, content);
+
+            this.backupService.backupRootDirectory(rootDirectory);
+
+            List<String> blockIds = new TransactionTemplate(this.txManager).execute(status -> {
+                PathData pathData = this.pathDataRepository.findAll().get(0);
+                PathVersion version = pathData.getVersions().iterator().next();
+                this.assertPathVersion(version, file1Path);
+                assertThat(version.getBlockSize()).as("the block-size is doubled until the file has at most 2 blocks").isEqualTo(2 * blockSize);
+                assertThat(version.getBlocks()).hasSize(3);
+                this.assertBlockMetaData(version.getBlocks().get(0), this.hashUtils.generateBlockHash(Arrays.copyOfRange(content, 0, 2 * blockSize)));
+                this.assertPathDataVersion(this.assertLocalSavedDataAndCloudUploadEntryAndVerificationValues(version.getVersionBlock(), 12), rootDirectory, pathData, version);
+                return version.getBlocks().stream().map(BlockMetaData::getId).toList();
+            });
+
+            // the file would be chunked with 4 times the block-size now, but the block-size of the latest version is kept
+            byte[] additionalContent = new byte[blockSize];
+            BackupUtils.RANDOM.nextBytes(additionalContent);
+            Files.write(file1Path, additionalContent, StandardOpenOption.APPEND);
+
+            this.backupService.backupRootDirectory(rootDirectory);
+
+            new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+                PathVersion version = this.pathDataRepository.findAll().get(0).getVersions().stream().max(Comparator.comparing(PathVersion::getDate)).get();
+                assertThat(version.getBlockSize()).isEqualTo(2 * blockSize);
+                assertThat(version.getBlocks()).hasSize(3);
+                assertThat(version.getBlocks().subList(0, 2)).extracting(BlockMetaData::getId).containsExactlyElementsOf(blockIds.subList(0, 2));
+            });
+        } finally {
+            this.p2PBackupProperties.getChunkerProperties().setMaxBlocksPerFile(1024);
+        }
+    }
+
+    @Test
+    void testBackupRootDirectory_zeroBlocks() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+
+        int blockSize = (int) this.p2PBackupProperties.getBlockSize().toBytes();
+        Path file1Path = getDataDir().resolve("testfile_sparse.img");
+        List<byte[]> content = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            byte[] bytes = new byte[blockSize];
+            if (i % 2 == 0) {
+                BackupUtils.RANDOM.nextBytes(bytes);
+                content.add(bytes);
+            }
+            Files.write(file1Path, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            List<PathData> pathDataList = this.pathDataRepository.findAll();
+            assertThat(pathDataList).hasSize(1);
+            PathVersion version = pathDataList.get(0).getVersions().iterator().next();
+            this.assertPathVersion(version, file1Path);
+
+            assertThat(version.getBlocks()).as("only the blocks with data are stored").hasSameSizeAs(content);
+            for (int i = 0; i < content.size(); i++) {
+                this.assertBlockMetaData(version.getBlocks().get(i), this.hashUtils.generateBlockHash(content.get(i)));
+            }
+            assertThat(version.getZeroBlocks()).containsExactlyInAnyOrderEntriesOf(Map.of(1, (long) blockSize, 3, (long) blockSize));
+
+            byte[] persistedVersionBlock = this.assertLocalSavedDataAndCloudUploadEntryAndVerificationValues(version.getVersionBlock(), 12);
+            this.assertPathDataVersion(persistedVersionBlock, rootDirectory, pathDataList.get(0), version);
+            assertThat(this.cloudUploadRepository.count()).isEqualTo(content.size() + 1);
+        });
+    }
+
+    @Test
+    void testBackupRootDirectory_metadataBatchSize() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        this.p2PBackupProperties.getBackupProperties().setMetadataBatchSize(4);
+        try {
+            Path file1Path = getDataDir().resolve("testfile_big.txt");
+            List<byte[]> content = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                byte[] bytes = new byte[(int) (this.p2PBackupProperties.getBlockSize().toBytes())];
+                BackupUtils.RANDOM.nextBytes(bytes);
+                content.add(bytes);
+            }
+            content.add(content.get(2));
+            for (byte[] bytes : content) {
+                Files.write(file1Path, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+
+            this.backupService.backupRootDirectory(rootDirectory);
+
+            new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+                PathVersion version = this.getLatestVersion(rootDirectory, file1Path);
+                assertThat(version.getBlocks()).hasSameSizeAs(content);
+                assertThat(version.getBlocks().get(10)).isEqualTo(version.getBlocks().get(2));
+                for (int i = 0; i < content.size(); i++) {
+                    byte[] plainData = this.assertLocalSavedDataAndCloudUploadEntryAndVerificationValues(version.getBlocks().get(i), 12);
+                    assertThat(plainData).isEqualTo(content.get(i));
+                }
+            });
+            assertThat(this.blockMetaDataRepository.count()).as("one version-block and 10 distinct data-blocks").isEqualTo(11);
+            assertThat(this.cloudUploadRepository.count()).isEqualTo(11);
+        } finally {
+            this.p2PBackupProperties.getBackupProperties().setMetadataBatchSize(500);
+        }
+    }
+
+    @DisplayName("an interrupted backup is resumed after the last completed path in walk order and keeps its number")
+    @Test
+    void testBackupRootDirectory_resumeBackupRun() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        Path file1Path = createDirectory(getDataDir().resolve("a")).resolve("b.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        Path file2Path = getDataDir().resolve("a-c.txt");
+        Files.copy(this.testfile2.getFile().toPath(), file2Path);
+        Path file3Path = getDataDir().resolve("d.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file3Path);
+
+        BackupRun backupRun = this.backupRunService.startOrResumeBackupRun(rootDirectory);
+        this.backupRunService.saveCheckpoint(backupRun.getId(), "a-c.txt");
+        int nrOfBackups = this.rootDirectoryRepository.findById(rootDirectory.getId()).get().getNrOfBackups();
+        assertThat(nrOfBackups).isEqualTo(backupRun.getNrOfBackup());
+
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        assertThat(this.pathDataRepository.findAll()).extracting(PathData::getPath).containsExactly("d.txt");
+        assertThat(this.backupRunRepository.count()).as("the finished backup-run is removed").isZero();
+        assertThat(this.rootDirectoryRepository.findById(rootDirectory.getId()).get().getNrOfBackups()).isEqualTo(nrOfBackups);
+
+        // the next backup starts over
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.pathDataRepository.findAll()).extracting(PathData::getPath).containsExactlyInAnyOrder("a/b.txt", "a-c.txt", "d.txt");
+        assertThat(this.rootDirectoryRepository.findById(rootDirectory.getId()).get().getNrOfBackups()).isEqualTo(nrOfBackups + 1);
+    }
+
+    @DisplayName("an interrupted backup reuses the persisted blocks of the file that was in progress")
+    @Test
+    void testBackupRootDirectory_resumeFileProgress() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        this.p2PBackupProperties.getBackupProperties().setCheckpointInterval(Duration.ZERO);
+        try {
+            Path file1Path = getDataDir().resolve("testfile_big.txt");
+            List<byte[]> content = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                byte[] bytes = new byte[(int) (this.p2PBackupProperties.getBlockSize().toBytes())];
+                BackupUtils.RANDOM.nextBytes(bytes);
+                Files.write(file1Path, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                content.add(bytes);
+            }
+
+            // the first block was persisted before the backup was interrupted
+            BlockMetaData persistedBlock = this.blockMetaDataRepository.save(new BlockMetaData(this.hashUtils.generateBlockHash(content.get(0)), HashAlgorithm.SHA_256));
+            BackupRun backupRun = this.backupRunService.startOrResumeBackupRun(rootDirectory);
+            this.backupServiceWorker.saveBackupRunFileProgress(backupRun.getId(), Path.of("testfile_big.txt"), List.of(persistedBlock));
+            assertThat(this.backupRunService.getFileProgress(backupRun.getId()).get("testfile_big.txt")).containsExactly(persistedBlock);
+
+            this.backupService.backupRootDirectory(rootDirectory);
+
+            new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+                PathVersion version = this.getLatestVersion(rootDirectory, file1Path);
+                assertThat(version.getBlocks()).hasSize(3);
+                assertThat(version.getBlocks().get(0).getId()).isEqualTo(persistedBlock.getId());
+                for (int i = 1; i < content.size(); i++) {
+                    byte[] plainData = this.assertLocalSavedDataAndCloudUploadEntryAndVerificationValues(version.getBlocks().get(i), 12);
+                    assertThat(plainData).isEqualTo(content.get(i));
+                }
+            });
+            assertThat(this.localStorageService.loadFromLocalStorage(persistedBlock.getId())).as("the reused block is not processed again").isEmpty();
+            assertThat(this.backupRunRepository.count()).isZero();
+        } finally {
+            this.p2PBackupProperties.getBackupProperties().setCheckpointInterval(Duration.ofMinutes(1));
+        }
+    }
+
+    @DisplayName("blocks in the local storage without block-meta-data are removed, other blocks are kept")
+    @Test
+    void testBackupRootDirectory_unchangedDirectoriesReuseSnapshot() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        Path file1Path = createDirectory(getDataDir().resolve("a")).resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        Path file2Path = createDirectory(getDataDir().resolve("b")).resolve("testfile2.txt");
+        Files.copy(this.testfile2.getFile().toPath(), file2Path);
+
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.directorySnapshotRepository.count()).as("one node for the root-directory and each subdirectory").isEqualTo(3);
+
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.directorySnapshotRepository.count()).isEqualTo(3);
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            List<RootDirectorySnapshot> snapshots = this.directorySnapshotService.getSnapshots(rootDirectory);
+            assertThat(snapshots).hasSize(2);
+            assertThat(snapshots.get(0).getDirectorySnapshot().getId()).isEqualTo(snapshots.get(1).getDirectorySnapshot().getId());
+        });
+
+        Files.writeString(file1Path, "changed content", StandardOpenOption.TRUNCATE_EXISTING);
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.directorySnapshotRepository.count()).as("new nodes for the changed directory and the root-directory").isEqualTo(5);
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            List<RootDirectorySnapshot> snapshots = this.directorySnapshotService.getSnapshots(rootDirectory);
+            assertThat(snapshots).hasSize(3);
+            assertThat(snapshots.get(2).getDirectorySnapshot().getDirectories().get("a").getId()).isNotEqualTo(snapshots.get(1).getDirectorySnapshot().getDirectories().get("a").getId());
+            assertThat(snapshots.get(2).getDirectorySnapshot().getDirectories().get("b").getId()).isEqualTo(snapshots.get(1).getDirectorySnapshot().getDirectories().get("b").getId());
+        });
+        new TransactionTemplate(this.txManager).executeWithoutResult(status ->
+                assertThat(this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, "a/testfile1.txt").get().getVersions()).hasSize(2));
+    }
+
+    @Test
+    void testPruneSnapshots() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        Path file1Path = createDirectory(getDataDir().resolve("a")).resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        Files.copy(this.testfile2.getFile().toPath(), createDirectory(getDataDir().resolve("b")).resolve("testfile2.txt"));
+
+        this.backupService.backupRootDirectory(rootDirectory);
+        Files.writeString(file1Path, "changed content", StandardOpenOption.TRUNCATE_EXISTING);
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.directorySnapshotRepository.count()).isEqualTo(5);
+
+        assertThat(this.directorySnapshotService.pruneSnapshots(2)).isZero();
+        assertThat(this.directorySnapshotService.pruneSnapshots(1)).as("the nodes of the root-directory and the changed directory of the first backup").isEqualTo(2);
+        assertThat(this.rootDirectorySnapshotRepository.count()).isEqualTo(1);
+        assertThat(this.directorySnapshotRepository.count()).isEqualTo(3);
+
+        // the remaining digest-tree is still used to detect unchanged directories
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.directorySnapshotRepository.count()).isEqualTo(3);
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            List<RootDirectorySnapshot> snapshots = this.directorySnapshotService.getSnapshots(rootDirectory);
+            assertThat(snapshots).hasSize(2);
+            assertThat(snapshots.get(0).getDirectorySnapshot().getId()).isEqualTo(snapshots.get(1).getDirectorySnapshot().getId());
+        });
+    }
+
+    @Test
+    void testDiffSnapshots() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        Path directory = createDirectory(getDataDir().resolve("a"));
+        Files.copy(this.testfile1.getFile().toPath(), directory.resolve("changed.txt"));
+        Files.copy(this.testfile2.getFile().toPath(), directory.resolve("deleted.txt"));
+        Files.copy(this.testfile1.getFile().toPath(), directory.resolve("unchanged.txt"));
+        Path deletedDirectory = createDirectory(getDataDir().resolve("b"));
+        Files.copy(this.testfile2.getFile().toPath(), deletedDirectory.resolve("testfile2.txt"));
+        Files.copy(this.testfile1.getFile().toPath(), createDirectory(getDataDir().resolve("c")).resolve("testfile1.txt"));
+
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        Files.writeString(directory.resolve("changed.txt"), "changed content", StandardOpenOption.TRUNCATE_EXISTING);
+        Files.delete(directory.resolve("deleted.txt"));
+        Files.copy(this.testfile2.getFile().toPath(), directory.resolve("added.txt"));
+        FileUtils.deleteDirectory(deletedDirectory.toFile());
+        Files.copy(this.testfile1.getFile().toPath(), createDirectory(getDataDir().resolve("d")).resolve("testfile1.txt"));
+
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        List<RootDirectorySnapshot> snapshots = this.directorySnapshotService.getSnapshots(rootDirectory);
+        assertThat(snapshots).hasSize(2);
+        List<SnapshotDifference> differences = this.directorySnapshotService.diff(rootDirectory, snapshots.get(0).getNrOfBackup(), snapshots.get(1).getNrOfBackup());
+        assertThat(differences).containsExactly(
+                new SnapshotDifference("a/added.txt", SnapshotDifference.Type.ADDED),
+                new SnapshotDifference("a/changed.txt", SnapshotDifference.Type.CHANGED),
+                new SnapshotDifference("a/deleted.txt", SnapshotDifference.Type.DELETED),
+                new SnapshotDifference("b/", SnapshotDifference.Type.DELETED),
+                new SnapshotDifference("d/", SnapshotDifference.Type.ADDED));
+    }
+
+    @Test
+    void testRemoveOrphanedBlocks() throws IOException {
+        Path file1Path = getDataDir().resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        this.backupService.backupRootDirectory(this.getConfiguredRootDirectory());
+        List<String> blockIds = this.localStorageService.getBlockIds();
+        assertThat(blockIds).isNotEmpty();
+
+        String orphanedBlockId = UUID.randomUUID().toString();
+        this.localStorageService.saveInLocalStorage(orphanedBlockId, ByteBuffer.wrap("orphan".getBytes(StandardCharsets.UTF_8)));
+        Path orphanedBlock = this.localStorageService.loadFromLocalStorage(orphanedBlockId).orElseThrow();
+        Files.setLastModifiedTime(orphanedBlock, FileTime.from(Instant.now().minusSeconds(60)));
+        // a block stored after the start could belong to a running backup
+        String recentBlockId = UUID.randomUUID().toString();
+        this.localStorageService.saveInLocalStorage(recentBlockId, ByteBuffer.wrap("recent".getBytes(StandardCharsets.UTF_8)));
+        Files.setLastModifiedTime(this.localStorageService.loadFromLocalStorage(recentBlockId).orElseThrow(), FileTime.from(Instant.now().plusSeconds(60)));
+
+        this.backupServiceWorker.removeOrphanedBlocks(Instant.now());
+
+        assertThat(orphanedBlock).doesNotExist();
+        assertThat(this.localStorageService.getBlockIds()).containsExactlyInAnyOrderElementsOf(Stream.concat(blockIds.stream(), Stream.of(recentBlockId)).toList());
+    }
+
     @DisplayName("backup up an unchanged file should not modify any metadata")
     @Test
     void testBackupRootDirectory_unchangedFile() throws IOException {
@@ -443,6 +780,169 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
         });
     }
 
+    @DisplayName("backup up a file with changed modification-time but unchanged content should only update the file-stat")
+    @Test
+    void testBackupRootDirectory_touchedFile() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+
+        Path file1Path = getDataDir().resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        long fileSize = Files.size(file1Path);
+
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        FileStat savedFileStat = new TransactionTemplate(this.txManager).execute(status -> {
+            List<PathData> pathDataList = this.pathDataRepository.findAll();
+            assertThat(pathDataList).hasSize(1);
+            PathData pathData = pathDataList.get(0);
+            assertThat(pathData.getFileStat()).isNotNull();
+            assertThat(pathData.getFileStat().getSize()).isEqualTo(fileSize);
+            return pathData.getFileStat();
+        });
+
+        FileTime lastModified = FileTime.from(Files.getLastModifiedTime(file1Path).toInstant().plusSeconds(3600));
+        Files.setLastModifiedTime(file1Path, lastModified);
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            List<PathData> pathDataList = this.pathDataRepository.findAll();
+            assertThat(pathDataList).hasSize(1);
+            PathData pathData = pathDataList.get(0);
+            assertThat(pathData.getVersions()).as("content is unchanged, so no new version should be created").hasSize(1);
+            assertThat(pathData.getFileStat()).isNotEqualTo(savedFileStat);
+            assertThat(pathData.getFileStat().getLastModified()).isEqualTo(lastModified.to(TimeUnit.NANOSECONDS));
+        });
+    }
+
+    @DisplayName("a known data-block that doesn't need to be stored again is added to the block-hash-index and reused from there")
+    @Test
+    void testBackupRootDirectory_blockHashIndex() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+
+        Path filePath1 = getDataDir().resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), filePath1);
+        String blockHash = this.hashUtils.generateHashForFile(filePath1); // hash for block and file are the same
+        this.backupService.backupRootDirectory(rootDirectory);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock(blockHash)).as("the block was new and stored in the local storage").isEmpty();
+
+        Path filePath2 = getDataDir().resolve("testfile2.txt");
+        Files.copy(this.testfile1.getFile().toPath(), filePath2);
+        this.backupService.backupRootDirectory(rootDirectory);
+        BlockMetaData blockMetaData = this.blockMetaDataRepository.findByHashFetchLocations(blockHash).get();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock(blockHash)).as("the block is waiting for the upload").contains(blockMetaData.getId());
+
+        Path filePath3 = getDataDir().resolve("testfile3.txt");
+        Files.copy(this.testfile1.getFile().toPath(), filePath3);
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            PathData pathData = this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, getDataDir().relativize(filePath3).toString()).get();
+            assertThat(pathData.getVersions()).hasSize(1);
+            PathVersion version = pathData.getVersions().iterator().next();
+            assertThat(version.getBlocks()).extracting(BlockMetaData::getId).containsExactly(blockMetaData.getId());
+        });
+
+        this.blockHashIndexService.rebuild();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock(blockHash)).as("the rebuilt index must contain the block").contains(blockMetaData.getId());
+    }
+
+    @Test
+    void testBackupRootDirectory_packSmallFiles() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        this.p2PBackupProperties.getBackupProperties().setPackThreshold(DataSize.ofKilobytes(4));
+
+        try {
+            Path smallFile1 = getDataDir().resolve("testfile2.txt");
+            Files.copy(this.testfile2.getFile().toPath(), smallFile1);
+            Path smallFile2 = createDirectory(getDataDir().resolve("subdir")).resolve("small.txt");
+            Files.writeString(smallFile2, "a small file");
+            Path largeFile = getDataDir().resolve("testfile1.txt");
+            Files.copy(this.testfile1.getFile().toPath(), largeFile);
+
+            this.backupService.backupRootDirectory(rootDirectory);
+
+            new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+                PathVersion version1 = this.getLatestVersion(rootDirectory, smallFile1);
+                PathVersion version2 = this.getLatestVersion(rootDirectory, smallFile2);
+                assertThat(version1.getBlocks()).hasSize(1);
+                assertThat(version2.getBlocks()).as("small files are packed into the same block").extracting(BlockMetaData::getId).containsExactly(version1.getBlocks().get(0).getId());
+
+                String packBlockId = version1.getBlocks().get(0).getId();
+                byte[] packBlock = this.decryptBlock(this.localStorageService.loadFromLocalStorage(packBlockId).get(), packBlockId);
+                assertThat(packBlock).hasSize((int) (version1.getPackLength() + version2.getPackLength()));
+                assertThat(Arrays.copyOfRange(packBlock, version1.getPackOffset().intValue(), (int) (version1.getPackOffset() + version1.getPackLength()))).isEqualTo(this.readFile(smallFile1));
+                assertThat(Arrays.copyOfRange(packBlock, version2.getPackOffset().intValue(), (int) (version2.getPackOffset() + version2.getPackLength()))).isEqualTo(this.readFile(smallFile2));
+
+                PathVersion largeVersion = this.getLatestVersion(rootDirectory, largeFile);
+                assertThat(largeVersion.getPackOffset()).isNull();
+                assertThat(largeVersion.getPackLength()).isNull();
+            });
+
+            // unchanged small files are not packed again
+            long nrOfBlocks = this.blockMetaDataRepository.count();
+            Files.setLastModifiedTime(smallFile2, FileTime.from(Instant.now().plusSeconds(60)));
+            this.backupService.backupRootDirectory(rootDirectory);
+            assertThat(this.blockMetaDataRepository.count()).isEqualTo(nrOfBlocks);
+        } finally {
+            this.p2PBackupProperties.getBackupProperties().setPackThreshold(DataSize.ofBytes(0));
+        }
+    }
+
+    @Test
+    void testBackupRootDirectory_blake3() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        Path file1Path = getDataDir().resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        this.backupService.backupRootDirectory(rootDirectory);
+
+        this.p2PBackupProperties.getBackupProperties().setHashAlgorithm(HashAlgorithm.BLAKE3);
+        try {
+            // files with unchanged metadata are not hashed again, so the new algorithm is only used for touched files
+            this.backupService.backupRootDirectory(rootDirectory);
+            new TransactionTemplate(this.txManager).executeWithoutResult(status ->
+                    assertThat(this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, getDataDir().relativize(file1Path).toString()).get().getVersions()).hasSize(1));
+
+            Files.setLastModifiedTime(file1Path, FileTime.from(Instant.now().plusSeconds(60)));
+            this.backupService.backupRootDirectory(rootDirectory);
+
+            HashUtils blake3HashUtils = new HashUtils(HashAlgorithm.BLAKE3);
+            new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+                PathData pathData = this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, getDataDir().relativize(file1Path).toString()).get();
+                assertThat(pathData.getVersions()).as("a changed hash-algorithm creates a new version").hasSize(2);
+                List<PathVersion> versions = pathData.getVersions().stream().sorted(Comparator.comparing(PathVersion::getDate)).toList();
+
+                PathVersion sha256Version = versions.get(0);
+                assertThat(sha256Version.getHashAlgorithm()).isEqualTo(HashAlgorithm.SHA_256);
+                assertThat(sha256Version.getHash()).isEqualTo(this.hashUtils.generateHashForFile(file1Path));
+                assertThat(sha256Version.getBlocks().get(0).getHashAlgorithm()).isEqualTo(HashAlgorithm.SHA_256);
+
+                PathVersion blake3Version = versions.get(1);
+                assertThat(blake3Version.getHashAlgorithm()).isEqualTo(HashAlgorithm.BLAKE3);
+                assertThat(blake3Version.getHash()).isEqualTo(blake3HashUtils.generateHashForFile(file1Path));
+                assertThat(blake3Version.getBlocks()).hasSize(1);
+                BlockMetaData blockMetaData = blake3Version.getBlocks().get(0);
+                assertThat(blockMetaData.getHashAlgorithm()).isEqualTo(HashAlgorithm.BLAKE3);
+                assertThat(blockMetaData.getHash()).isEqualTo(blake3HashUtils.generateBlockHash(this.readFile(file1Path)));
+
+                byte[] persistedVersionBlock = this.decryptBlock(this.localStorageService.loadFromLocalStorage(blake3Version.getVersionBlock().getId()).get(), blake3Version.getVersionBlock().getId());
+                this.assertPathDataVersion(persistedVersionBlock, rootDirectory, pathData, blake3Version);
+            });
+
+            // the unchanged file is recognized with the new algorithm
+            Files.setLastModifiedTime(file1Path, FileTime.from(Instant.now().plusSeconds(120)));
+            this.backupService.backupRootDirectory(rootDirectory);
+            new TransactionTemplate(this.txManager).executeWithoutResult(status ->
+                    assertThat(this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, getDataDir().relativize(file1Path).toString()).get().getVersions()).hasSize(2));
+        } finally {
+            this.p2PBackupProperties.getBackupProperties().setHashAlgorithm(HashAlgorithm.SHA_256);
+        }
+    }
+
+    private PathVersion getLatestVersion(RootDirectory rootDirectory, Path file) {
+        PathData pathData = this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, getDataDir().relativize(file).toString()).get();
+        return pathData.getVersions().stream().max(Comparator.comparing(PathVersion::getDate)).get();
+    }
+
     private void assertPathDataVersion(byte[] data, RootDirectory rootDirectory, PathData pathData, PathVersion version) {
         try {
             PathDataVersion pathDataVersion = PathDataVersion.parseFrom(data);
@@ -457,6 +957,11 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
                 assertThat(pathDataVersion.getHash()).isEmpty();
             }
             assertThat(pathDataVersion.getBlockIdsList()).containsExactlyElementsOf(version.getBlocks().stream().map(BlockMetaData::getId).toList());
+            assertThat(pathDataVersion.getZeroBlocksMap()).isEqualTo(version.getZeroBlocks());
+            assertThat(pathDataVersion.getBlockSize()).isEqualTo(version.getBlockSize() != null ? version.getBlockSize() : 0);
+            assertThat(pathDataVersion.getPackOffset()).isEqualTo(version.getPackOffset() != null ? version.getPackOffset() : 0);
+            assertThat(pathDataVersion.getPackLength()).isEqualTo(version.getPackLength() != null ? version.getPackLength() : 0);
+            assertThat(pathDataVersion.getHashAlgorithm()).isEqualTo(version.getHashAlgorithm() != null ? version.getHashAlgorithm().name() : "");
         } catch (InvalidProtocolBufferException e) {
             throw new IllegalStateException(e);
         }
@@ -528,7 +1033,7 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
         Optional<CloudUpload> cloudUpload = this.cloudUploadRepository.findByBlockMetaDataId(bmd.getId());
         assertThat(cloudUpload).isPresent();
         assertThat(cloudUpload.get().getBlockMetaData().getId()).isEqualTo(bmd.getId());
-        assertThat(this.p2PBackupProperties.getStorageDir().resolve(LocalStorageServiceImpl.FOLDER_BACKUP).resolve(bmd.getId())).exists();
+        assertThat(localBackupBlock.get()).startsWith(this.p2PBackupProperties.getStorageDir().resolve(LocalStorageServiceImpl.FOLDER_BACKUP));
     }
 
     @DisplayName("backups two new files and creates a new backup-index for them. after changing and deleting files backups again and creates new backup-index")
@@ -576,6 +1081,66 @@ class BackupIntegrationTest extends BaseSingleApplicationIntegrationTest {
         });
     }
 
+    @DisplayName("backups multiple root-directories and records the version-blocks of all root-directories in one backup-index")
+    @Test
+    void testBackup_multipleRootDirectories() throws IOException {
+        Path secondDataDir = createDirectory(TEMP_DIR.resolve("DATA2"));
+        FileUtils.cleanDirectory(secondDataDir.toFile());
+        assertThat(this.backupService.addRootDirectory("datadir2", secondDataDir.toString())).isPresent();
+        Files.copy(this.testfile1.getFile().toPath(), getDataDir().resolve("testfile1.txt"));
+        Files.copy(this.testfile2.getFile().toPath(), createDirectory(secondDataDir.resolve("subdir")).resolve("testfile2.txt"));
+
+        this.backupService.backup();
+
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            List<PathData> pathDataList = this.pathDataRepository.findAll();
+            assertThat(pathDataList).extracting(p -> p.getRootDirectory().getName() + ":" + p.getPath())
+                    .containsExactlyInAnyOrder("datadir:testfile1.txt", "datadir2:subdir/testfile2.txt");
+            List<String> versionBlockIds = this.pathVersionRepository.findAll().stream().map(PathVersion::getVersionBlock).map(BlockMetaData::getId).toList();
+
+            // the version-blocks of both root-directories are in one backup-index
+            List<BlockMetaData> indexBlocks = this.blockMetaDataRepository.findAllByIdLike(BackupConstants.BACKUP_INDEX_BLOCK_PREFIX + "%", Pageable.unpaged());
+            assertThat(indexBlocks).hasSize(1);
+            byte[] persistedVersionBlock = this.assertLocalSavedDataAndCloudUploadEntryAndVerificationValues(indexBlocks.get(0), 12);
+            this.assertBackupIndexBlock(persistedVersionBlock, versionBlockIds);
+        });
+    }
+
+    @DisplayName("backups only the changed paths. a changed directory is walked completely and paths that no longer exist are marked as deleted")
+    @Test
+    void testBackupChangedPaths() throws IOException {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        Path directory = createDirectory(getDataDir().resolve("subdir"));
+        Path file1Path = directory.resolve("testfile1.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file1Path);
+        Path file2Path = getDataDir().resolve("testfile2.txt");
+        Files.copy(this.testfile2.getFile().toPath(), file2Path);
+        Path file3Path = getDataDir().resolve("testfile3.txt");
+        Files.copy(this.testfile2.getFile().toPath(), file3Path);
+
+        this.backupService.backup();
+
+        Files.writeString(file1Path, "additions", StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        Path file4Path = directory.resolve("testfile4.txt");
+        Files.copy(this.testfile1.getFile().toPath(), file4Path);
+        Files.delete(file2Path);
+        Files.delete(file3Path); // not reported as changed, so it must not be marked as deleted
+
+        this.backupService.backupChangedPaths(Map.of(rootDirectory.getId(), Set.of(directory, file1Path, file2Path)));
+
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            Map<String, PathData> pathDataByPath = this.pathDataRepository.findAll().stream().collect(Collectors.toMap(PathData::getPath, p -> p));
+            assertThat(pathDataByPath).hasSize(4);
+            assertThat(pathDataByPath.get(getDataDir().relativize(file1Path).toString()).getVersions()).hasSize(2);
+            assertThat(pathDataByPath.get(getDataDir().relativize(file4Path).toString()).getVersions()).hasSize(1);
+            assertThat(pathDataByPath.get(getDataDir().relativize(file2Path).toString()).getVersions()).hasSize(2).anyMatch(PathVersion::getDeleted);
+            assertThat(pathDataByPath.get(getDataDir().relativize(file3Path).toString()).getVersions()).hasSize(1).noneMatch(PathVersion::getDeleted);
+
+            List<BlockMetaData> indexBlocks = this.blockMetaDataRepository.findAllByIdLike(BackupConstants.BACKUP_INDEX_BLOCK_PREFIX + "%", Pageable.unpaged());
+            assertThat(indexBlocks).hasSize(2);
+        });
+    }
+
     private void assertBackupIndexBlock(byte[] persistedBackupIndexBlock, List<String> blockVersionIds) {
         try {
             BackupIndex backupIndex = BackupIndex.parseFrom(persistedBackupIndexBlock);
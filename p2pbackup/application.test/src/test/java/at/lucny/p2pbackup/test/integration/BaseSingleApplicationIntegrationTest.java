@@ -2,6 +2,9 @@ package at.lucny.p2pbackup.test.integration;
 
 import at.lucny.p2pbackup.P2PBackupApplicationConfiguration;
 import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotRepository;
+import at.lucny.p2pbackup.backup.repository.RootDirectorySnapshotRepository;
+import at.lucny.p2pbackup.backup.service.BlockHashIndexService;
 import at.lucny.p2pbackup.core.repository.*;
 import at.lucny.p2pbackup.core.support.CryptoUtils;
 import at.lucny.p2pbackup.localstorage.service.LocalStorageServiceImpl;
@@ -19,6 +22,7 @@ import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -58,9 +62,18 @@ abstract class BaseSingleApplicationIntegrationTest extends BaseTest {
     @Autowired
     protected VerificationValueRepository verificationValueRepository;
 
+    @Autowired
+    protected RootDirectorySnapshotRepository rootDirectorySnapshotRepository;
+
+    @Autowired
+    protected DirectorySnapshotRepository directorySnapshotRepository;
+
     @Autowired
     protected LocalStorageServiceImpl localStorageService;
 
+    @Autowired
+    protected BlockHashIndexService blockHashIndexService;
+
     static Path getConfigDir() {
         return createDirectory(TEMP_DIR.resolve("CONFIG"));
     }
@@ -85,6 +98,18 @@ abstract class BaseSingleApplicationIntegrationTest extends BaseTest {
         }
     }
 
+    /**
+     * Deletes the digest-trees of all backups. The nodes reference each other, so the references are removed first.
+     */
+    protected void deleteSnapshots() {
+        new TransactionTemplate(this.txManager).executeWithoutResult(status -> {
+            this.rootDirectorySnapshotRepository.deleteAll();
+            this.directorySnapshotRepository.findAll().forEach(snapshot -> snapshot.getDirectories().clear());
+            this.directorySnapshotRepository.flush();
+            this.directorySnapshotRepository.deleteAll();
+        });
+    }
+
     @BeforeEach
     void beforeEach_BaseSingleApplicationIntegrationTest() throws IOException {
         // reinitialize directories before each test
@@ -24,8 +24,11 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
 
 import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
@@ -75,11 +78,13 @@ class RestorationIntegrationTest extends BaseSingleApplicationIntegrationTest {
     void afterEach() {
         this.deleteRestorePathEntries();
         this.restoreBlockDataRepository.deleteAll();
+        this.deleteSnapshots();
 
         this.cloudUploadRepository.deleteAll();
         this.verificationValueRepository.deleteAll();
         this.pathDataRepository.deleteAll();
         this.blockMetaDataRepository.deleteAll();
+        this.blockHashIndexService.rebuild();
     }
 
     private void deleteRestorePathEntries() {
@@ -140,6 +145,59 @@ class RestorationIntegrationTest extends BaseSingleApplicationIntegrationTest {
         });
     }
 
+    @Test
+    void testBeginRestore_withPackedFiles_restoreFiles() throws Exception {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+        this.p2PBackupProperties.getBackupProperties().setPackThreshold(DataSize.ofKilobytes(4));
+
+        try {
+            Path directory = createDirectory(getDataDir().resolve("subdir"));
+            Path file1Path = directory.resolve("small.txt");
+            Files.writeString(file1Path, "a small file");
+            Path file2Path = getDataDir().resolve("testfile2.txt");
+            Files.copy(this.testfile2.getFile().toPath(), file2Path);
+
+            this.backupService.backupRootDirectory(rootDirectory);
+            createDirectory(getStorageDir().resolve("_RESTORE")); // the restoration-storage is cleaned after each test
+            this.restoreManagementService.beginRestore(rootDirectory, LocalDateTime.now(ZoneOffset.UTC), getRestoreDir());
+
+            await().untilAsserted(() -> {
+                this.restorationService.restoreBlocks();
+
+                Path restoreFile1Path = createDirectory(getRestoreDir().resolve("subdir")).resolve("small.txt");
+                Path restoreFile2Path = getRestoreDir().resolve("testfile2.txt");
+                assertThat(restoreFile1Path).exists().hasSameBinaryContentAs(file1Path);
+                assertThat(restoreFile2Path).exists().hasSameBinaryContentAs(file2Path);
+            });
+        } finally {
+            this.p2PBackupProperties.getBackupProperties().setPackThreshold(DataSize.ofBytes(0));
+        }
+    }
+
+    @Test
+    void testBeginRestore_withZeroBlocks_restoreFiles() throws Exception {
+        RootDirectory rootDirectory = this.getConfiguredRootDirectory();
+
+        int blockSize = (int) this.p2PBackupProperties.getBlockSize().toBytes();
+        Path filePath = getDataDir().resolve("sparse.img");
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.SPARSE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(Files.readAllBytes(this.testfile1.getFile().toPath())), blockSize);
+            // the file ends with a hole
+            channel.write(ByteBuffer.allocate(1), 4L * blockSize - 1);
+        }
+
+        this.backupService.backupRootDirectory(rootDirectory);
+        createDirectory(getStorageDir().resolve("_RESTORE")); // the restoration-storage is cleaned after each test
+        this.restoreManagementService.beginRestore(rootDirectory, LocalDateTime.now(ZoneOffset.UTC), getRestoreDir());
+
+        await().untilAsserted(() -> {
+            this.restorationService.restoreBlocks();
+
+            Path restoreFilePath = getRestoreDir().resolve("sparse.img");
+            assertThat(restoreFilePath).exists().hasSameBinaryContentAs(filePath);
+        });
+    }
+
     @Test
     void testBeginRestore_withNewDirectory() throws Exception {
         RootDirectory rootDirectory = this.getConfiguredRootDirectory();
@@ -72,6 +72,7 @@ class VerificationValueServiceIntegrationTest extends BaseSingleApplicationInteg
         this.activeVerificationValueRepository.deleteAll();
         this.verificationValueRepository.deleteAll();
         this.blockMetaDataRepository.deleteAll();
+        this.blockHashIndexService.rebuild();
     }
 
     @Test
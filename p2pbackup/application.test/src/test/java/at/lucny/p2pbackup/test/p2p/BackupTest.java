@@ -21,12 +21,9 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -61,8 +58,7 @@ public class BackupTest extends BaseP2PTest {
             LocalStorageService localStorageService2 = ctxUser2.getBean(LocalStorageService.class);
             for (BlockMetaData bmd : bmds) {
                 // the blocks should be saved in the local-storage of user2
-                Optional<Path> blockPath = localStorageService2.loadFromLocalStorage("user1", bmd.getId());
-                assertThat(blockPath).isPresent();
+                assertThat(localStorageService2.existsInLocalStorage("user1", bmd.getId())).isTrue();
 
                 assertThat(bmd.getLocations()).hasSize(1);
                 DataLocation location = bmd.getLocations().iterator().next();
@@ -94,8 +90,7 @@ public class BackupTest extends BaseP2PTest {
         LocalStorageService localStorageService3 = ctxUser3.getBean(LocalStorageService.class);
         for (BlockMetaData bmd : bmds) {
             // the blocks should be saved in the local-storage of user3
-            Optional<Path> blockPath = localStorageService3.loadFromLocalStorage("user1", bmd.getId());
-            assertThat(blockPath).isPresent();
+            assertThat(localStorageService3.existsInLocalStorage("user1", bmd.getId())).isTrue();
 
             bmd = bmdRepository1.findByIdFetchLocations(bmd.getId()).get();
             assertThat(bmd.getLocations()).extracting(DataLocation::getUserId).containsExactlyInAnyOrder("user2", "user3");
@@ -142,8 +137,7 @@ public class BackupTest extends BaseP2PTest {
         ctxUser1.getBean(DataLocationRepository.class).delete(location);
 
         LocalStorageService localStorageService2 = ctxUser2.getBean(LocalStorageService.class);
-        Path pathToBlock = localStorageService2.loadFromLocalStorage("user1", bmd.getId()).get();
-        Files.delete(pathToBlock);
+        localStorageService2.removeFromLocalStorage("user1", List.of(bmd.getId()));
 
         // request and verify that the missing block is fetched and stored locally
         ctxUser1.getBean(DistributionAgent.class).distribute();
@@ -206,8 +200,7 @@ public class BackupTest extends BaseP2PTest {
             LocalStorageService localStorageService2 = ctxUser2.getBean(LocalStorageService.class);
             for (BlockMetaData bmd : bmds) {
                 // the blocks should be saved in the local-storage of user2
-                Optional<Path> blockPath = localStorageService2.loadFromLocalStorage("user1", bmd.getId());
-                assertThat(blockPath).isNotPresent();
+                assertThat(localStorageService2.existsInLocalStorage("user1", bmd.getId())).isFalse();
             }
         });
     }
@@ -246,8 +239,7 @@ public class BackupTest extends BaseP2PTest {
             LocalStorageService localStorageService2 = ctxUser2.getBean(LocalStorageService.class);
             for (BlockMetaData bmd : bmds) {
                 // the blocks should be saved in the local-storage of user2
-                Optional<Path> blockPath = localStorageService2.loadFromLocalStorage("user1", bmd.getId());
-                assertThat(blockPath).isNotPresent();
+                assertThat(localStorageService2.existsInLocalStorage("user1", bmd.getId())).isFalse();
             }
         });
     }
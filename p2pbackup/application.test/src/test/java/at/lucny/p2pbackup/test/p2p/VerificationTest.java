@@ -59,7 +59,7 @@ class VerificationTest extends BaseP2PTest {
         DataLocationRepository dataLocationRepository1 = ctxUser1.getBean(DataLocationRepository.class);
         P2PBackupProperties p2PBackupProperties1 = ctxUser1.getBean(P2PBackupProperties.class);
 
-        await().untilAsserted(() -> assertThat(dataLocationRepository1.count()).as("for 5 blocks (2 path-version-blocks, 2 data-blocks, 1 backup-index-block) should be a data location saved").isEqualTo(5));
+        this.awaitConfirmedDataLocations(dataLocationRepository1, 5, "for 5 blocks (2 path-version-blocks, 2 data-blocks, 1 backup-index-block) should be a data location saved");
 
         // set the verification date of all locations in the past so we have to verify them
         List<DataLocation> oldLocations = dataLocationRepository1.findAll();
@@ -110,7 +110,7 @@ class VerificationTest extends BaseP2PTest {
         DataLocationRepository dataLocationRepository1 = ctxUser1.getBean(DataLocationRepository.class);
         P2PBackupProperties p2PBackupProperties1 = ctxUser1.getBean(P2PBackupProperties.class);
 
-        await().untilAsserted(() -> assertThat(dataLocationRepository1.count()).as("for 3 blocks (1 path-version-block, 1 data-block, 1 backup-index-block) should be a data location saved").isEqualTo(3));
+        this.awaitConfirmedDataLocations(dataLocationRepository1, 3, "for 3 blocks (1 path-version-block, 1 data-block, 1 backup-index-block) should be a data location saved");
 
         // set the verification date of all locations in the past so we have to verify them
         List<DataLocation> oldLocations = dataLocationRepository1.findAll();
@@ -161,7 +161,7 @@ class VerificationTest extends BaseP2PTest {
         DataLocationRepository dataLocationRepository1 = ctxUser1.getBean(DataLocationRepository.class);
         P2PBackupProperties p2PBackupProperties1 = ctxUser1.getBean(P2PBackupProperties.class);
 
-        await().untilAsserted(() -> assertThat(dataLocationRepository1.count()).as("for 3 blocks (1 path-version-block, 1 data-block, 1 backup-index-block) should be a data location saved").isEqualTo(3));
+        this.awaitConfirmedDataLocations(dataLocationRepository1, 3, "for 3 blocks (1 path-version-block, 1 data-block, 1 backup-index-block) should be a data location saved");
 
         // set the verification date of all locations in the past so we have to verify them
         List<DataLocation> oldLocations = dataLocationRepository1.findAll();
@@ -217,7 +217,7 @@ class VerificationTest extends BaseP2PTest {
         DataLocationRepository dataLocationRepository1 = ctxUser1.getBean(DataLocationRepository.class);
         P2PBackupProperties p2PBackupProperties1 = ctxUser1.getBean(P2PBackupProperties.class);
 
-        await().untilAsserted(() -> assertThat(dataLocationRepository1.count()).as("for 5 blocks (2 path-version-blocks, 2 data-blocks, 1 backup-index-block) should be a data location saved").isEqualTo(5));
+        this.awaitConfirmedDataLocations(dataLocationRepository1, 5, "for 5 blocks (2 path-version-blocks, 2 data-blocks, 1 backup-index-block) should be a data location saved");
 
         // set the verification-date of all data-locations to a timestamp where we have to delete them
         List<DataLocation> locations = dataLocationRepository1.findAll();
@@ -241,7 +241,7 @@ class VerificationTest extends BaseP2PTest {
 
             // all blocks should be deleted from user2
             for (BlockMetaData bmd : bmds) {
-                assertThat(localStorageService2.loadFromLocalStorage("user1", bmd.getId())).isNotPresent();
+                assertThat(localStorageService2.existsInLocalStorage("user1", bmd.getId())).isFalse();
             }
         });
     }
@@ -263,14 +263,13 @@ class VerificationTest extends BaseP2PTest {
         DataLocationRepository dataLocationRepository1 = ctxUser1.getBean(DataLocationRepository.class);
         P2PBackupProperties p2PBackupProperties1 = ctxUser1.getBean(P2PBackupProperties.class);
 
-        await().untilAsserted(() -> assertThat(dataLocationRepository1.count()).as("for 3 blocks (1 path-version-block, 1 data-block, 1 backup-index-block) should be a data location saved").isEqualTo(3));
+        this.awaitConfirmedDataLocations(dataLocationRepository1, 3, "for 3 blocks (1 path-version-block, 1 data-block, 1 backup-index-block) should be a data location saved");
 
         List<DataLocation> locations = dataLocationRepository1.findAll();
 
-        // delete the block from the first data-location-entry from user 2 from the file-system
+        // delete the block from the first data-location-entry from the local-storage of user 2
         LocalStorageService localStorageService2 = ctxUser2.getBean(LocalStorageService.class);
-        Path pathToSavedBlock = localStorageService2.loadFromLocalStorage("user1", locations.get(0).getBlockMetaData().getId()).get();
-        Files.delete(pathToSavedBlock);
+        localStorageService2.removeFromLocalStorage("user1", List.of(locations.get(0).getBlockMetaData().getId()));
 
         // reset data-locations verify-date to trigger verification
         for (DataLocation location : locations) {
@@ -284,13 +283,26 @@ class VerificationTest extends BaseP2PTest {
             // check if the data-location-entry of the missing block of user2 was deleted at user1
             assertThat(dataLocationRepository1.count()).isEqualTo(2);
             assertThat(dataLocationRepository1.findById(locations.get(0).getId())).isNotPresent();
-            assertThat(localStorageService2.loadFromLocalStorage("user1", locations.get(0).getBlockMetaData().getId())).isNotPresent();
+            assertThat(localStorageService2.existsInLocalStorage("user1", locations.get(0).getBlockMetaData().getId())).isFalse();
 
             // the data for the available blocks should be there
             assertThat(dataLocationRepository1.findById(locations.get(1).getId())).isPresent();
-            assertThat(localStorageService2.loadFromLocalStorage("user1", locations.get(1).getBlockMetaData().getId())).isPresent();
+            assertThat(localStorageService2.existsInLocalStorage("user1", locations.get(1).getBlockMetaData().getId())).isTrue();
             assertThat(dataLocationRepository1.findById(locations.get(2).getId())).isPresent();
-            assertThat(localStorageService2.loadFromLocalStorage("user1", locations.get(2).getBlockMetaData().getId())).isPresent();
+            assertThat(localStorageService2.existsInLocalStorage("user1", locations.get(2).getBlockMetaData().getId())).isTrue();
+        });
+    }
+
+    /**
+     * Waits until the data-locations are saved and the other peer confirmed that it stored the blocks, so the
+     * confirmation can't overwrite the verification-dates changed by the test.
+     */
+    private void awaitConfirmedDataLocations(DataLocationRepository dataLocationRepository, long nrOfLocations, String description) {
+        P2PBackupProperties p2PBackupProperties = ctxUser1.getBean(P2PBackupProperties.class);
+        await().untilAsserted(() -> {
+            assertThat(dataLocationRepository.count()).as(description).isEqualTo(nrOfLocations);
+            LocalDateTime confirmedAfter = LocalDateTime.now(ZoneOffset.UTC).minus(p2PBackupProperties.getVerificationProperties().getDurationBetweenVerifications());
+            assertThat(dataLocationRepository.findAll()).allSatisfy(location -> assertThat(location.getVerified()).isAfter(confirmedAfter));
         });
     }
 }
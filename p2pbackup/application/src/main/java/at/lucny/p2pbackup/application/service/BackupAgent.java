@@ -10,6 +10,9 @@ import org.springframework.context.annotation.DependsOn;
 import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
@@ -33,13 +36,13 @@ public class BackupAgent {
         this.taskExecutor = taskExecutor;
     }
 
-    public Future<Void> backup() {
+    public synchronized Future<Void> backup() {
         if (this.configuration.containsKey(ConfigurationConstants.PROPERTY_RECOVERY_STATE)) {
             LOGGER.info("cannot backup because there is an ongoing recovery in state {}", this.configuration.get(RecoveryState.class, ConfigurationConstants.PROPERTY_RECOVERY_STATE));
             return CompletableFuture.completedFuture(null);
         }
 
-        if (this.runningTask == null) {
+        if (!this.isBackupRunning()) {
             this.runningTask = this.taskExecutor.submit(() -> {
                 try {
                     LOGGER.info("backup all root-directories");
@@ -47,8 +50,6 @@ public class BackupAgent {
                     LOGGER.info("finished to backup all root-directories");
                 } catch (Exception e) {
                     LOGGER.warn("unable to backup blocks", e);
-                } finally {
-                    this.runningTask = null;
                 }
                 return null;
             });
@@ -57,4 +58,36 @@ public class BackupAgent {
         }
         return this.runningTask;
     }
+
+    /**
+     * Backups the given changed paths if no other backup is running.
+     *
+     * @param changedPathsByRootDirectoryId the absolute changed paths mapped by the id of their root-directory
+     * @return true if the backup was started, false if another backup or a recovery is running
+     */
+    public synchronized boolean backupChangedPaths(Map<String, Set<Path>> changedPathsByRootDirectoryId) {
+        if (this.configuration.containsKey(ConfigurationConstants.PROPERTY_RECOVERY_STATE) || this.isBackupRunning()) {
+            return false;
+        }
+
+        this.runningTask = this.taskExecutor.submit(() -> {
+            try {
+                LOGGER.debug("backup changed paths");
+                this.backupService.backupChangedPaths(changedPathsByRootDirectoryId);
+                LOGGER.debug("finished to backup changed paths");
+            } catch (Exception e) {
+                LOGGER.warn("unable to backup changed paths", e);
+            }
+            return null;
+        });
+        return true;
+    }
+
+    /**
+     * The finished task is not cleared by the task itself, it could finish before it is assigned to the field.
+     * Must be called while holding the lock of the agent.
+     */
+    private boolean isBackupRunning() {
+        return this.runningTask != null && !this.runningTask.isDone();
+    }
 }
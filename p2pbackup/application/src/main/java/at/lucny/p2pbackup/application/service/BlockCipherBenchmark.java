@@ -0,0 +1,88 @@
+package at.lucny.p2pbackup.application.service;
+
+import at.lucny.p2pbackup.application.config.BlockCipher;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.core.service.BlockEncryptionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the encryption-throughput of every {@link BlockCipher} on the current host after the application started
+ * and logs it, so that the block-cipher of a deployment can be chosen according to its CPU.
+ */
+@Component
+public class BlockCipherBenchmark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockCipherBenchmark.class);
+
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+
+    private static final int ROUNDS = 3;
+
+    private static final byte[] AEAD = "benchmark".getBytes(StandardCharsets.UTF_8);
+
+    private final BlockEncryptionService blockEncryptionService;
+
+    private final AsyncTaskExecutor taskExecutor;
+
+    private final BlockCipher configuredBlockCipher;
+
+    public BlockCipherBenchmark(BlockEncryptionService blockEncryptionService, AsyncTaskExecutor taskExecutor, P2PBackupProperties p2PBackupProperties) {
+        this.blockEncryptionService = blockEncryptionService;
+        this.taskExecutor = taskExecutor;
+        this.configuredBlockCipher = p2PBackupProperties.getBackupProperties().getBlockCipher();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        this.taskExecutor.execute(() -> {
+            try {
+                Map<BlockCipher, Double> throughput = this.measureThroughput();
+                StringBuilder sb = new StringBuilder("encryption-throughput of the block-ciphers on this host:");
+                throughput.forEach((blockCipher, megabytesPerSecond) -> sb.append(String.format(" %s=%.0fMB/s", blockCipher, megabytesPerSecond)));
+                sb.append(", configured is ").append(this.configuredBlockCipher);
+                LOGGER.info("{}", sb);
+            } catch (RuntimeException e) {
+                LOGGER.warn("unable to measure the throughput of the block-ciphers", e);
+            }
+        });
+    }
+
+    /**
+     * Encrypts the same data with every cipher and returns the throughput in megabytes per second. The first round of
+     * every cipher warms up the JIT and is not measured.
+     */
+    public Map<BlockCipher, Double> measureThroughput() {
+        byte[] data = new byte[DATA_SIZE];
+        new Random().nextBytes(data);
+        ByteBuffer plainData = ByteBuffer.wrap(data);
+        ByteBuffer encryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(DATA_SIZE));
+
+        Map<BlockCipher, Double> throughput = new EnumMap<>(BlockCipher.class);
+        for (BlockCipher blockCipher : BlockCipher.values()) {
+            long duration = 0;
+            for (int round = 0; round <= ROUNDS; round++) {
+                plainData.rewind();
+                encryptedData.clear();
+                long start = System.nanoTime();
+                this.blockEncryptionService.encrypt(plainData, AEAD, encryptedData, blockCipher);
+                if (round > 0) {
+                    duration += System.nanoTime() - start;
+                }
+            }
+            double seconds = Math.max(duration, 1) / 1_000_000_000d;
+            throughput.put(blockCipher, (double) ROUNDS * DATA_SIZE / (1024 * 1024) / seconds);
+        }
+        return throughput;
+    }
+}
@@ -0,0 +1,178 @@
+package at.lucny.p2pbackup.application.service;
+
+import at.lucny.p2pbackup.application.config.BackupProperties;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.backup.service.BackupService;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches all root-directories for changes if the continuous backup is enabled. Changed paths are collected until no
+ * further change happened for the configured debounce-duration and are then backed up together. Because the file-system
+ * can drop events, all root-directories are completely backed up in a fixed interval.
+ */
+@Component
+@DependsOn("initConfigurationBean") // depending on the bean for property initialization
+public class ContinuousBackupAgent {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContinuousBackupAgent.class);
+
+    private final BackupAgent backupAgent;
+
+    private final BackupService backupService;
+
+    private final TaskScheduler taskScheduler;
+
+    private final BackupProperties backupProperties;
+
+    private final Map<WatchKey, WatchedDirectory> watchedDirectories = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<Path>> changedPaths = new HashMap<>();
+
+    private long lastChange;
+
+    private WatchService watchService;
+
+    private record WatchedDirectory(String rootDirectoryId, Path directory) {
+    }
+
+    public ContinuousBackupAgent(BackupAgent backupAgent, BackupService backupService, P2PBackupProperties p2PBackupProperties, TaskScheduler taskScheduler) {
+        this.backupAgent = backupAgent;
+        this.backupService = backupService;
+        this.taskScheduler = taskScheduler;
+        this.backupProperties = p2PBackupProperties.getBackupProperties();
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!Boolean.TRUE.equals(this.backupProperties.getContinuous())) {
+            return;
+        }
+
+        LOGGER.info("starting continuous backup");
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread watcher = new Thread(this::processEvents, "backup-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        // the first reconciliation runs immediately and backups the changes made while the application was not running
+        this.taskScheduler.scheduleWithFixedDelay(this::reconcile, this.backupProperties.getContinuousReconciliationInterval());
+        this.taskScheduler.scheduleWithFixedDelay(this::backupChangedPaths, this.backupProperties.getContinuousDebounce());
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (this.watchService != null) {
+            this.watchService.close();
+        }
+    }
+
+    /**
+     * Registers watches for new root-directories and directories and backups all root-directories.
+     */
+    public void reconcile() {
+        for (RootDirectory rootDirectory : this.backupService.getRootDirectories()) {
+            this.register(rootDirectory.getId(), Paths.get(rootDirectory.getPath()));
+        }
+        this.backupAgent.backup();
+    }
+
+    /**
+     * Registers the given directory and all its subdirectories at the watch-service.
+     */
+    private void register(String rootDirectoryId, Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = dir.register(ContinuousBackupAgent.this.watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    ContinuousBackupAgent.this.watchedDirectories.put(key, new WatchedDirectory(rootDirectoryId, dir));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    LOGGER.warn("unable to watch {}: {}", file, exc.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOGGER.warn("unable to watch directory {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                LOGGER.info("stopped continuous backup");
+                return;
+            }
+
+            WatchedDirectory watchedDirectory = this.watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (watchedDirectory == null) {
+                    continue;
+                }
+                if (event.kind() == OVERFLOW) {
+                    // events were lost, so the whole directory has to be checked
+                    LOGGER.debug("lost events for directory {}", watchedDirectory.directory());
+                    this.addChangedPath(watchedDirectory.rootDirectoryId(), watchedDirectory.directory());
+                    continue;
+                }
+
+                Path path = watchedDirectory.directory().resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    this.register(watchedDirectory.rootDirectoryId(), path);
+                }
+                this.addChangedPath(watchedDirectory.rootDirectoryId(), path);
+            }
+
+            if (!key.reset()) {
+                this.watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private synchronized void addChangedPath(String rootDirectoryId, Path path) {
+        this.changedPaths.computeIfAbsent(rootDirectoryId, id -> new HashSet<>()).add(path);
+        this.lastChange = System.currentTimeMillis();
+    }
+
+    /**
+     * Backups the collected changed paths if no further change happened for the debounce-duration.
+     */
+    public synchronized void backupChangedPaths() {
+        if (this.changedPaths.isEmpty() || System.currentTimeMillis() - this.lastChange < this.backupProperties.getContinuousDebounce().toMillis()) {
+            return;
+        }
+
+        Map<String, Set<Path>> paths = new HashMap<>(this.changedPaths);
+        if (this.backupAgent.backupChangedPaths(paths)) {
+            LOGGER.debug("started backup of changed paths of {} root-directories", paths.size());
+            this.changedPaths.clear();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package at.lucny.p2pbackup.application.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.application.config.SweeperProperties;
+import at.lucny.p2pbackup.localstorage.service.PeerBlockSweeperService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.concurrent.Future;
+
+/**
+ * Sweeps the removed blocks of other users periodically. If the usable space of the storage-directory falls below the
+ * configured minimum, space is reclaimed immediately. A running sweep is then stopped, because it is rate-limited.
+ */
+@Component
+@DependsOn("initConfigurationBean") // depending on the bean for property initialization
+public class SweeperAgent {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SweeperAgent.class);
+
+    private final PeerBlockSweeperService peerBlockSweeperService;
+
+    private final AsyncTaskExecutor taskExecutor;
+
+    private volatile boolean reclaimRequested;
+
+    private Future<Long> runningTask;
+
+    public SweeperAgent(PeerBlockSweeperService peerBlockSweeperService, P2PBackupProperties p2PBackupProperties, TaskScheduler taskScheduler, AsyncTaskExecutor taskExecutor) {
+        this.peerBlockSweeperService = peerBlockSweeperService;
+        this.taskExecutor = taskExecutor;
+
+        SweeperProperties sweeperProperties = p2PBackupProperties.getSweeperProperties();
+        taskScheduler.scheduleWithFixedDelay(this::sweep, Instant.now().plus(sweeperProperties.getDurationBetweenSweeps()), sweeperProperties.getDurationBetweenSweeps());
+        taskScheduler.scheduleWithFixedDelay(this::checkFreeSpace, Instant.now().plus(sweeperProperties.getDurationBetweenFreeSpaceChecks()), sweeperProperties.getDurationBetweenFreeSpaceChecks());
+    }
+
+    private void checkFreeSpace() {
+        if (this.peerBlockSweeperService.isFreeSpaceLow()) {
+            LOGGER.warn("usable space of the storage-directory is low, reclaiming space of removed blocks");
+            this.reclaimNow();
+        }
+    }
+
+    /**
+     * Deletes the data of removed blocks whose grace-period ended.
+     *
+     * @return the running task, that returns the number of reclaimed bytes
+     */
+    public synchronized Future<Long> sweep() {
+        return this.submit();
+    }
+
+    /**
+     * Deletes the data of removed blocks without rate-limit, until enough space is free.
+     *
+     * @return the running task, that returns the number of reclaimed bytes
+     */
+    public synchronized Future<Long> reclaimNow() {
+        this.reclaimRequested = true;
+        return this.submit();
+    }
+
+    private Future<Long> submit() {
+        // the finished task is not cleared by the task itself, it could finish before it is assigned to the field
+        if (this.runningTask == null || this.runningTask.isDone()) {
+            this.runningTask = this.taskExecutor.submit(() -> {
+                long reclaimedBytes = 0;
+                try {
+                    if (!this.reclaimRequested) {
+                        reclaimedBytes += this.peerBlockSweeperService.sweep(() -> this.reclaimRequested);
+                    }
+                    if (this.reclaimRequested) {
+                        this.reclaimRequested = false;
+                        reclaimedBytes += this.peerBlockSweeperService.reclaimNow();
+                    }
+                } catch (Exception e) {
+                    LOGGER.warn("unable to reclaim space of removed blocks", e);
+                }
+                return reclaimedBytes;
+            });
+        }
+        return this.runningTask;
+    }
+}
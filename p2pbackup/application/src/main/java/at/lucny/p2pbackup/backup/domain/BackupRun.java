@@ -0,0 +1,48 @@
+package at.lucny.p2pbackup.backup.domain;
+
+import at.lucny.p2pbackup.core.domain.AbstractEntityAudited;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The journal of a backup of a root-directory that is not finished yet. A backup that is interrupted resumes from
+ * the journal instead of starting over. The date of the last update is the date of the last checkpoint.
+ */
+@Entity
+@Table(name = "BACKUP_RUN")
+@Getter
+@Setter
+@ToString(callSuper = true)
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class BackupRun extends AbstractEntityAudited {
+
+    @OneToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "ROOT_DIRECTORY_ID", nullable = false, unique = true)
+    @ToString.Exclude
+    private RootDirectory rootDirectory;
+
+    /**
+     * the number of the backup of the root-directory, a resumed backup keeps its number.
+     */
+    @Column(name = "NR_OF_BACKUP", nullable = false)
+    private Integer nrOfBackup;
+
+    /**
+     * the relative path up to which all files in walk order are backed up. null if no file is completed yet.
+     */
+    @Column(name = "LAST_COMPLETED_PATH", length = 1024)
+    private String lastCompletedPath;
+
+    @OneToMany(mappedBy = "backupRun", cascade = CascadeType.ALL, orphanRemoval = true)
+    @ToString.Exclude
+    private Set<BackupRunFile> files = new HashSet<>();
+
+    public BackupRun(RootDirectory rootDirectory, Integer nrOfBackup) {
+        this.rootDirectory = rootDirectory;
+        this.nrOfBackup = nrOfBackup;
+    }
+}
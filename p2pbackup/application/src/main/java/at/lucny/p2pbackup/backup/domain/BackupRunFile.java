@@ -0,0 +1,48 @@
+package at.lucny.p2pbackup.backup.domain;
+
+import at.lucny.p2pbackup.core.domain.AbstractEntity;
+import at.lucny.p2pbackup.core.domain.BlockMetaData;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The progress of a file that was not completely backed up at the last checkpoint of a {@link BackupRun}.
+ */
+@Entity
+@Table(name = "BACKUP_RUN_FILE", uniqueConstraints = @UniqueConstraint(name = "uc_backup_run_file_backup_run_id_path", columnNames = {"BACKUP_RUN_ID", "PATH"}))
+@Getter
+@Setter
+@ToString(callSuper = true)
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class BackupRunFile extends AbstractEntity {
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "BACKUP_RUN_ID", nullable = false)
+    @ToString.Exclude
+    private BackupRun backupRun;
+
+    @Column(name = "PATH", nullable = false, length = 1024)
+    private String path;
+
+    /**
+     * the already persisted blocks from the beginning of the file.
+     */
+    @ManyToMany
+    @JoinTable(name = "BACKUP_RUN_FILE_BLOCK_META_DATA",
+            joinColumns =
+            @JoinColumn(name = "BACKUP_RUN_FILE_ID", nullable = false),
+            inverseJoinColumns =
+            @JoinColumn(name = "BLOCK_META_DATA_ID", nullable = false)
+    )
+    @OrderColumn(name = "POSITION", nullable = false)
+    @ToString.Exclude
+    private List<BlockMetaData> blocks = new ArrayList<>();
+
+    public BackupRunFile(BackupRun backupRun, String path) {
+        this.backupRun = backupRun;
+        this.path = path;
+    }
+}
@@ -0,0 +1,61 @@
+package at.lucny.p2pbackup.backup.domain;
+
+import at.lucny.p2pbackup.core.domain.AbstractEntity;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A node of the digest-tree of a root-directory. Nodes are identified by their digest, so an unchanged directory
+ * references the same node in every snapshot and a snapshot only adds nodes for changed directories.
+ */
+@Entity
+@Table(name = "DIRECTORY_SNAPSHOT")
+@Getter
+@Setter
+@ToString(callSuper = true)
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class DirectorySnapshot extends AbstractEntity {
+
+    /**
+     * the digest of the files-digest and the names and digests of all subdirectories.
+     */
+    @Column(name = "DIGEST", nullable = false, unique = true, length = 256)
+    private String digest;
+
+    /**
+     * the digest of the modification-time of the directory, its number of children and the names and metadata of the
+     * files in the directory. Unchanged if the files directly within the directory are unchanged.
+     */
+    @Column(name = "FILES_DIGEST", nullable = false, length = 256)
+    private String filesDigest;
+
+    /**
+     * the modification-time of the directory in nanoseconds since the epoch.
+     */
+    @Column(name = "LAST_MODIFIED", nullable = false)
+    private Long lastModified;
+
+    @Column(name = "NR_OF_CHILDREN", nullable = false)
+    private Integer nrOfChildren;
+
+    @ManyToMany
+    @JoinTable(name = "DIRECTORY_SNAPSHOT_CHILD",
+            joinColumns =
+            @JoinColumn(name = "DIRECTORY_SNAPSHOT_ID", nullable = false),
+            inverseJoinColumns =
+            @JoinColumn(name = "CHILD_ID", nullable = false)
+    )
+    @MapKeyColumn(name = "NAME", length = 1024)
+    @ToString.Exclude
+    private Map<String, DirectorySnapshot> directories = new HashMap<>();
+
+    public DirectorySnapshot(String digest, String filesDigest, Long lastModified, Integer nrOfChildren) {
+        this.digest = digest;
+        this.filesDigest = filesDigest;
+        this.lastModified = lastModified;
+        this.nrOfChildren = nrOfChildren;
+    }
+}
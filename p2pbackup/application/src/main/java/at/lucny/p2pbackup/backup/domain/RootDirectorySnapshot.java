@@ -0,0 +1,40 @@
+package at.lucny.p2pbackup.backup.domain;
+
+import at.lucny.p2pbackup.core.domain.AbstractEntity;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * The digest-tree of a root-directory after a completed backup.
+ */
+@Entity
+@Table(name = "ROOT_DIRECTORY_SNAPSHOT", uniqueConstraints = @UniqueConstraint(name = "uc_root_directory_snapshot_root_directory_id_nr_of_backup", columnNames = {"ROOT_DIRECTORY_ID", "NR_OF_BACKUP"}))
+@Getter
+@Setter
+@ToString(callSuper = true)
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@AllArgsConstructor
+public class RootDirectorySnapshot extends AbstractEntity {
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "ROOT_DIRECTORY_ID", nullable = false)
+    @ToString.Exclude
+    private RootDirectory rootDirectory;
+
+    @Column(name = "NR_OF_BACKUP", nullable = false)
+    private Integer nrOfBackup;
+
+    /**
+     * the date the backup was finished.
+     */
+    @Column(name = "DATE", nullable = false)
+    private LocalDateTime date;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "DIRECTORY_SNAPSHOT_ID", nullable = false)
+    @ToString.Exclude
+    private DirectorySnapshot directorySnapshot;
+}
@@ -1,6 +1,15 @@
 package at.lucny.p2pbackup.backup.dto;
 
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+
 import java.nio.ByteBuffer;
 
-public record Block(ByteBuffer content, String hash) {
+/**
+ * A block of a file. Blocks that only consist of zeros are not hashed, their hash is null.
+ */
+public record Block(ByteBuffer content, String hash, HashAlgorithm hashAlgorithm) {
+
+    public boolean isZeroBlock() {
+        return this.hash == null;
+    }
 }
@@ -0,0 +1,10 @@
+package at.lucny.p2pbackup.backup.dto;
+
+import java.util.Map;
+
+/**
+ * A node of a digest-tree that is not saved yet. The subdirectories are referenced by their digest, so that a node can be
+ * created before the nodes of its subdirectories are saved.
+ */
+public record NewDirectorySnapshot(String digest, String filesDigest, long lastModified, int nrOfChildren, Map<String, String> directoryDigests) {
+}
@@ -0,0 +1,11 @@
+package at.lucny.p2pbackup.backup.dto;
+
+/**
+ * A path that differs between two snapshots of a root-directory. Directories end with a separator.
+ */
+public record SnapshotDifference(String path, Type type) {
+
+    public enum Type {
+        ADDED, CHANGED, DELETED
+    }
+}
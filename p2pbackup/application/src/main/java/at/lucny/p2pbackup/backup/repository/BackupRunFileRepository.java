@@ -0,0 +1,20 @@
+package at.lucny.p2pbackup.backup.repository;
+
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.backup.domain.BackupRunFile;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface BackupRunFileRepository extends JpaRepository<BackupRunFile, String> {
+
+    Optional<BackupRunFile> findByBackupRunAndPath(BackupRun backupRun, String path);
+
+    @Query("SELECT DISTINCT f FROM BackupRunFile f " +
+            "LEFT JOIN FETCH f.blocks " +
+            "WHERE f.backupRun.id = :backupRunId")
+    List<BackupRunFile> findByBackupRunIdFetchBlocks(@Param("backupRunId") String backupRunId);
+}
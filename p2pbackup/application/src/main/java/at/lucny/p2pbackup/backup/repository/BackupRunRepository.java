@@ -0,0 +1,20 @@
+package at.lucny.p2pbackup.backup.repository;
+
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface BackupRunRepository extends JpaRepository<BackupRun, String> {
+
+    Optional<BackupRun> findByRootDirectory(RootDirectory rootDirectory);
+
+    @Query("SELECT r FROM BackupRun r " +
+            "JOIN FETCH r.rootDirectory " +
+            "LEFT JOIN FETCH r.files f " +
+            "LEFT JOIN FETCH f.blocks")
+    List<BackupRun> findAllFetchRootDirectoryAndFiles();
+}
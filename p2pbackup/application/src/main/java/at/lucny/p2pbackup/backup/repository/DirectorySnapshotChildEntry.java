@@ -0,0 +1,12 @@
+package at.lucny.p2pbackup.backup.repository;
+
+/**
+ * A {@link DirectorySnapshotEntry} with the id of the {@link at.lucny.p2pbackup.backup.domain.DirectorySnapshot} it is a
+ * subdirectory of.
+ */
+public record DirectorySnapshotChildEntry(String parentId, String name, String id, String digest, String filesDigest) {
+
+    public DirectorySnapshotEntry toEntry() {
+        return new DirectorySnapshotEntry(this.name, this.id, this.digest, this.filesDigest);
+    }
+}
@@ -0,0 +1,7 @@
+package at.lucny.p2pbackup.backup.repository;
+
+/**
+ * A {@link at.lucny.p2pbackup.backup.domain.DirectorySnapshot} with the name it has within its parent directory.
+ */
+public record DirectorySnapshotEntry(String name, String id, String digest, String filesDigest) {
+}
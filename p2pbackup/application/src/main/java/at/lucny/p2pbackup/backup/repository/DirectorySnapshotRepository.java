@@ -0,0 +1,35 @@
+package at.lucny.p2pbackup.backup.repository;
+
+import at.lucny.p2pbackup.backup.domain.DirectorySnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface DirectorySnapshotRepository extends JpaRepository<DirectorySnapshot, String> {
+
+    @Query("SELECT new at.lucny.p2pbackup.backup.repository.DirectorySnapshotEntry('', d.id, d.digest, d.filesDigest) " +
+            "FROM DirectorySnapshot d " +
+            "WHERE d.digest IN :digests")
+    List<DirectorySnapshotEntry> findByDigestIn(@Param("digests") Collection<String> digests);
+
+    @Query("SELECT new at.lucny.p2pbackup.backup.repository.DirectorySnapshotChildEntry(d.id, KEY(c), c.id, c.digest, c.filesDigest) " +
+            "FROM DirectorySnapshot d " +
+            "INNER JOIN d.directories c " +
+            "WHERE d.id IN :ids")
+    List<DirectorySnapshotChildEntry> findDirectories(@Param("ids") Collection<String> ids);
+
+    @Query("SELECT d.id FROM DirectorySnapshot d")
+    List<String> findAllIds();
+
+    @Modifying
+    @Query(value = "DELETE FROM DIRECTORY_SNAPSHOT_CHILD WHERE DIRECTORY_SNAPSHOT_ID IN (:ids)", nativeQuery = true)
+    void deleteChildrenByDirectorySnapshotIdIn(@Param("ids") Collection<String> ids);
+
+    @Modifying
+    @Query("DELETE FROM DirectorySnapshot d WHERE d.id IN :ids")
+    void deleteByIdIn(@Param("ids") Collection<String> ids);
+}
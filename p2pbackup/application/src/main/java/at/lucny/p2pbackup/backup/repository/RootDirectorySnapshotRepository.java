@@ -0,0 +1,21 @@
+package at.lucny.p2pbackup.backup.repository;
+
+import at.lucny.p2pbackup.backup.domain.RootDirectorySnapshot;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface RootDirectorySnapshotRepository extends JpaRepository<RootDirectorySnapshot, String> {
+
+    Optional<RootDirectorySnapshot> findFirstByRootDirectoryOrderByNrOfBackupDesc(RootDirectory rootDirectory);
+
+    Optional<RootDirectorySnapshot> findByRootDirectoryAndNrOfBackup(RootDirectory rootDirectory, Integer nrOfBackup);
+
+    List<RootDirectorySnapshot> findByRootDirectoryOrderByNrOfBackup(RootDirectory rootDirectory);
+
+    @Query("SELECT s.directorySnapshot.id FROM RootDirectorySnapshot s")
+    List<String> findAllDirectorySnapshotIds();
+}
@@ -0,0 +1,114 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.core.domain.BlockMetaData;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Tracks the progress of a backup of a root-directory in walk order. Files are completed by the file-workers in any
+ * order, the journal determines the last file up to which all files are completed.
+ * <p>
+ * A journal without a backup-run is used for backups of changed paths, that are not resumed.
+ */
+class BackupJournal {
+
+    /**
+     * Orders paths like a depth-first walk that visits the entries of a directory sorted by name.
+     */
+    static final Comparator<Path> WALK_ORDER = (a, b) -> {
+        int nameCount = Math.min(a.getNameCount(), b.getNameCount());
+        for (int i = 0; i < nameCount; i++) {
+            int result = a.getName(i).toString().compareTo(b.getName(i).toString());
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(a.getNameCount(), b.getNameCount());
+    };
+
+    private final String backupRunId;
+
+    private final Path resumeAfterPath;
+
+    private final Map<String, List<BlockMetaData>> fileProgress;
+
+    private final long checkpointIntervalInNanos;
+
+    private final NavigableMap<Long, Path> pendingFiles = new TreeMap<>();
+
+    private final Set<Long> completedFiles = new HashSet<>();
+
+    private long nrOfFiles;
+
+    private Path lastCompletedPath;
+
+    private long lastCheckpoint = System.nanoTime();
+
+    BackupJournal(String backupRunId, String resumeAfterPath, Map<String, List<BlockMetaData>> fileProgress, Duration checkpointInterval) {
+        this.backupRunId = backupRunId;
+        this.resumeAfterPath = resumeAfterPath != null ? Path.of(resumeAfterPath) : null;
+        this.fileProgress = fileProgress;
+        this.checkpointIntervalInNanos = checkpointInterval.toNanos();
+    }
+
+    BackupJournal() {
+        this(null, null, Collections.emptyMap(), Duration.ZERO);
+    }
+
+    Optional<String> getBackupRunId() {
+        return Optional.ofNullable(this.backupRunId);
+    }
+
+    /**
+     * @return true if the file was already completed before the backup was resumed
+     */
+    boolean isCompletedBeforeResume(Path relativePath) {
+        return this.resumeAfterPath != null && WALK_ORDER.compare(relativePath, this.resumeAfterPath) <= 0;
+    }
+
+    /**
+     * @return the persisted blocks from the beginning of the file, if the file was in progress when the backup was interrupted
+     */
+    List<BlockMetaData> getFileProgress(Path relativePath) {
+        return this.fileProgress.getOrDefault(relativePath.toString(), Collections.emptyList());
+    }
+
+    /**
+     * Registers a file in walk order.
+     *
+     * @return the number of the file within the backup
+     */
+    synchronized long begin(Path relativePath) {
+        long fileNr = this.nrOfFiles++;
+        this.pendingFiles.put(fileNr, relativePath);
+        return fileNr;
+    }
+
+    synchronized void complete(long fileNr) {
+        this.completedFiles.add(fileNr);
+        while (!this.pendingFiles.isEmpty() && this.completedFiles.remove(this.pendingFiles.firstKey())) {
+            this.lastCompletedPath = this.pendingFiles.pollFirstEntry().getValue();
+        }
+    }
+
+    /**
+     * Returns the last file up to which all files are completed, if a checkpoint is due. Journals without a backup-run
+     * never have a checkpoint.
+     */
+    synchronized Optional<Path> checkpoint() {
+        if (this.backupRunId == null || this.lastCompletedPath == null || !this.isDue(this.lastCheckpoint)) {
+            return Optional.empty();
+        }
+        this.lastCheckpoint = System.nanoTime();
+        return Optional.of(this.lastCompletedPath);
+    }
+
+    /**
+     * @return true if a checkpoint, that happened at the given {@link System#nanoTime()}, is older than the checkpoint-interval
+     */
+    boolean isDue(long checkpointTime) {
+        return this.backupRunId != null && System.nanoTime() - checkpointTime >= this.checkpointIntervalInNanos;
+    }
+}
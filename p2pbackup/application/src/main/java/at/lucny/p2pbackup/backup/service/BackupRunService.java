@@ -0,0 +1,57 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.core.domain.BlockMetaData;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import jakarta.validation.constraints.NotNull;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manages the journals of unfinished backups of root-directories.
+ */
+public interface BackupRunService {
+
+    /**
+     * Returns the unfinished backup-run of the root-directory. If there is none a new backup-run is started and the
+     * number of backups of the root-directory is increased.
+     *
+     * @param rootDirectory the root-directory
+     * @return the resumed or started backup-run
+     */
+    @NotNull BackupRun startOrResumeBackupRun(@NotNull RootDirectory rootDirectory);
+
+    /**
+     * Returns the already persisted blocks of the files that were not completely backed up at the last checkpoint.
+     *
+     * @param backupRunId the id of the backup-run
+     * @return the blocks mapped by the relative path of their file
+     */
+    @NotNull Map<String, List<BlockMetaData>> getFileProgress(@NotNull String backupRunId);
+
+    /**
+     * Saves the relative path up to which all files in walk order are backed up.
+     *
+     * @param backupRunId       the id of the backup-run
+     * @param lastCompletedPath the relative path of the last completed file
+     */
+    void saveCheckpoint(@NotNull String backupRunId, @NotNull String lastCompletedPath);
+
+    /**
+     * Removes the backup-run after the backup is finished.
+     *
+     * @param backupRunId the id of the backup-run
+     */
+    void finishBackupRun(@NotNull String backupRunId);
+
+    @NotNull List<BackupRun> getBackupRuns();
+
+    /**
+     * Discards the unfinished backup-run of the root-directory, so that the next backup starts over.
+     *
+     * @param rootDirectory the root-directory
+     * @return true if a backup-run was discarded
+     */
+    boolean discardBackupRun(@NotNull RootDirectory rootDirectory);
+}
@@ -0,0 +1,100 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.backup.domain.BackupRunFile;
+import at.lucny.p2pbackup.backup.repository.BackupRunFileRepository;
+import at.lucny.p2pbackup.backup.repository.BackupRunRepository;
+import at.lucny.p2pbackup.core.domain.BlockMetaData;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import at.lucny.p2pbackup.core.repository.RootDirectoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.validation.annotation.Validated;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@Service
+@Validated
+public class BackupRunServiceImpl implements BackupRunService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupRunServiceImpl.class);
+
+    private final BackupRunRepository backupRunRepository;
+
+    private final BackupRunFileRepository backupRunFileRepository;
+
+    private final RootDirectoryRepository rootDirectoryRepository;
+
+    public BackupRunServiceImpl(BackupRunRepository backupRunRepository, BackupRunFileRepository backupRunFileRepository, RootDirectoryRepository rootDirectoryRepository) {
+        this.backupRunRepository = backupRunRepository;
+        this.backupRunFileRepository = backupRunFileRepository;
+        this.rootDirectoryRepository = rootDirectoryRepository;
+    }
+
+    @Override
+    @Transactional
+    public BackupRun startOrResumeBackupRun(RootDirectory rootDirectory) {
+        LOGGER.trace("begin startOrResumeBackupRun({})", rootDirectory);
+        RootDirectory managedRootDirectory = this.rootDirectoryRepository.findById(rootDirectory.getId())
+                .orElseThrow(() -> new IllegalStateException("RootDirectory with id " + rootDirectory.getId() + " not found"));
+
+        Optional<BackupRun> existingBackupRun = this.backupRunRepository.findByRootDirectory(managedRootDirectory);
+        if (existingBackupRun.isPresent()) {
+            LOGGER.info("resuming backup {} of path {} after {}", existingBackupRun.get().getNrOfBackup(), managedRootDirectory.getPath(), existingBackupRun.get().getLastCompletedPath());
+            LOGGER.trace("end startOrResumeBackupRun: return {}", existingBackupRun.get());
+            return existingBackupRun.get();
+        }
+
+        managedRootDirectory.setNrOfBackups(managedRootDirectory.getNrOfBackups() + 1);
+        BackupRun backupRun = this.backupRunRepository.save(new BackupRun(managedRootDirectory, managedRootDirectory.getNrOfBackups()));
+        LOGGER.trace("end startOrResumeBackupRun: return {}", backupRun);
+        return backupRun;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Map<String, List<BlockMetaData>> getFileProgress(String backupRunId) {
+        Map<String, List<BlockMetaData>> fileProgress = new HashMap<>();
+        for (BackupRunFile file : this.backupRunFileRepository.findByBackupRunIdFetchBlocks(backupRunId)) {
+            fileProgress.put(file.getPath(), new ArrayList<>(file.getBlocks()));
+        }
+        return fileProgress;
+    }
+
+    @Override
+    @Transactional
+    public void saveCheckpoint(String backupRunId, String lastCompletedPath) {
+        LOGGER.debug("checkpoint of backup-run {} after {}", backupRunId, lastCompletedPath);
+        BackupRun backupRun = this.backupRunRepository.findById(backupRunId).orElseThrow(() -> new IllegalStateException("BackupRun with id " + backupRunId + " not found"));
+        backupRun.setLastCompletedPath(lastCompletedPath);
+    }
+
+    @Override
+    @Transactional
+    public void finishBackupRun(String backupRunId) {
+        this.backupRunRepository.findById(backupRunId).ifPresent(this.backupRunRepository::delete);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<BackupRun> getBackupRuns() {
+        return this.backupRunRepository.findAllFetchRootDirectoryAndFiles();
+    }
+
+    @Override
+    @Transactional
+    public boolean discardBackupRun(RootDirectory rootDirectory) {
+        Optional<BackupRun> backupRun = this.backupRunRepository.findByRootDirectory(rootDirectory);
+        backupRun.ifPresent(run -> {
+            LOGGER.info("discarding backup {} of path {}", run.getNrOfBackup(), rootDirectory.getPath());
+            this.backupRunRepository.delete(run);
+        });
+        return backupRun.isPresent();
+    }
+}
@@ -3,7 +3,9 @@ package at.lucny.p2pbackup.backup.service;
 import at.lucny.p2pbackup.core.domain.RootDirectory;
 
 import jakarta.validation.constraints.NotNull;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -25,4 +27,12 @@ public interface BackupService {
 
     void backup();
 
+    /**
+     * Backups only the given changed files and directories and creates a new backup-index for all root-directories.
+     * Changed directories are walked completely, paths that no longer exist are marked as deleted.
+     *
+     * @param changedPathsByRootDirectoryId the absolute changed paths mapped by the id of their root-directory
+     */
+    void backupChangedPaths(@NotNull Map<String, Set<Path>> changedPathsByRootDirectoryId);
+
 }
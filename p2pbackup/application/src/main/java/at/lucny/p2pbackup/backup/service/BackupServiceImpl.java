@@ -1,15 +1,25 @@
 package at.lucny.p2pbackup.backup.service;
 
+import at.lucny.p2pbackup.application.config.BackupProperties;
+import at.lucny.p2pbackup.application.config.ChunkerProperties;
+import at.lucny.p2pbackup.application.config.ChunkerType;
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotEntry;
 import at.lucny.p2pbackup.backup.dto.Block;
 import at.lucny.p2pbackup.backup.service.worker.BackupServiceWorker;
 import at.lucny.p2pbackup.backup.support.BackupFileEvent;
 import at.lucny.p2pbackup.core.domain.BlockMetaData;
+import at.lucny.p2pbackup.core.domain.FileStat;
 import at.lucny.p2pbackup.core.domain.PathVersion;
 import at.lucny.p2pbackup.core.domain.RootDirectory;
-import at.lucny.p2pbackup.core.repository.PathDataIdAndPath;
+import at.lucny.p2pbackup.core.repository.LatestPathVersion;
 import at.lucny.p2pbackup.core.repository.PathDataRepository;
 import at.lucny.p2pbackup.core.repository.RootDirectoryRepository;
 import at.lucny.p2pbackup.core.support.HashUtils;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.SneakyThrows;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,13 +29,22 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
 import org.springframework.validation.annotation.Validated;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -35,7 +54,7 @@ public class BackupServiceImpl implements BackupService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BackupServiceImpl.class);
 
-    private final HashUtils hashUtils = new HashUtils();
+    private final Striped<Lock> blockLocks = Striped.lock(64);
 
     private final RootDirectoryRepository rootDirectoryRepository;
 
@@ -45,14 +64,25 @@ public class BackupServiceImpl implements BackupService {
 
     private final BackupServiceWorker backupServiceWorker;
 
+    private final BackupRunService backupRunService;
+
+    private final DirectorySnapshotService directorySnapshotService;
+
     private final ApplicationEventPublisher applicationEventPublisher;
 
-    public BackupServiceImpl(RootDirectoryRepository rootDirectoryRepository, PathDataRepository pathDataRepository, ChunkerService chunkerService, BackupServiceWorker backupServiceWorker, ApplicationEventPublisher applicationEventPublisher) {
+    private final P2PBackupProperties p2PBackupProperties;
+
+    public BackupServiceImpl(RootDirectoryRepository rootDirectoryRepository, PathDataRepository pathDataRepository, List<ChunkerService> chunkerServices, BackupServiceWorker backupServiceWorker, BackupRunService backupRunService, DirectorySnapshotService directorySnapshotService, ApplicationEventPublisher applicationEventPublisher, P2PBackupProperties p2PBackupProperties) {
         this.rootDirectoryRepository = rootDirectoryRepository;
         this.pathDataRepository = pathDataRepository;
-        this.chunkerService = chunkerService;
+        ChunkerType chunkerType = p2PBackupProperties.getChunkerProperties().getType();
+        this.chunkerService = chunkerServices.stream().filter(service -> service.getType() == chunkerType).findFirst()
+                .orElseThrow(() -> new IllegalStateException("no chunker-service for type " + chunkerType));
         this.backupServiceWorker = backupServiceWorker;
+        this.backupRunService = backupRunService;
+        this.directorySnapshotService = directorySnapshotService;
         this.applicationEventPublisher = applicationEventPublisher;
+        this.p2PBackupProperties = p2PBackupProperties;
     }
 
     @Override
@@ -96,16 +126,59 @@ public class BackupServiceImpl implements BackupService {
     @Override
     public void backup() {
         List<RootDirectory> directories = this.rootDirectoryRepository.findAll();
-        Set<String> versionBlockIds = new HashSet<>();
-        for (RootDirectory rd : directories) {
-            LOGGER.info("backing up root-directory {}", rd);
-            versionBlockIds.addAll(this.backupRootDirectory(rd));
+        Set<String> versionBlockIds = ConcurrentHashMap.newKeySet();
+
+        // every device gets up to rootDirectoryWorkersPerDevice lanes, each lane backups the root-directories of its device one after another
+        int workersPerDevice = this.p2PBackupProperties.getBackupProperties().getRootDirectoryWorkersPerDevice();
+        List<Queue<RootDirectory>> lanes = new ArrayList<>();
+        for (List<RootDirectory> directoriesOfDevice : this.groupByDevice(directories)) {
+            Queue<RootDirectory> queue = new ConcurrentLinkedQueue<>(directoriesOfDevice);
+            for (int i = 0; i < Math.min(workersPerDevice, directoriesOfDevice.size()); i++) {
+                lanes.add(queue);
+            }
+        }
+
+        int nrOfWorkers = Math.max(1, Math.min(this.p2PBackupProperties.getBackupProperties().getRootDirectoryWorkers(), lanes.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(nrOfWorkers, new ThreadFactoryBuilder().setNameFormat("backup-root-directory-%d").setDaemon(true).build());
+        try {
+            CompletableFuture.allOf(lanes.stream().map(queue -> CompletableFuture.runAsync(() -> {
+                RootDirectory rd;
+                while ((rd = queue.poll()) != null) {
+                    LOGGER.info("backing up root-directory {}", rd);
+                    versionBlockIds.addAll(this.backupRootDirectory(rd));
+                }
+            }, executor)).toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("unable to backup root-directories", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
 
+        // no root-directory is backed up anymore, so no node of a running backup can be deleted
+        this.directorySnapshotService.pruneSnapshots(this.p2PBackupProperties.getBackupProperties().getDirectorySnapshotsToKeep());
         this.backupServiceWorker.addBackupIndexBlock(directories, versionBlockIds);
     }
 
-    static record PathDataWrapper(Path absoluteFilePath, Path relativeFilePath, String hash, boolean changed) {
+    /**
+     * Groups the root-directories by the file-store they are located on. Root-directories whose file-store can't be
+     * determined get their own group.
+     */
+    private Collection<List<RootDirectory>> groupByDevice(List<RootDirectory> directories) {
+        Map<FileStore, List<RootDirectory>> directoriesByFileStore = new LinkedHashMap<>();
+        List<List<RootDirectory>> groups = new ArrayList<>();
+        for (RootDirectory rd : directories) {
+            try {
+                directoriesByFileStore.computeIfAbsent(Files.getFileStore(Paths.get(rd.getPath())), fileStore -> new ArrayList<>()).add(rd);
+            } catch (IOException e) {
+                LOGGER.warn("unable to determine file-store of root-directory {}: {}", rd.getPath(), e.getMessage());
+                groups.add(List.of(rd));
+            }
+        }
+        groups.addAll(directoriesByFileStore.values());
+        return groups;
     }
 
     @SneakyThrows
@@ -113,42 +186,152 @@ public class BackupServiceImpl implements BackupService {
     public Set<String> backupRootDirectory(RootDirectory rootDirectory) {
         LOGGER.info("backup of path {}", rootDirectory.getPath());
 
-        List<PathDataIdAndPath> paths = this.pathDataRepository.findAllByRootDirectoryAndNotDeleted(rootDirectory);
-        var pathsThatNoLongerExist = paths.stream().collect(Collectors.toMap(PathDataIdAndPath::path, PathDataIdAndPath::id));
-        AtomicInteger nrOfFiles = new AtomicInteger();
+        // an interrupted backup is resumed with its number, so that it hashes the same files
+        BackupRun backupRun = this.backupRunService.startOrResumeBackupRun(rootDirectory);
+        int nrOfBackup = backupRun.getNrOfBackup();
+        int paranoidRehashInterval = this.p2PBackupProperties.getBackupProperties().getParanoidRehashInterval();
+        boolean rehashAllFiles = paranoidRehashInterval > 0 && nrOfBackup % paranoidRehashInterval == 0;
+        if (rehashAllFiles) {
+            LOGGER.info("backup {} of path {}, all files are hashed regardless of their metadata", nrOfBackup, rootDirectory.getPath());
+        }
+
+        // the latest versions of all paths are loaded at once instead of querying them for every file
+        Map<String, LatestPathVersion> latestVersions = this.backupServiceWorker.loadLatestPathVersions(rootDirectory);
+        BackupJournal journal = new BackupJournal(backupRun.getId(), backupRun.getLastCompletedPath(),
+                this.backupRunService.getFileProgress(backupRun.getId()), this.p2PBackupProperties.getBackupProperties().getCheckpointInterval());
+        // files in directories that are unchanged since the previous snapshot are skipped
+        DirectoryTreeWalker walker = new DirectoryTreeWalker(this.directorySnapshotService, this::readFileStat, !rehashAllFiles);
+        DirectorySnapshotEntry previousSnapshot = this.directorySnapshotService.getLatestSnapshot(rootDirectory).orElse(null);
+        this.backupFiles(rootDirectory, Stream.of(Paths.get(rootDirectory.getPath())).<DirectoryTreeWalker.WalkedFile>mapMulti((root, consumer) -> walker.walk(root, previousSnapshot, consumer)),
+                latestVersions, rehashAllFiles, journal);
+
+        // files skipped by a resumed backup may have changed after the interruption, so their state is not known
+        if (backupRun.getLastCompletedPath() == null) {
+            this.directorySnapshotService.saveRootDirectorySnapshot(rootDirectory, nrOfBackup, walker.getRootSnapshot().id());
+        }
+        this.backupRunService.finishBackupRun(backupRun.getId());
+
+        LOGGER.info("backup of path {} finished", rootDirectory.getPath());
+
+        return this.pathDataRepository.getLatestPathVersionsByRootDirectory(rootDirectory);
+    }
+
+    @Override
+    public void backupChangedPaths(Map<String, Set<Path>> changedPathsByRootDirectoryId) {
+        List<RootDirectory> directories = this.rootDirectoryRepository.findAll();
+        Set<String> versionBlockIds = new HashSet<>();
+        for (RootDirectory rd : directories) {
+            Set<Path> changedPaths = changedPathsByRootDirectoryId.getOrDefault(rd.getId(), Collections.emptySet());
+            if (!changedPaths.isEmpty()) {
+                LOGGER.info("backing up {} changed paths of root-directory {}", changedPaths.size(), rd);
+                this.backupChangedPaths(rd, changedPaths);
+            }
+            versionBlockIds.addAll(this.pathDataRepository.getLatestPathVersionsByRootDirectory(rd));
+        }
+
+        this.backupServiceWorker.addBackupIndexBlock(directories, versionBlockIds);
+    }
 
-        try (Stream<Path> allPaths = Files.walk(Paths.get(rootDirectory.getPath()))) {
-            allPaths.filter(p -> !Files.isDirectory(p)).filter(Files::isReadable) // ignore directories and unreadable files
-                    .map(path -> {
+    /**
+     * Backups the given changed files and directories of the root-directory. Changed directories are walked completely,
+     * known paths that no longer exist are marked as deleted.
+     */
+    @SneakyThrows
+    private void backupChangedPaths(RootDirectory rootDirectory, Set<Path> changedPaths) {
+        Path root = Paths.get(rootDirectory.getPath());
+        // a path within a changed directory is covered by the walk of the directory
+        List<Path> paths = changedPaths.stream().map(Path::toAbsolutePath).filter(p -> p.startsWith(root)).sorted().toList();
+        List<Path> outermostPaths = new ArrayList<>();
+        for (Path path : paths) {
+            if (outermostPaths.isEmpty() || !path.startsWith(outermostPaths.get(outermostPaths.size() - 1))) {
+                outermostPaths.add(path);
+            }
+        }
+
+        Map<String, LatestPathVersion> latestVersions = new HashMap<>();
+        for (Path path : outermostPaths) {
+            latestVersions.putAll(this.backupServiceWorker.loadLatestPathVersions(rootDirectory, root.relativize(path)));
+        }
+        this.backupFiles(rootDirectory, outermostPaths.stream().flatMap(this::walk).map(path -> new DirectoryTreeWalker.WalkedFile(path, false)), latestVersions, false, new BackupJournal());
+    }
+
+    private Stream<Path> walk(Path path) {
+        if (!Files.exists(path)) {
+            return Stream.empty();
+        }
+        try {
+            return Files.walk(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to walk path " + path, e);
+        }
+    }
+
+    /**
+     * Backups the given files of the root-directory and marks all paths of {@code latestVersions} as deleted, that are
+     * not contained in the given files.
+     *
+     * @param rootDirectory  the root-directory
+     * @param paths          the paths to backup, directories and unreadable files are ignored. unchanged paths are only
+     *                       checked for existence
+     * @param latestVersions the latest known versions of the paths
+     * @param rehashAllFiles true if all files should be hashed regardless of their metadata
+     * @param journal        the journal of the backup, files completed before the backup was resumed are skipped
+     */
+    @SneakyThrows
+    private void backupFiles(RootDirectory rootDirectory, Stream<DirectoryTreeWalker.WalkedFile> paths, Map<String, LatestPathVersion> latestVersions, boolean rehashAllFiles, BackupJournal journal) {
+        Map<String, String> pathsThatNoLongerExist = latestVersions.values().stream().filter(version -> !version.deleted())
+                .collect(Collectors.toMap(LatestPathVersion::path, LatestPathVersion::pathDataId));
+        AtomicInteger nrOfFiles = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        // files are walked by the calling thread, processed by the file-workers and their blocks are encrypted and stored by the block-workers
+        BackupProperties backupProperties = this.p2PBackupProperties.getBackupProperties();
+        ExecutorService fileExecutor = this.createBoundedExecutor("backup-file-%d", backupProperties.getFileWorkers(), backupProperties.getQueueSize());
+        ExecutorService blockExecutor = this.createBoundedExecutor("backup-block-%d", backupProperties.getBlockWorkers(), backupProperties.getQueueSize());
+        SmallFilePack pack = backupProperties.getPackThreshold().toBytes() > 0 ? new SmallFilePack(this.p2PBackupProperties.getBlockSize().toBytes()) : null;
+        try {
+            paths.filter(p -> !Files.isDirectory(p.path())).filter(p -> Files.isReadable(p.path())) // ignore directories and unreadable files
+                    .forEach(walkedFile -> {
+                        if (failure.get() != null) {
+                            throw failure.get();
+                        }
                         if ((nrOfFiles.incrementAndGet() % 100) == 0) {
                             LOGGER.info("processed {} files", nrOfFiles.get());
                         }
-                        Path absoluteFilePath = path.toAbsolutePath();
+                        Path absoluteFilePath = walkedFile.path().toAbsolutePath();
                         Path relativeFilePath = Paths.get(rootDirectory.getPath()).relativize(absoluteFilePath);
                         pathsThatNoLongerExist.remove(relativeFilePath.toString());
-
-                        // generate hash for file and check if the latest seen version has the same hash (and is therefore unchanged)
-                        String hash = this.hashUtils.generateHashForFile(absoluteFilePath);
-                        boolean fileUnchanged = this.pathDataRepository.isLatestPathDataVersionHashSame(rootDirectory, relativeFilePath.toString(), hash);
-                        LOGGER.debug("file {} has hash {}. comparing to latest seen version: changed={}", absoluteFilePath, hash, !fileUnchanged);
-                        return new PathDataWrapper(absoluteFilePath, relativeFilePath, hash, !fileUnchanged);
-                    })
-                    .filter(PathDataWrapper::changed) // only keep changed files
-                    .forEach(wrapper -> {
-                        PathVersion version = new PathVersion(LocalDateTime.now(ZoneOffset.UTC), wrapper.hash());
-                        Iterator<Block> blockIterator = this.chunkerService.createIterator(wrapper.absoluteFilePath);
-
-                        while (blockIterator.hasNext()) {
-                            Block block = blockIterator.next();
-                            BlockMetaData bmd = this.backupServiceWorker.createBlockMetaData(block);
-                            version.getBlocks().add(bmd);
+                        if (walkedFile.unchanged() || journal.isCompletedBeforeResume(relativeFilePath)) {
+                            return;
                         }
-
-                        LOGGER.debug("backup new version for {}", wrapper.absoluteFilePath);
-                        this.backupServiceWorker.addPathChangedVersionRecord(rootDirectory, wrapper.relativeFilePath, version);
-
-                        this.applicationEventPublisher.publishEvent(new BackupFileEvent(this, wrapper.absoluteFilePath));
+                        Optional<LatestPathVersion> latestVersion = Optional.ofNullable(latestVersions.get(relativeFilePath.toString()));
+
+                        long fileNr = journal.begin(relativeFilePath);
+                        fileExecutor.execute(() -> {
+                            try {
+                                if (this.backupFile(rootDirectory, absoluteFilePath, relativeFilePath, fileNr, latestVersion, rehashAllFiles, blockExecutor, pack, journal)) {
+                                    journal.complete(fileNr);
+                                }
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, new IllegalStateException("unable to backup file " + absoluteFilePath, e));
+                            }
+                        });
+                        journal.checkpoint().ifPresent(lastCompletedPath -> this.backupRunService.saveCheckpoint(journal.getBackupRunId().orElseThrow(), lastCompletedPath.toString()));
                     });
+
+            fileExecutor.shutdown();
+            fileExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            fileExecutor.shutdownNow();
+            blockExecutor.shutdownNow();
+            // persists the blocks of failed files, the blocks of backed up files are persisted together with their version
+            this.backupServiceWorker.flushPendingBlocks();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (pack != null) {
+            this.backupPack(rootDirectory, pack.drain(), journal);
         }
 
         LOGGER.info("processed {} files, checking for deleted files", nrOfFiles.get());
@@ -157,11 +340,277 @@ public class BackupServiceImpl implements BackupService {
             LOGGER.debug("backup deleted version for path-id {}", missingPathId);
             this.backupServiceWorker.addPathMissingVersionRecord(missingPathId);
         }
+    }
 
-        LOGGER.info("backup of path {} finished", rootDirectory.getPath());
+    /**
+     * Creates an executor with a bounded queue. If the queue is full the submitting thread executes the task itself,
+     * so a fast producer is slowed down to the speed of the workers.
+     */
+    private ExecutorService createBoundedExecutor(String nameFormat, int nrOfThreads, int queueSize) {
+        return new ThreadPoolExecutor(nrOfThreads, nrOfThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
 
-        return this.pathDataRepository.getLatestPathVersionsByRootDirectory(rootDirectory);
+    /**
+     * Backups the file if it changed since its latest version.
+     *
+     * @return true if the file is completed, false if the file was added to a pack and is completed when the pack is backed up
+     */
+    private boolean backupFile(RootDirectory rootDirectory, Path absoluteFilePath, Path relativeFilePath, long fileNr, Optional<LatestPathVersion> latestVersion, boolean rehashAllFiles, ExecutorService blockExecutor, SmallFilePack pack, BackupJournal journal) {
+        // read the metadata before the content, so that a modification while hashing changes the metadata for the next backup
+        FileStat fileStat = this.readFileStat(absoluteFilePath);
+        Optional<FileStat> latestFileStat = latestVersion.filter(version -> !version.deleted()).map(LatestPathVersion::fileStat);
+        if (!rehashAllFiles && fileStat != null && latestFileStat.filter(fileStat::equals).isPresent()) {
+            LOGGER.debug("file {} has unchanged metadata {}, skipping", absoluteFilePath, fileStat);
+            return true;
+        }
+
+        if (pack != null && fileStat != null && fileStat.getSize() > 0 && fileStat.getSize() < this.p2PBackupProperties.getBackupProperties().getPackThreshold().toBytes()) {
+            return this.packFile(rootDirectory, absoluteFilePath, relativeFilePath, fileNr, latestVersion, fileStat, latestFileStat, pack, journal);
+        }
+
+        // if the size is the same the file could be only touched, so generate hash for file and check if the latest seen version
+        // has the same hash (and is therefore unchanged) before the blocks are processed.
+        // otherwise the file is definitely changed or new and the hash is generated while chunking, so the file is only read once
+        boolean sizeUnchanged = fileStat != null && latestFileStat.map(FileStat::getSize).filter(fileStat.getSize()::equals).isPresent();
+        if (sizeUnchanged || rehashAllFiles) {
+            HashUtils hashUtils = this.getHashUtils();
+            String hash = hashUtils.generateHashForFile(absoluteFilePath);
+            boolean fileUnchanged = this.isLatestVersionHashSame(latestVersion, hash, hashUtils.getHashAlgorithm());
+            LOGGER.debug("file {} has hash {}. comparing to latest seen version: changed={}", absoluteFilePath, hash, !fileUnchanged);
+            if (fileUnchanged) {
+                this.updateFileStatIfChanged(rootDirectory, relativeFilePath, fileStat, latestFileStat);
+                return true;
+            }
+        }
+
+        LocalDateTime date = LocalDateTime.now(ZoneOffset.UTC);
+        // blocks that were persisted before the backup was interrupted are reused instead of being processed again
+        List<BlockMetaData> resumedBlocks = journal.getFileProgress(relativeFilePath);
+        boolean hasFileProgress = !resumedBlocks.isEmpty();
+        long lastFileCheckpoint = System.nanoTime();
+        // the blocks are processed in parallel, but collected in the order of the file
+        List<CompletableFuture<BlockMetaData>> blockFutures = new ArrayList<>();
+        Map<Integer, Long> zeroBlocks = new HashMap<>();
+        int blockSize = this.chooseBlockSize(fileStat, latestVersion);
+        ChunkIterator blockIterator = this.chunkerService.createIterator(absoluteFilePath, blockSize);
+        List<BlockMetaData> blocks;
+        try (blockIterator) {
+            while (blockIterator.hasNext()) {
+                Block block = blockIterator.next();
+                if (block.isZeroBlock()) {
+                    // runs of zeros (e.g. in sparse files) are not stored, only their position and length are recorded
+                    zeroBlocks.put(blockFutures.size() + zeroBlocks.size(), (long) block.content().remaining());
+                    blockIterator.release(block);
+                    continue;
+                }
+                int blockNr = blockFutures.size();
+                if (blockNr < resumedBlocks.size() && this.isSameBlock(resumedBlocks.get(blockNr), block)) {
+                    blockFutures.add(CompletableFuture.completedFuture(resumedBlocks.get(blockNr)));
+                    blockIterator.release(block);
+                } else {
+                    // the buffer of the block goes back to the pool once the block is encrypted and stored
+                    blockFutures.add(CompletableFuture.supplyAsync(() -> this.createBlockMetaData(block), blockExecutor)
+                            .whenComplete((bmd, e) -> blockIterator.release(block)));
+                }
+
+                if (journal.isDue(lastFileCheckpoint)) {
+                    this.backupServiceWorker.saveBackupRunFileProgress(journal.getBackupRunId().orElseThrow(), relativeFilePath, blockFutures.stream().map(CompletableFuture::join).toList());
+                    hasFileProgress = true;
+                    lastFileCheckpoint = System.nanoTime();
+                }
+            }
+            blocks = blockFutures.stream().map(CompletableFuture::join).toList();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof InternalError internalError)) {
+                throw e;
+            }
+            return this.skipTruncatedFile(absoluteFilePath, relativeFilePath, hasFileProgress, journal, internalError);
+        } catch (InternalError e) {
+            return this.skipTruncatedFile(absoluteFilePath, relativeFilePath, hasFileProgress, journal, e);
+        }
+
+        String hash = blockIterator.getFileHash();
+        if (this.isLatestVersionHashSame(latestVersion, hash, blockIterator.getHashAlgorithm())) {
+            LOGGER.debug("file {} has hash {} and is unchanged", absoluteFilePath, hash);
+            this.updateFileStatIfChanged(rootDirectory, relativeFilePath, fileStat, latestFileStat);
+        } else {
+            PathVersion version = new PathVersion(date, hash, blockIterator.getHashAlgorithm(), this.chunkerService.getType());
+            version.getBlocks().addAll(blocks);
+            version.getZeroBlocks().putAll(zeroBlocks);
+            version.setBlockSize(blockSize);
+
+            LOGGER.debug("backup new version for {} with hash {}", absoluteFilePath, hash);
+            this.backupServiceWorker.addPathChangedVersionRecord(rootDirectory, relativeFilePath, version, fileStat);
+
+            this.applicationEventPublisher.publishEvent(new BackupFileEvent(this, absoluteFilePath));
+        }
+
+        if (hasFileProgress) {
+            this.backupServiceWorker.removeBackupRunFileProgress(journal.getBackupRunId().orElseThrow(), relativeFilePath);
+        }
+        return true;
+    }
+
+    /**
+     * Skips a memory-mapped file that was truncated while it was chunked. Accessing the mapped content beyond the new
+     * end of the file raises an {@link InternalError} (SIGBUS). The file changed during the backup, so no version is
+     * recorded and its changed metadata causes it to be backed up again with the next backup.
+     *
+     * @return true, because the file is completed for this backup
+     */
+    private boolean skipTruncatedFile(Path absoluteFilePath, Path relativeFilePath, boolean hasFileProgress, BackupJournal journal, InternalError e) {
+        LOGGER.warn("file {} was truncated during backup, it is backed up with the next backup", absoluteFilePath);
+        LOGGER.debug("access to truncated file {} failed", absoluteFilePath, e);
+        if (hasFileProgress) {
+            this.backupServiceWorker.removeBackupRunFileProgress(journal.getBackupRunId().orElseThrow(), relativeFilePath);
+        }
+        return true;
+    }
+
+    private boolean isSameBlock(BlockMetaData bmd, Block block) {
+        return block.hash().equals(bmd.getHash()) && block.hashAlgorithm() == bmd.getHashAlgorithm();
+    }
+
+    /**
+     * Adds the small file to the pack. The file is read completely, so it is hashed and packed with a single read.
+     * If the pack is full afterwards, it is backed up.
+     *
+     * @return true if the file is unchanged and therefore completed
+     */
+    private boolean packFile(RootDirectory rootDirectory, Path absoluteFilePath, Path relativeFilePath, long fileNr, Optional<LatestPathVersion> latestVersion, FileStat fileStat, Optional<FileStat> latestFileStat, SmallFilePack pack, BackupJournal journal) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(absoluteFilePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to read file " + absoluteFilePath, e);
+        }
+
+        HashUtils hashUtils = this.getHashUtils();
+        String hash = hashUtils.generateHashForFile(content);
+        if (this.isLatestVersionHashSame(latestVersion, hash, hashUtils.getHashAlgorithm())) {
+            LOGGER.debug("file {} has hash {} and is unchanged", absoluteFilePath, hash);
+            this.updateFileStatIfChanged(rootDirectory, relativeFilePath, fileStat, latestFileStat);
+            return true;
+        }
+
+        LOGGER.debug("pack file {} with hash {}", absoluteFilePath, hash);
+        List<SmallFilePack.PackedFile> packedFiles = pack.add(new SmallFilePack.PackedFile(absoluteFilePath, relativeFilePath, fileStat, hash, hashUtils.getHashAlgorithm(), LocalDateTime.now(ZoneOffset.UTC), content, fileNr));
+        this.backupPack(rootDirectory, packedFiles, journal);
+        return false;
+    }
+
+    /**
+     * Stores the content of the given files as one block and backups a new version for every file, that references
+     * its part of the block. The files are completed in the journal after their versions are persisted.
+     */
+    private void backupPack(RootDirectory rootDirectory, List<SmallFilePack.PackedFile> packedFiles, BackupJournal journal) {
+        if (packedFiles.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer content = ByteBuffer.allocate(packedFiles.stream().mapToInt(file -> file.content().length).sum());
+        for (SmallFilePack.PackedFile file : packedFiles) {
+            content.put(file.content());
+        }
+        content.flip();
+        HashAlgorithm hashAlgorithm = packedFiles.get(0).hashAlgorithm();
+        BlockMetaData bmd = this.createBlockMetaData(new Block(content, new HashUtils(hashAlgorithm).generateBlockHash(content.duplicate()), hashAlgorithm));
+        LOGGER.debug("backup pack-block {} with {} files", bmd.getId(), packedFiles.size());
+
+        long offset = 0;
+        for (SmallFilePack.PackedFile file : packedFiles) {
+            PathVersion version = new PathVersion(file.date(), file.hash(), file.hashAlgorithm());
+            version.getBlocks().add(bmd);
+            version.setPackOffset(offset);
+            version.setPackLength((long) file.content().length);
+            offset += file.content().length;
+
+            this.backupServiceWorker.addPathChangedVersionRecord(rootDirectory, file.relativePath(), version, file.fileStat());
+            this.applicationEventPublisher.publishEvent(new BackupFileEvent(this, file.absolutePath()));
+            journal.complete(file.fileNr());
+        }
     }
 
+    /**
+     * Chooses the block-size for a file from its size class: the default block-size is doubled until the file has at most
+     * max-blocks-per-file blocks or the max block-size is reached. The block-size of the latest version is kept as long
+     * as it is within one doubling of the chosen size, so that a file growing or shrinking around a boundary keeps its
+     * block-boundaries and its unchanged blocks are deduplicated.
+     */
+    private int chooseBlockSize(FileStat fileStat, Optional<LatestPathVersion> latestVersion) {
+        ChunkerProperties chunkerProperties = this.p2PBackupProperties.getChunkerProperties();
+        int defaultBlockSize = this.chunkerService.getDefaultBlockSize();
+        if (!chunkerProperties.getAdaptiveBlockSize() || fileStat == null) {
+            return defaultBlockSize;
+        }
 
+        long maxBlockSize = chunkerProperties.getMaxBlockSize().toBytes();
+        int blockSize = defaultBlockSize;
+        while (fileStat.getSize() / blockSize > chunkerProperties.getMaxBlocksPerFile() && (long) blockSize * 2 <= maxBlockSize) {
+            blockSize *= 2;
+        }
+
+        // versions without a recorded block-size were chunked with the default block-size
+        int latestBlockSize = latestVersion.filter(version -> !version.deleted() && version.hash() != null)
+                .map(version -> version.blockSize() != null ? version.blockSize() : defaultBlockSize).orElse(blockSize);
+        if (latestBlockSize >= blockSize / 2 && latestBlockSize <= (long) blockSize * 2) {
+            return latestBlockSize;
+        }
+        return blockSize;
+    }
+
+    /**
+     * Creates the {@link BlockMetaData} for the block. Blocks with the same hash are processed one after another,
+     * so that the same block is only persisted once.
+     */
+    private BlockMetaData createBlockMetaData(Block block) {
+        Lock lock = this.blockLocks.get(block.hash());
+        lock.lock();
+        try {
+            return this.backupServiceWorker.createBlockMetaData(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isLatestVersionHashSame(Optional<LatestPathVersion> latestVersion, String hash, HashAlgorithm hashAlgorithm) {
+        return latestVersion.filter(v -> v.hashAlgorithm() == hashAlgorithm).map(LatestPathVersion::hash).filter(hash::equals).isPresent();
+    }
+
+    private HashUtils getHashUtils() {
+        return new HashUtils(this.p2PBackupProperties.getBackupProperties().getHashAlgorithm());
+    }
+
+    private void updateFileStatIfChanged(RootDirectory rootDirectory, Path relativeFilePath, FileStat fileStat, Optional<FileStat> latestFileStat) {
+        if (fileStat != null && latestFileStat.filter(fileStat::equals).isEmpty()) {
+            this.backupServiceWorker.updateFileStat(rootDirectory, relativeFilePath, fileStat);
+        }
+    }
+
+    /**
+     * Reads the file-system metadata of the given file. The change-time and the file-key are only available on some file-systems.
+     *
+     * @param file the file
+     * @return the metadata of the file or null if it could not be read
+     */
+    private FileStat readFileStat(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Long changeTime = null;
+            if (this.supportsUnixAttributes(file)) {
+                FileTime ctime = (FileTime) Files.getAttribute(file, "unix:ctime");
+                changeTime = ctime.to(TimeUnit.NANOSECONDS);
+            }
+            String fileKey = attributes.fileKey() != null ? attributes.fileKey().toString() : null;
+            return new FileStat(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), changeTime, fileKey);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("unable to read metadata of file {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean supportsUnixAttributes(Path file) {
+        return file.getFileSystem().supportedFileAttributeViews().contains("unix");
+    }
 }
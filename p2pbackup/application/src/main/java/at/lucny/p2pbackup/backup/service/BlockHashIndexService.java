@@ -0,0 +1,45 @@
+package at.lucny.p2pbackup.backup.service;
+
+import jakarta.validation.constraints.NotNull;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Persistent index of all completely processed blocks (enough verified replicas and verification-values), so that
+ * the backup doesn't need to query the database for blocks that are already known.
+ */
+public interface BlockHashIndexService {
+
+    /**
+     * Returns the id of the block with the given hash if the block was marked as completely processed and the entry is still valid.
+     *
+     * @param hash the hash of the block
+     * @return the id of the block-meta-data or empty if the block must be checked against the database
+     */
+    @NotNull Optional<String> findCompletelyProcessedBlock(@NotNull String hash);
+
+    /**
+     * Marks the block with the given hash as completely processed. The entry is valid until the given time, but at most
+     * for the configured validity.
+     *
+     * @param hash            the hash of the block
+     * @param blockMetaDataId the id of the block-meta-data
+     * @param validUntil      the time the block stops being completely processed, e.g. because its replicas are no
+     *                        longer verified
+     */
+    void put(@NotNull String hash, @NotNull String blockMetaDataId, @NotNull Instant validUntil);
+
+    /**
+     * Invalidates the entry of the block with the given hash, so the block is checked against the database again.
+     * Must be called if a location of the block is deleted or marked as unverified.
+     *
+     * @param hash the hash of the block, blocks without hash are ignored
+     */
+    void invalidate(String hash);
+
+    /**
+     * Discards the index and rebuilds it from the database.
+     */
+    void rebuild();
+}
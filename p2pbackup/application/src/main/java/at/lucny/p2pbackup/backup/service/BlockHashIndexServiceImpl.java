@@ -0,0 +1,537 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.configuration.support.ConfigurationConstants;
+import at.lucny.p2pbackup.core.repository.BlockMetaDataIdAndHash;
+import at.lucny.p2pbackup.core.repository.BlockMetaDataRepository;
+import at.lucny.p2pbackup.core.service.CryptoService;
+import at.lucny.p2pbackup.upload.service.DistributionService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.configuration2.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.validation.annotation.Validated;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import static at.lucny.p2pbackup.verification.service.VerificationValueServiceImpl.NR_OF_VERIFICATION_VALUES;
+
+/**
+ * Stores the block-hash-index as open-addressing hash-table with linear probing in a memory-mapped file next to the database,
+ * so the index lives outside the java-heap and survives restarts. Instead of the block-hash a keyed fingerprint of the hash
+ * is stored, so the file doesn't reveal which data is backed up. Entries are never removed, every entry stores the time
+ * until it is valid: the time the replicas of the block stop counting as verified, at most the configured validity. An
+ * expired entry is checked against the database again. An entry is invalidated as soon as a location of its block is
+ * deleted or marked as unverified.
+ * <p>
+ * The index is marked as dirty while the application is running. If the application is not shut down properly or the
+ * index doesn't belong to the database (the id of the index is stored in the configuration), the index is rebuilt from
+ * the database in the background on the next start. Until then every block is checked against the database.
+ */
+@Service
+@Validated
+public class BlockHashIndexServiceImpl implements BlockHashIndexService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockHashIndexServiceImpl.class);
+
+    private static final String INDEX_FILE_NAME = "block-hash-index.dat";
+
+    private static final String SALT_BLOCK_HASH_INDEX = "blockHashIndex";
+
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+
+    private static final long MAGIC = 0x5032504249445831L;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 4096;
+
+    private static final int HEADER_MAGIC = 0;
+
+    private static final int HEADER_VERSION = 8;
+
+    private static final int HEADER_CLEAN = 12;
+
+    private static final int HEADER_CAPACITY = 16;
+
+    private static final int HEADER_SIZE_OF_ENTRIES = 24;
+
+    private static final int HEADER_KEY_CHECK = 32;
+
+    private static final int HEADER_INDEX_ID = 64;
+
+    private static final int FINGERPRINT_SIZE = 32;
+
+    private static final int ENTRY_SIZE = 64;
+
+    private static final int ENTRY_MOST_SIG_BITS = 32;
+
+    private static final int ENTRY_LEAST_SIG_BITS = 40;
+
+    private static final int ENTRY_VALID_UNTIL = 48;
+
+    /**
+     * the valid-until date of an invalidated entry. the entry keeps its slot, so the probing of other entries isn't broken
+     */
+    private static final long VALID_UNTIL_INVALIDATED = 1;
+
+    /**
+     * every segment maps 2^24 entries (1GB), because a single mapping is limited to 2GB
+     */
+    private static final int SEGMENT_BITS = 24;
+
+    private static final long INITIAL_CAPACITY = 1L << 16;
+
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    private final P2PBackupProperties p2PBackupProperties;
+
+    private final BlockMetaDataRepository blockMetaDataRepository;
+
+    private final DistributionService distributionService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final AsyncTaskExecutor taskExecutor;
+
+    private final Configuration configuration;
+
+    private final SecretKey fingerprintKey;
+
+    private final ThreadLocal<Mac> fingerprintMac;
+
+    private final byte[] keyCheck;
+
+    private final Path indexFile;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The fingerprints of the blocks invalidated while the index is rebuilt, they are invalidated in the rebuilt index.
+     */
+    private final Set<ByteBuffer> invalidatedWhileRebuilding = new HashSet<>();
+
+    private boolean rebuilding;
+
+    private boolean closed;
+
+    private Table table;
+
+    public BlockHashIndexServiceImpl(P2PBackupProperties p2PBackupProperties, BlockMetaDataRepository blockMetaDataRepository, DistributionService distributionService, CryptoService cryptoService, PlatformTransactionManager transactionManager, AsyncTaskExecutor taskExecutor, Configuration configuration) {
+        this.p2PBackupProperties = p2PBackupProperties;
+        this.blockMetaDataRepository = blockMetaDataRepository;
+        this.distributionService = distributionService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.taskExecutor = taskExecutor;
+        this.configuration = configuration;
+        this.fingerprintKey = cryptoService.getSecretKeyGenerator().generate(SALT_BLOCK_HASH_INDEX);
+        this.fingerprintMac = ThreadLocal.withInitial(this::createMac);
+        this.keyCheck = this.fingerprint(SALT_BLOCK_HASH_INDEX);
+        this.indexFile = p2PBackupProperties.getDatabase().getDatabaseDir().resolve(INDEX_FILE_NAME);
+    }
+
+    @PostConstruct
+    public void open() {
+        this.lock.writeLock().lock();
+        try {
+            String indexId = this.configuration.getString(ConfigurationConstants.PROPERTY_BLOCK_HASH_INDEX_ID, null);
+            if (indexId != null && Files.exists(this.indexFile)) {
+                this.table = Table.open(this.indexFile, this.keyCheck, UUID.fromString(indexId));
+            }
+            if (this.table != null) {
+                this.table.setClean(false);
+                LOGGER.info("opened block-hash-index with {} entries", this.table.size);
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to open block-hash-index {}", this.indexFile, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        this.taskExecutor.execute(() -> {
+            try {
+                this.rebuild();
+            } catch (RuntimeException e) {
+                LOGGER.warn("unable to rebuild block-hash-index {}, blocks are checked against the database", this.indexFile, e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            this.closed = true;
+            if (this.table != null) {
+                this.table.setClean(true);
+                this.table.close();
+                this.table = null;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to close block-hash-index {}", this.indexFile, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            mac.init(this.fingerprintKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("unable to initialize " + FINGERPRINT_ALGORITHM, e);
+        }
+    }
+
+    private byte[] fingerprint(String hash) {
+        return this.fingerprintMac.get().doFinal(hash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Optional<String> findCompletelyProcessedBlock(String hash) {
+        byte[] fingerprint = this.fingerprint(hash);
+        long now = Instant.now().toEpochMilli();
+
+        this.lock.readLock().lock();
+        try {
+            if (this.table == null) {
+                return Optional.empty();
+            }
+            long slot = this.table.findSlot(fingerprint);
+            if (!this.table.isOccupied(slot) || this.table.getValidUntil(slot) <= now) {
+                return Optional.empty();
+            }
+            return Optional.of(this.table.getId(slot));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String hash, String blockMetaDataId, Instant validUntil) {
+        UUID id;
+        try {
+            id = UUID.fromString(blockMetaDataId);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("block-meta-data-id {} is no uuid and can't be indexed", blockMetaDataId);
+            return;
+        }
+        byte[] fingerprint = this.fingerprint(hash);
+        Instant maximalValidUntil = Instant.now().plus(this.p2PBackupProperties.getBackupProperties().getBlockHashIndexValidity());
+        long entryValidUntil = (validUntil.isBefore(maximalValidUntil) ? validUntil : maximalValidUntil).toEpochMilli();
+
+        this.lock.writeLock().lock();
+        try {
+            if (this.table == null) {
+                return;
+            }
+            if (this.table.size + 1 > this.table.capacity * MAX_LOAD_FACTOR) {
+                this.grow();
+            }
+            this.table.put(fingerprint, id, entryValidUntil);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to grow block-hash-index " + this.indexFile, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(String hash) {
+        if (hash == null) {
+            return;
+        }
+        byte[] fingerprint = this.fingerprint(hash);
+
+        this.lock.writeLock().lock();
+        try {
+            if (this.rebuilding) {
+                this.invalidatedWhileRebuilding.add(ByteBuffer.wrap(fingerprint));
+            }
+            if (this.table != null) {
+                this.table.invalidate(fingerprint);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void grow() throws IOException {
+        Path tempFile = this.indexFile.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        Table newTable = Table.create(tempFile, this.table.capacity * 2, this.keyCheck, this.table.getIndexId());
+        for (long slot = 0; slot < this.table.capacity; slot++) {
+            if (this.table.isOccupied(slot)) {
+                newTable.copyFrom(this.table, slot);
+            }
+        }
+        this.replace(newTable, tempFile);
+        LOGGER.debug("grew block-hash-index to capacity {}", newTable.capacity);
+    }
+
+    private void replace(Table newTable, Path tempFile) throws IOException {
+        newTable.setClean(false);
+        if (this.table != null) {
+            this.table.close();
+        }
+        // the new table stays mapped, moving the file doesn't affect the mapping
+        Files.move(tempFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.table = newTable;
+    }
+
+    /**
+     * Builds the new index without holding the lock, so the old index (or the database) is used until the new index
+     * replaces it.
+     */
+    @Override
+    public synchronized void rebuild() {
+        LOGGER.trace("begin rebuild()");
+        this.lock.writeLock().lock();
+        try {
+            this.rebuilding = true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        try {
+            long nrOfBlocks = this.blockMetaDataRepository.count();
+            long capacity = INITIAL_CAPACITY;
+            while (capacity * MAX_LOAD_FACTOR < nrOfBlocks) {
+                capacity *= 2;
+            }
+
+            // the index may grow while it is rebuilt, so the rebuild uses its own temporary file
+            Path tempFile = this.indexFile.resolveSibling(INDEX_FILE_NAME + ".rebuild");
+            UUID indexId = UUID.randomUUID();
+            Table newTable = Table.create(tempFile, capacity, this.keyCheck, indexId);
+            Duration validity = this.p2PBackupProperties.getBackupProperties().getBlockHashIndexValidity();
+            long validUntil = Instant.now().plus(validity).toEpochMilli();
+            this.transactionTemplate.executeWithoutResult(status -> {
+                // only blocks whose replicas are still verified at the end of the validity are indexed, the others are checked against the database
+                try (Stream<BlockMetaDataIdAndHash> blocks = this.blockMetaDataRepository.streamCompletelyProcessedBlocks(
+                        this.p2PBackupProperties.getMinimalReplicas(), this.distributionService.calulateVerificationInvalidDateTime().plus(validity), NR_OF_VERIFICATION_VALUES / 2)) {
+                    blocks.forEach(block -> {
+                        try {
+                            newTable.put(this.fingerprint(block.hash()), UUID.fromString(block.id()), validUntil);
+                        } catch (IllegalArgumentException e) {
+                            LOGGER.debug("block-meta-data-id {} is no uuid and can't be indexed", block.id());
+                        }
+                    });
+                }
+            });
+            this.lock.writeLock().lock();
+            try {
+                if (this.closed) {
+                    newTable.close();
+                    Files.deleteIfExists(tempFile);
+                    return;
+                }
+                // blocks invalidated after they were read from the database must not be found in the new index
+                this.invalidatedWhileRebuilding.forEach(fingerprint -> newTable.invalidate(fingerprint.array()));
+                this.replace(newTable, tempFile);
+                this.configuration.setProperty(ConfigurationConstants.PROPERTY_BLOCK_HASH_INDEX_ID, indexId.toString());
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            LOGGER.info("rebuilt block-hash-index with {} entries", newTable.size);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to rebuild block-hash-index " + this.indexFile, e);
+        } finally {
+            this.lock.writeLock().lock();
+            try {
+                this.rebuilding = false;
+                this.invalidatedWhileRebuilding.clear();
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+        LOGGER.trace("end rebuild");
+    }
+
+    /**
+     * The memory-mapped hash-table. Not thread-safe, access is guarded by the lock of the service.
+     */
+    private static final class Table {
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer header;
+
+        private final MappedByteBuffer[] segments;
+
+        private final long capacity;
+
+        private long size;
+
+        private Table(FileChannel channel, long capacity) throws IOException {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+            long entriesPerSegment = Math.min(capacity, 1L << SEGMENT_BITS);
+            this.segments = new MappedByteBuffer[(int) (capacity / entriesPerSegment)];
+            for (int i = 0; i < this.segments.length; i++) {
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * entriesPerSegment * ENTRY_SIZE, entriesPerSegment * ENTRY_SIZE);
+            }
+        }
+
+        static Table create(Path file, long capacity, byte[] keyCheck, UUID indexId) throws IOException {
+            Files.createDirectories(file.getParent());
+            Files.deleteIfExists(file);
+            Table table = new Table(FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE), capacity);
+            table.header.putLong(HEADER_MAGIC, MAGIC);
+            table.header.putInt(HEADER_VERSION, VERSION);
+            table.header.putLong(HEADER_CAPACITY, capacity);
+            table.header.put(HEADER_KEY_CHECK, keyCheck);
+            table.header.putLong(HEADER_INDEX_ID, indexId.getMostSignificantBits());
+            table.header.putLong(HEADER_INDEX_ID + 8, indexId.getLeastSignificantBits());
+            table.header.putLong(HEADER_SIZE_OF_ENTRIES, 0);
+            return table;
+        }
+
+        /**
+         * Opens an existing table. Returns null if the table was not closed properly or doesn't match the current key or index-id.
+         */
+        static Table open(Path file, byte[] keyCheck, UUID indexId) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the complete header
+            }
+            byte[] storedKeyCheck = new byte[keyCheck.length];
+            header.get(HEADER_KEY_CHECK, storedKeyCheck);
+            long capacity = header.getLong(HEADER_CAPACITY);
+            boolean valid = !header.hasRemaining()
+                    && header.getLong(HEADER_MAGIC) == MAGIC
+                    && header.getInt(HEADER_VERSION) == VERSION
+                    && header.getInt(HEADER_CLEAN) == 1
+                    && Arrays.equals(storedKeyCheck, keyCheck)
+                    && new UUID(header.getLong(HEADER_INDEX_ID), header.getLong(HEADER_INDEX_ID + 8)).equals(indexId)
+                    && capacity >= INITIAL_CAPACITY && Long.bitCount(capacity) == 1
+                    && channel.size() == HEADER_SIZE + capacity * ENTRY_SIZE;
+            if (!valid) {
+                LOGGER.info("block-hash-index {} is invalid or was not closed properly", file);
+                channel.close();
+                return null;
+            }
+            Table table = new Table(channel, capacity);
+            table.size = header.getLong(HEADER_SIZE_OF_ENTRIES);
+            return table;
+        }
+
+        UUID getIndexId() {
+            return new UUID(this.header.getLong(HEADER_INDEX_ID), this.header.getLong(HEADER_INDEX_ID + 8));
+        }
+
+        void setClean(boolean clean) {
+            this.header.putLong(HEADER_SIZE_OF_ENTRIES, this.size);
+            this.header.putInt(HEADER_CLEAN, clean ? 1 : 0);
+            if (clean) {
+                for (MappedByteBuffer segment : this.segments) {
+                    segment.force();
+                }
+            }
+            this.header.force();
+        }
+
+        void close() throws IOException {
+            this.channel.close();
+        }
+
+        private MappedByteBuffer segment(long slot) {
+            return this.segments[(int) (slot >>> SEGMENT_BITS)];
+        }
+
+        private int offset(long slot) {
+            return (int) (slot & ((1L << SEGMENT_BITS) - 1)) * ENTRY_SIZE;
+        }
+
+        /**
+         * Returns the slot containing the fingerprint or the empty slot where it has to be inserted.
+         */
+        long findSlot(byte[] fingerprint) {
+            ByteBuffer key = ByteBuffer.wrap(fingerprint);
+            long slot = key.getLong(0) & (this.capacity - 1);
+            while (this.isOccupied(slot)) {
+                MappedByteBuffer segment = this.segment(slot);
+                int offset = this.offset(slot);
+                if (segment.getLong(offset) == key.getLong(0) && segment.getLong(offset + 8) == key.getLong(8)
+                        && segment.getLong(offset + 16) == key.getLong(16) && segment.getLong(offset + 24) == key.getLong(24)) {
+                    return slot;
+                }
+                slot = (slot + 1) & (this.capacity - 1);
+            }
+            return slot;
+        }
+
+        boolean isOccupied(long slot) {
+            return this.getValidUntil(slot) != 0;
+        }
+
+        long getValidUntil(long slot) {
+            return this.segment(slot).getLong(this.offset(slot) + ENTRY_VALID_UNTIL);
+        }
+
+        String getId(long slot) {
+            MappedByteBuffer segment = this.segment(slot);
+            int offset = this.offset(slot);
+            return new UUID(segment.getLong(offset + ENTRY_MOST_SIG_BITS), segment.getLong(offset + ENTRY_LEAST_SIG_BITS)).toString().toUpperCase();
+        }
+
+        void put(byte[] fingerprint, UUID id, long validUntil) {
+            long slot = this.findSlot(fingerprint);
+            if (!this.isOccupied(slot)) {
+                this.size++;
+            }
+            MappedByteBuffer segment = this.segment(slot);
+            int offset = this.offset(slot);
+            segment.put(offset, fingerprint, 0, FINGERPRINT_SIZE);
+            segment.putLong(offset + ENTRY_MOST_SIG_BITS, id.getMostSignificantBits());
+            segment.putLong(offset + ENTRY_LEAST_SIG_BITS, id.getLeastSignificantBits());
+            // the valid-until date marks the slot as occupied, so it is written last
+            segment.putLong(offset + ENTRY_VALID_UNTIL, validUntil);
+        }
+
+        void invalidate(byte[] fingerprint) {
+            long slot = this.findSlot(fingerprint);
+            if (this.isOccupied(slot)) {
+                this.segment(slot).putLong(this.offset(slot) + ENTRY_VALID_UNTIL, VALID_UNTIL_INVALIDATED);
+            }
+        }
+
+        void copyFrom(Table other, long otherSlot) {
+            byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+            MappedByteBuffer otherSegment = other.segment(otherSlot);
+            int otherOffset = other.offset(otherSlot);
+            otherSegment.get(otherOffset, fingerprint);
+            UUID id = new UUID(otherSegment.getLong(otherOffset + ENTRY_MOST_SIG_BITS), otherSegment.getLong(otherOffset + ENTRY_LEAST_SIG_BITS));
+            this.put(fingerprint, id, otherSegment.getLong(otherOffset + ENTRY_VALID_UNTIL));
+        }
+    }
+}
@@ -1,59 +1,159 @@
 package at.lucny.p2pbackup.backup.service;
 
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
 import at.lucny.p2pbackup.backup.dto.Block;
-import org.apache.commons.codec.digest.DigestUtils;
+import at.lucny.p2pbackup.backup.support.BackupUtils;
+import at.lucny.p2pbackup.core.service.ByteBufferPoolService;
+import at.lucny.p2pbackup.core.support.HashUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
-public class ChunkIterator implements Iterator<Block> {
+/**
+ * Iterates over the blocks of a file. The file is read into a buffer of {@code chunkSize} bytes and the block-boundary
+ * within the buffer is determined by {@link #findBoundary(ByteBuffer)}. Bytes after the boundary are carried over into the next block.
+ * While chunking the hash of the whole file is calculated, so the file only needs to be read once. Blocks that only
+ * consist of zeros are not hashed, see {@link Block#isZeroBlock()}.
+ * <p>
+ * The buffers of read blocks are borrowed from the {@link ByteBufferPoolService} and must be given back with
+ * {@link #release(Block)} after the block was processed. Without a pool heap-buffers are used.
+ * <p>
+ * Files of at least {@code mappedReadThreshold} bytes are not read but memory-mapped in windows of {@code mappedWindowSize}
+ * bytes. The blocks are slices of the mapped window, so their content is neither copied nor held on the heap. Content
+ * appended to the file after the iterator was created is ignored for mapped files. If a mapped file is truncated, accessing
+ * the content beyond its new end raises an {@link InternalError}, either while chunking or while a block is processed.
+ */
+public class ChunkIterator implements Iterator<Block>, Closeable {
 
     private final Path filePath;
 
-    private final boolean useDirectBuffer;
+    private final ByteBufferPoolService byteBufferPoolService;
 
     private final int chunkSize;
 
-    private final ReadableByteChannel channel;
+    private final int bufferKey;
+
+    private final FileChannel channel;
+
+    private final boolean mapped;
+
+    private final long mappedWindowSize;
+
+    private final long fileSize;
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    private long position;
+
+    private final HashAlgorithm hashAlgorithm;
 
     private final MessageDigest digest;
 
-    private Block nextBlock;
+    private final MessageDigest fileDigest;
+
+    private String fileHash;
 
-    private ByteBuffer previousByteBuffer;
+    /**
+     * The bytes after the boundary of the last block, only needed if the file is read and not mapped.
+     */
+    private ByteBuffer carryOverBuffer;
+
+    private boolean endOfFile = false;
+
+    private Block nextBlock;
 
-    protected ChunkIterator(Path filePath, int chunkSize, boolean useDirectBuffer, String messageDigestAlgorithm) {
+    /**
+     * @param byteBufferPoolService the pool of the buffers of read blocks, or null to use heap-buffers
+     */
+    protected ChunkIterator(Path filePath, int chunkSize, ByteBufferPoolService byteBufferPoolService, long mappedReadThreshold, long mappedWindowSize, HashAlgorithm hashAlgorithm) {
         this.filePath = filePath;
-        this.useDirectBuffer = useDirectBuffer;
+        this.byteBufferPoolService = byteBufferPoolService;
 
-        this.digest = DigestUtils.getDigest(messageDigestAlgorithm);
+        this.hashAlgorithm = hashAlgorithm;
+        this.digest = HashUtils.createBlockDigest(hashAlgorithm);
+        this.fileDigest = HashUtils.createFileDigest(hashAlgorithm);
         this.chunkSize = chunkSize;
+        this.bufferKey = byteBufferPoolService != null ? byteBufferPoolService.calculateBufferSize(chunkSize) : chunkSize;
         try {
-            InputStream fileInputStream = Files.newInputStream(filePath, StandardOpenOption.READ);
-            DigestInputStream digestInputStream = new DigestInputStream(fileInputStream, this.digest);
-            this.channel = Channels.newChannel(digestInputStream);
+            this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+            this.fileSize = this.channel.size();
         } catch (IOException e) {
             throw new IllegalArgumentException("could not create input-stream for path " + filePath, e);
         }
+        this.mapped = this.fileSize >= mappedReadThreshold;
+        this.mappedWindowSize = Math.min(Math.max(mappedWindowSize, chunkSize), Integer.MAX_VALUE);
+        if (!this.mapped) {
+            this.carryOverBuffer = this.borrowByteBuffer();
+            this.carryOverBuffer.flip();
+        }
     }
 
-    private ByteBuffer newByteBuffer() {
-        if (this.useDirectBuffer) {
-            return ByteBuffer.allocateDirect(this.chunkSize);
-        } else {
+    private ByteBuffer borrowByteBuffer() {
+        if (this.byteBufferPoolService == null) {
             return ByteBuffer.allocate(this.chunkSize);
         }
+        // the buffer of the size-class can be larger than a chunk
+        return this.byteBufferPoolService.borrowObject(this.bufferKey).limit(this.chunkSize);
+    }
+
+    private void returnByteBuffer(ByteBuffer buffer) {
+        if (this.byteBufferPoolService != null) {
+            this.byteBufferPoolService.returnObject(this.bufferKey, buffer);
+        }
+    }
+
+    /**
+     * Gives the buffer of the block back to the pool. Must be called once for every block after its content is not
+     * used anymore. Blocks of mapped files have no buffer of their own.
+     *
+     * @param block a block returned by this iterator
+     */
+    public void release(Block block) {
+        if (!this.mapped) {
+            this.returnByteBuffer(block.content());
+        }
+    }
+
+    /**
+     * Determines the length of the next block.
+     *
+     * @param data the available data of the file starting at the beginning of the next block. the buffer contains {@code chunkSize} bytes, except the end of the file is reached.
+     * @return the length of the next block, between 1 and {@code data.remaining()}
+     */
+    protected int findBoundary(ByteBuffer data) {
+        return data.remaining();
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return this.hashAlgorithm;
+    }
+
+    /**
+     * Returns the hash of the whole file. Only available after all blocks were read.
+     *
+     * @return the base64-encoded hash of the file
+     * @throws IllegalStateException if not all blocks were read yet
+     */
+    public String getFileHash() {
+        if (this.fileHash == null) {
+            if (!this.endOfFile || (this.carryOverBuffer != null && this.carryOverBuffer.hasRemaining()) || this.nextBlock != null) {
+                throw new IllegalStateException("file " + this.filePath + " is not completely chunked");
+            }
+            this.fileHash = Base64.getEncoder().encodeToString(this.fileDigest.digest());
+        }
+        return this.fileHash;
     }
 
     @Override
@@ -65,25 +165,41 @@ public class ChunkIterator implements Iterator<Block> {
     }
 
     private int read() {
+        if (!this.channel.isOpen()) {
+            return 0;
+        }
         try {
-            ByteBuffer buffer;
-
-            if (this.previousByteBuffer != null && !this.previousByteBuffer.hasRemaining()) {
-                this.previousByteBuffer.clear();
-                buffer = this.previousByteBuffer;
-                this.previousByteBuffer = null;
-            } else {
-                buffer = this.newByteBuffer();
-            }
+            ByteBuffer data = this.mapped ? this.mapNextData() : this.readNextData();
 
-            int nrOfBytes = this.channel.read(buffer);
+            int nrOfBytes = data.remaining();
             if (nrOfBytes > 0) {
-                buffer.flip();
-                byte[] hash = this.digest.digest();
-                this.nextBlock = new Block(buffer, Base64.getEncoder().encodeToString(hash));
-                this.digest.reset();
+                int blockLength = this.findBoundary(data.duplicate());
+                if (blockLength <= 0 || blockLength > nrOfBytes) {
+                    throw new IllegalStateException("invalid block-boundary " + blockLength + " for " + nrOfBytes + " bytes");
+                }
+                if (this.mapped) {
+                    this.position += blockLength;
+                } else {
+                    this.carryOverBuffer.clear();
+                    this.carryOverBuffer.put(data.slice(blockLength, nrOfBytes - blockLength));
+                    this.carryOverBuffer.flip();
+                }
+                data.limit(blockLength);
+
+                this.fileDigest.update(data.duplicate());
+                if (BackupUtils.isZeroBlock(data)) {
+                    this.nextBlock = new Block(data, null, this.hashAlgorithm);
+                } else {
+                    this.digest.update(data.duplicate());
+                    byte[] hash = this.digest.digest();
+                    this.nextBlock = new Block(data, Base64.getEncoder().encodeToString(hash), this.hashAlgorithm);
+                }
             } else {
-                this.channel.close();
+                if (!this.mapped) {
+                    // the empty buffer of the end of the file is not handed out as block
+                    this.returnByteBuffer(data);
+                }
+                this.close();
             }
             return nrOfBytes;
         } catch (IOException e) {
@@ -91,6 +207,42 @@ public class ChunkIterator implements Iterator<Block> {
         }
     }
 
+    /**
+     * Reads the next {@code chunkSize} bytes of the file into a new buffer, starting with the carried-over bytes of the last block.
+     */
+    private ByteBuffer readNextData() throws IOException {
+        // every block gets its own buffer, because the blocks are processed in parallel
+        ByteBuffer buffer = this.borrowByteBuffer();
+
+        // fill the buffer with the carried-over bytes of the last block and read from the file until the buffer is full
+        buffer.put(this.carryOverBuffer);
+        while (!this.endOfFile && buffer.hasRemaining()) {
+            if (this.channel.read(buffer) < 0) {
+                this.endOfFile = true;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the next {@code chunkSize} bytes of the file as slice of the mapped window. If the bytes exceed the
+     * current window, a new window starting at the current position is mapped. Slices of the old window stay valid.
+     */
+    private ByteBuffer mapNextData() throws IOException {
+        int length = (int) Math.min(this.chunkSize, this.fileSize - this.position);
+        if (length <= 0) {
+            this.endOfFile = true;
+            return ByteBuffer.allocate(0);
+        }
+
+        if (this.window == null || this.position + length > this.windowStart + this.window.capacity()) {
+            this.windowStart = this.position;
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, this.windowStart, Math.min(this.mappedWindowSize, this.fileSize - this.windowStart));
+        }
+        return this.window.slice((int) (this.position - this.windowStart), length);
+    }
+
     @Override
     public Block next() {
         if (this.nextBlock == null && this.read() <= 0) {
@@ -98,7 +250,22 @@ public class ChunkIterator implements Iterator<Block> {
         }
         Block block = this.nextBlock;
         this.nextBlock = null;
-        this.previousByteBuffer = block.content();
         return block;
     }
+
+    /**
+     * Closes the file and gives the carry-over buffer back to the pool. Called automatically after the last block.
+     */
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to close file " + this.filePath, e);
+        }
+        if (this.carryOverBuffer != null) {
+            this.returnByteBuffer(this.carryOverBuffer);
+            this.carryOverBuffer = null;
+        }
+    }
 }
@@ -1,18 +1,28 @@
 package at.lucny.p2pbackup.backup.service;
 
-import at.lucny.p2pbackup.backup.dto.Block;
+import at.lucny.p2pbackup.application.config.ChunkerType;
 
 import jakarta.validation.constraints.NotNull;
 import java.nio.file.Path;
-import java.util.Iterator;
 
 public interface ChunkerService {
 
+    /**
+     * @return the algorithm this service uses to determine the block-boundaries
+     */
+    @NotNull ChunkerType getType();
+
+    /**
+     * @return the configured block-size, for content-defined chunking the average size of the blocks
+     */
+    int getDefaultBlockSize();
+
     /**
      * Chunks the file from the given path in blocks.
      *
      * @param filePath
-     * @return an iterator that delivers all blocks from the file one-by-one
+     * @param blockSize the block-size, for content-defined chunking the average size of the blocks. the minimal and maximal size are scaled accordingly
+     * @return an iterator that delivers all blocks from the file one-by-one and the hash of the whole file after the last block
      */
-    @NotNull Iterator<Block> createIterator(@NotNull Path filePath);
+    @NotNull ChunkIterator createIterator(@NotNull Path filePath, int blockSize);
 }
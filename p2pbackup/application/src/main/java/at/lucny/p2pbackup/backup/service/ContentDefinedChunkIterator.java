@@ -0,0 +1,88 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.core.service.ByteBufferPoolService;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Cuts a file into blocks at content-defined boundaries with the FastCDC-algorithm. A gear-hash is rolled over the data
+ * and a boundary is set as soon as the masked bits of the hash are zero. Before the average size is reached a stricter mask
+ * is used and after it a looser one (normalized chunking), so that the block-sizes concentrate around the average size.
+ * Inserting or removing data only changes the blocks around the modification, all other blocks keep their hash.
+ */
+public class ContentDefinedChunkIterator extends ChunkIterator {
+
+    /**
+     * the gear-table must never change, otherwise the boundaries and therefore the hashes of all blocks would change.
+     */
+    private static final long[] GEAR = createGearTable();
+
+    private final int minSize;
+
+    private final int averageSize;
+
+    private final long maskSmall;
+
+    private final long maskLarge;
+
+    protected ContentDefinedChunkIterator(Path filePath, int minSize, int averageSize, int maxSize, ByteBufferPoolService byteBufferPoolService, long mappedReadThreshold, long mappedWindowSize, HashAlgorithm hashAlgorithm) {
+        super(filePath, maxSize, byteBufferPoolService, mappedReadThreshold, mappedWindowSize, hashAlgorithm);
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        this.maskSmall = createMask(bits + 2);
+        this.maskLarge = createMask(bits - 2);
+    }
+
+    /**
+     * Creates a mask with the given number of bits set. The highest bits are used, because with the gear-hash they depend on the most bytes of the window.
+     */
+    private static long createMask(int nrOfBits) {
+        return -1L << (Long.SIZE - nrOfBits);
+    }
+
+    /**
+     * Generates the gear-table with a fixed seed (splitmix64) so that it is identical on every installation.
+     */
+    private static long[] createGearTable() {
+        long[] table = new long[256];
+        long state = 0x5032504261636B75L;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    @Override
+    protected int findBoundary(ByteBuffer data) {
+        int start = data.position();
+        int length = data.remaining();
+        if (length <= this.minSize) {
+            return length;
+        }
+
+        int normalSize = Math.min(this.averageSize, length);
+        long hash = 0;
+        int i = this.minSize;
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[data.get(start + i) & 0xFF];
+            if ((hash & this.maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[data.get(start + i) & 0xFF];
+            if ((hash & this.maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
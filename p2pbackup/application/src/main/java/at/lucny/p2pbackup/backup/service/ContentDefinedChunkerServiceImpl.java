@@ -0,0 +1,66 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.ChunkerProperties;
+import at.lucny.p2pbackup.application.config.BackupProperties;
+import at.lucny.p2pbackup.application.config.ChunkerType;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.core.service.ByteBufferPoolService;
+import org.springframework.stereotype.Service;
+import org.springframework.validation.annotation.Validated;
+
+import java.nio.file.Path;
+
+import static at.lucny.p2pbackup.backup.support.BackupConstants.ONE_KILOBYTE;
+
+@Service
+@Validated
+public class ContentDefinedChunkerServiceImpl implements ChunkerService {
+
+    private final int minSize;
+
+    private final int averageSize;
+
+    private final int maxSize;
+
+    private final long mappedReadThreshold;
+
+    private final long mappedWindowSize;
+
+    private final BackupProperties backupProperties;
+
+    private final ByteBufferPoolService byteBufferPoolService;
+
+    public ContentDefinedChunkerServiceImpl(P2PBackupProperties p2PBackupProperties, ByteBufferPoolService byteBufferPoolService) {
+        ChunkerProperties chunkerProperties = p2PBackupProperties.getChunkerProperties();
+        long min = chunkerProperties.getMinSize().toBytes();
+        long average = chunkerProperties.getAverageSize().toBytes();
+        long max = chunkerProperties.getMaxSize().toBytes();
+        if (min < ONE_KILOBYTE || average <= min || max <= average || max > ONE_KILOBYTE * ONE_KILOBYTE * 100) {
+            throw new IllegalStateException("invalid property " + chunkerProperties);
+        }
+        this.minSize = (int) min;
+        this.averageSize = (int) average;
+        this.maxSize = (int) max;
+        this.mappedReadThreshold = chunkerProperties.getMappedReadThreshold().toBytes();
+        this.mappedWindowSize = chunkerProperties.getMappedWindowSize().toBytes();
+        this.backupProperties = p2PBackupProperties.getBackupProperties();
+        this.byteBufferPoolService = byteBufferPoolService;
+    }
+
+    @Override
+    public ChunkerType getType() {
+        return ChunkerType.CONTENT_DEFINED;
+    }
+
+    @Override
+    public int getDefaultBlockSize() {
+        return this.averageSize;
+    }
+
+    @Override
+    public ChunkIterator createIterator(Path filePath, int blockSize) {
+        int minSize = (int) ((long) this.minSize * blockSize / this.averageSize);
+        int maxSize = (int) ((long) this.maxSize * blockSize / this.averageSize);
+        return new ContentDefinedChunkIterator(filePath, minSize, blockSize, maxSize, this.byteBufferPoolService, this.mappedReadThreshold, this.mappedWindowSize, this.backupProperties.getHashAlgorithm());
+    }
+}
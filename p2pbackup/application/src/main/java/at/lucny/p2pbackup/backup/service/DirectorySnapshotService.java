@@ -0,0 +1,78 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.backup.domain.RootDirectorySnapshot;
+import at.lucny.p2pbackup.backup.dto.NewDirectorySnapshot;
+import at.lucny.p2pbackup.backup.dto.SnapshotDifference;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotEntry;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Manages the digest-trees of the root-directories, that are saved after every completed backup.
+ */
+public interface DirectorySnapshotService {
+
+    /**
+     * Returns the root of the digest-tree of the latest completed backup of the root-directory.
+     *
+     * @param rootDirectory the root-directory
+     * @return the root-node, otherwise an empty optional
+     */
+    @NotNull Optional<DirectorySnapshotEntry> getLatestSnapshot(@NotNull RootDirectory rootDirectory);
+
+    /**
+     * Returns the subdirectories of the nodes of a digest-tree.
+     *
+     * @param directorySnapshotIds the ids of the nodes
+     * @return the nodes of the subdirectories mapped by their name, mapped by the id of their parent node. Nodes without
+     * subdirectories are missing.
+     */
+    @NotNull Map<String, Map<String, DirectorySnapshotEntry>> getDirectories(@NotNull Collection<String> directorySnapshotIds);
+
+    /**
+     * Saves the nodes of a digest-tree in one transaction. The nodes of subdirectories must either be saved already or
+     * precede their parent node in the list. If a node with the same digest exists, the existing node is used.
+     *
+     * @param snapshots the new nodes
+     * @return the ids of the saved nodes mapped by their digest
+     */
+    @NotNull Map<String, String> saveDirectorySnapshots(@NotNull List<NewDirectorySnapshot> snapshots);
+
+    /**
+     * Saves the digest-tree of a completed backup of the root-directory.
+     *
+     * @param rootDirectory       the root-directory
+     * @param nrOfBackup          the number of the backup
+     * @param directorySnapshotId the id of the root-node
+     */
+    void saveRootDirectorySnapshot(@NotNull RootDirectory rootDirectory, int nrOfBackup, @NotNull String directorySnapshotId);
+
+    @NotNull List<RootDirectorySnapshot> getSnapshots(@NotNull RootDirectory rootDirectory);
+
+    /**
+     * Deletes all but the latest digest-trees of every root-directory. Nodes that are not referenced by a remaining
+     * digest-tree are deleted too. Must not be called while a backup is running, because the nodes of a running backup
+     * are not referenced until the backup completed.
+     *
+     * @param nrOfSnapshotsToKeep the number of digest-trees that are kept for every root-directory
+     * @return the number of deleted nodes
+     */
+    int pruneSnapshots(@Min(1) int nrOfSnapshotsToKeep);
+
+    /**
+     * Compares the digest-trees of two backups of the root-directory. Only changed directories are visited, the changed
+     * files within these directories are determined by their versions.
+     *
+     * @param rootDirectory the root-directory
+     * @param fromBackup    the number of the first backup
+     * @param toBackup      the number of the second backup
+     * @return the paths that differ between the backups, sorted by path
+     */
+    @NotNull List<SnapshotDifference> diff(@NotNull RootDirectory rootDirectory, int fromBackup, int toBackup);
+}
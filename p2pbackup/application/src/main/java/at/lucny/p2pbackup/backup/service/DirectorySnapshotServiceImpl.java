@@ -0,0 +1,240 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.backup.domain.DirectorySnapshot;
+import at.lucny.p2pbackup.backup.domain.RootDirectorySnapshot;
+import at.lucny.p2pbackup.backup.dto.NewDirectorySnapshot;
+import at.lucny.p2pbackup.backup.dto.SnapshotDifference;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotChildEntry;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotEntry;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotRepository;
+import at.lucny.p2pbackup.backup.repository.RootDirectorySnapshotRepository;
+import at.lucny.p2pbackup.core.domain.RootDirectory;
+import at.lucny.p2pbackup.core.repository.PathDataRepository;
+import at.lucny.p2pbackup.core.repository.PathVersionChange;
+import com.google.common.collect.Lists;
+import jakarta.persistence.EntityManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.validation.annotation.Validated;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+@Service
+@Validated
+public class DirectorySnapshotServiceImpl implements DirectorySnapshotService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectorySnapshotServiceImpl.class);
+
+    private final DirectorySnapshotRepository directorySnapshotRepository;
+
+    private final RootDirectorySnapshotRepository rootDirectorySnapshotRepository;
+
+    private final PathDataRepository pathDataRepository;
+
+    private final EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public DirectorySnapshotServiceImpl(DirectorySnapshotRepository directorySnapshotRepository, RootDirectorySnapshotRepository rootDirectorySnapshotRepository, PathDataRepository pathDataRepository, EntityManager entityManager, PlatformTransactionManager transactionManager) {
+        this.directorySnapshotRepository = directorySnapshotRepository;
+        this.rootDirectorySnapshotRepository = rootDirectorySnapshotRepository;
+        this.pathDataRepository = pathDataRepository;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Optional<DirectorySnapshotEntry> getLatestSnapshot(RootDirectory rootDirectory) {
+        return this.rootDirectorySnapshotRepository.findFirstByRootDirectoryOrderByNrOfBackupDesc(rootDirectory)
+                .map(RootDirectorySnapshot::getDirectorySnapshot)
+                .map(d -> new DirectorySnapshotEntry("", d.getId(), d.getDigest(), d.getFilesDigest()));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Map<String, Map<String, DirectorySnapshotEntry>> getDirectories(Collection<String> directorySnapshotIds) {
+        Map<String, Map<String, DirectorySnapshotEntry>> directories = new HashMap<>();
+        for (List<String> ids : Lists.partition(new ArrayList<>(directorySnapshotIds), 1000)) {
+            for (DirectorySnapshotChildEntry child : this.directorySnapshotRepository.findDirectories(ids)) {
+                directories.computeIfAbsent(child.parentId(), id -> new HashMap<>()).put(child.name(), child.toEntry());
+            }
+        }
+        return directories;
+    }
+
+    @Override
+    public Map<String, String> saveDirectorySnapshots(List<NewDirectorySnapshot> snapshots) {
+        try {
+            return this.transactionTemplate.execute(status -> this.persistDirectorySnapshots(snapshots));
+        } catch (DataIntegrityViolationException e) {
+            // the backup of another root-directory saved a node with the same digest, which is read in the second attempt
+            LOGGER.debug("a node of the digest-tree was saved concurrently, saving the nodes again: {}", e.getMessage());
+            return this.transactionTemplate.execute(status -> this.persistDirectorySnapshots(snapshots));
+        }
+    }
+
+    private Map<String, String> persistDirectorySnapshots(List<NewDirectorySnapshot> snapshots) {
+        Set<String> digests = new HashSet<>();
+        for (NewDirectorySnapshot snapshot : snapshots) {
+            digests.add(snapshot.digest());
+            digests.addAll(snapshot.directoryDigests().values());
+        }
+        Map<String, String> ids = new HashMap<>();
+        for (List<String> partition : Lists.partition(new ArrayList<>(digests), 1000)) {
+            this.directorySnapshotRepository.findByDigestIn(partition).forEach(entry -> ids.put(entry.digest(), entry.id()));
+        }
+
+        Map<String, String> savedIds = new HashMap<>();
+        for (NewDirectorySnapshot snapshot : snapshots) {
+            String id = ids.get(snapshot.digest());
+            if (id == null) {
+                DirectorySnapshot directorySnapshot = new DirectorySnapshot(snapshot.digest(), snapshot.filesDigest(), snapshot.lastModified(), snapshot.nrOfChildren());
+                for (Map.Entry<String, String> directory : snapshot.directoryDigests().entrySet()) {
+                    String directoryId = ids.get(directory.getValue());
+                    if (directoryId == null) {
+                        throw new IllegalStateException("node of subdirectory " + directory.getKey() + " is not saved");
+                    }
+                    directorySnapshot.getDirectories().put(directory.getKey(), this.directorySnapshotRepository.getReferenceById(directoryId));
+                }
+                this.entityManager.persist(directorySnapshot);
+                id = directorySnapshot.getId();
+                // identical directories within the same batch share their node
+                ids.put(snapshot.digest(), id);
+            }
+            savedIds.put(snapshot.digest(), id);
+        }
+        // flushed through the repository, so that a duplicate digest is reported as DataIntegrityViolationException
+        this.directorySnapshotRepository.flush();
+        return savedIds;
+    }
+
+    @Override
+    @Transactional
+    public void saveRootDirectorySnapshot(RootDirectory rootDirectory, int nrOfBackup, String directorySnapshotId) {
+        LOGGER.debug("saving snapshot {} for backup {} of {}", directorySnapshotId, nrOfBackup, rootDirectory.getPath());
+        this.rootDirectorySnapshotRepository.save(new RootDirectorySnapshot(rootDirectory, nrOfBackup, LocalDateTime.now(ZoneOffset.UTC),
+                this.directorySnapshotRepository.getReferenceById(directorySnapshotId)));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<RootDirectorySnapshot> getSnapshots(RootDirectory rootDirectory) {
+        return this.rootDirectorySnapshotRepository.findByRootDirectoryOrderByNrOfBackup(rootDirectory);
+    }
+
+    @Override
+    @Transactional
+    public int pruneSnapshots(int nrOfSnapshotsToKeep) {
+        Map<String, List<RootDirectorySnapshot>> snapshotsByRootDirectory = new HashMap<>();
+        for (RootDirectorySnapshot snapshot : this.rootDirectorySnapshotRepository.findAll(Sort.by("nrOfBackup"))) {
+            snapshotsByRootDirectory.computeIfAbsent(snapshot.getRootDirectory().getId(), id -> new ArrayList<>()).add(snapshot);
+        }
+        List<RootDirectorySnapshot> expiredSnapshots = new ArrayList<>();
+        for (List<RootDirectorySnapshot> snapshots : snapshotsByRootDirectory.values()) {
+            expiredSnapshots.addAll(snapshots.subList(0, Math.max(0, snapshots.size() - nrOfSnapshotsToKeep)));
+        }
+        if (expiredSnapshots.isEmpty()) {
+            return 0;
+        }
+        this.rootDirectorySnapshotRepository.deleteAllInBatch(expiredSnapshots);
+
+        // the nodes are shared between digest-trees, so only nodes that can't be reached from a remaining tree are deleted
+        Set<String> reachableIds = new HashSet<>();
+        Set<String> currentLevel = new HashSet<>(this.rootDirectorySnapshotRepository.findAllDirectorySnapshotIds());
+        while (!currentLevel.isEmpty()) {
+            reachableIds.addAll(currentLevel);
+            Set<String> nextLevel = new HashSet<>();
+            for (List<String> ids : Lists.partition(new ArrayList<>(currentLevel), 1000)) {
+                for (DirectorySnapshotChildEntry child : this.directorySnapshotRepository.findDirectories(ids)) {
+                    if (!reachableIds.contains(child.id())) {
+                        nextLevel.add(child.id());
+                    }
+                }
+            }
+            currentLevel = nextLevel;
+        }
+
+        List<String> unreachableIds = this.directorySnapshotRepository.findAllIds().stream().filter(id -> !reachableIds.contains(id)).toList();
+        List<List<String>> partitionedUnreachableIds = Lists.partition(unreachableIds, 1000);
+        // the references between unreachable nodes are removed first, a reachable node never references an unreachable one
+        partitionedUnreachableIds.forEach(this.directorySnapshotRepository::deleteChildrenByDirectorySnapshotIdIn);
+        partitionedUnreachableIds.forEach(this.directorySnapshotRepository::deleteByIdIn);
+        LOGGER.info("deleted {} digest-trees and {} nodes that are no longer referenced", expiredSnapshots.size(), unreachableIds.size());
+        return unreachableIds.size();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<SnapshotDifference> diff(RootDirectory rootDirectory, int fromBackup, int toBackup) {
+        RootDirectorySnapshot from = this.getSnapshot(rootDirectory, Math.min(fromBackup, toBackup));
+        RootDirectorySnapshot to = this.getSnapshot(rootDirectory, Math.max(fromBackup, toBackup));
+
+        List<SnapshotDifference> differences = new ArrayList<>();
+        this.diff(rootDirectory, null, from.getDirectorySnapshot(), to.getDirectorySnapshot(), from.getDate(), to.getDate(), differences);
+        differences.sort(Comparator.comparing(SnapshotDifference::path));
+        return differences;
+    }
+
+    private RootDirectorySnapshot getSnapshot(RootDirectory rootDirectory, int nrOfBackup) {
+        return this.rootDirectorySnapshotRepository.findByRootDirectoryAndNrOfBackup(rootDirectory, nrOfBackup)
+                .orElseThrow(() -> new IllegalStateException("no snapshot for backup " + nrOfBackup + " of " + rootDirectory.getName()));
+    }
+
+    private void diff(RootDirectory rootDirectory, Path directory, DirectorySnapshot from, DirectorySnapshot to, LocalDateTime fromDate, LocalDateTime toDate, List<SnapshotDifference> differences) {
+        if (from.getDigest().equals(to.getDigest())) {
+            return;
+        }
+        if (!from.getFilesDigest().equals(to.getFilesDigest())) {
+            this.diffFiles(rootDirectory, directory, fromDate, toDate, differences);
+        }
+
+        for (Map.Entry<String, DirectorySnapshot> subdirectory : from.getDirectories().entrySet()) {
+            Path path = directory != null ? directory.resolve(subdirectory.getKey()) : Path.of(subdirectory.getKey());
+            DirectorySnapshot toSubdirectory = to.getDirectories().get(subdirectory.getKey());
+            if (toSubdirectory == null) {
+                differences.add(new SnapshotDifference(path + path.getFileSystem().getSeparator(), SnapshotDifference.Type.DELETED));
+            } else {
+                this.diff(rootDirectory, path, subdirectory.getValue(), toSubdirectory, fromDate, toDate, differences);
+            }
+        }
+        for (String name : to.getDirectories().keySet()) {
+            if (!from.getDirectories().containsKey(name)) {
+                Path path = directory != null ? directory.resolve(name) : Path.of(name);
+                differences.add(new SnapshotDifference(path + path.getFileSystem().getSeparator(), SnapshotDifference.Type.ADDED));
+            }
+        }
+    }
+
+    /**
+     * Adds the files directly within the directory, that have a version within the given period.
+     */
+    private void diffFiles(RootDirectory rootDirectory, Path directory, LocalDateTime fromDate, LocalDateTime toDate, List<SnapshotDifference> differences) {
+        String pathPrefix = directory != null ? directory + directory.getFileSystem().getSeparator() + "%" : "%";
+        // the latest version of every file within the period
+        Map<String, PathVersionChange> changes = new HashMap<>();
+        for (PathVersionChange change : this.pathDataRepository.findVersionChanges(rootDirectory, pathPrefix, fromDate, toDate)) {
+            if (Objects.equals(Path.of(change.path()).getParent(), directory)) {
+                changes.merge(change.path(), change, (a, b) -> a.date().isAfter(b.date()) ? a : b);
+            }
+        }
+
+        for (PathVersionChange change : changes.values()) {
+            boolean added = change.firstVersionDate().isAfter(fromDate);
+            if (added && !change.deleted()) {
+                differences.add(new SnapshotDifference(change.path(), SnapshotDifference.Type.ADDED));
+            } else if (!added) {
+                differences.add(new SnapshotDifference(change.path(), change.deleted() ? SnapshotDifference.Type.DELETED : SnapshotDifference.Type.CHANGED));
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.backup.dto.NewDirectorySnapshot;
+import at.lucny.p2pbackup.backup.repository.DirectorySnapshotEntry;
+import at.lucny.p2pbackup.core.domain.FileStat;
+import at.lucny.p2pbackup.core.support.HashUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Walks a root-directory depth-first and visits the entries of every directory sorted by name, so that an interrupted
+ * backup walks the files in the same order when it is resumed. Symbolic links to directories are not followed.
+ * <p>
+ * While walking the digest-tree of the root-directory is built. The files of a directory, whose files-digest is the same
+ * as in the previous snapshot, are reported as unchanged. The metadata of every file is still read, because the
+ * modification-time of a directory doesn't change if only the content of a file within changes.
+ * <p>
+ * The subdirectories of the previous snapshot are loaded for all subdirectories of a directory at once and new nodes are
+ * saved in batches, so that the walk doesn't need database-calls for every directory.
+ */
+class DirectoryTreeWalker {
+
+    record WalkedFile(Path path, boolean unchanged) {
+    }
+
+    private static final byte DIRECTORY = 'D';
+
+    private static final byte FILE = 'F';
+
+    private static final int SAVE_BATCH_SIZE = 100;
+
+    private final DirectorySnapshotService directorySnapshotService;
+
+    private final Function<Path, FileStat> fileStatReader;
+
+    private final boolean skipUnchangedDirectories;
+
+    private final List<NewDirectorySnapshot> pendingSnapshots = new ArrayList<>();
+
+    /**
+     * the ids of the nodes of the latest saved batch mapped by their digest, the root-node is always in the latest batch
+     */
+    private Map<String, String> savedIds = Collections.emptyMap();
+
+    private DirectorySnapshotEntry rootSnapshot;
+
+    /**
+     * @param directorySnapshotService the service to load the previous and save the new digest-tree
+     * @param fileStatReader           reads the metadata of a file, returns null if the metadata can't be read
+     * @param skipUnchangedDirectories false if all files should be reported as changed
+     */
+    DirectoryTreeWalker(DirectorySnapshotService directorySnapshotService, Function<Path, FileStat> fileStatReader, boolean skipUnchangedDirectories) {
+        this.directorySnapshotService = directorySnapshotService;
+        this.fileStatReader = fileStatReader;
+        this.skipUnchangedDirectories = skipUnchangedDirectories;
+    }
+
+    /**
+     * Walks the root-directory and passes every file in walk order to the consumer.
+     *
+     * @param root             the root-directory
+     * @param previousSnapshot the root of the digest-tree of the previous backup, or null
+     * @param consumer         the consumer of the files
+     */
+    void walk(Path root, DirectorySnapshotEntry previousSnapshot, Consumer<WalkedFile> consumer) {
+        Map<String, DirectorySnapshotEntry> previousDirectories = previousSnapshot != null ?
+                this.directorySnapshotService.getDirectories(List.of(previousSnapshot.id())).getOrDefault(previousSnapshot.id(), Collections.emptyMap()) : Collections.emptyMap();
+        DirectorySnapshotEntry snapshot = this.walkDirectory(root, previousSnapshot, previousDirectories, consumer);
+        this.savePendingSnapshots();
+        this.rootSnapshot = snapshot.id() != null ? snapshot : new DirectorySnapshotEntry(snapshot.name(), this.savedIds.get(snapshot.digest()), snapshot.digest(), snapshot.filesDigest());
+    }
+
+    /**
+     * @return the root of the digest-tree after the walk
+     */
+    DirectorySnapshotEntry getRootSnapshot() {
+        return this.rootSnapshot;
+    }
+
+    /**
+     * @return the node of the directory, the id of a new node is null until it is saved
+     */
+    private DirectorySnapshotEntry walkDirectory(Path directory, DirectorySnapshotEntry previousSnapshot, Map<String, DirectorySnapshotEntry> previousDirectories, Consumer<WalkedFile> consumer) {
+        List<Path> entries;
+        long lastModified;
+        try (var directoryEntries = Files.list(directory)) {
+            entries = directoryEntries.sorted(Comparator.comparing(entry -> entry.getFileName().toString())).toList();
+            lastModified = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to list directory " + directory, e);
+        }
+
+        MessageDigest filesDigest = HashUtils.createBlockDigest(HashAlgorithm.SHA_256);
+        filesDigest.update(ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(lastModified).putInt(entries.size()).flip());
+        boolean allFileStatsRead = true;
+        for (Path entry : entries) {
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                this.updateDigest(filesDigest, DIRECTORY, entry.getFileName().toString());
+            } else {
+                FileStat fileStat = this.fileStatReader.apply(entry);
+                allFileStatsRead &= fileStat != null;
+                this.updateDigest(filesDigest, FILE, entry.getFileName().toString());
+                this.updateDigest(filesDigest, FILE, fileStat != null ? fileStat.getSize() + ":" + fileStat.getLastModified() + ":" + fileStat.getChangeTime() + ":" + fileStat.getFileKey() : "");
+            }
+        }
+        String filesDigestValue = Base64.getEncoder().encodeToString(filesDigest.digest());
+
+        // files whose metadata can't be read are always backed up
+        boolean unchanged = this.skipUnchangedDirectories && allFileStatsRead && previousSnapshot != null && previousSnapshot.filesDigest().equals(filesDigestValue);
+        // the subdirectories of all previous subdirectories are loaded at once
+        List<String> previousDirectoryIds = entries.stream().map(entry -> previousDirectories.get(entry.getFileName().toString()))
+                .filter(Objects::nonNull).map(DirectorySnapshotEntry::id).distinct().toList();
+        Map<String, Map<String, DirectorySnapshotEntry>> previousSubdirectories = previousDirectoryIds.isEmpty() ?
+                Collections.emptyMap() : this.directorySnapshotService.getDirectories(previousDirectoryIds);
+
+        MessageDigest digest = HashUtils.createBlockDigest(HashAlgorithm.SHA_256);
+        this.updateDigest(digest, FILE, filesDigestValue);
+        Map<String, String> directoryDigests = new HashMap<>();
+        for (Path entry : entries) {
+            String name = entry.getFileName().toString();
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                DirectorySnapshotEntry previousDirectory = previousDirectories.get(name);
+                DirectorySnapshotEntry snapshot = this.walkDirectory(entry, previousDirectory,
+                        previousDirectory != null ? previousSubdirectories.getOrDefault(previousDirectory.id(), Collections.emptyMap()) : Collections.emptyMap(), consumer);
+                directoryDigests.put(name, snapshot.digest());
+                this.updateDigest(digest, DIRECTORY, name);
+                this.updateDigest(digest, DIRECTORY, snapshot.digest());
+            } else {
+                consumer.accept(new WalkedFile(entry, unchanged));
+            }
+        }
+        String digestValue = Base64.getEncoder().encodeToString(digest.digest());
+
+        if (previousSnapshot != null && previousSnapshot.digest().equals(digestValue)) {
+            return previousSnapshot;
+        }
+        // the nodes of the subdirectories were added before, so they are saved in the same or an earlier batch
+        this.pendingSnapshots.add(new NewDirectorySnapshot(digestValue, filesDigestValue, lastModified, entries.size(), directoryDigests));
+        if (this.pendingSnapshots.size() >= SAVE_BATCH_SIZE) {
+            this.savePendingSnapshots();
+        }
+        return new DirectorySnapshotEntry(directory.getFileName() != null ? directory.getFileName().toString() : "", null, digestValue, filesDigestValue);
+    }
+
+    private void savePendingSnapshots() {
+        if (!this.pendingSnapshots.isEmpty()) {
+            this.savedIds = this.directorySnapshotService.saveDirectorySnapshots(this.pendingSnapshots);
+            this.pendingSnapshots.clear();
+        }
+    }
+
+    /**
+     * Adds a type and a length-prefixed value to the digest, so that different entries can't produce the same input.
+     */
+    private void updateDigest(MessageDigest digest, byte type, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(1 + Integer.BYTES).put(type).putInt(bytes.length).flip());
+        digest.update(bytes);
+    }
+}
@@ -1,7 +1,9 @@
 package at.lucny.p2pbackup.backup.service;
 
+import at.lucny.p2pbackup.application.config.BackupProperties;
+import at.lucny.p2pbackup.application.config.ChunkerType;
 import at.lucny.p2pbackup.application.config.P2PBackupProperties;
-import at.lucny.p2pbackup.core.support.CryptoConstants;
+import at.lucny.p2pbackup.core.service.ByteBufferPoolService;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
@@ -16,17 +18,39 @@ public class FixedSizeChunkerServiceImpl implements ChunkerService {
 
     private final int blockSize;
 
-    public FixedSizeChunkerServiceImpl(P2PBackupProperties p2PBackupProperties) {
+    private final long mappedReadThreshold;
+
+    private final long mappedWindowSize;
+
+    private final BackupProperties backupProperties;
+
+    private final ByteBufferPoolService byteBufferPoolService;
+
+    public FixedSizeChunkerServiceImpl(P2PBackupProperties p2PBackupProperties, ByteBufferPoolService byteBufferPoolService) {
         long blockSize = p2PBackupProperties.getBlockSize().toBytes();
         if (blockSize < ONE_KILOBYTE * 100 || blockSize > ONE_KILOBYTE * ONE_KILOBYTE * 100) {
             throw new IllegalStateException("invalid property " + p2PBackupProperties.getBlockSize());
         }
         this.blockSize = (int) blockSize;
+        this.mappedReadThreshold = p2PBackupProperties.getChunkerProperties().getMappedReadThreshold().toBytes();
+        this.mappedWindowSize = p2PBackupProperties.getChunkerProperties().getMappedWindowSize().toBytes();
+        this.backupProperties = p2PBackupProperties.getBackupProperties();
+        this.byteBufferPoolService = byteBufferPoolService;
+    }
+
+    @Override
+    public ChunkerType getType() {
+        return ChunkerType.FIXED;
+    }
+
+    @Override
+    public int getDefaultBlockSize() {
+        return this.blockSize;
     }
 
     @Override
-    public ChunkIterator createIterator(Path filePath) {
-        return new ChunkIterator(filePath, this.blockSize, true, CryptoConstants.BLOCK_HASH_ALGORITHM);
+    public ChunkIterator createIterator(Path filePath, int blockSize) {
+        return new ChunkIterator(filePath, blockSize, this.byteBufferPoolService, this.mappedReadThreshold, this.mappedWindowSize, this.backupProperties.getHashAlgorithm());
     }
 
 }
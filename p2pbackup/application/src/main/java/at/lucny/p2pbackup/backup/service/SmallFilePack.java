@@ -0,0 +1,55 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.core.domain.FileStat;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the content of small files during a backup until they fill a pack-block of roughly {@code packSize} bytes.
+ * Files are added by the file-workers concurrently.
+ */
+class SmallFilePack {
+
+    record PackedFile(Path absolutePath, Path relativePath, FileStat fileStat, String hash, HashAlgorithm hashAlgorithm, LocalDateTime date, byte[] content, long fileNr) {
+    }
+
+    private final long packSize;
+
+    private final List<PackedFile> files = new ArrayList<>();
+
+    private long size;
+
+    SmallFilePack(long packSize) {
+        this.packSize = packSize;
+    }
+
+    /**
+     * Adds the file to the pack. If the pack is full the collected files are removed from the pack and returned.
+     *
+     * @param file the file to add
+     * @return the files of the full pack or an empty list if the pack is not full
+     */
+    synchronized List<PackedFile> add(PackedFile file) {
+        this.files.add(file);
+        this.size += file.content().length;
+        if (this.size >= this.packSize) {
+            return this.drain();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Removes all collected files from the pack and returns them.
+     */
+    synchronized List<PackedFile> drain() {
+        List<PackedFile> drainedFiles = new ArrayList<>(this.files);
+        this.files.clear();
+        this.size = 0;
+        return drainedFiles;
+    }
+}
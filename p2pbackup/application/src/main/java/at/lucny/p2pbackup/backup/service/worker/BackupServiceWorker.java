@@ -1,37 +1,64 @@
 package at.lucny.p2pbackup.backup.service.worker;
 
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.backup.domain.BackupRun;
+import at.lucny.p2pbackup.backup.domain.BackupRunFile;
 import at.lucny.p2pbackup.backup.dto.BackupIndex;
 import at.lucny.p2pbackup.backup.dto.BackupRootDirectory;
 import at.lucny.p2pbackup.backup.dto.Block;
 import at.lucny.p2pbackup.backup.dto.PathDataVersion;
+import at.lucny.p2pbackup.backup.repository.BackupRunFileRepository;
+import at.lucny.p2pbackup.backup.repository.BackupRunRepository;
+import at.lucny.p2pbackup.backup.service.BlockHashIndexService;
 import at.lucny.p2pbackup.backup.support.BackupConstants;
 import at.lucny.p2pbackup.core.domain.BlockMetaData;
+import at.lucny.p2pbackup.core.domain.CloudUpload;
+import at.lucny.p2pbackup.core.domain.FileStat;
 import at.lucny.p2pbackup.core.domain.PathData;
 import at.lucny.p2pbackup.core.domain.PathVersion;
 import at.lucny.p2pbackup.core.domain.RootDirectory;
 import at.lucny.p2pbackup.core.repository.BlockMetaDataRepository;
+import at.lucny.p2pbackup.core.repository.LatestPathVersion;
 import at.lucny.p2pbackup.core.repository.PathDataRepository;
+import at.lucny.p2pbackup.core.service.BlockCompressionService;
 import at.lucny.p2pbackup.core.service.BlockEncryptionService;
 import at.lucny.p2pbackup.localstorage.dto.LocalStorageEntry;
 import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
 import at.lucny.p2pbackup.upload.service.CloudUploadService;
 import at.lucny.p2pbackup.upload.service.DistributionService;
+import at.lucny.p2pbackup.verification.domain.VerificationValue;
 import at.lucny.p2pbackup.verification.service.VerificationValueService;
+import com.google.common.collect.Lists;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.validation.annotation.Validated;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 @Service
 @Validated
@@ -47,20 +74,197 @@ public class BackupServiceWorker {
 
     private final BlockEncryptionService blockEncryptionService;
 
+    private final BlockCompressionService blockCompressionService;
+
     private final VerificationValueService verificationValueService;
 
     private final DistributionService distributionService;
 
     private final CloudUploadService cloudUploadService;
 
-    public BackupServiceWorker(PathDataRepository pathDataRepository, BlockMetaDataRepository blockMetaDataRepository, LocalStorageService localStorageService, BlockEncryptionService blockEncryptionService, VerificationValueService verificationValueService, DistributionService distributionService, CloudUploadService cloudUploadService) {
+    private final BlockHashIndexService blockHashIndexService;
+
+    private final BackupRunRepository backupRunRepository;
+
+    private final BackupRunFileRepository backupRunFileRepository;
+
+    private final EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final P2PBackupProperties p2PBackupProperties;
+
+    private final AsyncTaskExecutor taskExecutor;
+
+    /**
+     * New blocks by their hash, whose block is already stored in the local storage, but whose metadata is not yet persisted.
+     */
+    private final Map<String, PendingBlock> pendingBlocks = new ConcurrentHashMap<>();
+
+    /**
+     * Held while pending blocks are persisted until the transaction is committed, so that versions are only persisted
+     * after all their blocks.
+     */
+    private final ReentrantLock pendingBlocksLock = new ReentrantLock();
+
+    private record PendingBlock(BlockMetaData blockMetaData, CloudUpload cloudUpload, List<VerificationValue> verificationValues) {
+    }
+
+    public BackupServiceWorker(PathDataRepository pathDataRepository, BlockMetaDataRepository blockMetaDataRepository, LocalStorageService localStorageService, BlockEncryptionService blockEncryptionService, BlockCompressionService blockCompressionService, VerificationValueService verificationValueService, DistributionService distributionService, CloudUploadService cloudUploadService, BlockHashIndexService blockHashIndexService, BackupRunRepository backupRunRepository, BackupRunFileRepository backupRunFileRepository, EntityManager entityManager, PlatformTransactionManager transactionManager, P2PBackupProperties p2PBackupProperties, AsyncTaskExecutor taskExecutor) {
         this.pathDataRepository = pathDataRepository;
         this.blockMetaDataRepository = blockMetaDataRepository;
         this.localStorageService = localStorageService;
         this.blockEncryptionService = blockEncryptionService;
+        this.blockCompressionService = blockCompressionService;
         this.verificationValueService = verificationValueService;
         this.distributionService = distributionService;
         this.cloudUploadService = cloudUploadService;
+        this.blockHashIndexService = blockHashIndexService;
+        this.backupRunRepository = backupRunRepository;
+        this.backupRunFileRepository = backupRunFileRepository;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.p2PBackupProperties = p2PBackupProperties;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Starts the removal of orphaned blocks in the background, because listing the whole local storage takes long.
+     */
+    @PostConstruct
+    public void startRemovalOfOrphanedBlocks() {
+        // blocks stored after the start can belong to a running backup whose metadata is not persisted yet.
+        // the timestamps of files are less precise than the clock, so recently stored blocks are kept as well
+        Instant storedBefore = Instant.now().minusSeconds(1);
+        this.taskExecutor.execute(() -> {
+            try {
+                this.removeOrphanedBlocks(storedBefore);
+            } catch (RuntimeException e) {
+                LOGGER.warn("unable to remove orphaned blocks from the local storage", e);
+            }
+        });
+    }
+
+    /**
+     * Removes blocks from the local storage that have no block-meta-data. These blocks were stored by a backup that
+     * was interrupted before their metadata was persisted.
+     *
+     * @param storedBefore only blocks stored before this instant are removed
+     */
+    public void removeOrphanedBlocks(Instant storedBefore) {
+        LOGGER.trace("begin removeOrphanedBlocks({})", storedBefore);
+        int nrOfRemovedBlocks = 0;
+        for (List<String> blockIds : Lists.partition(this.localStorageService.getBlockIds(), 1000)) {
+            Set<String> existingBlockIds = new HashSet<>(this.blockMetaDataRepository.findExistingIds(blockIds));
+            for (String blockId : blockIds) {
+                if (!existingBlockIds.contains(blockId) && this.isStoredBefore(blockId, storedBefore) && this.localStorageService.removeFromLocalStorage(blockId)) {
+                    nrOfRemovedBlocks++;
+                }
+            }
+        }
+        if (nrOfRemovedBlocks > 0) {
+            LOGGER.info("removed {} orphaned blocks from the local storage", nrOfRemovedBlocks);
+        }
+        LOGGER.trace("end removeOrphanedBlocks");
+    }
+
+    private boolean isStoredBefore(String blockId, Instant storedBefore) {
+        Optional<Path> blockPath = this.localStorageService.loadFromLocalStorage(blockId);
+        if (blockPath.isEmpty()) {
+            return false;
+        }
+        try {
+            return Files.getLastModifiedTime(blockPath.get()).toInstant().isBefore(storedBefore);
+        } catch (IOException e) {
+            LOGGER.debug("unable to read the modification time of block {}", blockId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Saves the blocks of a file that is not completely backed up yet for the checkpoint of the backup-run. The
+     * metadata of all pending blocks is persisted in the same transaction, so that the saved blocks exist.
+     *
+     * @param backupRunId  the id of the backup-run
+     * @param relativePath the path of the file relative to its root-directory
+     * @param blocks       the blocks from the beginning of the file
+     */
+    public void saveBackupRunFileProgress(String backupRunId, Path relativePath, List<BlockMetaData> blocks) {
+        LOGGER.trace("begin saveBackupRunFileProgress({}, {}, {} blocks)", backupRunId, relativePath, blocks.size());
+        this.persistPendingBlocks(() -> {
+            BackupRun backupRun = this.backupRunRepository.getReferenceById(backupRunId);
+            BackupRunFile file = this.backupRunFileRepository.findByBackupRunAndPath(backupRun, relativePath.toString())
+                    .orElseGet(() -> this.backupRunFileRepository.save(new BackupRunFile(backupRun, relativePath.toString())));
+            file.getBlocks().clear();
+            file.getBlocks().addAll(blocks);
+            return file;
+        });
+        LOGGER.trace("end saveBackupRunFileProgress");
+    }
+
+    /**
+     * Removes the progress of a file after it was completely backed up.
+     *
+     * @param backupRunId  the id of the backup-run
+     * @param relativePath the path of the file relative to its root-directory
+     */
+    @Transactional
+    public void removeBackupRunFileProgress(String backupRunId, Path relativePath) {
+        this.backupRunFileRepository.findByBackupRunAndPath(this.backupRunRepository.getReferenceById(backupRunId), relativePath.toString())
+                .ifPresent(this.backupRunFileRepository::delete);
+    }
+
+    /**
+     * Loads the latest version of all paths of the given root-directory with a single query.
+     *
+     * @param rootDirectory the root-directory
+     * @return the latest versions mapped by their path
+     */
+    @Transactional(readOnly = true)
+    public Map<String, LatestPathVersion> loadLatestPathVersions(RootDirectory rootDirectory) {
+        LOGGER.trace("begin loadLatestPathVersions({})", rootDirectory);
+        Map<String, LatestPathVersion> latestVersions = new HashMap<>();
+        try (Stream<LatestPathVersion> versions = this.pathDataRepository.streamLatestPathVersionsByRootDirectory(rootDirectory)) {
+            versions.forEach(version -> latestVersions.putIfAbsent(version.path(), version));
+        }
+        LOGGER.trace("end loadLatestPathVersions: return {} versions", latestVersions.size());
+        return latestVersions;
+    }
+
+    /**
+     * Loads the latest version of the given path and of all paths below it.
+     *
+     * @param rootDirectory the root-directory
+     * @param relativePath  the path relative to the root-directory
+     * @return the latest versions mapped by their path
+     */
+    @Transactional(readOnly = true)
+    public Map<String, LatestPathVersion> loadLatestPathVersions(RootDirectory rootDirectory, Path relativePath) {
+        LOGGER.trace("begin loadLatestPathVersions({}, {})", rootDirectory, relativePath);
+        if (relativePath.toString().isEmpty()) {
+            return this.loadLatestPathVersions(rootDirectory);
+        }
+
+        // the like-pattern could match more paths if the path contains wildcards, so the result is filtered again
+        Map<String, LatestPathVersion> latestVersions = new HashMap<>();
+        String pathPrefix = relativePath + relativePath.getFileSystem().getSeparator();
+        try (Stream<LatestPathVersion> versions = this.pathDataRepository.streamLatestPathVersionsByRootDirectoryAndPath(rootDirectory, relativePath.toString(), pathPrefix + "%")) {
+            versions.filter(version -> version.path().equals(relativePath.toString()) || version.path().startsWith(pathPrefix))
+                    .forEach(version -> latestVersions.putIfAbsent(version.path(), version));
+        }
+        LOGGER.trace("end loadLatestPathVersions: return {} versions", latestVersions.size());
+        return latestVersions;
+    }
+
+    /**
+     * Updates the file-stat of an unchanged file, so that the file doesn't need to be hashed in the next backup.
+     */
+    @Transactional
+    public void updateFileStat(RootDirectory rootDirectory, Path path, FileStat fileStat) {
+        LOGGER.trace("begin updateFileStat({}, {}, {})", rootDirectory, path, fileStat);
+        PathData pathData = this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, path.toString()).orElseThrow(() -> new IllegalStateException("PathData for path " + path + " not found"));
+        pathData.setFileStat(fileStat);
+        LOGGER.trace("end updateFileStat");
     }
 
     @Transactional
@@ -82,6 +286,7 @@ public class BackupServiceWorker {
         this.encryptAndProcess(bmd, ByteBuffer.wrap(pathDataVersionAsBytes), true, true);
 
         pathData.getVersions().add(version);
+        pathData.setFileStat(null);
         pathData = this.pathDataRepository.save(pathData);
         LOGGER.debug("persisted deletion for path-data {}", pathData);
 
@@ -89,51 +294,147 @@ public class BackupServiceWorker {
         return bmd;
     }
 
-    @Transactional
-    public BlockMetaData addPathChangedVersionRecord(RootDirectory rootDirectory, Path path, PathVersion version) {
-        LOGGER.trace("begin addPathChangedVersionRecord({}, {}, {}", rootDirectory, path, version);
+    /**
+     * Persists a new version of a changed file. The metadata of all pending blocks is persisted in the same transaction.
+     */
+    public BlockMetaData addPathChangedVersionRecord(RootDirectory rootDirectory, Path path, PathVersion version, FileStat fileStat) {
+        return this.persistPendingBlocks(() -> this.createPathChangedVersionRecord(rootDirectory, path, version, fileStat));
+    }
+
+    /**
+     * Persists the metadata of all pending blocks.
+     */
+    public void flushPendingBlocks() {
+        this.persistPendingBlocks(() -> null);
+    }
+
+    private <T> T persistPendingBlocks(Supplier<T> action) {
+        this.pendingBlocksLock.lock();
+        List<PendingBlock> blocks = new ArrayList<>(this.pendingBlocks.values());
+        try {
+            T result = this.transactionTemplate.execute(status -> {
+                LOGGER.debug("persisting {} pending blocks", blocks.size());
+                for (PendingBlock block : blocks) {
+                    this.entityManager.persist(block.blockMetaData());
+                    this.entityManager.persist(block.cloudUpload());
+                    block.verificationValues().forEach(this.entityManager::persist);
+                }
+                return action.get();
+            });
+            // if the transaction failed the blocks stay pending, because other versions may reference them. they are
+            // persisted again with the next version or flush and the failure is passed on to fail the file
+            blocks.forEach(block -> this.pendingBlocks.remove(block.blockMetaData().getHash(), block));
+            return result;
+        } finally {
+            this.pendingBlocksLock.unlock();
+        }
+    }
+
+    private BlockMetaData createPathChangedVersionRecord(RootDirectory rootDirectory, Path path, PathVersion version, FileStat fileStat) {
+        LOGGER.trace("begin addPathChangedVersionRecord({}, {}, {}, {})", rootDirectory, path, version, fileStat);
         Optional<PathData> optionalPathData = this.pathDataRepository.findByRootDirectoryAndPath(rootDirectory, path.toString());
 
         // create new PathData if it doesnt exist in the database (it's a new file)
         PathData pathData = optionalPathData.orElse(new PathData(rootDirectory, path));
 
-        byte[] pathDataVersionAsBytes = PathDataVersion.newBuilder()
+        PathDataVersion.Builder pathDataVersionBuilder = PathDataVersion.newBuilder()
                 .setRootDirectoryId(pathData.getRootDirectory().getId())
                 .setPath(pathData.getPath())
                 .setDate(version.getDate().toInstant(ZoneOffset.UTC).toEpochMilli())
                 .setHash(version.getHash())
-                .addAllBlockIds(version.getBlocks().stream().map(BlockMetaData::getId).toList()).build().toByteArray();
+                .addAllBlockIds(version.getBlocks().stream().map(BlockMetaData::getId).toList())
+                .putAllZeroBlocks(version.getZeroBlocks());
+        if (version.getChunker() != null) {
+            pathDataVersionBuilder.setChunker(version.getChunker().name());
+        }
+        if (version.getHashAlgorithm() != null) {
+            pathDataVersionBuilder.setHashAlgorithm(version.getHashAlgorithm().name());
+        }
+        if (version.getBlockSize() != null) {
+            pathDataVersionBuilder.setBlockSize(version.getBlockSize());
+        }
+        if (version.getPackLength() != null) {
+            pathDataVersionBuilder.setPackOffset(version.getPackOffset()).setPackLength(version.getPackLength());
+        }
+        byte[] pathDataVersionAsBytes = pathDataVersionBuilder.build().toByteArray();
         BlockMetaData bmd = this.blockMetaDataRepository.save(new BlockMetaData());
         version.setVersionBlock(bmd);
 
         this.encryptAndProcess(bmd, ByteBuffer.wrap(pathDataVersionAsBytes), true, true);
 
         pathData.getVersions().add(version);
+        pathData.setFileStat(fileStat);
         pathData = this.pathDataRepository.save(pathData);
         LOGGER.trace("persisted path-data {}", pathData);
         LOGGER.trace("end addPathChangedVersionRecord: return {}", bmd);
         return bmd;
     }
 
-    @Transactional
+    /**
+     * Creates or loads the {@link BlockMetaData} for the given block and encrypts and stores the block if necessary.
+     * Not transactional, so that the encryption of the block doesn't hold any locks in the database.
+     * Blocks with the same hash must not be processed concurrently.
+     */
     public BlockMetaData createBlockMetaData(Block block) {
         LOGGER.trace("begin createBlockMetaData({})", block);
 
+        // the common case of a known block with enough replicas and verification-values doesn't need the database
+        Optional<String> indexedBlockId = this.blockHashIndexService.findCompletelyProcessedBlock(block.hash());
+        if (indexedBlockId.isPresent()) {
+            BlockMetaData bmd = this.blockMetaDataRepository.getReferenceById(indexedBlockId.get());
+            LOGGER.trace("end createBlockMetaData: return indexed {}", bmd.getId());
+            return bmd;
+        }
+
+        PendingBlock pendingBlock = this.pendingBlocks.get(block.hash());
+        if (pendingBlock != null) {
+            LOGGER.trace("end createBlockMetaData: return pending {}", pendingBlock.blockMetaData().getId());
+            return pendingBlock.blockMetaData();
+        }
+
         Optional<BlockMetaData> optionalBlockMetaData = this.blockMetaDataRepository.findByHashFetchLocations(block.hash());
-        // if the block doesn't exist in the db generate a new BlockMetaData
-        BlockMetaData bmd = optionalBlockMetaData.orElseGet(() -> this.blockMetaDataRepository.save(new BlockMetaData(block.hash())));
+        if (optionalBlockMetaData.isEmpty()) {
+            // the metadata of a new block is persisted later together with the metadata of other blocks
+            BlockMetaData bmd = this.createPendingBlock(block);
+            LOGGER.trace("end createBlockMetaData: return new {}", bmd);
+            return bmd;
+        }
 
-        boolean saveInLocalBackup = optionalBlockMetaData.map(b -> this.distributionService.hasNotEnoughVerifiedReplicas(b.getId())).orElse(true);
+        BlockMetaData bmd = optionalBlockMetaData.get();
+        boolean saveInLocalBackup = this.distributionService.hasNotEnoughVerifiedReplicas(bmd.getId());
         boolean needsMoreVerificationValues = this.verificationValueService.needsGenerationOfVerificationValues(bmd.getId());
 
         if (saveInLocalBackup || needsMoreVerificationValues) {
             this.encryptAndProcess(bmd, block.content(), saveInLocalBackup, needsMoreVerificationValues);
         }
+        if (!saveInLocalBackup) {
+            // the entry expires as soon as the block no longer has enough verified replicas, a block that is waiting for
+            // its upload is checked again after the validity of the index
+            Instant validUntil = this.distributionService.calculateEnoughVerifiedReplicasUntil(bmd).map(date -> date.toInstant(ZoneOffset.UTC)).orElse(Instant.MAX);
+            this.blockHashIndexService.put(block.hash(), bmd.getId(), validUntil);
+        }
 
         LOGGER.trace("end createBlockMetaData: return {}", bmd);
         return bmd;
     }
 
+    private BlockMetaData createPendingBlock(Block block) {
+        BlockMetaData bmd = new BlockMetaData(block.hash(), block.hashAlgorithm());
+        List<PendingBlock> result = new ArrayList<>(1);
+        this.blockCompressionService.compress(block.content().duplicate(), compressedDataBuffer ->
+                this.blockEncryptionService.encrypt(compressedDataBuffer, bmd.getId().getBytes(StandardCharsets.UTF_8), encryptedDataBuffer -> {
+                    LocalStorageEntry localStorageEntry = this.localStorageService.saveInLocalStorage(bmd.getId(), encryptedDataBuffer.duplicate());
+                    CloudUpload cloudUpload = new CloudUpload(bmd, localStorageEntry.macSecret(), localStorageEntry.mac());
+                    result.add(new PendingBlock(bmd, cloudUpload, this.verificationValueService.createVerificationValues(bmd, encryptedDataBuffer.duplicate())));
+                }));
+        this.pendingBlocks.put(block.hash(), result.get(0));
+
+        if (this.pendingBlocks.size() >= this.p2PBackupProperties.getBackupProperties().getMetadataBatchSize()) {
+            this.flushPendingBlocks();
+        }
+        return bmd;
+    }
+
     @Transactional
     public BlockMetaData addBackupIndexBlock(List<RootDirectory> directories, Set<String> versionBlockIds) {
         long now = Instant.now().toEpochMilli();
@@ -155,14 +456,16 @@ public class BackupServiceWorker {
     private void encryptAndProcess(BlockMetaData bmd, ByteBuffer block, boolean saveInLocalBackup, boolean generateVerificationValues) {
         LOGGER.debug("persisting local-backup-block for {}", bmd.getId());
 
-        this.blockEncryptionService.encrypt(block.duplicate(), bmd.getId().getBytes(StandardCharsets.UTF_8), encryptedDataBuffer -> {
-            if (saveInLocalBackup) {
-                LocalStorageEntry localStorageEntry = this.localStorageService.saveInLocalStorage(bmd.getId(), encryptedDataBuffer.duplicate());
-                this.cloudUploadService.saveCloudUpload(bmd, localStorageEntry.macSecret(), localStorageEntry.mac());
-            }
-            if (generateVerificationValues) {
-                this.verificationValueService.ensureVerificationValues(bmd.getId(), encryptedDataBuffer.duplicate());
-            }
-        });
+        // the block is compressed before the encryption, because encrypted data is not compressible
+        this.blockCompressionService.compress(block.duplicate(), compressedDataBuffer ->
+                this.blockEncryptionService.encrypt(compressedDataBuffer, bmd.getId().getBytes(StandardCharsets.UTF_8), encryptedDataBuffer -> {
+                    if (saveInLocalBackup) {
+                        LocalStorageEntry localStorageEntry = this.localStorageService.saveInLocalStorage(bmd.getId(), encryptedDataBuffer.duplicate());
+                        this.cloudUploadService.saveCloudUpload(bmd, localStorageEntry.macSecret(), localStorageEntry.mac());
+                    }
+                    if (generateVerificationValues) {
+                        this.verificationValueService.ensureVerificationValues(bmd.getId(), encryptedDataBuffer.duplicate());
+                    }
+                }));
     }
 }
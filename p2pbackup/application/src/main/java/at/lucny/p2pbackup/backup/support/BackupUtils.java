@@ -1,5 +1,6 @@
 package at.lucny.p2pbackup.backup.support;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Random;
 
@@ -9,4 +10,26 @@ public final class BackupUtils {
     }
 
     public static final Random RANDOM = new SecureRandom();
+
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(64 * 1024).asReadOnlyBuffer();
+
+    /**
+     * Checks if the remaining content of the buffer consists only of zeros. The content is compared against a buffer of
+     * zeros with {@link ByteBuffer#mismatch(ByteBuffer)}, which compares many bytes at once.
+     *
+     * @param content the content of a block, its position is not changed
+     * @return true if the content is not empty and all bytes are zero
+     */
+    public static boolean isZeroBlock(ByteBuffer content) {
+        if (!content.hasRemaining()) {
+            return false;
+        }
+        for (int position = content.position(); position < content.limit(); position += ZEROS.capacity()) {
+            int length = Math.min(content.limit() - position, ZEROS.capacity());
+            if (content.slice(position, length).mismatch(ZEROS.slice(0, length)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
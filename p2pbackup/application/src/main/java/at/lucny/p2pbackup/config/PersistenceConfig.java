@@ -28,11 +28,13 @@ public class PersistenceConfig {
     public DataSource dataSource(@Value("${spring.datasource.url}") String databaseUrl, P2PBackupProperties p2PBackupProperties, CryptoService cryptoService) throws IOException {
         MACCheckingDataSource macCheckingDataSource = new MACCheckingDataSource(p2PBackupProperties, cryptoService);
 
-        String dbUrl = databaseUrl;
+        // backups process files and blocks in parallel. with the default table-locks concurrent transactions that read and
+        // then write the same table deadlock each other, so multi-version concurrency control is used instead
+        String dbUrl = databaseUrl + ";hsqldb.tx=mvcc";
         if (Boolean.TRUE.equals(p2PBackupProperties.getDatabase().getEncrypt())) {
             String hexPassword = HexFormat.of().formatHex(cryptoService.getSecretKeyGenerator().generate(SALT_KDF_DATABASE_KEY).getEncoded());
             String hexIv = HexFormat.of().formatHex(cryptoService.getSecretKeyGenerator().generate(SALT_KDF_DATABASE_IV, 128).getEncoded());
-            dbUrl = databaseUrl + ";crypt_key=" + hexPassword + ";crypt_iv=" + hexIv + ";crypt_type=AES/CBC/PKCS5Padding";
+            dbUrl = dbUrl + ";crypt_key=" + hexPassword + ";crypt_iv=" + hexIv + ";crypt_type=AES/CBC/PKCS5Padding";
         } else {
             String yesNo = new UserInputHelper().read("The database will not be stored encrypted, this is a security risk. Continue (Y/N)?:");
             if (!"Y".equalsIgnoreCase(yesNo)) {
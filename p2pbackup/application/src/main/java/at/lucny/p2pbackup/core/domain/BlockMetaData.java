@@ -1,5 +1,6 @@
 package at.lucny.p2pbackup.core.domain;
 
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
 import lombok.*;
 
 import jakarta.persistence.*;
@@ -18,6 +19,13 @@ public class BlockMetaData extends AbstractEntityAudited {
     @Column(name = "HASH", length = 64, unique = true)
     private String hash;
 
+    /**
+     * the algorithm the hash was generated with. null for blocks without hash.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "HASH_ALGORITHM", length = 32)
+    private HashAlgorithm hashAlgorithm;
+
     @OneToMany(cascade = CascadeType.ALL, orphanRemoval = true, mappedBy = "blockMetaData")
     @ToString.Exclude
     private Set<DataLocation> locations = new HashSet<>();
@@ -27,10 +35,20 @@ public class BlockMetaData extends AbstractEntityAudited {
         this.hash = hash;
     }
 
+    public BlockMetaData(String id, String hash, HashAlgorithm hashAlgorithm) {
+        this(id, hash);
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
     public BlockMetaData(String hash) {
         this.hash = hash;
     }
 
+    public BlockMetaData(String hash, HashAlgorithm hashAlgorithm) {
+        this.hash = hash;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
     public void addDataLocation(DataLocation location) {
         this.locations.add(location);
         location.setBlockMetaData(this);
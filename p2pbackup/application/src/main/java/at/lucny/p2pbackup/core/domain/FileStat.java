@@ -0,0 +1,39 @@
+package at.lucny.p2pbackup.core.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.*;
+
+/**
+ * The file-system metadata of a file at the time its content was last hashed. If the metadata of a file is unchanged
+ * the content is assumed to be unchanged too and the file is not read again.
+ */
+@Embeddable
+@Getter
+@ToString
+@EqualsAndHashCode
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@AllArgsConstructor
+public class FileStat {
+
+    @Column(name = "FILE_SIZE")
+    private Long size;
+
+    /**
+     * the modification-time in nanoseconds since the epoch.
+     */
+    @Column(name = "FILE_LAST_MODIFIED")
+    private Long lastModified;
+
+    /**
+     * the change-time of the inode in nanoseconds since the epoch. null if the file-system does not provide it.
+     */
+    @Column(name = "FILE_CHANGE_TIME")
+    private Long changeTime;
+
+    /**
+     * the key that identifies the file on the file-system (e.g. device and inode). null if the file-system does not provide it.
+     */
+    @Column(name = "FILE_KEY", length = 256)
+    private String fileKey;
+}
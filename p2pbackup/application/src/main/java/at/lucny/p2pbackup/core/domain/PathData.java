@@ -30,6 +30,12 @@ public class PathData extends AbstractEntityAudited {
     @ToString.Exclude
     private Set<PathVersion> versions = new HashSet<>();
 
+    /**
+     * the file-system metadata of the file when the latest version was checked. null if unknown or the file is deleted.
+     */
+    @Embedded
+    private FileStat fileStat;
+
     public PathData(RootDirectory rootDirectory, String path) {
         this(rootDirectory, Paths.get(path));
     }
@@ -40,6 +46,6 @@ public class PathData extends AbstractEntityAudited {
     }
 
     public PathData(RootDirectory rootDirectory, Path path, Set<PathVersion> versions) {
-        this(rootDirectory, path.toString(), versions);
+        this(rootDirectory, path.toString(), versions, null);
     }
 }
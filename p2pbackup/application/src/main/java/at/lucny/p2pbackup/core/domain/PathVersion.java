@@ -1,11 +1,15 @@
 package at.lucny.p2pbackup.core.domain;
 
+import at.lucny.p2pbackup.application.config.ChunkerType;
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
 import lombok.*;
 
 import jakarta.persistence.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Entity
 @Table(name = "PATH_VERSION")
@@ -22,9 +26,42 @@ public class PathVersion extends AbstractEntity {
     @Column(name = "HASH", length = 64)
     private String hash;
 
+    /**
+     * the algorithm the hash of the file was generated with. null for deleted versions.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "HASH_ALGORITHM", length = 32)
+    private HashAlgorithm hashAlgorithm;
+
     @Column(name = "DELETED", nullable = false)
     private Boolean deleted = Boolean.FALSE;
 
+    /**
+     * the algorithm that was used to cut the file into blocks. null for versions created before the chunker was recorded (fixed-size blocks) and for packed files.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "CHUNKER", length = 32)
+    private ChunkerType chunker;
+
+    /**
+     * the block-size the file was cut into blocks with, for content-defined chunking the average size. null for versions
+     * created before the block-size was recorded (the configured block-size) and for packed files.
+     */
+    @Column(name = "BLOCK_SIZE")
+    private Integer blockSize;
+
+    /**
+     * the offset of the file within its only block, if the file was packed together with other small files. null if the file is not packed.
+     */
+    @Column(name = "PACK_OFFSET")
+    private Long packOffset;
+
+    /**
+     * the length of the file within its only block, if the file was packed together with other small files. null if the file is not packed.
+     */
+    @Column(name = "PACK_LENGTH")
+    private Long packLength;
+
     @ManyToMany
     @JoinTable(name = "PATH_VERSION_BLOCK_META_DATA",
             joinColumns =
@@ -36,6 +73,17 @@ public class PathVersion extends AbstractEntity {
     @ToString.Exclude
     private List<BlockMetaData> blocks = new ArrayList<>();
 
+    /**
+     * blocks that consist only of zeros have no block-meta-data. their length is mapped by their position within all
+     * blocks of the file, the blocks in between are the data-blocks in their order. zero-blocks are restored as holes.
+     */
+    @ElementCollection
+    @CollectionTable(name = "PATH_VERSION_ZERO_BLOCK", joinColumns = @JoinColumn(name = "PATH_VERSION_ID", nullable = false))
+    @MapKeyColumn(name = "POSITION")
+    @Column(name = "LENGTH", nullable = false)
+    @ToString.Exclude
+    private Map<Integer, Long> zeroBlocks = new HashMap<>();
+
     @OneToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "BLOCK_META_DATA_ID", nullable = false)
     @ToString.Exclude
@@ -46,8 +94,14 @@ public class PathVersion extends AbstractEntity {
         this.deleted = deleted;
     }
 
-    public PathVersion(LocalDateTime date, String hash) {
+    public PathVersion(LocalDateTime date, String hash, HashAlgorithm hashAlgorithm) {
         this.date = date;
         this.hash = hash;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public PathVersion(LocalDateTime date, String hash, HashAlgorithm hashAlgorithm, ChunkerType chunker) {
+        this(date, hash, hashAlgorithm);
+        this.chunker = chunker;
     }
 }
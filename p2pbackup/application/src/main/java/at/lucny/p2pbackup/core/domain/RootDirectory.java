@@ -22,6 +22,12 @@ public class RootDirectory extends AbstractEntityAudited {
     @Column(name = "PATH", nullable = false, length = 1024)
     private String path;
 
+    /**
+     * the number of backups started for this root-directory.
+     */
+    @Column(name = "NR_OF_BACKUPS", nullable = false)
+    private Integer nrOfBackups = 0;
+
     public RootDirectory(String id, String name, Path path) {
         super(id);
         this.name = name;
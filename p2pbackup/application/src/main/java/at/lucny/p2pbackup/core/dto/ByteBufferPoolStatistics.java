@@ -0,0 +1,11 @@
+package at.lucny.p2pbackup.core.dto;
+
+/**
+ * @param hits             the number of borrowed buffers that were taken from the pool
+ * @param misses           the number of borrowed buffers that had to be allocated
+ * @param heapFallbacks    the number of misses that were served with a heap-buffer, because the direct memory was exhausted
+ * @param outstandingBytes the bytes of all currently borrowed buffers
+ * @param directBytes      the bytes of all direct buffers of the pool, borrowed or idle
+ */
+public record ByteBufferPoolStatistics(long hits, long misses, long heapFallbacks, long outstandingBytes, long directBytes) {
+}
@@ -0,0 +1,4 @@
+package at.lucny.p2pbackup.core.repository;
+
+public record BlockMetaDataIdAndHash(String id, String hash) {
+}
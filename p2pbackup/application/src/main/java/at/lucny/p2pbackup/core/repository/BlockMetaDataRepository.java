@@ -9,6 +9,7 @@ import org.springframework.data.repository.query.Param;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface BlockMetaDataRepository extends JpaRepository<BlockMetaData, String> {
 
@@ -24,6 +25,9 @@ public interface BlockMetaDataRepository extends JpaRepository<BlockMetaData, St
             "WHERE bmd.id IN (:ids)")
     List<BlockMetaData> findByIdsFetchLocations(@Param("ids") List<String> ids);
 
+    @Query("SELECT bmd.id FROM BlockMetaData bmd WHERE bmd.id IN (:ids)")
+    List<String> findExistingIds(@Param("ids") List<String> ids);
+
     @Query("SELECT distinct bmd FROM BlockMetaData bmd LEFT JOIN FETCH bmd.locations")
     List<BlockMetaData> findAllFetchLocations();
 
@@ -51,6 +55,30 @@ public interface BlockMetaDataRepository extends JpaRepository<BlockMetaData, St
             ") AND bmd.id = :bmdId ")
     boolean hasNotEnoughVerifiedReplicas(@Param("bmdId") String bmdId, @Param("nrOfReplicas") long nrOfReplicas, @Param("verificationInvalidDate") LocalDateTime verificationInvalidDate);
 
+    /**
+     * Streams the ids and hashes of all data-blocks that don't need to be stored again, because they have enough verified
+     * replicas or are waiting for their upload, and have more than the given number of verification-values.
+     *
+     * @param nrOfReplicas            the number of needed replicas
+     * @param verificationInvalidDate replicas verified before this date don't count
+     * @param nrOfVerificationValues  the number of verification-values that must be exceeded
+     * @return a stream of the ids and hashes, must be consumed within a transaction
+     */
+    @Query("SELECT new at.lucny.p2pbackup.core.repository.BlockMetaDataIdAndHash(bmd.id, bmd.hash) " +
+            "FROM BlockMetaData bmd " +
+            "WHERE bmd.hash IS NOT NULL AND (( " +
+            "  SELECT count(location) FROM bmd.locations location " +
+            "  WHERE location.verified > :verificationInvalidDate " +
+            ") >= :nrOfReplicas OR " +
+            "EXISTS ( " +
+            "  SElECT cu FROM CloudUpload cu " +
+            "  WHERE cu.blockMetaData = bmd " +
+            ")) AND ( " +
+            "  SELECT count(vv) FROM VerificationValue vv " +
+            "  WHERE vv.blockMetaData = bmd " +
+            ") > :nrOfVerificationValues ")
+    Stream<BlockMetaDataIdAndHash> streamCompletelyProcessedBlocks(@Param("nrOfReplicas") long nrOfReplicas, @Param("verificationInvalidDate") LocalDateTime verificationInvalidDate, @Param("nrOfVerificationValues") long nrOfVerificationValues);
+
     List<BlockMetaData> findAllByIdLike(String bmdId, Pageable pageRequest);
 
     @Query("SELECT COUNT(bmd) FROM BlockMetaData bmd " +
@@ -11,6 +11,7 @@ import org.springframework.data.repository.query.Param;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface DataLocationRepository extends JpaRepository<DataLocation, String> {
 
@@ -23,12 +24,21 @@ public interface DataLocationRepository extends JpaRepository<DataLocation, Stri
             "AND location.userId in (:userIds)")
     Page<String> findDataLocationIdsToVerify(@Param("verifyOlderThan") LocalDateTime verifyOlderThan, @Param("userIds") List<String> userIds, Pageable pageRequest);
 
-    Page<DataLocation> findByIdIn(List<String> ids, Pageable pageRequest);
+    @Query(value = "SELECT location FROM DataLocation location " +
+            "JOIN FETCH location.blockMetaData " +
+            "WHERE location.id IN (:ids)",
+            countQuery = "SELECT count(location) FROM DataLocation location " +
+                    "WHERE location.id IN (:ids)")
+    Page<DataLocation> findByIdIn(@Param("ids") List<String> ids, Pageable pageRequest);
 
     @Query("SELECT location FROM DataLocation location " +
             "WHERE location.blockMetaData.id = :bmdId")
     List<DataLocation> findByBlockMetaDataId(@Param("bmdId") String bmdId);
 
+    @Query("SELECT location.blockMetaData.hash FROM DataLocation location " +
+            "WHERE location.userId = :userId AND location.blockMetaData.hash IS NOT NULL")
+    Stream<String> streamBlockHashesByUserId(@Param("userId") String userId);
+
     @Modifying
     @Query("UPDATE DataLocation location " +
             "SET location.verified = :verifiedDate " +
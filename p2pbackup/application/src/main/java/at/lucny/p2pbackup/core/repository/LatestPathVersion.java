@@ -0,0 +1,18 @@
+package at.lucny.p2pbackup.core.repository;
+
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.core.domain.FileStat;
+
+/**
+ * The latest version of a {@link at.lucny.p2pbackup.core.domain.PathData}.
+ *
+ * @param pathDataId    the id of the path-data
+ * @param path          the path relative to the root-directory
+ * @param hash          the hash of the latest version, null if the path was deleted
+ * @param hashAlgorithm the algorithm the hash was generated with, null if the path was deleted
+ * @param deleted       true if the latest version marks the path as deleted
+ * @param fileStat      the file-stat recorded for the latest version
+ * @param blockSize     the block-size the latest version was chunked with, null if not recorded
+ */
+public record LatestPathVersion(String pathDataId, String path, String hash, HashAlgorithm hashAlgorithm, Boolean deleted, FileStat fileStat, Integer blockSize) {
+}
@@ -1,4 +0,0 @@
-package at.lucny.p2pbackup.core.repository;
-
-public record PathDataIdAndPath(String id, String path) {
-}
@@ -2,38 +2,77 @@ package at.lucny.p2pbackup.core.repository;
 
 import at.lucny.p2pbackup.core.domain.PathData;
 import at.lucny.p2pbackup.core.domain.RootDirectory;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.AvailableHints;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Stream;
 
 public interface PathDataRepository extends JpaRepository<PathData, String> {
 
     /**
-     * Finds the {@link PathData} with for the given rootDirectory and path, gets te latest {@link at.lucny.p2pbackup.core.domain.PathVersion}
-     * of this {@link PathData} and compares the version's hash with the given one. Returns true if the hash is the same, otherwise false.
-     * <p>
-     * Returns false if no {@link PathData} exists for the given parameters.
+     * Streams the latest {@link at.lucny.p2pbackup.core.domain.PathVersion} of every {@link PathData} of the given rootDirectory
+     * with a single query, so that a backup doesn't need to query the latest version of every file.
+     *
+     * @param rootDirectory
+     * @return a stream of the latest versions, must be consumed within a transaction
+     */
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("SELECT new at.lucny.p2pbackup.core.repository.LatestPathVersion(p.id, p.path, v.hash, v.hashAlgorithm, v.deleted, p.fileStat, v.blockSize) " +
+            "FROM PathData p " +
+            "INNER JOIN p.versions v " +
+            "WHERE p.rootDirectory = :rootDirectory " +
+            "AND v.date = ( " +
+            "   SELECT MAX(v2.date) " +
+            "   FROM PathData p2 INNER JOIN p2.versions v2 where p2.id = p.id " +
+            ") ")
+    Stream<LatestPathVersion> streamLatestPathVersionsByRootDirectory(@Param("rootDirectory") RootDirectory rootDirectory);
+
+    /**
+     * Streams the latest {@link at.lucny.p2pbackup.core.domain.PathVersion} of the {@link PathData} with the given path
+     * and of all {@link PathData} whose path starts with the given prefix.
      *
      * @param rootDirectory
      * @param path
-     * @param hash
-     * @return true if the latest version of the pathdata has the same hash, otherwise false
+     * @param pathPrefix    a like-pattern for the paths below the given path
+     * @return a stream of the latest versions, must be consumed within a transaction
      */
-    @Query("SELECT CASE WHEN COUNT(p)> 0 THEN true ELSE false END " +
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("SELECT new at.lucny.p2pbackup.core.repository.LatestPathVersion(p.id, p.path, v.hash, v.hashAlgorithm, v.deleted, p.fileStat, v.blockSize) " +
             "FROM PathData p " +
             "INNER JOIN p.versions v " +
             "WHERE p.rootDirectory = :rootDirectory " +
-            "AND p.path = :path AND v.hash = :hash " +
+            "AND (p.path = :path OR p.path LIKE :pathPrefix) " +
             "AND v.date = ( " +
             "   SELECT MAX(v2.date) " +
             "   FROM PathData p2 INNER JOIN p2.versions v2 where p2.id = p.id " +
             ") ")
-    boolean isLatestPathDataVersionHashSame(@Param("rootDirectory") RootDirectory rootDirectory, @Param("path") String path, @Param("hash") String hash);
+    Stream<LatestPathVersion> streamLatestPathVersionsByRootDirectoryAndPath(@Param("rootDirectory") RootDirectory rootDirectory, @Param("path") String path, @Param("pathPrefix") String pathPrefix);
+
+    /**
+     * Finds the versions of the paths matching the given prefix, that were created within the given period.
+     *
+     * @param rootDirectory
+     * @param pathPrefix    a like-pattern for the paths
+     * @param from          the exclusive begin of the period
+     * @param to            the inclusive end of the period
+     * @return the versions together with the date of the first version of their path
+     */
+    @Query("SELECT new at.lucny.p2pbackup.core.repository.PathVersionChange(p.path, v.date, v.deleted, " +
+            "   (SELECT MIN(v2.date) FROM PathData p2 INNER JOIN p2.versions v2 WHERE p2.id = p.id)) " +
+            "FROM PathData p " +
+            "INNER JOIN p.versions v " +
+            "WHERE p.rootDirectory = :rootDirectory " +
+            "AND p.path LIKE :pathPrefix " +
+            "AND v.date > :from AND v.date <= :to")
+    List<PathVersionChange> findVersionChanges(@Param("rootDirectory") RootDirectory rootDirectory, @Param("pathPrefix") String pathPrefix, @Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
 
     @Query("SELECT v.versionBlock.id " +
             "FROM PathData p " +
@@ -85,34 +124,4 @@ public interface PathDataRepository extends JpaRepository<PathData, String> {
             "JOIN FETCH p.rootDirectory " +
             "WHERE p.id = :id")
     Optional<PathData> findByIdFetchVersions(@Param("id") String id);
-
-    /**
-     * Finds all {@link PathData} for the given parameters that are not deleted.
-     *
-     * @param rootDirectory
-     * @return
-     */
-    /*
-    @Query("SELECT new at.lucny.p2pbackup.core.repository.PathDataIdAndPath(p.id, p.path) " +
-            "FROM PathData p " +
-            "INNER JOIN p.versions v " +
-            "WHERE p.rootDirectory = :rootDirectory " +
-            "AND v.deleted = false " +
-            "AND v.date = ( " +
-            "   SELECT MAX(v2.date) " +
-            "   FROM PathData p2 INNER JOIN p2.versions v2 where p2.id = p.id " +
-            ") ")
-*/
-    @Query("SELECT new at.lucny.p2pbackup.core.repository.PathDataIdAndPath(p.id, p.path) " +
-            "FROM PathData p " +
-            "WHERE p.rootDirectory = :rootDirectory " +
-            "AND EXISTS ( " +
-            "  SELECT v FROM p.versions v " +
-            "  WHERE v.deleted = false " +
-            "  AND v.date = ( " +
-            "   SELECT MAX(v2.date) " +
-            "   FROM PathData p2 INNER JOIN p2.versions v2 where p2.id = p.id " +
-            "  ) " +
-            ") ")
-    List<PathDataIdAndPath> findAllByRootDirectoryAndNotDeleted(RootDirectory rootDirectory);
 }
@@ -0,0 +1,9 @@
+package at.lucny.p2pbackup.core.repository;
+
+import java.time.LocalDateTime;
+
+/**
+ * A version of a path together with the date of the first version of the path.
+ */
+public record PathVersionChange(String path, LocalDateTime date, Boolean deleted, LocalDateTime firstVersionDate) {
+}
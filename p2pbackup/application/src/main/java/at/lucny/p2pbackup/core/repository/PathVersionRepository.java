@@ -9,6 +9,7 @@ public interface PathVersionRepository extends JpaRepository<PathVersion, String
 
     @Query("SELECT DISTINCT pv FROM PathVersion pv " +
             "LEFT JOIN FETCH pv.blocks " +
+            "LEFT JOIN FETCH pv.zeroBlocks " +
             "WHERE pv.id = :id ")
     PathVersion findByIdFetchBlockMetaData(@Param("id") String id);
 }
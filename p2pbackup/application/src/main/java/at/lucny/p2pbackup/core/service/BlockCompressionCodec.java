@@ -0,0 +1,37 @@
+package at.lucny.p2pbackup.core.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compression-codec for blocks. Codecs are spring-beans, so further codecs can be added by providing another bean.
+ * The id of the codec is stored within every compressed block and must therefore never change.
+ */
+public interface BlockCompressionCodec {
+
+    /**
+     * @return the id of the codec that is stored within the compressed block. 0 is reserved for uncompressed blocks.
+     */
+    byte getId();
+
+    /**
+     * @return the name of the codec that is used in the configuration
+     */
+    String getName();
+
+    /**
+     * Compresses the remaining data of the source-ByteBuffer onto the target-ByteBuffer.
+     *
+     * @param source the plain data
+     * @param target the compressed data
+     * @return false if the compressed data doesn't fit into the remaining space of the target-ByteBuffer
+     */
+    boolean compress(ByteBuffer source, ByteBuffer target);
+
+    /**
+     * Decompresses the remaining data of the source-ByteBuffer onto the target-ByteBuffer.
+     *
+     * @param source the compressed data
+     * @param target the plain data
+     */
+    void decompress(ByteBuffer source, ByteBuffer target);
+}
@@ -0,0 +1,32 @@
+package at.lucny.p2pbackup.core.service;
+
+import jakarta.validation.constraints.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+public interface BlockCompressionService {
+
+    /**
+     * Compresses the remaining data of the plainData-ByteBuffer with the configured codec and calls the consumer with
+     * the compressed data. The used codec is recorded in the compressed data. Data that doesn't look compressible or
+     * doesn't get smaller is stored uncompressed.
+     *
+     * @param plainData the plain data
+     * @param consumer  the compressed data
+     */
+    void compress(@NotNull ByteBuffer plainData, @NotNull Consumer<ByteBuffer> consumer);
+
+    /**
+     * Decompresses the remaining data of the compressedData-ByteBuffer with the codec recorded in the data and calls the
+     * consumer with the plain data. Whether the data has a compression-header is not guessed from the data, because
+     * plain data could start like a header. Blocks encrypted before the segmented format were written before compression
+     * was introduced and have no header, see {@link BlockEncryptionService#isSegmented(ByteBuffer)}.
+     *
+     * @param compressedData the compressed data
+     * @param hasHeader      true if the data starts with a compression-header, otherwise the data is passed to the consumer unchanged
+     * @param consumer       the plain data
+     * @throws IllegalStateException if the data should have a header but hasn't
+     */
+    void decompress(@NotNull ByteBuffer compressedData, boolean hasHeader, @NotNull Consumer<ByteBuffer> consumer);
+}
@@ -0,0 +1,178 @@
+package at.lucny.p2pbackup.core.service;
+
+import at.lucny.p2pbackup.application.config.BackupProperties;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import org.springframework.stereotype.Service;
+import org.springframework.validation.annotation.Validated;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compresses blocks before they are encrypted. Every block starts with a header consisting of a magic number, the id of
+ * the codec (0 for uncompressed data) and the length of the plain data. The magic number only guards against corrupt
+ * data, whether a block has a header is decided by the caller.
+ * <p>
+ * Before compressing, the entropy of a sample of the block is estimated. Already compressed or encrypted data (images,
+ * videos, archives) has an entropy close to 8 bits per byte and is stored uncompressed without trying to compress it.
+ */
+@Service
+@Validated
+public class BlockCompressionServiceImpl implements BlockCompressionService {
+
+    public static final String CODEC_NONE = "none";
+
+    private static final byte[] MAGIC = "P2PBCMP1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4;
+
+    private static final byte ID_NONE = 0;
+
+    private static final int MIN_COMPRESSIBLE_LENGTH = 128;
+
+    private static final int SAMPLE_RUN_LENGTH = 64;
+
+    private static final int MAX_SAMPLE_RUNS = 64;
+
+    private final ByteBufferPoolService byteBufferPoolService;
+
+    private final BackupProperties backupProperties;
+
+    private final BlockCompressionCodec codec;
+
+    private final Map<Byte, BlockCompressionCodec> codecsById = new HashMap<>();
+
+    public BlockCompressionServiceImpl(P2PBackupProperties p2PBackupProperties, ByteBufferPoolService byteBufferPoolService, List<BlockCompressionCodec> codecs) {
+        this.byteBufferPoolService = byteBufferPoolService;
+        this.backupProperties = p2PBackupProperties.getBackupProperties();
+
+        for (BlockCompressionCodec blockCompressionCodec : codecs) {
+            if (blockCompressionCodec.getId() == ID_NONE || this.codecsById.put(blockCompressionCodec.getId(), blockCompressionCodec) != null) {
+                throw new IllegalStateException("invalid id " + blockCompressionCodec.getId() + " of compression-codec " + blockCompressionCodec.getName());
+            }
+        }
+
+        String codecName = this.backupProperties.getCompression();
+        if (CODEC_NONE.equalsIgnoreCase(codecName)) {
+            this.codec = null;
+        } else {
+            this.codec = codecs.stream().filter(c -> c.getName().equalsIgnoreCase(codecName)).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("unknown compression-codec " + codecName));
+        }
+    }
+
+    @Override
+    public void compress(ByteBuffer plainData, Consumer<ByteBuffer> consumer) {
+        int length = plainData.remaining();
+        Integer key = this.byteBufferPoolService.calculateBufferSize(length + HEADER_LENGTH);
+        ByteBuffer compressedData = this.byteBufferPoolService.borrowObject(key);
+
+        try {
+            compressedData.put(MAGIC);
+            int codecPosition = compressedData.position();
+            compressedData.put(ID_NONE);
+            compressedData.putInt(length);
+
+            boolean compressed = false;
+            if (this.codec != null && this.isCompressible(plainData.duplicate())) {
+                // only keep the compressed data if it is smaller than the plain data
+                ByteBuffer target = compressedData.slice(compressedData.position(), length - 1);
+                if (this.codec.compress(plainData.duplicate(), target)) {
+                    compressedData.put(codecPosition, this.codec.getId());
+                    compressedData.position(compressedData.position() + target.position());
+                    compressed = true;
+                }
+            }
+            if (!compressed) {
+                compressedData.put(plainData.duplicate());
+            }
+            compressedData.flip();
+
+            consumer.accept(compressedData);
+        } finally {
+            this.byteBufferPoolService.returnObject(key, compressedData);
+        }
+    }
+
+    /**
+     * Estimates the shannon-entropy of the data by sampling runs of bytes that are evenly spread over the data.
+     */
+    private boolean isCompressible(ByteBuffer data) {
+        int length = data.remaining();
+        if (length < MIN_COMPRESSIBLE_LENGTH) {
+            return false;
+        }
+
+        int nrOfRuns = Math.max(1, Math.min(MAX_SAMPLE_RUNS, length / SAMPLE_RUN_LENGTH));
+        int distance = length / nrOfRuns;
+        int[] counts = new int[256];
+        int nrOfSamples = 0;
+        for (int run = 0; run < nrOfRuns; run++) {
+            int start = data.position() + run * distance;
+            int end = Math.min(start + SAMPLE_RUN_LENGTH, data.limit());
+            for (int i = start; i < end; i++) {
+                counts[data.get(i) & 0xFF]++;
+                nrOfSamples++;
+            }
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double probability = (double) count / nrOfSamples;
+                entropy -= probability * Math.log(probability) / Math.log(2);
+            }
+        }
+        return entropy <= this.backupProperties.getCompressionMaxEntropy();
+    }
+
+    @Override
+    public void decompress(ByteBuffer compressedData, boolean hasHeader, Consumer<ByteBuffer> consumer) {
+        ByteBuffer data = compressedData.duplicate();
+        if (!hasHeader) {
+            consumer.accept(data);
+            return;
+        }
+        if (!this.isHeaderValid(data)) {
+            throw new IllegalStateException("block has no valid compression-header");
+        }
+
+        data.position(data.position() + MAGIC.length);
+        byte codecId = data.get();
+        int length = data.getInt();
+        if (codecId == ID_NONE) {
+            consumer.accept(data.slice());
+            return;
+        }
+
+        BlockCompressionCodec blockCompressionCodec = this.codecsById.get(codecId);
+        if (blockCompressionCodec == null) {
+            throw new IllegalStateException("unknown compression-codec with id " + codecId);
+        }
+
+        Integer key = this.byteBufferPoolService.calculateBufferSize(length);
+        ByteBuffer plainData = this.byteBufferPoolService.borrowObject(key);
+        try {
+            plainData.limit(length);
+            blockCompressionCodec.decompress(data, plainData);
+            if (plainData.hasRemaining()) {
+                throw new IllegalStateException("decompressed block has " + plainData.position() + " bytes instead of " + length);
+            }
+            plainData.flip();
+            consumer.accept(plainData);
+        } finally {
+            this.byteBufferPoolService.returnObject(key, plainData);
+        }
+    }
+
+    private boolean isHeaderValid(ByteBuffer data) {
+        if (data.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        return data.slice(data.position(), MAGIC.length).equals(ByteBuffer.wrap(MAGIC));
+    }
+}
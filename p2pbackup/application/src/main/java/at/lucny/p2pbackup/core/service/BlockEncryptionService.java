@@ -1,5 +1,6 @@
 package at.lucny.p2pbackup.core.service;
 
+import at.lucny.p2pbackup.application.config.BlockCipher;
 import jakarta.validation.constraints.NotNull;
 import java.nio.ByteBuffer;
 import java.util.function.Consumer;
@@ -16,6 +17,17 @@ public interface BlockEncryptionService {
      */
     void encrypt(@NotNull ByteBuffer plainData, byte[] aead, @NotNull ByteBuffer encryptedData);
 
+    /**
+     * Encrypts the remaining data of the plainData-ByteBuffer with the given cipher onto the encryptedData-ByteBuffer.
+     * Flips the encryptedData-ByteBuffer afterwards.
+     *
+     * @param plainData     the plain data
+     * @param aead          additional information to be integrity-checked, can be null
+     * @param encryptedData the encrypted data
+     * @param blockCipher   the cipher
+     */
+    void encrypt(@NotNull ByteBuffer plainData, byte[] aead, @NotNull ByteBuffer encryptedData, @NotNull BlockCipher blockCipher);
+
     /**
      * Encrypts the remaining data of the plainData-ByteBuffer by using {@link BlockEncryptionService#encrypt(ByteBuffer, byte[], Consumer)}
      * and calls the consumer with the encrypted data.
@@ -46,6 +58,40 @@ public interface BlockEncryptionService {
      */
     void decrypt(@NotNull ByteBuffer encryptedData, @NotNull byte[] aead, @NotNull Consumer<ByteBuffer> consumer);
 
+    /**
+     * Decrypts the range of the plain data, that starts at the given offset, onto the plainData-ByteBuffer. Only the
+     * segments containing the range are decrypted and verified.
+     * Flips the plainData-ByteBuffer afterwards.
+     *
+     * @param encryptedData the encrypted data
+     * @param aead          additional information to be integrity-checked, can be null
+     * @param offset        the offset of the range within the plain data
+     * @param length        the length of the range
+     * @param plainData     the plain data of the range
+     */
+    void decrypt(@NotNull ByteBuffer encryptedData, byte[] aead, int offset, int length, @NotNull ByteBuffer plainData);
+
+    /**
+     * Verifies the integrity of the encrypted data segment by segment, without holding the whole plain data in memory.
+     *
+     * @param encryptedData the encrypted data
+     * @param aead          additional information to be integrity-checked
+     */
     void verify(@NotNull ByteBuffer encryptedData, @NotNull byte[] aead);
 
+    /**
+     * Returns true if the data is encrypted with the segmented format. Blocks encrypted before the segmented format were
+     * written before compression was introduced, so only blocks in the segmented format have a compression-header.
+     *
+     * @param encryptedData the encrypted data, its position is not changed
+     * @return true if the data is in the segmented format
+     */
+    boolean isSegmented(@NotNull ByteBuffer encryptedData);
+
+    /**
+     * @param plainSize the size of the plain data
+     * @return the size of the encrypted data
+     */
+    int getEncryptedSize(int plainSize);
+
 }
@@ -1,17 +1,45 @@
 package at.lucny.p2pbackup.core.service;
 
+import at.lucny.p2pbackup.application.config.BlockCipher;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.core.support.CryptoConstants;
 import at.lucny.p2pbackup.core.support.CryptoUtils;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 import java.util.function.Consumer;
 
+/**
+ * Encrypts blocks with a segmented streaming AEAD. The plain data is split into segments of
+ * {@link CryptoConstants#BLOCK_ENCRYPTION_SEGMENT_SIZE} bytes, that are encrypted with AES-GCM one after another, so
+ * encryption and decryption only need the memory of a segment besides the input and output, and a range of a block
+ * can be decrypted and verified without the other segments.
+ * <p>
+ * The encrypted data consists of a header followed by the segments, every segment is followed by its authentication-tag.
+ * The header contains a magic, the version of the format, the cipher, the segment-size, a random salt and a random
+ * nonce-prefix. New blocks are encrypted with the configured {@link BlockCipher}, blocks encrypted with another cipher
+ * are decrypted with the cipher of their header. The key of a block is derived from the block-encryption-key and the
+ * salt with HKDF. The nonce of a segment consists of the nonce-prefix, the number
+ * of the segment and a flag marking the final segment, so segments can't be reordered and a block can't be truncated.
+ * The header and the given aead, the id of the block, are the additional data of every segment.
+ * <p>
+ * Blocks of the first version of the format have no cipher in their header and are encrypted with AES-GCM. Blocks
+ * encrypted before the segmented format have no magic and are decrypted with a single AES-GCM operation.
+ */
 @Service
 @Validated
 public class BlockEncryptionServiceImpl implements BlockEncryptionService {
@@ -24,41 +52,113 @@ public class BlockEncryptionServiceImpl implements BlockEncryptionService {
 
     private static final String ENCRYPTION_ALGORITHM = "AES/GCM/NoPadding";
 
+    private static final String CHACHA20_POLY1305_ALGORITHM = "ChaCha20-Poly1305";
+
+    private static final byte[] SEGMENTED_MAGIC = new byte[]{'P', '2', 'B', 'S', 'E', 'G', 0};
+
+    /**
+     * the first version of the segmented format, that has no cipher in its header
+     */
+    private static final byte VERSION_AES_GCM = 1;
+
+    private static final byte VERSION_WITH_CIPHER = 2;
+
+    private static final int SALT_LENGTH = 32;
+
+    private static final int NONCE_PREFIX_LENGTH = 7;
+
+    private static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + Integer.BYTES + 1;
+
+    private static final int HEADER_LENGTH_AES_GCM = SEGMENTED_MAGIC.length + 1 + Integer.BYTES + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+
+    private static final int HEADER_LENGTH = HEADER_LENGTH_AES_GCM + 1;
+
+    private static final int TAG_LENGTH = GCM_TAG_LENGTH / 8;
+
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] SEGMENT_KEY_INFO = "blockEncryptionSegment".getBytes(StandardCharsets.UTF_8);
+
     private final CryptoUtils cryptoUtils;
 
     private final SecretKey secretKey;
 
     private final ByteBufferPoolService byteBufferPoolService;
 
-    public BlockEncryptionServiceImpl(CryptoUtils cryptoUtils, CryptoService cryptoService, ByteBufferPoolService byteBufferPoolService) {
+    private final BlockCipher blockCipher;
+
+    public BlockEncryptionServiceImpl(CryptoUtils cryptoUtils, CryptoService cryptoService, ByteBufferPoolService byteBufferPoolService, P2PBackupProperties p2PBackupProperties) {
         this.cryptoUtils = cryptoUtils;
         this.secretKey = cryptoService.getSecretKeyGenerator().generateAES(SALT_BLOCK_ENCRYPTION);
         this.byteBufferPoolService = byteBufferPoolService;
+        this.blockCipher = p2PBackupProperties.getBackupProperties().getBlockCipher();
+    }
+
+    /**
+     * The header of a block in the segmented format.
+     *
+     * @param bytes         the header as it is stored before the segments
+     * @param blockCipher   the cipher of the segments
+     * @param segmentSize   the size of the plain data of a segment
+     * @param salt          the salt for the key of the block
+     * @param noncePrefix   the prefix of the nonces of the segments
+     * @param nrOfSegments  the number of segments
+     * @param plainSize     the size of the plain data of the block
+     */
+    private record SegmentedHeader(byte[] bytes, BlockCipher blockCipher, int segmentSize, byte[] salt, byte[] noncePrefix, int nrOfSegments, int plainSize) {
+    }
+
+    @Override
+    public int getEncryptedSize(int plainSize) {
+        int segmentSize = CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE;
+        long nrOfSegments = Math.max(1, (plainSize + (long) segmentSize - 1) / segmentSize);
+        return Math.toIntExact(HEADER_LENGTH + plainSize + nrOfSegments * TAG_LENGTH);
+    }
+
+    private void checkBufferSize(ByteBuffer plainData, ByteBuffer encryptedData) {
+        if (this.getEncryptedSize(plainData.remaining()) > encryptedData.remaining()) {
+            throw new IllegalArgumentException("target buffer is to small. bytes to encrypt: " + plainData.remaining() + ". remaining bytes in write buffer: " + encryptedData.remaining());
+        }
     }
 
-    private void checkBufferSize(ByteBuffer readBuffer, ByteBuffer writeBuffer) {
-        if (readBuffer.remaining() * 5 > writeBuffer.remaining()) {
-            throw new IllegalArgumentException("target buffer could be to small. bytes to read: " + readBuffer.remaining() + ". remaining bytes in write buffer: " + writeBuffer.remaining());
+    private void checkDecryptBufferSize(int plainSize, ByteBuffer plainData) {
+        if (plainSize > plainData.remaining()) {
+            throw new IllegalArgumentException("target buffer is to small. bytes to decrypt: " + plainSize + ". remaining bytes in write buffer: " + plainData.remaining());
         }
     }
 
     @Override
     public void encrypt(ByteBuffer plainData, byte[] aead, ByteBuffer encryptedData) {
+        this.encrypt(plainData, aead, encryptedData, this.blockCipher);
+    }
+
+    @Override
+    public void encrypt(ByteBuffer plainData, byte[] aead, ByteBuffer encryptedData, BlockCipher blockCipher) {
         this.checkBufferSize(plainData, encryptedData);
 
+        byte[] salt = new byte[SALT_LENGTH];
+        this.cryptoUtils.getSecureRandom().nextBytes(salt);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        this.cryptoUtils.getSecureRandom().nextBytes(noncePrefix);
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH).put(SEGMENTED_MAGIC).put(VERSION_WITH_CIPHER).put(this.getCipherId(blockCipher))
+                .putInt(CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE).put(salt).put(noncePrefix).array();
+
         try {
-            Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-            byte[] iv = new byte[IV_LENGTH];
-            this.cryptoUtils.getSecureRandom().nextBytes(iv);
+            Cipher cipher = this.createCipher(blockCipher);
+            SecretKey blockKey = this.deriveBlockKey(blockCipher, salt);
+            byte[] additionalData = this.getAdditionalData(header, aead);
 
-            GCMParameterSpec gcmParameter = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, this.secretKey, gcmParameter);
-            if (aead != null) {
-                cipher.updateAAD(aead);
-            }
+            encryptedData.put(header);
+            int segmentNr = 0;
+            do {
+                int length = Math.min(CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE, plainData.remaining());
+                boolean finalSegment = length == plainData.remaining();
+                ByteBuffer segment = plainData.slice(plainData.position(), length);
+                plainData.position(plainData.position() + length);
 
-            encryptedData.put(iv);
-            cipher.doFinal(plainData, encryptedData);
+                this.initSegmentCipher(cipher, blockCipher, Cipher.ENCRYPT_MODE, blockKey, noncePrefix, segmentNr++, finalSegment, additionalData);
+                cipher.doFinal(segment, encryptedData);
+            } while (plainData.hasRemaining());
             encryptedData.flip();
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
             throw new IllegalStateException(e);
@@ -67,7 +167,7 @@ public class BlockEncryptionServiceImpl implements BlockEncryptionService {
 
     @Override
     public void encrypt(ByteBuffer plainData, byte[] aead, Consumer<ByteBuffer> consumer) {
-        Integer key = this.byteBufferPoolService.calculateBufferSize(plainData.remaining());
+        Integer key = this.byteBufferPoolService.calculateBufferSize(this.getEncryptedSize(plainData.remaining()));
         ByteBuffer encryptedDataBuffer = this.byteBufferPoolService.borrowObject(key);
 
         try {
@@ -81,19 +181,22 @@ public class BlockEncryptionServiceImpl implements BlockEncryptionService {
 
     @Override
     public void decrypt(ByteBuffer encryptedData, byte[] aead, ByteBuffer plainData) {
-        this.checkBufferSize(encryptedData, plainData);
+        if (!this.isSegmented(encryptedData)) {
+            this.decryptLegacy(encryptedData, aead, plainData);
+            return;
+        }
+
+        SegmentedHeader header = this.readHeader(encryptedData);
+        this.checkDecryptBufferSize(header.plainSize(), plainData);
 
         try {
-            Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-            byte[] iv = new byte[IV_LENGTH];
-            encryptedData.get(iv);
-            GCMParameterSpec gcmParameter = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.DECRYPT_MODE, this.secretKey, gcmParameter);
-            if (aead != null) {
-                cipher.updateAAD(aead);
+            Cipher cipher = this.createCipher(header.blockCipher());
+            SecretKey blockKey = this.deriveBlockKey(header.blockCipher(), header.salt());
+            byte[] additionalData = this.getAdditionalData(header.bytes(), aead);
+            for (int segmentNr = 0; segmentNr < header.nrOfSegments(); segmentNr++) {
+                this.decryptSegment(cipher, blockKey, header, additionalData, encryptedData, segmentNr, plainData);
             }
-
-            cipher.doFinal(encryptedData, plainData);
+            encryptedData.position(encryptedData.limit());
             plainData.flip();
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
             throw new IllegalStateException(e);
@@ -102,11 +205,12 @@ public class BlockEncryptionServiceImpl implements BlockEncryptionService {
 
     @Override
     public void decrypt(ByteBuffer encryptedData, byte[] aead, Consumer<ByteBuffer> consumer) {
-        Integer key = this.byteBufferPoolService.calculateBufferSize(encryptedData.remaining());
+        int plainSize = this.isSegmented(encryptedData) ? this.readHeader(encryptedData.duplicate()).plainSize() : encryptedData.remaining();
+        Integer key = this.byteBufferPoolService.calculateBufferSize(plainSize);
         ByteBuffer plainData = this.byteBufferPoolService.borrowObject(key);
 
         try {
-            // encrypt the block-content and write it into the encryptedDataBuffer
+            // decrypt the block-content and write it into the plainData-buffer
             this.decrypt(encryptedData.duplicate(), aead, plainData);
             consumer.accept(plainData);
         } finally {
@@ -114,16 +218,221 @@ public class BlockEncryptionServiceImpl implements BlockEncryptionService {
         }
     }
 
+    @Override
+    public void decrypt(ByteBuffer encryptedData, byte[] aead, int offset, int length, ByteBuffer plainData) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("invalid range with offset " + offset + " and length " + length);
+        }
+        this.checkDecryptBufferSize(length, plainData);
+
+        if (!this.isSegmented(encryptedData)) {
+            // the legacy format can only be verified as a whole
+            this.decrypt(encryptedData, aead, decryptedData -> {
+                if (offset + (long) length > decryptedData.remaining()) {
+                    throw new IllegalArgumentException("range with offset " + offset + " and length " + length + " exceeds the block of " + decryptedData.remaining() + " bytes");
+                }
+                plainData.put(decryptedData.slice(decryptedData.position() + offset, length));
+            });
+            plainData.flip();
+            return;
+        }
+
+        SegmentedHeader header = this.readHeader(encryptedData);
+        if (offset + (long) length > header.plainSize()) {
+            throw new IllegalArgumentException("range with offset " + offset + " and length " + length + " exceeds the block of " + header.plainSize() + " bytes");
+        }
+
+        this.withSegmentBuffer(header, segmentBuffer -> {
+            try {
+                Cipher cipher = this.createCipher(header.blockCipher());
+                SecretKey blockKey = this.deriveBlockKey(header.blockCipher(), header.salt());
+                byte[] additionalData = this.getAdditionalData(header.bytes(), aead);
+
+                int position = offset;
+                int end = offset + length;
+                while (position < end) {
+                    int segmentNr = position / header.segmentSize();
+                    segmentBuffer.clear();
+                    this.decryptSegment(cipher, blockKey, header, additionalData, encryptedData, segmentNr, segmentBuffer);
+                    segmentBuffer.flip();
+
+                    int segmentOffset = position - segmentNr * header.segmentSize();
+                    int segmentLength = Math.min(segmentBuffer.remaining() - segmentOffset, end - position);
+                    plainData.put(segmentBuffer.slice(segmentOffset, segmentLength));
+                    position += segmentLength;
+                }
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        plainData.flip();
+    }
+
     @Override
     public void verify(ByteBuffer encryptedData, byte[] aead) {
-        Integer key = this.byteBufferPoolService.calculateBufferSize(encryptedData.remaining());
-        ByteBuffer plainData = this.byteBufferPoolService.borrowObject(key);
+        if (!this.isSegmented(encryptedData)) {
+            this.decrypt(encryptedData, aead, plainData -> {
+            });
+            return;
+        }
 
+        ByteBuffer data = encryptedData.duplicate();
+        SegmentedHeader header = this.readHeader(data);
+        this.withSegmentBuffer(header, segmentBuffer -> {
+            try {
+                Cipher cipher = this.createCipher(header.blockCipher());
+                SecretKey blockKey = this.deriveBlockKey(header.blockCipher(), header.salt());
+                byte[] additionalData = this.getAdditionalData(header.bytes(), aead);
+                for (int segmentNr = 0; segmentNr < header.nrOfSegments(); segmentNr++) {
+                    segmentBuffer.clear();
+                    this.decryptSegment(cipher, blockKey, header, additionalData, data, segmentNr, segmentBuffer);
+                }
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private void withSegmentBuffer(SegmentedHeader header, Consumer<ByteBuffer> consumer) {
+        Integer key = this.byteBufferPoolService.calculateBufferSize(header.segmentSize());
+        ByteBuffer segmentBuffer = this.byteBufferPoolService.borrowObject(key);
         try {
-            // encrypt the block-content and write it into the encryptedDataBuffer
-            this.decrypt(encryptedData.duplicate(), aead, plainData);
+            consumer.accept(segmentBuffer);
         } finally {
-            this.byteBufferPoolService.returnObject(key, plainData);
+            this.byteBufferPoolService.returnObject(key, segmentBuffer);
+        }
+    }
+
+    @Override
+    public boolean isSegmented(ByteBuffer encryptedData) {
+        if (encryptedData.remaining() < HEADER_LENGTH_AES_GCM
+                || !encryptedData.slice(encryptedData.position(), SEGMENTED_MAGIC.length).equals(ByteBuffer.wrap(SEGMENTED_MAGIC))) {
+            return false;
+        }
+        byte version = encryptedData.get(encryptedData.position() + SEGMENTED_MAGIC.length);
+        return version == VERSION_AES_GCM || version == VERSION_WITH_CIPHER;
+    }
+
+    /**
+     * Reads the header of a block in the segmented format and calculates the layout of the segments from the remaining data.
+     * The position of the buffer is placed at the first segment.
+     */
+    private SegmentedHeader readHeader(ByteBuffer encryptedData) {
+        byte version = encryptedData.get(encryptedData.position() + SEGMENTED_MAGIC.length);
+        byte[] bytes = new byte[version == VERSION_AES_GCM ? HEADER_LENGTH_AES_GCM : HEADER_LENGTH];
+        if (encryptedData.remaining() < bytes.length) {
+            throw new IllegalStateException("encrypted data of " + encryptedData.remaining() + " bytes is truncated");
+        }
+        encryptedData.get(bytes);
+        ByteBuffer header = ByteBuffer.wrap(bytes, SEGMENTED_MAGIC.length + 1, bytes.length - SEGMENTED_MAGIC.length - 1);
+        BlockCipher blockCipher = version == VERSION_AES_GCM ? BlockCipher.AES_256_GCM : this.getBlockCipher(header.get());
+        int segmentSize = header.getInt();
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalStateException("invalid segment-size " + segmentSize);
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        header.get(salt);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        header.get(noncePrefix);
+
+        int encryptedSegmentSize = segmentSize + TAG_LENGTH;
+        int nrOfSegments = (int) ((encryptedData.remaining() + (long) encryptedSegmentSize - 1) / encryptedSegmentSize);
+        int finalSegmentSize = encryptedData.remaining() - (nrOfSegments - 1) * encryptedSegmentSize;
+        if (nrOfSegments == 0 || finalSegmentSize < TAG_LENGTH) {
+            throw new IllegalStateException("encrypted data of " + encryptedData.remaining() + " bytes is truncated");
+        }
+        int plainSize = encryptedData.remaining() - nrOfSegments * TAG_LENGTH;
+        return new SegmentedHeader(bytes, blockCipher, segmentSize, salt, noncePrefix, nrOfSegments, plainSize);
+    }
+
+    /**
+     * Decrypts the given segment of the encrypted data, whose position is at the first segment, and writes its plain data into the target.
+     */
+    private void decryptSegment(Cipher cipher, SecretKey blockKey, SegmentedHeader header, byte[] additionalData, ByteBuffer encryptedData, int segmentNr, ByteBuffer target)
+            throws InvalidKeyException, InvalidAlgorithmParameterException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        int encryptedSegmentSize = header.segmentSize() + TAG_LENGTH;
+        int segmentStart = encryptedData.position() + segmentNr * encryptedSegmentSize;
+        int segmentLength = Math.min(encryptedSegmentSize, encryptedData.limit() - segmentStart);
+        boolean finalSegment = segmentNr == header.nrOfSegments() - 1;
+
+        this.initSegmentCipher(cipher, header.blockCipher(), Cipher.DECRYPT_MODE, blockKey, header.noncePrefix(), segmentNr, finalSegment, additionalData);
+        cipher.doFinal(encryptedData.slice(segmentStart, segmentLength), target);
+    }
+
+    private void initSegmentCipher(Cipher cipher, BlockCipher blockCipher, int mode, SecretKey blockKey, byte[] noncePrefix, int segmentNr, boolean finalSegment, byte[] additionalData) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).put(noncePrefix).putInt(segmentNr).put((byte) (finalSegment ? 1 : 0)).array();
+        AlgorithmParameterSpec parameterSpec = switch (blockCipher) {
+            case AES_256_GCM -> new GCMParameterSpec(GCM_TAG_LENGTH, nonce);
+            case CHACHA20_POLY1305 -> new IvParameterSpec(nonce);
+        };
+        cipher.init(mode, blockKey, parameterSpec);
+        cipher.updateAAD(additionalData);
+    }
+
+    private Cipher createCipher(BlockCipher blockCipher) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        return switch (blockCipher) {
+            case AES_256_GCM -> Cipher.getInstance(ENCRYPTION_ALGORITHM);
+            case CHACHA20_POLY1305 -> Cipher.getInstance(CHACHA20_POLY1305_ALGORITHM);
+        };
+    }
+
+    private SecretKey deriveBlockKey(BlockCipher blockCipher, byte[] salt) {
+        HKDFBytesGenerator generator = new HKDFBytesGenerator(new SHA256Digest());
+        generator.init(new HKDFParameters(this.secretKey.getEncoded(), salt, SEGMENT_KEY_INFO));
+        byte[] key = new byte[32];
+        generator.generateBytes(key, 0, key.length);
+        return new SecretKeySpec(key, blockCipher == BlockCipher.CHACHA20_POLY1305 ? "ChaCha20" : "AES");
+    }
+
+    /**
+     * The id of a cipher in the header of a block. The ids must never change, otherwise existing blocks can't be decrypted.
+     */
+    private byte getCipherId(BlockCipher blockCipher) {
+        return switch (blockCipher) {
+            case AES_256_GCM -> 1;
+            case CHACHA20_POLY1305 -> 2;
+        };
+    }
+
+    private BlockCipher getBlockCipher(byte cipherId) {
+        return switch (cipherId) {
+            case 1 -> BlockCipher.AES_256_GCM;
+            case 2 -> BlockCipher.CHACHA20_POLY1305;
+            default -> throw new IllegalStateException("unknown cipher " + cipherId);
+        };
+    }
+
+    private byte[] getAdditionalData(byte[] header, byte[] aead) {
+        if (aead == null) {
+            return header;
+        }
+        byte[] additionalData = Arrays.copyOf(header, header.length + aead.length);
+        System.arraycopy(aead, 0, additionalData, header.length, aead.length);
+        return additionalData;
+    }
+
+    private void decryptLegacy(ByteBuffer encryptedData, byte[] aead, ByteBuffer plainData) {
+        if (encryptedData.remaining() > plainData.remaining()) {
+            throw new IllegalArgumentException("target buffer could be to small. bytes to decrypt: " + encryptedData.remaining() + ". remaining bytes in write buffer: " + plainData.remaining());
+        }
+        if (encryptedData.remaining() < IV_LENGTH + TAG_LENGTH) {
+            throw new IllegalStateException("encrypted data of " + encryptedData.remaining() + " bytes is truncated");
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
+            byte[] iv = new byte[IV_LENGTH];
+            encryptedData.get(iv);
+            GCMParameterSpec gcmParameter = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+            cipher.init(Cipher.DECRYPT_MODE, this.secretKey, gcmParameter);
+            if (aead != null) {
+                cipher.updateAAD(aead);
+            }
+
+            cipher.doFinal(encryptedData, plainData);
+            plainData.flip();
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            throw new IllegalStateException(e);
         }
     }
 }
@@ -1,5 +1,6 @@
 package at.lucny.p2pbackup.core.service;
 
+import at.lucny.p2pbackup.core.dto.ByteBufferPoolStatistics;
 import jakarta.validation.constraints.NotNull;
 import java.nio.ByteBuffer;
 
@@ -10,4 +11,6 @@ public interface ByteBufferPoolService {
     @NotNull ByteBuffer borrowObject(@NotNull Integer key);
 
     void returnObject(@NotNull Integer key, @NotNull ByteBuffer buffer);
+
+    @NotNull ByteBufferPoolStatistics getStatistics();
 }
@@ -1,79 +1,181 @@
 package at.lucny.p2pbackup.core.service;
 
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
 import at.lucny.p2pbackup.backup.support.BackupConstants;
-import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
-import org.apache.commons.pool2.KeyedObjectPool;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import at.lucny.p2pbackup.core.dto.ByteBufferPoolStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Pools direct buffers in size-classes. Returned buffers are kept in a small cache of the returning thread, so a worker
+ * that borrows the same size-class again doesn't touch shared state. If the cache of the thread is full the buffer is
+ * put onto the lock-free free-list of its size-class.
+ * <p>
+ * The memory of all direct buffers of the pool, borrowed and idle, is limited by
+ * {@link P2PBackupProperties#getMaxDirectBufferMemory()}. If a new buffer would exceed the limit, idle buffers are
+ * released, and if that is not enough a heap-buffer is borrowed instead, which is dropped when it is returned.
+ */
 @Service
 @Validated
 public class ByteBufferPoolServiceImpl implements ByteBufferPoolService {
 
-    private final KeyedObjectPool<Integer, ByteBuffer> pool;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ByteBufferPoolServiceImpl.class);
 
-    public ByteBufferPoolServiceImpl() {
-        this.pool = new GenericKeyedObjectPool<>(new BaseKeyedPooledObjectFactory<>() {
-            @Override
-            public ByteBuffer create(Integer key) throws Exception {
-                return ByteBuffer.allocateDirect(key * BackupConstants.ONE_KILOBYTE);
-            }
+    private static final int MIN_BUFFER_SIZE_IN_KB = 8;
 
-            @Override
-            public PooledObject<ByteBuffer> wrap(ByteBuffer value) {
-                return new DefaultPooledObject<>(value);
-            }
+    private static final int THREAD_CACHE_SIZE = 2;
 
-            @Override
-            public void passivateObject(Integer key, PooledObject<ByteBuffer> p) throws Exception {
-                p.getObject().clear();
-                super.passivateObject(key, p);
-            }
-        });
+    /**
+     * The buffers cached by a thread. The cache is only accessed by its thread, after the thread terminated its buffers
+     * are released by other threads.
+     */
+    private static final class ThreadCache {
+
+        private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        private final Map<Integer, Deque<ByteBuffer>> buffers = new HashMap<>();
+
+        private boolean isOwnerTerminated() {
+            Thread thread = this.owner.get();
+            return thread == null || !thread.isAlive();
+        }
     }
 
-    private int getNextPowerOf2(int x) {
-        if (x < 0)
-            return 0;
-        --x;
-        x |= x >> 1;
-        x |= x >> 2;
-        x |= x >> 4;
-        x |= x >> 8;
-        x |= x >> 16;
-        return x + 1;
+    private final long maxDirectBytes;
+
+    private final Map<Integer, Queue<ByteBuffer>> freeLists = new ConcurrentHashMap<>();
+
+    private final Queue<ThreadCache> threadCaches = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(() -> {
+        ThreadCache cache = new ThreadCache();
+        this.threadCaches.add(cache);
+        return cache;
+    });
+
+    private final AtomicLong directBytes = new AtomicLong();
+
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder heapFallbacks = new LongAdder();
+
+    public ByteBufferPoolServiceImpl(P2PBackupProperties p2PBackupProperties) {
+        this.maxDirectBytes = p2PBackupProperties.getMaxDirectBufferMemory().toBytes();
     }
 
+    /**
+     * Calculates the size-class of a buffer in kilobytes. Every power of 2 is divided into 4 size-classes, so a buffer is
+     * at most 25% larger than needed. This keeps the buffers for large blocks small, while blocks of similar size share
+     * a size-class.
+     */
     @Override
     public Integer calculateBufferSize(int minimumSize) {
-        int neededSizeInByte = minimumSize * 10;
-        double exactNeededSizeInKb = neededSizeInByte / 1024d;
-        int neededSizeInKb = Math.max((int) Math.ceil(exactNeededSizeInKb), 8);
-        return this.getNextPowerOf2(neededSizeInKb);
+        int neededSizeInKb = Math.max((int) Math.ceil(minimumSize / (double) BackupConstants.ONE_KILOBYTE), MIN_BUFFER_SIZE_IN_KB);
+        int powerOf2 = Integer.highestOneBit(neededSizeInKb);
+        int step = powerOf2 / 4;
+        return (neededSizeInKb + step - 1) / step * step;
     }
 
     @Override
     public ByteBuffer borrowObject(Integer key) {
-        try {
-            return this.pool.borrowObject(key);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+        ByteBuffer buffer = this.takeIdleBuffer(key);
+        if (buffer != null) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+            buffer = this.allocate(key);
         }
+        this.outstandingBytes.addAndGet(buffer.capacity());
+        return buffer;
     }
 
     @Override
     public void returnObject(Integer key, ByteBuffer buffer) {
-        try {
-            this.pool.returnObject(key, buffer);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+        this.outstandingBytes.addAndGet(-buffer.capacity());
+        if (!buffer.isDirect()) {
+            // heap-buffers are only borrowed if the direct memory is exhausted
+            return;
+        }
+
+        buffer.clear();
+        Deque<ByteBuffer> cachedBuffers = this.threadCache.get().buffers.computeIfAbsent(key, k -> new ArrayDeque<>(THREAD_CACHE_SIZE));
+        if (cachedBuffers.size() < THREAD_CACHE_SIZE) {
+            cachedBuffers.push(buffer);
+        } else {
+            this.freeLists.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>()).add(buffer);
         }
     }
 
+    @Override
+    public ByteBufferPoolStatistics getStatistics() {
+        return new ByteBufferPoolStatistics(this.hits.sum(), this.misses.sum(), this.heapFallbacks.sum(), this.outstandingBytes.get(), this.directBytes.get());
+    }
+
+    private ByteBuffer takeIdleBuffer(Integer key) {
+        Deque<ByteBuffer> cachedBuffers = this.threadCache.get().buffers.get(key);
+        if (cachedBuffers != null && !cachedBuffers.isEmpty()) {
+            return cachedBuffers.pop();
+        }
+        Queue<ByteBuffer> freeList = this.freeLists.get(key);
+        return freeList != null ? freeList.poll() : null;
+    }
+
+    private ByteBuffer allocate(Integer key) {
+        int size = key * BackupConstants.ONE_KILOBYTE;
+        if (this.reserve(size) || (this.releaseIdleBuffers(size) && this.reserve(size))) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        this.heapFallbacks.increment();
+        LOGGER.debug("direct buffer memory of {} bytes exhausted, allocating {} bytes on the heap", this.maxDirectBytes, size);
+        return ByteBuffer.allocate(size);
+    }
 
+    private boolean reserve(int size) {
+        long current;
+        do {
+            current = this.directBytes.get();
+            if (current + size > this.maxDirectBytes) {
+                return false;
+            }
+        } while (!this.directBytes.compareAndSet(current, current + size));
+        return true;
+    }
+
+    /**
+     * Releases idle buffers until the given number of bytes is free. The buffers cached by terminated threads are released
+     * first, then the buffers of the free-lists.
+     *
+     * @return true if enough bytes were released
+     */
+    private boolean releaseIdleBuffers(int size) {
+        for (ThreadCache cache : this.threadCaches) {
+            // only the thread that removes the cache releases its buffers
+            if (cache.isOwnerTerminated() && this.threadCaches.remove(cache)) {
+                cache.buffers.values().forEach(buffers -> buffers.forEach(buffer -> this.directBytes.addAndGet(-buffer.capacity())));
+            }
+        }
+
+        for (Queue<ByteBuffer> freeList : this.freeLists.values()) {
+            ByteBuffer buffer;
+            while (this.directBytes.get() + size > this.maxDirectBytes && (buffer = freeList.poll()) != null) {
+                this.directBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        return this.directBytes.get() + size <= this.maxDirectBytes;
+    }
 }
@@ -0,0 +1,65 @@
+package at.lucny.p2pbackup.core.service;
+
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blocks with the deflate-algorithm of the JDK. Uses the fastest compression-level, because the blocks are
+ * compressed during the backup.
+ */
+@Component
+public class DeflateBlockCompressionCodec implements BlockCompressionCodec {
+
+    public static final String NAME = "deflate";
+
+    private static final byte ID = 1;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean compress(ByteBuffer source, ByteBuffer target) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(source);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!target.hasRemaining()) {
+                    return false;
+                }
+                deflater.deflate(target);
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuffer source, ByteBuffer target) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(source);
+            while (!inflater.finished()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary() || !target.hasRemaining())) {
+                    throw new IllegalStateException("unable to decompress block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("unable to decompress block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
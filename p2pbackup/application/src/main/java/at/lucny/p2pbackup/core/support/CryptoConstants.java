@@ -15,9 +15,15 @@ public final class CryptoConstants {
 
     public static final String KEY_DERIVATION_FUNCTION = "PBKDF2WithHmacSHA512";
 
-    public static final String BLOCK_HASH_ALGORITHM = "SHA-256";
+    public static final String SHA_256_HASH_ALGORITHM = "SHA-256";
 
-    public static final String FILE_HASH_ALGORITHM = "SHA-256";
+    public static final String BLAKE3_HASH_ALGORITHM = "BLAKE3-256";
+
+    public static final String BLAKE3_TREE_HASH_ALGORITHM = "BLAKE3-256-TREE";
+
+    public static final int TREE_HASH_LEAF_SIZE = 1024 * 1024;
+
+    public static final int BLOCK_ENCRYPTION_SEGMENT_SIZE = 64 * 1024;
 
     public static final String HMAC_BLOCK_ALGORITHM = "HmacSHA512";
 }
@@ -4,8 +4,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 
 /**
  * Utility-class for file-operations.
@@ -14,6 +20,11 @@ public class FileUtils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileUtils.class);
 
+    /**
+     * The suffix of files that are written by {@link #writeAtomically(Path, ByteBuffer)} and not yet renamed.
+     */
+    public static final String TEMP_FILE_SUFFIX = ".tmp";
+
     /**
      * Deletes a path via {@link Files#delete(Path)} and logs a warning in case of an {@link IOException}.
      *
@@ -26,4 +37,67 @@ public class FileUtils {
             LOGGER.warn("unable to delete file {}", path);
         }
     }
+
+    /**
+     * Writes the remaining data of the buffer into a temporary file in the directory of the target and atomically
+     * renames it to the target afterwards, so that the target never contains a partially written file. The data is
+     * written with positional writes straight from the buffer, the position of the buffer is not changed.
+     *
+     * @param target the path of the file
+     * @param data   the data of the file
+     * @throws IOException if the file can't be written
+     */
+    public void writeAtomically(Path target, ByteBuffer data) throws IOException {
+        Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString() + ".", TEMP_FILE_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer remainingData = data.duplicate();
+                long position = 0;
+                while (remainingData.hasRemaining()) {
+                    position += channel.write(remainingData, position);
+                }
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            this.deleteIfExistsSilent(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the temporary files of {@link #writeAtomically(Path, ByteBuffer)} in the directory and its subdirectories,
+     * that were left over by an interrupted write.
+     *
+     * @param directory the directory
+     */
+    public void deleteTempFilesSilent(Path directory) {
+        this.deleteTempFilesSilent(directory, Instant.MAX);
+    }
+
+    /**
+     * Deletes the temporary files of {@link #writeAtomically(Path, ByteBuffer)} in the directory and its subdirectories,
+     * that were last modified before the given instant. Temporary files of writes that are still running are kept, so the
+     * directory can be cleaned up while it is used.
+     *
+     * @param directory      the directory
+     * @param modifiedBefore only temporary files last modified before this instant are deleted
+     */
+    public void deleteTempFilesSilent(Path directory, Instant modifiedBefore) {
+        try (var files = Files.walk(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX))
+                    .filter(file -> this.isModifiedBefore(file, modifiedBefore))
+                    .forEach(this::deleteIfExistsSilent);
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("unable to delete temporary files in {}", directory);
+        }
+    }
+
+    private boolean isModifiedBefore(Path file, Instant instant) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant().isBefore(instant);
+        } catch (IOException e) {
+            // the write finished and renamed the file meanwhile
+            return false;
+        }
+    }
 }
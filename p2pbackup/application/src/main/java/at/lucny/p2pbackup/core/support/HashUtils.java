@@ -1,7 +1,9 @@
 package at.lucny.p2pbackup.core.support;
 
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.codec.digest.HmacUtils;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -12,11 +14,60 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class HashUtils {
 
+    private static final Provider BC_PROVIDER = new BouncyCastleProvider();
+
+    private final HashAlgorithm hashAlgorithm;
+
+    public HashUtils() {
+        this(HashAlgorithm.SHA_256);
+    }
+
+    public HashUtils(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return this.hashAlgorithm;
+    }
+
+    /**
+     * Creates a digest to hash a block with the given algorithm.
+     */
+    public static MessageDigest createBlockDigest(HashAlgorithm hashAlgorithm) {
+        return switch (hashAlgorithm) {
+            case SHA_256 -> DigestUtils.getDigest(CryptoConstants.SHA_256_HASH_ALGORITHM);
+            case BLAKE3 -> createBlake3Digest();
+        };
+    }
+
+    /**
+     * Creates a digest to hash a whole file with the given algorithm. BLAKE3 hashes the file as a tree, whose leaves
+     * are hashed in parallel.
+     */
+    public static MessageDigest createFileDigest(HashAlgorithm hashAlgorithm) {
+        return switch (hashAlgorithm) {
+            case SHA_256 -> DigestUtils.getDigest(CryptoConstants.SHA_256_HASH_ALGORITHM);
+            case BLAKE3 -> new TreeDigest(CryptoConstants.BLAKE3_TREE_HASH_ALGORITHM, HashUtils::createBlake3Digest,
+                    ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism() * 2);
+        };
+    }
+
+    private static MessageDigest createBlake3Digest() {
+        try {
+            return MessageDigest.getInstance(CryptoConstants.BLAKE3_HASH_ALGORITHM, BC_PROVIDER);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("digest " + CryptoConstants.BLAKE3_HASH_ALGORITHM + " not available", e);
+        }
+    }
+
     public String generateMac(SecretKey key, List<byte[]> bytes) {
         Mac mac = HmacUtils.getInitializedMac(CryptoConstants.HMAC_BLOCK_ALGORITHM, key.getEncoded());
 
@@ -40,7 +91,7 @@ public class HashUtils {
     }
 
     public String generateHashForFile(Path file) {
-        MessageDigest digest = DigestUtils.getDigest(CryptoConstants.FILE_HASH_ALGORITHM);
+        MessageDigest digest = createFileDigest(this.hashAlgorithm);
         try {
             byte[] hash = DigestUtils.digest(digest, file, StandardOpenOption.READ);
             return Base64.getEncoder().encodeToString(hash);
@@ -49,14 +100,20 @@ public class HashUtils {
         }
     }
 
+    public String generateHashForFile(byte[] content) {
+        MessageDigest digest = createFileDigest(this.hashAlgorithm);
+        byte[] hash = digest.digest(content);
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
     public String generateBlockHash(byte[] data) {
-        MessageDigest digest = DigestUtils.getDigest(CryptoConstants.BLOCK_HASH_ALGORITHM);
+        MessageDigest digest = createBlockDigest(this.hashAlgorithm);
         byte[] hash = digest.digest(data);
         return Base64.getEncoder().encodeToString(hash);
     }
 
     public String generateBlockHash(ByteBuffer data) {
-        MessageDigest digest = DigestUtils.getDigest(CryptoConstants.BLOCK_HASH_ALGORITHM);
+        MessageDigest digest = createBlockDigest(this.hashAlgorithm);
         byte[] hash = DigestUtils.digest(digest, data);
         return Base64.getEncoder().encodeToString(hash);
     }
@@ -0,0 +1,121 @@
+package at.lucny.p2pbackup.core.support;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * A {@link MessageDigest} that splits the data into leaves of {@link CryptoConstants#TREE_HASH_LEAF_SIZE} bytes and
+ * hashes the leaves in parallel on the given executor. The resulting hash is the hash of the concatenated leaf-hashes,
+ * leaves and root are prefixed with different bytes so a leaf can't be mistaken for a root.
+ * <p>
+ * The data of a leaf is copied, so at most {@code maxPendingLeaves} leaves are hashed concurrently before an update
+ * waits for the oldest leaf.
+ */
+public class TreeDigest extends MessageDigest {
+
+    private static final byte LEAF_PREFIX = 0;
+
+    private static final byte ROOT_PREFIX = 1;
+
+    private final Supplier<MessageDigest> digestSupplier;
+
+    private final Executor executor;
+
+    private final int maxPendingLeaves;
+
+    private final int digestLength;
+
+    private final List<CompletableFuture<byte[]>> leafHashes = new ArrayList<>();
+
+    private int nrOfCompletedLeaves;
+
+    private byte[] leaf;
+
+    private int leafPosition;
+
+    public TreeDigest(String algorithm, Supplier<MessageDigest> digestSupplier, Executor executor, int maxPendingLeaves) {
+        super(algorithm);
+        this.digestSupplier = digestSupplier;
+        this.executor = executor;
+        this.maxPendingLeaves = maxPendingLeaves;
+        this.digestLength = digestSupplier.get().getDigestLength();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return this.digestLength;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        this.engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        this.engineUpdate(ByteBuffer.wrap(input, offset, len));
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            if (this.leaf == null) {
+                this.leaf = new byte[CryptoConstants.TREE_HASH_LEAF_SIZE];
+                this.leafPosition = 0;
+            }
+
+            int length = Math.min(input.remaining(), this.leaf.length - this.leafPosition);
+            input.get(this.leaf, this.leafPosition, length);
+            this.leafPosition += length;
+
+            if (this.leafPosition == this.leaf.length) {
+                this.submitLeaf();
+            }
+        }
+    }
+
+    private void submitLeaf() {
+        byte[] data = this.leaf;
+        int length = this.leafPosition;
+        this.leaf = null;
+        this.leafHashes.add(CompletableFuture.supplyAsync(() -> {
+            MessageDigest digest = this.digestSupplier.get();
+            digest.update(LEAF_PREFIX);
+            digest.update(data, 0, length);
+            return digest.digest();
+        }, this.executor));
+
+        // limits the memory of the copied leaves if the leaves are hashed slower than they are read
+        while (this.leafHashes.size() - this.nrOfCompletedLeaves > this.maxPendingLeaves) {
+            this.leafHashes.get(this.nrOfCompletedLeaves++).join();
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (this.leaf != null && this.leafPosition > 0) {
+            this.submitLeaf();
+        }
+
+        MessageDigest root = this.digestSupplier.get();
+        root.update(ROOT_PREFIX);
+        for (CompletableFuture<byte[]> leafHash : this.leafHashes) {
+            root.update(leafHash.join());
+        }
+        this.engineReset();
+        return root.digest();
+    }
+
+    @Override
+    protected void engineReset() {
+        this.leafHashes.clear();
+        this.nrOfCompletedLeaves = 0;
+        this.leaf = null;
+        this.leafPosition = 0;
+    }
+}
@@ -0,0 +1,9 @@
+package at.lucny.p2pbackup.localstorage.dto;
+
+/**
+ * @param userId     the user that saved the blocks
+ * @param nrOfBlocks the number of blocks the user saved
+ * @param bytes      the size of all blocks the user saved
+ */
+public record PeerStorageUsage(String userId, long nrOfBlocks, long bytes) {
+}
@@ -0,0 +1,191 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.PeerStorageType;
+import at.lucny.p2pbackup.core.support.FileUtils;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.validation.annotation.Validated;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Stores every block in its own file within the bucket-directories of the {@link StorageLayoutService}. Removed blocks
+ * are moved into the folder {@link #FOLDER_DELETED}, their filename is prefixed with the date until they are kept.
+ */
+@Service
+@Validated
+public class FilePeerBlockStorageServiceImpl implements PeerBlockStorageService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilePeerBlockStorageServiceImpl.class);
+
+    public static final String FOLDER_DELETED = "_DELETED";
+
+    private final StorageLayoutService storageLayoutService;
+
+    private final FileUtils fileUtils = new FileUtils();
+
+    public FilePeerBlockStorageServiceImpl(StorageLayoutService storageLayoutService) {
+        this.storageLayoutService = storageLayoutService;
+    }
+
+    @Override
+    public PeerStorageType getType() {
+        return PeerStorageType.FILES;
+    }
+
+    @Override
+    public void initializeDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Files.createDirectories(directory.resolve(FOLDER_DELETED));
+        this.storageLayoutService.initializeDirectory(directory);
+    }
+
+    @Override
+    public void deleteDirectory(Path directory) throws IOException {
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Override
+    public boolean contains(Path directory, String id) {
+        return this.storageLayoutService.locate(directory, id).isPresent();
+    }
+
+    @Override
+    public Optional<String> getMac(Path directory, String id) {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<InputStream> load(Path directory, String id) throws IOException {
+        Optional<Path> blockPath = this.storageLayoutService.locate(directory, id);
+        if (blockPath.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(Files.newInputStream(blockPath.get(), StandardOpenOption.READ));
+    }
+
+    @Override
+    public Optional<Long> save(Path directory, String id, String mac, ReadableByteChannel data, BooleanSupplier validator) throws IOException {
+        Path blockPath = this.storageLayoutService.resolve(directory, id);
+        long size;
+        try (FileChannel fileChannel = FileChannel.open(blockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            size = fileChannel.transferFrom(data, 0, Long.MAX_VALUE);
+        } catch (IOException e) {
+            this.fileUtils.deleteIfExistsSilent(blockPath);
+            throw e;
+        }
+
+        if (!validator.getAsBoolean()) {
+            this.fileUtils.deleteIfExistsSilent(blockPath);
+            return Optional.empty();
+        }
+        return Optional.of(size);
+    }
+
+    @Override
+    public Map<String, Long> getBlockSizes(Path directory) {
+        Map<String, Long> blockSizes = new HashMap<>();
+        try {
+            for (Path block : this.storageLayoutService.list(directory)) {
+                try {
+                    blockSizes.put(block.getFileName().toString(), Files.size(block));
+                } catch (NoSuchFileException e) {
+                    LOGGER.debug("block {} was removed while listing", block);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("unable to list blocks of storage-directory {}", directory);
+        }
+        return blockSizes;
+    }
+
+    @Override
+    public void remove(Path directory, List<String> ids, LocalDate keepUntil) {
+        Path deleteFolder = directory.resolve(FOLDER_DELETED);
+
+        for (String blockId : ids) {
+            Optional<Path> existingBlockPath = this.storageLayoutService.locate(directory, blockId);
+            if (existingBlockPath.isPresent()) {
+                Path blockPath = existingBlockPath.get();
+                String filename = keepUntil.toString() + "_" + blockId;
+                Path destinationPath = deleteFolder.resolve(filename);
+                try {
+                    Files.move(blockPath, destinationPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    LOGGER.warn("unable to move file {} to {}", blockPath, destinationPath);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long reclaim(Path directory, LocalDate expiredBefore, RateLimiter rateLimiter, BooleanSupplier stopCondition) {
+        List<Path> expiredBlocks = new ArrayList<>();
+        try (DirectoryStream<Path> deletedBlocks = Files.newDirectoryStream(directory.resolve(FOLDER_DELETED))) {
+            for (Path deletedBlock : deletedBlocks) {
+                Optional<LocalDate> keepUntil = this.getKeepUntil(deletedBlock);
+                if (keepUntil.isPresent() && keepUntil.get().isBefore(expiredBefore)) {
+                    expiredBlocks.add(deletedBlock);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            LOGGER.warn("unable to list removed blocks of storage-directory {}", directory, e);
+            return 0;
+        }
+        // the filenames start with the date until the blocks are kept, so the oldest blocks are deleted first
+        expiredBlocks.sort(Comparator.comparing(Path::getFileName));
+
+        long reclaimedBytes = 0;
+        for (Path expiredBlock : expiredBlocks) {
+            if (stopCondition.getAsBoolean()) {
+                break;
+            }
+            rateLimiter.acquire();
+            try {
+                long size = Files.size(expiredBlock);
+                Files.delete(expiredBlock);
+                reclaimedBytes += size;
+            } catch (NoSuchFileException e) {
+                LOGGER.debug("removed block {} was already deleted", expiredBlock);
+            } catch (IOException e) {
+                LOGGER.warn("unable to delete removed block {}", expiredBlock, e);
+            }
+        }
+        return reclaimedBytes;
+    }
+
+    private Optional<LocalDate> getKeepUntil(Path deletedBlock) {
+        String filename = deletedBlock.getFileName().toString();
+        int separator = filename.indexOf('_');
+        try {
+            return Optional.of(LocalDate.parse(filename.substring(0, Math.max(separator, 0))));
+        } catch (DateTimeParseException e) {
+            LOGGER.debug("ignoring {}, because its filename doesn't start with a date", deletedBlock);
+            return Optional.empty();
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package at.lucny.p2pbackup.localstorage.service;
 
 import at.lucny.p2pbackup.localstorage.dto.LocalStorageEntry;
+import at.lucny.p2pbackup.localstorage.dto.PeerStorageUsage;
 import at.lucny.p2pbackup.network.dto.BackupBlock;
 import at.lucny.p2pbackup.network.dto.BackupBlockFailure;
 
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.List;
@@ -30,18 +32,49 @@ public interface LocalStorageService {
 
     @NotNull Optional<Path> loadFromLocalStorage(@NotNull String id);
 
-    @NotNull Optional<Path> loadFromLocalStorage(@NotNull String userId, @NotNull String id);
+    boolean existsInLocalStorage(@NotNull String userId, @NotNull String id);
+
+    /**
+     * Opens the block of the given user for reading. The caller has to close the stream.
+     *
+     * @param userId the user
+     * @param id     the id of the block
+     * @return the content of the block, or an empty optional if the block is missing
+     */
+    @NotNull Optional<InputStream> loadFromLocalStorage(@NotNull String userId, @NotNull String id) throws IOException;
 
     void removeFromLocalStorage(@NotNull String userId, @NotNull @NotEmpty List<String> blockIds);
 
     /**
-     * Loads all blocks with the given prefix from the given user
+     * Returns the id of the latest backup-index-block the given user saved.
      *
      * @param userId the user
-     * @param prefix prefix of the searched blocks
-     * @return a list of paths to all blocks that start with the prefix
+     * @return the id of the backup-index-block, or an empty optional if the user saved no backup-index-block
      */
-    @NotNull List<Path> loadFromLocalStorageByPrefix(@NotNull String userId, @NotNull String prefix);
+    @NotNull Optional<String> getLatestBackupIndexBlockId(@NotNull String userId);
 
     @NotNull List<String> getBlockIds(@NotNull String userId);
+
+    /**
+     * Returns the number and size of the blocks every user saved in the local storage. Users whose inventory is not
+     * built yet are missing.
+     *
+     * @return the usage of the local storage per user
+     */
+    @NotNull List<PeerStorageUsage> getStorageUsage();
+
+    /**
+     * Returns the ids of all own blocks in the local storage.
+     *
+     * @return the ids of the blocks
+     */
+    @NotNull List<String> getBlockIds();
+
+    /**
+     * Migrates the own blocks and the blocks of all users to the configured layout of bucket-directories. The blocks of
+     * users are only migrated if they are stored as files.
+     *
+     * @return the number of moved blocks
+     */
+    long migrateStorageLayout();
 }
@@ -1,8 +1,11 @@
 package at.lucny.p2pbackup.localstorage.service;
 
 import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.application.config.PeerStorageType;
+import at.lucny.p2pbackup.backup.support.BackupConstants;
 import at.lucny.p2pbackup.core.support.*;
 import at.lucny.p2pbackup.localstorage.dto.LocalStorageEntry;
+import at.lucny.p2pbackup.localstorage.dto.PeerStorageUsage;
 import at.lucny.p2pbackup.network.dto.BackupBlock;
 import at.lucny.p2pbackup.network.dto.BackupBlockFailure;
 import at.lucny.p2pbackup.user.domain.User;
@@ -10,14 +13,12 @@ import at.lucny.p2pbackup.user.repository.UserRepository;
 import at.lucny.p2pbackup.user.support.UserAddedEvent;
 import at.lucny.p2pbackup.user.support.UserChangedEvent;
 import at.lucny.p2pbackup.user.support.UserDeletedEvent;
-import lombok.SneakyThrows;
 import org.apache.commons.codec.digest.HmacUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.event.TransactionalEventListener;
-import org.springframework.util.CollectionUtils;
-import org.springframework.util.FileSystemUtils;
 import org.springframework.validation.annotation.Validated;
 
 import jakarta.annotation.PostConstruct;
@@ -28,20 +29,16 @@ import java.io.InputStream;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
-import java.util.ArrayList;
-import java.util.Base64;
-import java.util.List;
-import java.util.Optional;
-import java.util.stream.Stream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
 
 @Service
 @Validated
@@ -51,20 +48,31 @@ public class LocalStorageServiceImpl implements LocalStorageService {
 
     public static final String FOLDER_BACKUP = "_BACKUP";
 
-    public static final String FOLDER_DELETED = "_DELETED";
-
     private final P2PBackupProperties p2PBackupProperties;
 
     private final UserRepository userRepository;
 
     private final CryptoUtils cryptoUtils;
 
+    private final StorageLayoutService storageLayoutService;
+
+    private final PeerBlockStorageService peerBlockStorageService;
+
+    private final AsyncTaskExecutor taskExecutor;
+
+    private final Map<String, PeerBlockInventory> inventories = new ConcurrentHashMap<>();
+
     private final FileUtils fileUtils = new FileUtils();
 
-    public LocalStorageServiceImpl(P2PBackupProperties p2PBackupProperties, UserRepository userRepository, CryptoUtils cryptoUtils) {
+    public LocalStorageServiceImpl(P2PBackupProperties p2PBackupProperties, UserRepository userRepository, CryptoUtils cryptoUtils, StorageLayoutService storageLayoutService, List<PeerBlockStorageService> peerBlockStorageServices, AsyncTaskExecutor taskExecutor) {
         this.p2PBackupProperties = p2PBackupProperties;
         this.userRepository = userRepository;
         this.cryptoUtils = cryptoUtils;
+        this.storageLayoutService = storageLayoutService;
+        PeerStorageType peerStorageType = p2PBackupProperties.getPeerStorageType();
+        this.peerBlockStorageService = peerBlockStorageServices.stream().filter(service -> service.getType() == peerStorageType).findFirst()
+                .orElseThrow(() -> new IllegalStateException("no peer-block-storage-service for type " + peerStorageType));
+        this.taskExecutor = taskExecutor;
     }
 
     @Override
@@ -72,6 +80,11 @@ public class LocalStorageServiceImpl implements LocalStorageService {
     public void initializeDirectories() throws IOException {
         Files.createDirectories(p2PBackupProperties.getStorageDir());
         Files.createDirectories(p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP));
+        // walking all blocks takes long, so left over temporary files are deleted in the background. temporary files of
+        // writes started after the start are kept, the timestamps of files are less precise than the clock
+        Instant startedAt = Instant.now().minusSeconds(1);
+        this.taskExecutor.execute(() -> this.fileUtils.deleteTempFilesSilent(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP), startedAt));
+        this.storageLayoutService.initializeDirectory(p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP));
         List<User> users = this.userRepository.findAll();
         for (User user : users) {
             this.initializeDirectories(user.getId());
@@ -83,14 +96,37 @@ public class LocalStorageServiceImpl implements LocalStorageService {
         if (user.isAllowBackupDataFromUser()) {
             LOGGER.info("initializing local-storage-directories for user {}", userId);
             Path userDirectory = this.p2PBackupProperties.getStorageDir().resolve(userId);
-            Files.createDirectories(userDirectory);
-            Path userDirectoryForDeletedBlocks = userDirectory.resolve(FOLDER_DELETED);
-            Files.createDirectories(userDirectoryForDeletedBlocks);
+            this.peerBlockStorageService.initializeDirectory(userDirectory);
+            this.buildInventory(userId, userDirectory);
         } else {
             LOGGER.debug("user {} is not allowed to store backup-data", userId);
         }
     }
 
+    /**
+     * Replaces the inventory of the user with a new one, that is built in the background.
+     */
+    private void buildInventory(String userId, Path userDirectory) {
+        PeerBlockInventory inventory = new PeerBlockInventory();
+        this.inventories.put(userId, inventory);
+        this.taskExecutor.execute(() -> {
+            try {
+                inventory.build(this.peerBlockStorageService.getBlockSizes(userDirectory));
+                LOGGER.info("built inventory of {} blocks with {} bytes for user {}", inventory.getNrOfBlocks(), inventory.getBytes(), userId);
+            } catch (RuntimeException e) {
+                LOGGER.warn("unable to build inventory for user {}", userId, e);
+            }
+        });
+    }
+
+    /**
+     * @return the inventory of the user, or an empty optional if the inventory is not built yet
+     */
+    private Optional<PeerBlockInventory> getBuiltInventory(String userId) {
+        PeerBlockInventory inventory = this.inventories.get(userId);
+        return inventory != null && inventory.isBuilt() ? Optional.of(inventory) : Optional.empty();
+    }
+
     @TransactionalEventListener
     public void afterUserAdded(UserAddedEvent event) throws IOException {
         this.initializeDirectories(event.getUserId());
@@ -104,27 +140,27 @@ public class LocalStorageServiceImpl implements LocalStorageService {
     @TransactionalEventListener
     public void afterUserDeleted(UserDeletedEvent event) throws IOException {
         LOGGER.info("removing local-storage directories for user {}", event.getUserId());
-        Path userDirectory = this.p2PBackupProperties.getStorageDir().resolve(event.getUserId());
-        FileSystemUtils.deleteRecursively(userDirectory);
+        this.inventories.remove(event.getUserId());
+        this.peerBlockStorageService.deleteDirectory(this.p2PBackupProperties.getStorageDir().resolve(event.getUserId()));
     }
 
     @Override
     public LocalStorageEntry saveInLocalStorage(String id, ByteBuffer block) {
         LOGGER.trace("begin saveInLocalBackup({}, {})", id, block);
 
-        Path blockPath = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP).resolve(id);
+        Path blockPath = this.storageLayoutService.resolve(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP), id);
 
         byte[] secret = new byte[16];
         this.cryptoUtils.getSecureRandom().nextBytes(secret);
         Mac mac = HmacUtils.getInitializedMac(CryptoConstants.HMAC_BLOCK_ALGORITHM, secret);
 
         LOGGER.debug("persisting local-backup-block for {}", id);
-        try (MacOutputStream dos = new MacOutputStream(Files.newOutputStream(blockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), mac);
-             WritableByteChannel fileChannel = Channels.newChannel(dos)) {
-            fileChannel.write(block.duplicate());
+        try {
+            this.fileUtils.writeAtomically(blockPath, block);
         } catch (IOException e) {
             throw new IllegalStateException("unable to write block to storage file " + blockPath, e);
         }
+        mac.update(block.duplicate());
         byte[] calculatedMac = mac.doFinal();
 
         String macSecret = Base64.getEncoder().encodeToString(secret);
@@ -137,31 +173,27 @@ public class LocalStorageServiceImpl implements LocalStorageService {
 
     @Override
     public boolean removeFromLocalStorage(String id) {
-        Path blockPath = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP).resolve(id);
+        Optional<Path> blockPath = this.storageLayoutService.locate(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP), id);
+        if (blockPath.isEmpty()) {
+            return true;
+        }
         try {
-            Files.deleteIfExists(blockPath);
+            Files.deleteIfExists(blockPath.get());
             return true;
         } catch (IOException e) {
-            LOGGER.warn("unable to remove block {} with path {} from local storage", id, blockPath);
+            LOGGER.warn("unable to remove block {} with path {} from local storage", id, blockPath.get());
         }
         return false;
     }
 
     @Override
     public void removeFromLocalStorage(String userId, List<String> ids) {
-        Path deleteFolder = this.p2PBackupProperties.getStorageDir().resolve(userId).resolve(FOLDER_DELETED);
-
-        for (String blockId : ids) {
-            Path blockPath = this.p2PBackupProperties.getStorageDir().resolve(userId).resolve(blockId);
-            if (Files.exists(blockPath)) {
-                String filename = LocalDateTime.now(ZoneOffset.UTC).plusMonths(3).toLocalDate().toString() + "_" + blockId;
-                Path destinationPath = deleteFolder.resolve(filename);
-                try {
-                    Files.move(blockPath, destinationPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    LOGGER.warn("unable to move file {} to {}", blockPath, destinationPath);
-                }
-            }
+        // the blocks are kept for some time, in case the user removed them by mistake
+        LocalDate keepUntil = LocalDateTime.now(ZoneOffset.UTC).plusMonths(3).toLocalDate();
+        this.peerBlockStorageService.remove(this.p2PBackupProperties.getStorageDir().resolve(userId), ids, keepUntil);
+        PeerBlockInventory inventory = this.inventories.get(userId);
+        if (inventory != null) {
+            ids.forEach(inventory::remove);
         }
     }
 
@@ -180,20 +212,32 @@ public class LocalStorageServiceImpl implements LocalStorageService {
             return Optional.of(BackupBlockFailure.BackupBlockFailureType.USER_NOT_ALLOWED);
         }
 
-        Path blockPath = this.p2PBackupProperties.getStorageDir().resolve(userId).resolve(backupBlock.getId());
+        Path userDirectory = this.p2PBackupProperties.getStorageDir().resolve(userId);
         Mac mac = HmacUtils.getInitializedMac(CryptoConstants.HMAC_BLOCK_ALGORITHM, Base64.getDecoder().decode(backupBlock.getMacSecret()));
-        if (Files.exists(blockPath)) {
-            try (InputStream fis = Files.newInputStream(blockPath, StandardOpenOption.READ)) {
-                HmacUtils.updateHmac(mac, fis);
-                String macOfBlock = Base64.getEncoder().encodeToString(mac.doFinal());
-                if (!macOfBlock.equals(backupBlock.getMacOfBlock())) {
-                    LOGGER.debug("received backup block {} of user {} is already saved", backupBlock.getId(), userId);
-                    LOGGER.trace("end saveFromUserInLocalBackup: return {}", BackupBlockFailure.BackupBlockFailureType.BLOCK_ALREADY_SAVED_WITH_OTHER_MAC);
-                    return Optional.of(BackupBlockFailure.BackupBlockFailureType.BLOCK_ALREADY_SAVED_WITH_OTHER_MAC);
-                } else {
-                    LOGGER.debug("block {} already saved", backupBlock.getId());
-                    LOGGER.trace("end saveFromUserInLocalBackup: return {}", Optional.empty());
-                    return Optional.empty();
+        if (this.existsInLocalStorage(userId, backupBlock.getId())) {
+            Optional<String> savedMac = this.peerBlockStorageService.getMac(userDirectory, backupBlock.getId());
+            if (savedMac.isPresent() && savedMac.get().equals(backupBlock.getMacOfBlock())) {
+                LOGGER.debug("block {} already saved", backupBlock.getId());
+                LOGGER.trace("end saveFromUserInLocalBackup: return {}", Optional.empty());
+                return Optional.empty();
+            }
+
+            try {
+                Optional<InputStream> existingBlock = this.peerBlockStorageService.load(userDirectory, backupBlock.getId());
+                if (existingBlock.isPresent()) {
+                    try (InputStream is = existingBlock.get()) {
+                        HmacUtils.updateHmac(mac, is);
+                    }
+                    String macOfBlock = Base64.getEncoder().encodeToString(mac.doFinal());
+                    if (!macOfBlock.equals(backupBlock.getMacOfBlock())) {
+                        LOGGER.debug("received backup block {} of user {} is already saved", backupBlock.getId(), userId);
+                        LOGGER.trace("end saveFromUserInLocalBackup: return {}", BackupBlockFailure.BackupBlockFailureType.BLOCK_ALREADY_SAVED_WITH_OTHER_MAC);
+                        return Optional.of(BackupBlockFailure.BackupBlockFailureType.BLOCK_ALREADY_SAVED_WITH_OTHER_MAC);
+                    } else {
+                        LOGGER.debug("block {} already saved", backupBlock.getId());
+                        LOGGER.trace("end saveFromUserInLocalBackup: return {}", Optional.empty());
+                        return Optional.empty();
+                    }
                 }
             } catch (IOException ioe) {
                 LOGGER.warn("unable to save received block {}", backupBlock.getId());
@@ -204,30 +248,37 @@ public class LocalStorageServiceImpl implements LocalStorageService {
             }
         }
 
-        try (ReadableByteChannel downloadChannel = Channels.newChannel(new MacInputStream(new URL(backupBlock.getDownloadURL()).openStream(), mac));
-             FileChannel fileChannel = FileChannel.open(blockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            fileChannel.transferFrom(downloadChannel, 0, Long.MAX_VALUE);
+        // check afterwards if the mac was correct, because this should be the exception
+        BooleanSupplier macValidator = () -> {
+            String macOfBlock = Base64.getEncoder().encodeToString(mac.doFinal());
+            if (!macOfBlock.equals(backupBlock.getMacOfBlock())) {
+                // the block was modified on the cloud-server
+                LOGGER.warn("mac ({}) of received block {} is not equal to expected mac ({})", macOfBlock, backupBlock.getId(), backupBlock.getMacOfBlock());
+                return false;
+            }
+            return true;
+        };
+        Optional<Long> savedSize;
+        try (ReadableByteChannel downloadChannel = Channels.newChannel(new MacInputStream(new URL(backupBlock.getDownloadURL()).openStream(), mac))) {
+            savedSize = this.peerBlockStorageService.save(userDirectory, backupBlock.getId(), backupBlock.getMacOfBlock(), downloadChannel, macValidator);
         } catch (FileNotFoundException fnfe) {
             LOGGER.info("backup block {} from url {} from user {} not found", backupBlock.getId(), backupBlock.getDownloadURL(), userId);
             LOGGER.trace("end saveFromUserInLocalBackup: return {}", BackupBlockFailure.BackupBlockFailureType.BLOCK_NOT_FOUND);
             return Optional.of(BackupBlockFailure.BackupBlockFailureType.BLOCK_NOT_FOUND);
         } catch (IOException e) {
             LOGGER.warn("unable to save received backup block {} from url {} from user {}", backupBlock.getId(), backupBlock.getDownloadURL(), userId, e);
-            this.fileUtils.deleteIfExistsSilent(blockPath);
             LOGGER.trace("end saveFromUserInLocalBackup: return {}", BackupBlockFailure.BackupBlockFailureType.GENERAL);
             return Optional.of(BackupBlockFailure.BackupBlockFailureType.GENERAL);
         }
 
-        // check afterwards if the mac was correct, because this should be the exception
-        String macOfBlock = Base64.getEncoder().encodeToString(mac.doFinal());
-
-        if (!macOfBlock.equals(backupBlock.getMacOfBlock())) {
-            // the block was modified on the cloud-server
-            LOGGER.warn("mac ({}) of received block {} is not equal to expected mac ({})", macOfBlock, backupBlock.getId(), backupBlock.getMacOfBlock());
-            this.fileUtils.deleteIfExistsSilent(blockPath);
+        if (savedSize.isEmpty()) {
             LOGGER.trace("end saveFromUserInLocalBackup: return {}", BackupBlockFailure.BackupBlockFailureType.WRONG_MAC);
             return Optional.of(BackupBlockFailure.BackupBlockFailureType.WRONG_MAC);
         } else {
+            PeerBlockInventory inventory = this.inventories.get(userId);
+            if (inventory != null) {
+                inventory.add(backupBlock.getId(), savedSize.get());
+            }
             LOGGER.debug("saved block {}", backupBlock.getId());
             LOGGER.trace("end saveFromUserInLocalBackup: return Optional.empty()");
             return Optional.empty();
@@ -236,78 +287,80 @@ public class LocalStorageServiceImpl implements LocalStorageService {
 
     @Override
     public Optional<Path> loadFromLocalStorage(String id) {
-        Path blockFile = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP).resolve(id);
-        if (Files.exists(blockFile)) {
-            return Optional.of(blockFile);
-        }
-        return Optional.empty();
+        return this.storageLayoutService.locate(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP), id);
     }
 
     @Override
-    public Optional<Path> loadFromLocalStorage(String userId, String id) {
-        Path blockFile = this.p2PBackupProperties.getStorageDir().resolve(userId).resolve(id);
-        if (Files.exists(blockFile)) {
-            return Optional.of(blockFile);
+    public boolean existsInLocalStorage(String userId, String id) {
+        Optional<PeerBlockInventory> inventory = this.getBuiltInventory(userId);
+        if (inventory.isPresent()) {
+            return inventory.get().contains(id);
         }
-        return Optional.empty();
+        return this.peerBlockStorageService.contains(this.p2PBackupProperties.getStorageDir().resolve(userId), id);
     }
 
     @Override
-    public List<Path> loadFromLocalStorageByPrefix(String userId, String prefix) {
-        List<Path> files = this.loadAllFromLocalStorage(userId);
-        if (CollectionUtils.isEmpty(files)) {
-            return new ArrayList<>();
+    public Optional<InputStream> loadFromLocalStorage(String userId, String id) throws IOException {
+        if (this.getBuiltInventory(userId).map(inventory -> !inventory.contains(id)).orElse(false)) {
+            return Optional.empty();
         }
-        return files.stream().filter(p -> p.getFileName().toString().startsWith(prefix)).toList();
+        return this.peerBlockStorageService.load(this.p2PBackupProperties.getStorageDir().resolve(userId), id);
     }
 
-    private List<Path> loadAllFromLocalStorage(String userId) {
-        LOGGER.trace("begin loadAllFromLocalStorage(userId={})", userId);
-        List<Path> files = null;
-        Path userDir = this.p2PBackupProperties.getStorageDir().resolve(userId);
-        if (!Files.isDirectory(userDir)) {
-            return new ArrayList<>();
-        }
-        try (Stream<Path> allPaths = Files.list(userDir)) {
-            files = this.applyFileFilter(allPaths).toList();
-        } catch (IOException ioe) {
-            LOGGER.warn("unable to load blocks for user {}", userId);
-            return new ArrayList<>();
+    @Override
+    public Optional<String> getLatestBackupIndexBlockId(String userId) {
+        Optional<PeerBlockInventory> inventory = this.getBuiltInventory(userId);
+        if (inventory.isPresent()) {
+            return inventory.get().getLatestBackupIndexBlockId();
         }
-
-        LOGGER.trace("end loadAllFromLocalStorage: return {}", files);
-        return files;
+        return this.getBlockIds(userId).stream().filter(id -> id.startsWith(BackupConstants.BACKUP_INDEX_BLOCK_PREFIX)).max(Comparator.naturalOrder());
     }
 
     @Override
     public List<String> getBlockIds(String userId) {
         LOGGER.trace("begin getBlockIds");
-        List<Path> blocks = this.loadAllFromLocalStorage(userId);
-        if (CollectionUtils.isEmpty(blocks)) {
-            return new ArrayList<>();
+        Optional<PeerBlockInventory> inventory = this.getBuiltInventory(userId);
+        List<String> blockIds = inventory.isPresent() ? inventory.get().getBlockIds()
+                : new ArrayList<>(this.peerBlockStorageService.getBlockSizes(this.p2PBackupProperties.getStorageDir().resolve(userId)).keySet());
+        LOGGER.trace("end getBlockIds: return {}", blockIds);
+        return blockIds;
+    }
+
+    @Override
+    public List<PeerStorageUsage> getStorageUsage() {
+        List<PeerStorageUsage> usages = new ArrayList<>();
+        for (Map.Entry<String, PeerBlockInventory> entry : new TreeMap<>(this.inventories).entrySet()) {
+            if (entry.getValue().isBuilt()) {
+                usages.add(new PeerStorageUsage(entry.getKey(), entry.getValue().getNrOfBlocks(), entry.getValue().getBytes()));
+            }
         }
-        Path userDir = this.p2PBackupProperties.getStorageDir().resolve(userId);
-        List<String> files = blocks.stream().map(p -> userDir.relativize(p).toString()).toList();
-        LOGGER.trace("end getBlockIds: return {}", files);
-        return files;
+        return usages;
+    }
+
+    @Override
+    public List<String> getBlockIds() {
+        return this.getFiles().stream().map(p -> p.getFileName().toString()).toList();
+    }
+
+    @Override
+    public long migrateStorageLayout() {
+        long nrOfMovedBlocks = this.storageLayoutService.migrate(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP));
+        if (this.peerBlockStorageService.getType() != PeerStorageType.FILES) {
+            return nrOfMovedBlocks;
+        }
+        for (User user : this.userRepository.findAll()) {
+            Path userDirectory = this.p2PBackupProperties.getStorageDir().resolve(user.getId());
+            if (Files.isDirectory(userDirectory)) {
+                nrOfMovedBlocks += this.storageLayoutService.migrate(userDirectory);
+            }
+        }
+        return nrOfMovedBlocks;
     }
 
-    @SneakyThrows
     public List<Path> getFiles() {
         LOGGER.trace("begin getFiles");
-        List<Path> files = null;
-        try (Stream<Path> allPaths = Files.list(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP))) {
-            files = this.applyFileFilter(allPaths).toList();
-        }
+        List<Path> files = this.storageLayoutService.list(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_BACKUP));
         LOGGER.trace("end getFiles: return {}", files);
         return files;
     }
-
-    private Stream<Path> applyFileFilter(Stream<Path> paths) {
-        return paths
-                .filter(p -> !p.getFileName().endsWith(FOLDER_BACKUP))
-                .filter(p -> !p.getFileName().endsWith(FOLDER_DELETED))
-                .filter(Files::isReadable)
-                .filter(Files::isRegularFile);
-    }
 }
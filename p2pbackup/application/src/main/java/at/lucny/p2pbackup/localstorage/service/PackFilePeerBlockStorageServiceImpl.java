@@ -0,0 +1,194 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.PackStorageProperties;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.application.config.PeerStorageType;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.validation.annotation.Validated;
+
+import jakarta.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Appends the blocks of a user to the segment-files of a {@link PackFileStore} in the folder {@link #FOLDER_PACK} of the
+ * storage-directory. This keeps the number of files small, even if a user saves millions of blocks. The segment-files
+ * are compacted periodically.
+ */
+@Service
+@Validated
+public class PackFilePeerBlockStorageServiceImpl implements PeerBlockStorageService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackFilePeerBlockStorageServiceImpl.class);
+
+    public static final String FOLDER_PACK = "_PACK";
+
+    private final PackStorageProperties packStorageProperties;
+
+    private final Map<Path, PackFileStore> stores = new ConcurrentHashMap<>();
+
+    public PackFilePeerBlockStorageServiceImpl(P2PBackupProperties p2PBackupProperties, TaskScheduler taskScheduler) {
+        this.packStorageProperties = p2PBackupProperties.getPackStorageProperties();
+
+        if (p2PBackupProperties.getPeerStorageType() == PeerStorageType.PACK_FILES) {
+            taskScheduler.scheduleWithFixedDelay(this::compact, Instant.now().plus(this.packStorageProperties.getDurationBetweenCompactions()), this.packStorageProperties.getDurationBetweenCompactions());
+        }
+    }
+
+    @Override
+    public PeerStorageType getType() {
+        return PeerStorageType.PACK_FILES;
+    }
+
+    private PackFileStore getStore(Path directory) {
+        return this.stores.computeIfAbsent(directory, d -> {
+            try {
+                return new PackFileStore(d.resolve(FOLDER_PACK), this.packStorageProperties.getSegmentSize().toBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException("unable to open segment-files of " + d, e);
+            }
+        });
+    }
+
+    /**
+     * Returns the store of the storage-directory, without creating it if the user never saved a block.
+     */
+    private Optional<PackFileStore> findStore(Path directory) {
+        if (this.stores.containsKey(directory) || Files.isDirectory(directory.resolve(FOLDER_PACK))) {
+            return Optional.of(this.getStore(directory));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void initializeDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.getStore(directory);
+    }
+
+    @Override
+    public void deleteDirectory(Path directory) throws IOException {
+        PackFileStore store = this.stores.remove(directory);
+        if (store != null) {
+            store.close();
+        }
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Override
+    public boolean contains(Path directory, String id) {
+        return this.findStore(directory).map(store -> store.contains(id)).orElse(false);
+    }
+
+    @Override
+    public Optional<String> getMac(Path directory, String id) {
+        return this.findStore(directory).flatMap(store -> store.getLocation(id)).map(PackFileStore.Location::mac);
+    }
+
+    @Override
+    public Optional<InputStream> load(Path directory, String id) throws IOException {
+        Optional<PackFileStore> store = this.findStore(directory);
+        if (store.isEmpty()) {
+            return Optional.empty();
+        }
+        return store.get().read(id).map(ByteArrayInputStream::new);
+    }
+
+    @Override
+    public Optional<Long> save(Path directory, String id, String mac, ReadableByteChannel data, BooleanSupplier validator) throws IOException {
+        // the block is read completely before it is appended, so a slow download doesn't block the segment-file
+        byte[] block = Channels.newInputStream(data).readAllBytes();
+        if (!validator.getAsBoolean()) {
+            return Optional.empty();
+        }
+        this.getStore(directory).append(id, block, mac);
+        return Optional.of((long) block.length);
+    }
+
+    @Override
+    public Map<String, Long> getBlockSizes(Path directory) {
+        return this.findStore(directory).map(PackFileStore::getBlockSizes).orElseGet(HashMap::new);
+    }
+
+    @Override
+    public void remove(Path directory, List<String> ids, LocalDate keepUntil) {
+        Optional<PackFileStore> store = this.findStore(directory);
+        if (store.isEmpty()) {
+            return;
+        }
+        try {
+            store.get().remove(ids, keepUntil);
+        } catch (IOException e) {
+            LOGGER.warn("unable to remove blocks {} of storage-directory {}", ids, directory, e);
+        }
+    }
+
+    /**
+     * Compacts the segment-files of the storage-directory. Removed blocks are forgotten oldest first and the
+     * stop-condition is checked before the blocks of every further date are forgotten. The rate-limiter doesn't apply,
+     * because the data of removed blocks is reclaimed by deleting whole segment-files.
+     */
+    @Override
+    public long reclaim(Path directory, LocalDate expiredBefore, RateLimiter rateLimiter, BooleanSupplier stopCondition) {
+        Optional<PackFileStore> store = this.findStore(directory);
+        if (store.isEmpty()) {
+            return 0;
+        }
+        try {
+            return store.get().compact(expiredBefore, this.packStorageProperties.getCompactionThreshold(), stopCondition);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("unable to compact segment-files of {}", directory, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Compacts the segment-files of all storage-directories.
+     *
+     * @return the number of reclaimed bytes
+     */
+    public long compact() {
+        long reclaimedBytes = 0;
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        for (Map.Entry<Path, PackFileStore> entry : this.stores.entrySet()) {
+            try {
+                reclaimedBytes += entry.getValue().compact(today, this.packStorageProperties.getCompactionThreshold());
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("unable to compact segment-files of {}", entry.getKey(), e);
+            }
+        }
+        return reclaimedBytes;
+    }
+
+    @PreDestroy
+    public void close() {
+        for (PackFileStore store : this.stores.values()) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                LOGGER.warn("unable to close segment-files", e);
+            }
+        }
+        this.stores.clear();
+    }
+}
@@ -0,0 +1,557 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.core.support.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+/**
+ * The segment-files and the index of the blocks of one user. Blocks are appended to the current segment-file, which is
+ * sealed when it reaches the segment-size. The index is a journal of records that map the id of a block to its segment,
+ * offset, length and mac, or mark a block as removed. A record is only appended after the data it refers to was forced to
+ * the segment-file, so an interrupted write or a power loss leaves only unreferenced data in a segment-file and a torn
+ * record at the end of the journal, which is cut off when the journal is read. Every record is forced to the index before
+ * the call that wrote it returns, so a saved or removed block is not lost anymore once the call returned.
+ * <p>
+ * Removed blocks can't be loaded anymore, but their data is kept until their grace-period ended. The space of removed
+ * blocks is reclaimed by {@link #compact(LocalDate, int, BooleanSupplier)}, which copies the remaining blocks of sealed segment-files into
+ * a new segment-file and rewrites the index. Blocks are copied without blocking reads and writes, only the update of the
+ * locations and the index is exclusive.
+ */
+class PackFileStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackFileStore.class);
+
+    static final String INDEX_FILE = "index";
+
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte RECORD_SAVE = 1;
+
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+
+    record Location(int segment, long offset, int length, String mac) {
+    }
+
+    private record RemovedBlock(Location location, long keepUntil) {
+    }
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    private final FileUtils fileUtils = new FileUtils();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Location> blocks = new HashMap<>();
+
+    private final Map<String, RemovedBlock> removedBlocks = new HashMap<>();
+
+    private FileChannel index;
+
+    private int currentSegmentNr;
+
+    /**
+     * the highest number of a segment-file, which is either the current segment-file or the target of a compaction
+     */
+    private int lastSegmentNr;
+
+    private FileChannel currentSegment;
+
+    PackFileStore(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        this.fileUtils.deleteTempFilesSilent(directory);
+
+        long validIndexLength = this.readIndex();
+        this.index = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (this.index.size() > validIndexLength) {
+            LOGGER.warn("cutting off {} bytes of torn records from the index of {}", this.index.size() - validIndexLength, directory);
+            this.index.truncate(validIndexLength);
+        }
+        this.index.position(validIndexLength);
+
+        this.currentSegmentNr = this.getSegmentNrs().stream().max(Integer::compareTo).orElse(1);
+        this.lastSegmentNr = this.currentSegmentNr;
+        this.currentSegment = FileChannel.open(this.getSegmentPath(this.currentSegmentNr), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Replays the journal of the index.
+     *
+     * @return the length of the journal up to the last complete record
+     */
+    private long readIndex() throws IOException {
+        Path indexPath = this.directory.resolve(INDEX_FILE);
+        if (!Files.exists(indexPath)) {
+            return 0;
+        }
+
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath, StandardOpenOption.READ)))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > Short.MAX_VALUE * 4) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (this.checksum(payload) != checksum) {
+                    break;
+                }
+                this.applyRecord(ByteBuffer.wrap(payload));
+                validLength += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return validLength;
+    }
+
+    private void applyRecord(ByteBuffer payload) {
+        byte type = payload.get();
+        String id = this.readString(payload);
+        if (type == RECORD_SAVE) {
+            int segment = payload.getInt();
+            long offset = payload.getLong();
+            int length = payload.getInt();
+            String mac = this.readString(payload);
+            this.blocks.put(id, new Location(segment, offset, length, mac));
+            this.removedBlocks.remove(id);
+        } else if (type == RECORD_REMOVE) {
+            long keepUntil = payload.getLong();
+            Location location = this.blocks.remove(id);
+            if (location != null) {
+                this.removedBlocks.put(id, new RemovedBlock(location, keepUntil));
+            }
+        } else {
+            throw new IllegalStateException("unknown record-type " + type + " in index of " + this.directory);
+        }
+    }
+
+    boolean contains(String id) {
+        this.lock.readLock().lock();
+        try {
+            return this.blocks.containsKey(id);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    Optional<Location> getLocation(String id) {
+        this.lock.readLock().lock();
+        try {
+            return Optional.ofNullable(this.blocks.get(id));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    Map<String, Long> getBlockSizes() {
+        this.lock.readLock().lock();
+        try {
+            Map<String, Long> blockSizes = new HashMap<>();
+            this.blocks.forEach((id, location) -> blockSizes.put(id, (long) location.length()));
+            return blockSizes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the data of the block.
+     *
+     * @param id the id of the block
+     * @return the data of the block, or an empty optional if the block is missing or removed
+     */
+    Optional<byte[]> read(String id) throws IOException {
+        this.lock.readLock().lock();
+        try {
+            Location location = this.blocks.get(id);
+            if (location == null) {
+                return Optional.empty();
+            }
+            return Optional.of(this.read(location));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private byte[] read(Location location) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(location.length());
+        if (location.segment() == this.currentSegmentNr) {
+            this.readFully(this.currentSegment, data, location.offset());
+        } else {
+            try (FileChannel segment = FileChannel.open(this.getSegmentPath(location.segment()), StandardOpenOption.READ)) {
+                this.readFully(segment, data, location.offset());
+            }
+        }
+        return data.array();
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer data, long offset) throws IOException {
+        long position = offset;
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) {
+                throw new EOFException("segment-file of " + this.directory + " ends before " + (offset + data.capacity()));
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Appends the block to the current segment-file. A block that is already saved or was removed is replaced.
+     *
+     * @param id   the id of the block
+     * @param data the data of the block
+     * @param mac  the mac of the block
+     */
+    void append(String id, byte[] data, String mac) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            Location location = this.appendData(data, mac);
+            // the data must be durable before the index refers to it
+            this.currentSegment.force(false);
+            this.writeRecords(List.of(this.createSaveRecord(id, location)));
+            this.blocks.put(id, location);
+            // a removed block that is saved again must not be reclaimed with the data of its removed version
+            this.removedBlocks.remove(id);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private Location appendData(byte[] data, String mac) throws IOException {
+        if (this.currentSegment.size() >= this.segmentSize) {
+            this.currentSegment.force(true);
+            this.currentSegment.close();
+            this.currentSegmentNr = ++this.lastSegmentNr;
+            this.currentSegment = FileChannel.open(this.getSegmentPath(this.currentSegmentNr), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            LOGGER.debug("started segment-file {} of {}", this.currentSegmentNr, this.directory);
+        }
+
+        long offset = this.currentSegment.size();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += this.currentSegment.write(buffer, position);
+        }
+        return new Location(this.currentSegmentNr, offset, data.length, mac);
+    }
+
+    /**
+     * Removes the blocks. The data of the blocks is kept until the given date.
+     *
+     * @param ids       the ids of the blocks
+     * @param keepUntil the date until the data of the blocks is kept
+     */
+    void remove(List<String> ids, LocalDate keepUntil) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            List<ByteBuffer> records = new ArrayList<>();
+            for (String id : ids) {
+                if (this.blocks.containsKey(id)) {
+                    records.add(this.createRemoveRecord(id, keepUntil.toEpochDay()));
+                }
+            }
+            this.writeRecords(records);
+            for (String id : ids) {
+                Location location = this.blocks.remove(id);
+                if (location != null) {
+                    this.removedBlocks.put(id, new RemovedBlock(location, keepUntil.toEpochDay()));
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the removed blocks whose grace-period ended before the given date and compacts every sealed segment-file
+     * of which at least the given percentage is unused. The removed blocks are forgotten oldest first, one date of
+     * their grace-period after the other, and the segment-files are compacted after each date, so the compaction can
+     * stop as soon as enough space was reclaimed.
+     *
+     * @param expiredBefore the date before which the grace-period of a removed block must have ended
+     * @param threshold     the percentage of unused space a segment-file must reach to be compacted
+     * @param stopCondition checked before every date, the compaction stops once it returns true
+     * @return the number of reclaimed bytes
+     */
+    long compact(LocalDate expiredBefore, int threshold, BooleanSupplier stopCondition) throws IOException {
+        List<Long> expiredDays;
+        this.lock.readLock().lock();
+        try {
+            expiredDays = this.removedBlocks.values().stream().map(RemovedBlock::keepUntil)
+                    .filter(keepUntil -> keepUntil < expiredBefore.toEpochDay()).distinct().sorted().toList();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        if (expiredDays.isEmpty()) {
+            return stopCondition.getAsBoolean() ? 0 : this.compact(Long.MIN_VALUE, threshold);
+        }
+        long reclaimedBytes = 0;
+        for (Long expiredDay : expiredDays) {
+            if (stopCondition.getAsBoolean()) {
+                break;
+            }
+            reclaimedBytes += this.compact(expiredDay, threshold);
+        }
+        return reclaimedBytes;
+    }
+
+    /**
+     * Forgets the removed blocks whose grace-period ended before the given date and compacts every sealed segment-file
+     * of which at least the given percentage is unused.
+     *
+     * @see #compact(LocalDate, int, BooleanSupplier)
+     */
+    long compact(LocalDate expiredBefore, int threshold) throws IOException {
+        return this.compact(expiredBefore, threshold, () -> false);
+    }
+
+    /**
+     * Forgets the removed blocks whose grace-period ended on or before the given day and compacts every sealed
+     * segment-file of which at least the given percentage is unused. The remaining blocks of such segment-files are
+     * copied to a new segment-file, the index is rewritten and the segment-file is deleted afterwards.
+     * <p>
+     * The blocks are copied without holding the exclusive lock. A block that is saved again or removed while it is copied
+     * keeps its new state, the copy of a block that was saved again is left as unused data in the new segment-file.
+     *
+     * @param lastExpiredDay the last day, as epoch-day, on which the grace-period of a forgotten block ended
+     * @param threshold      the percentage of unused space a segment-file must reach to be compacted
+     * @return the number of reclaimed bytes
+     */
+    private synchronized long compact(long lastExpiredDay, int threshold) throws IOException {
+        boolean expiredBlocks;
+        Map<Integer, Map<String, Location>> blocksToCopy = new TreeMap<>();
+        long reclaimedBytes = 0;
+        int targetSegmentNr;
+        this.lock.writeLock().lock();
+        try {
+            expiredBlocks = this.removedBlocks.values().removeIf(removedBlock -> removedBlock.keepUntil() <= lastExpiredDay);
+
+            Map<Integer, Long> usedBytes = new HashMap<>();
+            this.blocks.values().forEach(location -> usedBytes.merge(location.segment(), (long) location.length(), Long::sum));
+            this.removedBlocks.values().forEach(removedBlock -> usedBytes.merge(removedBlock.location().segment(), (long) removedBlock.location().length(), Long::sum));
+
+            for (Integer segmentNr : this.getSegmentNrs()) {
+                long size = Files.size(this.getSegmentPath(segmentNr));
+                long unusedBytes = size - usedBytes.getOrDefault(segmentNr, 0L);
+                if (segmentNr != this.currentSegmentNr && unusedBytes * 100 >= size * threshold) {
+                    blocksToCopy.put(segmentNr, new HashMap<>());
+                    reclaimedBytes += unusedBytes;
+                }
+            }
+            this.blocks.forEach((id, location) -> this.addBlockToCopy(blocksToCopy, id, location));
+            this.removedBlocks.forEach((id, removedBlock) -> this.addBlockToCopy(blocksToCopy, id, removedBlock.location()));
+
+            if (!expiredBlocks && blocksToCopy.isEmpty()) {
+                return 0;
+            }
+            // the number of the new segment-file is reserved, so the current segment-file can't be sealed to the same number
+            targetSegmentNr = blocksToCopy.values().stream().allMatch(Map::isEmpty) ? 0 : ++this.lastSegmentNr;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        Map<String, Location[]> copiedBlocks = this.copyBlocks(blocksToCopy, targetSegmentNr);
+
+        this.lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Location[]> entry : copiedBlocks.entrySet()) {
+                this.replaceLocation(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            this.writeIndex();
+            for (Integer segmentNr : blocksToCopy.keySet()) {
+                Files.delete(this.getSegmentPath(segmentNr));
+            }
+            LOGGER.info("compacted {} segment-files of {} and reclaimed {} bytes", blocksToCopy.size(), this.directory, reclaimedBytes);
+            return reclaimedBytes;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void addBlockToCopy(Map<Integer, Map<String, Location>> blocksToCopy, String id, Location location) {
+        Map<String, Location> blocksOfSegment = blocksToCopy.get(location.segment());
+        if (blocksOfSegment != null) {
+            blocksOfSegment.put(id, location);
+        }
+    }
+
+    /**
+     * Copies the blocks into the new segment-file. The new segment-file is forced before it is returned, so the index can
+     * refer to the copied data.
+     *
+     * @return the previous and the new location of every copied block
+     */
+    private Map<String, Location[]> copyBlocks(Map<Integer, Map<String, Location>> blocksToCopy, int targetSegmentNr) throws IOException {
+        Map<String, Location[]> copiedBlocks = new HashMap<>();
+        if (targetSegmentNr == 0) {
+            return copiedBlocks;
+        }
+        try (FileChannel target = FileChannel.open(this.getSegmentPath(targetSegmentNr), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = target.size();
+            for (Map.Entry<Integer, Map<String, Location>> segmentEntry : blocksToCopy.entrySet()) {
+                try (FileChannel segment = FileChannel.open(this.getSegmentPath(segmentEntry.getKey()), StandardOpenOption.READ)) {
+                    for (Map.Entry<String, Location> entry : segmentEntry.getValue().entrySet()) {
+                        Location location = entry.getValue();
+                        ByteBuffer data = ByteBuffer.allocate(location.length());
+                        this.readFully(segment, data, location.offset());
+                        data.flip();
+                        long position = offset;
+                        while (data.hasRemaining()) {
+                            position += target.write(data, position);
+                        }
+                        copiedBlocks.put(entry.getKey(), new Location[]{location, new Location(targetSegmentNr, offset, location.length(), location.mac())});
+                        offset = position;
+                    }
+                }
+            }
+            target.force(true);
+        }
+        return copiedBlocks;
+    }
+
+    /**
+     * Replaces the location of a copied block, unless the block was saved again or was forgotten while it was copied.
+     */
+    private void replaceLocation(String id, Location previousLocation, Location newLocation) {
+        if (previousLocation.equals(this.blocks.get(id))) {
+            this.blocks.put(id, newLocation);
+            return;
+        }
+        RemovedBlock removedBlock = this.removedBlocks.get(id);
+        if (removedBlock != null && previousLocation.equals(removedBlock.location())) {
+            this.removedBlocks.put(id, new RemovedBlock(newLocation, removedBlock.keepUntil()));
+        }
+    }
+
+    /**
+     * Replaces the journal of the index with a journal that contains only the current state.
+     */
+    private void writeIndex() throws IOException {
+        Path tempFile = Files.createTempFile(this.directory, INDEX_FILE + ".", FileUtils.TEMP_FILE_SUFFIX);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.WRITE))) {
+                for (Map.Entry<String, Location> entry : this.blocks.entrySet()) {
+                    this.write(out, this.createSaveRecord(entry.getKey(), entry.getValue()));
+                }
+                for (Map.Entry<String, RemovedBlock> entry : this.removedBlocks.entrySet()) {
+                    this.write(out, this.createSaveRecord(entry.getKey(), entry.getValue().location()));
+                    this.write(out, this.createRemoveRecord(entry.getKey(), entry.getValue().keepUntil()));
+                }
+            }
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            this.index.close();
+            Files.move(tempFile, this.directory.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            this.fileUtils.deleteIfExistsSilent(tempFile);
+            if (!this.index.isOpen()) {
+                this.index = FileChannel.open(this.directory.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        }
+    }
+
+    private void writeRecords(List<ByteBuffer> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        for (ByteBuffer record : records) {
+            while (record.hasRemaining()) {
+                this.index.write(record);
+            }
+        }
+        this.index.force(false);
+    }
+
+    private void write(OutputStream out, ByteBuffer record) throws IOException {
+        out.write(record.array(), record.position(), record.remaining());
+    }
+
+    private ByteBuffer createSaveRecord(String id, Location location) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] macBytes = location.mac().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + Short.BYTES + idBytes.length + Integer.BYTES + Long.BYTES + Integer.BYTES + Short.BYTES + macBytes.length);
+        payload.put(RECORD_SAVE).putShort((short) idBytes.length).put(idBytes);
+        payload.putInt(location.segment()).putLong(location.offset()).putInt(location.length());
+        payload.putShort((short) macBytes.length).put(macBytes);
+        return this.createRecord(payload.array());
+    }
+
+    private ByteBuffer createRemoveRecord(String id, long keepUntil) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + Short.BYTES + idBytes.length + Long.BYTES);
+        payload.put(RECORD_REMOVE).putShort((short) idBytes.length).put(idBytes).putLong(keepUntil);
+        return this.createRecord(payload.array());
+    }
+
+    private ByteBuffer createRecord(byte[] payload) {
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length).putInt(payload.length).putInt(this.checksum(payload)).put(payload).flip();
+    }
+
+    private int checksum(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private String readString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getShort()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path getSegmentPath(int segmentNr) {
+        return this.directory.resolve(String.format("%08d", segmentNr) + SEGMENT_SUFFIX);
+    }
+
+    private List<Integer> getSegmentNrs() throws IOException {
+        try (var files = Files.list(this.directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            this.index.close();
+            this.currentSegment.close();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.backup.support.BackupConstants;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ids and sizes of the blocks a user saved, sorted by id, so existence-, size- and prefix-queries are answered
+ * without touching the storage. The ids of the backup-index-blocks are additionally kept in their own set, because the
+ * latest of them is requested whenever the user recovers its backup-index.
+ * <p>
+ * The inventory is built from the storage in the background, while it is built the storage itself has to be queried.
+ * Blocks that are saved or removed during the build are applied immediately and not overwritten by the build.
+ */
+class PeerBlockInventory {
+
+    private final ConcurrentNavigableMap<String, Long> blocks = new ConcurrentSkipListMap<>();
+
+    private final NavigableSet<String> backupIndexBlockIds = new ConcurrentSkipListSet<>();
+
+    private final Set<String> removedWhileBuilding = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile boolean built;
+
+    /**
+     * Adds the blocks read from the storage and marks the inventory as built.
+     *
+     * @param storedBlocks the ids and sizes of the blocks in the storage
+     */
+    void build(Map<String, Long> storedBlocks) {
+        for (Map.Entry<String, Long> entry : storedBlocks.entrySet()) {
+            if (!this.removedWhileBuilding.contains(entry.getKey()) && this.blocks.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                this.bytes.addAndGet(entry.getValue());
+                this.addBackupIndexBlockId(entry.getKey());
+            }
+        }
+        this.built = true;
+        this.removedWhileBuilding.clear();
+    }
+
+    boolean isBuilt() {
+        return this.built;
+    }
+
+    void add(String id, long size) {
+        Long previousSize = this.blocks.put(id, size);
+        this.bytes.addAndGet(size - (previousSize != null ? previousSize : 0));
+        this.addBackupIndexBlockId(id);
+    }
+
+    private void addBackupIndexBlockId(String id) {
+        if (id.startsWith(BackupConstants.BACKUP_INDEX_BLOCK_PREFIX)) {
+            this.backupIndexBlockIds.add(id);
+        }
+    }
+
+    void remove(String id) {
+        if (!this.built) {
+            this.removedWhileBuilding.add(id);
+        }
+        Long previousSize = this.blocks.remove(id);
+        if (previousSize != null) {
+            this.bytes.addAndGet(-previousSize);
+        }
+        this.backupIndexBlockIds.remove(id);
+    }
+
+    boolean contains(String id) {
+        return this.blocks.containsKey(id);
+    }
+
+    Optional<Long> getSize(String id) {
+        return Optional.ofNullable(this.blocks.get(id));
+    }
+
+    List<String> getBlockIds() {
+        return new ArrayList<>(this.blocks.keySet());
+    }
+
+    Optional<String> getLatestBackupIndexBlockId() {
+        Iterator<String> descendingIds = this.backupIndexBlockIds.descendingIterator();
+        return descendingIds.hasNext() ? Optional.of(descendingIds.next()) : Optional.empty();
+    }
+
+    long getNrOfBlocks() {
+        return this.blocks.size();
+    }
+
+    long getBytes() {
+        return this.bytes.get();
+    }
+}
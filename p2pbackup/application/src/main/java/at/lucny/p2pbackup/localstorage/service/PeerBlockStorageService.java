@@ -0,0 +1,102 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.PeerStorageType;
+import com.google.common.util.concurrent.RateLimiter;
+
+import jakarta.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Stores the blocks other users saved in the local storage. Every user has its own storage-directory.
+ */
+public interface PeerBlockStorageService {
+
+    /**
+     * @return how this service stores the blocks
+     */
+    @NotNull PeerStorageType getType();
+
+    /**
+     * Creates the storage-directory of a user or prepares an existing one.
+     *
+     * @param directory the storage-directory of the user
+     */
+    void initializeDirectory(@NotNull Path directory) throws IOException;
+
+    /**
+     * Deletes the storage-directory of a user with all blocks.
+     *
+     * @param directory the storage-directory of the user
+     */
+    void deleteDirectory(@NotNull Path directory) throws IOException;
+
+    boolean contains(@NotNull Path directory, @NotNull String id);
+
+    /**
+     * Returns the mac of the block that was verified when the block was saved, if the service keeps it.
+     *
+     * @param directory the storage-directory of the user
+     * @param id        the id of the block
+     * @return the mac of the block, or an empty optional if the block is missing or the mac is not kept
+     */
+    @NotNull Optional<String> getMac(@NotNull Path directory, @NotNull String id);
+
+    /**
+     * Opens the block for reading. The caller has to close the stream.
+     *
+     * @param directory the storage-directory of the user
+     * @param id        the id of the block
+     * @return the content of the block, or an empty optional if the block is missing
+     */
+    @NotNull Optional<InputStream> load(@NotNull Path directory, @NotNull String id) throws IOException;
+
+    /**
+     * Saves the block read from the channel. After the channel was read completely the validator is asked if the
+     * block is valid, an invalid block is not kept.
+     *
+     * @param directory the storage-directory of the user
+     * @param id        the id of the block
+     * @param mac       the mac of the block
+     * @param data      the content of the block
+     * @param validator returns true if the read block is valid
+     * @return the size of the saved block, or an empty optional if the validator rejected it
+     * @throws IOException if the block can't be read or written
+     */
+    @NotNull Optional<Long> save(@NotNull Path directory, @NotNull String id, @NotNull String mac, @NotNull ReadableByteChannel data, @NotNull BooleanSupplier validator) throws IOException;
+
+    /**
+     * Reads the ids and sizes of all blocks of a user from the storage.
+     *
+     * @param directory the storage-directory of the user
+     * @return the sizes of the blocks by their ids
+     */
+    @NotNull Map<String, Long> getBlockSizes(@NotNull Path directory);
+
+    /**
+     * Removes the blocks, so they can't be loaded anymore. The data of the blocks is kept until the given date.
+     *
+     * @param directory the storage-directory of the user
+     * @param ids       the ids of the blocks
+     * @param keepUntil the date until the data of the blocks is kept
+     */
+    void remove(@NotNull Path directory, @NotNull List<String> ids, @NotNull LocalDate keepUntil);
+
+    /**
+     * Deletes the data of removed blocks that were kept until a date before the given date, oldest first.
+     *
+     * @param directory     the storage-directory of the user
+     * @param expiredBefore the data of blocks kept until before this date is deleted
+     * @param rateLimiter   limits the deletions, a permit is acquired per deleted block
+     * @param stopCondition checked before every deletion, no further data is deleted once it returns true
+     * @return the number of reclaimed bytes
+     */
+    long reclaim(@NotNull Path directory, @NotNull LocalDate expiredBefore, @NotNull RateLimiter rateLimiter, @NotNull BooleanSupplier stopCondition);
+}
@@ -0,0 +1,32 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import jakarta.validation.constraints.NotNull;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Deletes the data of removed blocks of other users, after their grace-period ended.
+ */
+public interface PeerBlockSweeperService {
+
+    /**
+     * Deletes the data of all removed blocks whose grace-period ended. The deletions are rate-limited.
+     *
+     * @param stopCondition checked before every deletion, the sweep stops once it returns true
+     * @return the number of reclaimed bytes
+     */
+    long sweep(@NotNull BooleanSupplier stopCondition);
+
+    /**
+     * Deletes the data of all removed blocks whose grace-period ended without rate-limit. If afterwards the usable space
+     * of the storage-directory is still too small, removed blocks are deleted before their grace-period ended, oldest
+     * first, until enough space is free.
+     *
+     * @return the number of reclaimed bytes
+     */
+    long reclaimNow();
+
+    /**
+     * @return true if the usable space of the storage-directory is below the configured minimum
+     */
+    boolean isFreeSpaceLow();
+}
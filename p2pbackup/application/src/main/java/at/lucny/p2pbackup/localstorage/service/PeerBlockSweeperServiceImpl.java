@@ -0,0 +1,96 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.application.config.PeerStorageType;
+import at.lucny.p2pbackup.application.config.SweeperProperties;
+import at.lucny.p2pbackup.user.domain.User;
+import at.lucny.p2pbackup.user.repository.UserRepository;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.validation.annotation.Validated;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+@Service
+@Validated
+public class PeerBlockSweeperServiceImpl implements PeerBlockSweeperService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerBlockSweeperServiceImpl.class);
+
+    private final P2PBackupProperties p2PBackupProperties;
+
+    private final SweeperProperties sweeperProperties;
+
+    private final UserRepository userRepository;
+
+    private final PeerBlockStorageService peerBlockStorageService;
+
+    public PeerBlockSweeperServiceImpl(P2PBackupProperties p2PBackupProperties, UserRepository userRepository, List<PeerBlockStorageService> peerBlockStorageServices) {
+        this.p2PBackupProperties = p2PBackupProperties;
+        this.sweeperProperties = p2PBackupProperties.getSweeperProperties();
+        this.userRepository = userRepository;
+        PeerStorageType peerStorageType = p2PBackupProperties.getPeerStorageType();
+        this.peerBlockStorageService = peerBlockStorageServices.stream().filter(service -> service.getType() == peerStorageType).findFirst()
+                .orElseThrow(() -> new IllegalStateException("no peer-block-storage-service for type " + peerStorageType));
+    }
+
+    @Override
+    public long sweep(BooleanSupplier stopCondition) {
+        RateLimiter rateLimiter = RateLimiter.create(this.sweeperProperties.getMaxDeletionsPerSecond());
+        long reclaimedBytes = this.reclaim(LocalDate.now(ZoneOffset.UTC), rateLimiter, stopCondition);
+        LOGGER.info("sweep reclaimed {} bytes", reclaimedBytes);
+        return reclaimedBytes;
+    }
+
+    @Override
+    public long reclaimNow() {
+        RateLimiter rateLimiter = RateLimiter.create(Double.MAX_VALUE);
+        BooleanSupplier enoughFreeSpace = () -> !this.isFreeSpaceLow();
+
+        long reclaimedBytes = this.reclaim(LocalDate.now(ZoneOffset.UTC), rateLimiter, () -> false);
+        if (this.isFreeSpaceLow()) {
+            LOGGER.warn("usable space is still below {}, deleting removed blocks before their grace-period ended", this.sweeperProperties.getMinFreeSpace());
+            reclaimedBytes += this.reclaim(LocalDate.MAX, rateLimiter, enoughFreeSpace);
+        }
+        LOGGER.info("reclaimed {} bytes, usable space is {} bytes", reclaimedBytes, this.getUsableSpace());
+        return reclaimedBytes;
+    }
+
+    private long reclaim(LocalDate expiredBefore, RateLimiter rateLimiter, BooleanSupplier stopCondition) {
+        long reclaimedBytes = 0;
+        for (User user : this.userRepository.findAll()) {
+            if (stopCondition.getAsBoolean()) {
+                break;
+            }
+            Path userDirectory = this.p2PBackupProperties.getStorageDir().resolve(user.getId());
+            if (Files.isDirectory(userDirectory)) {
+                long reclaimedBytesOfUser = this.peerBlockStorageService.reclaim(userDirectory, expiredBefore, rateLimiter, stopCondition);
+                LOGGER.debug("reclaimed {} bytes of user {}", reclaimedBytesOfUser, user.getId());
+                reclaimedBytes += reclaimedBytesOfUser;
+            }
+        }
+        return reclaimedBytes;
+    }
+
+    @Override
+    public boolean isFreeSpaceLow() {
+        return this.getUsableSpace() < this.sweeperProperties.getMinFreeSpace().toBytes();
+    }
+
+    private long getUsableSpace() {
+        try {
+            return Files.getFileStore(this.p2PBackupProperties.getStorageDir()).getUsableSpace();
+        } catch (IOException e) {
+            LOGGER.warn("unable to determine usable space of {}", this.p2PBackupProperties.getStorageDir(), e);
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -1,23 +1,20 @@
 package at.lucny.p2pbackup.localstorage.service;
 
 import at.lucny.p2pbackup.application.config.P2PBackupProperties;
-import lombok.SneakyThrows;
-import org.apache.commons.io.FileUtils;
+import at.lucny.p2pbackup.core.support.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Stream;
 
 @Validated
 @Service
@@ -29,21 +26,33 @@ public class RestorationStorageServiceImpl implements RestorationStorageService
 
     private final P2PBackupProperties p2PBackupProperties;
 
-    public RestorationStorageServiceImpl(P2PBackupProperties p2PBackupProperties) throws IOException {
+    private final StorageLayoutService storageLayoutService;
+
+    private final FileUtils fileUtils = new FileUtils();
+
+    public RestorationStorageServiceImpl(P2PBackupProperties p2PBackupProperties, StorageLayoutService storageLayoutService, AsyncTaskExecutor taskExecutor) throws IOException {
         this.p2PBackupProperties = p2PBackupProperties;
+        this.storageLayoutService = storageLayoutService;
         Files.createDirectories(p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE));
+        // walking all blocks takes long, so left over temporary files are deleted in the background. temporary files of
+        // writes started after the start are kept, the timestamps of files are less precise than the clock
+        Instant startedAt = Instant.now().minusSeconds(1);
+        taskExecutor.execute(() -> this.fileUtils.deleteTempFilesSilent(p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE), startedAt));
+        this.storageLayoutService.initializeDirectory(p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE));
     }
 
     @Override
     public Optional<Path> saveInLocalStorage(String id, ByteBuffer block) {
         LOGGER.trace("begin saveInLocalStorageForRestore({}, {})", id, block);
 
-        Path blockPath = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE).resolve(id);
-        if (Files.notExists(blockPath)) {
+        Path directory = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE);
+        Path blockPath;
+        if (this.storageLayoutService.locate(directory, id).isEmpty()) {
+            blockPath = this.storageLayoutService.resolve(directory, id);
             LOGGER.debug("persisting local-backup-block for {} for restore", id);
 
-            try (WritableByteChannel fileChannel = FileChannel.open(blockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                fileChannel.write(block.duplicate());
+            try {
+                this.fileUtils.writeAtomically(blockPath, block);
             } catch (IOException e) {
                 throw new IllegalStateException("unable to write block to storage file " + blockPath, e);
             }
@@ -58,18 +67,15 @@ public class RestorationStorageServiceImpl implements RestorationStorageService
 
     @Override
     public Optional<Path> loadFromLocalStorage(String id) {
-        Path blockFile = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE).resolve(id);
-        if (Files.exists(blockFile)) {
-            return Optional.of(blockFile);
-        }
-        return Optional.empty();
+        return this.storageLayoutService.locate(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE), id);
     }
 
     @Override
     public boolean deleteAll() {
         Path directory = this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE);
         try {
-            FileUtils.cleanDirectory(directory.toFile());
+            org.apache.commons.io.FileUtils.cleanDirectory(directory.toFile());
+            this.storageLayoutService.initializeDirectory(directory);
             return true;
         } catch (IOException e) {
             LOGGER.warn("unable to clear restore-directory {}", directory);
@@ -77,13 +83,9 @@ public class RestorationStorageServiceImpl implements RestorationStorageService
         return false;
     }
 
-    @SneakyThrows
     public List<Path> getFiles() {
         LOGGER.trace("begin getFiles");
-        List<Path> files = null;
-        try (Stream<Path> allPaths = Files.list(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE))) {
-            files = allPaths.toList();
-        }
+        List<Path> files = this.storageLayoutService.list(this.p2PBackupProperties.getStorageDir().resolve(FOLDER_RESTORE));
         LOGGER.trace("end getFiles: return {}", files);
         return files;
     }
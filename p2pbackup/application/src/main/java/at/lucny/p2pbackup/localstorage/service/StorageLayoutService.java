@@ -0,0 +1,55 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import jakarta.validation.constraints.NotNull;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Distributes the blocks of a storage-directory into a hashed fan-out of bucket-directories, so that no directory holds
+ * millions of files.
+ */
+public interface StorageLayoutService {
+
+    /**
+     * Prepares a storage-directory. If the directory was written with another layout, it is migrated in the background.
+     * Until the migration is finished blocks are also found at their previous location.
+     *
+     * @param directory the storage-directory
+     */
+    void initializeDirectory(@NotNull Path directory);
+
+    /**
+     * Returns the path of a block in the current layout and creates its bucket-directories.
+     *
+     * @param directory the storage-directory
+     * @param id        the id of the block
+     * @return the path to write the block to
+     */
+    @NotNull Path resolve(@NotNull Path directory, @NotNull String id);
+
+    /**
+     * Looks up an existing block without listing any directory.
+     *
+     * @param directory the storage-directory
+     * @param id        the id of the block
+     * @return the path of the block if it exists
+     */
+    @NotNull Optional<Path> locate(@NotNull Path directory, @NotNull String id);
+
+    /**
+     * Lists all blocks of a storage-directory by walking its buckets.
+     *
+     * @param directory the storage-directory
+     * @return the paths of all blocks
+     */
+    @NotNull List<Path> list(@NotNull Path directory);
+
+    /**
+     * Moves all blocks of a storage-directory, that are not at their location in the current layout, to their location.
+     *
+     * @param directory the storage-directory
+     * @return the number of moved blocks
+     */
+    long migrate(@NotNull Path directory);
+}
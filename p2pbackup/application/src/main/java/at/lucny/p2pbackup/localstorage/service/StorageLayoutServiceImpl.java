@@ -0,0 +1,223 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.core.support.FileUtils;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.validation.annotation.Validated;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Distributes the blocks of a storage-directory into {@link P2PBackupProperties#getStorageFanOutLevels()} levels of 256
+ * bucket-directories, the buckets of a block are the bytes of the murmur3-hash of its id. The layout of a
+ * storage-directory is recorded in a marker-file, a storage-directory without marker-file that contains files was
+ * written by a previous version without buckets.
+ * <p>
+ * While a storage-directory is migrated, blocks that are not found at their location in the current layout are looked up
+ * at their locations in all other layouts, so the storage stays usable during the migration.
+ */
+@Service
+@Validated
+public class StorageLayoutServiceImpl implements StorageLayoutService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageLayoutServiceImpl.class);
+
+    static final String LAYOUT_MARKER = ".layout";
+
+    private static final int MAX_FAN_OUT_LEVELS = 3;
+
+    private static final Pattern BUCKET_PATTERN = Pattern.compile("[0-9a-f]{2}");
+
+    private static final HashFunction BUCKET_HASH = Hashing.murmur3_32_fixed();
+
+    private final int fanOutLevels;
+
+    private final AsyncTaskExecutor taskExecutor;
+
+    private final FileUtils fileUtils = new FileUtils();
+
+    private final Set<Path> migratingDirectories = Collections.synchronizedSet(new HashSet<>());
+
+    public StorageLayoutServiceImpl(P2PBackupProperties p2PBackupProperties, AsyncTaskExecutor taskExecutor) {
+        this.fanOutLevels = p2PBackupProperties.getStorageFanOutLevels();
+        this.taskExecutor = taskExecutor;
+    }
+
+    @Override
+    public void initializeDirectory(Path directory) {
+        Path marker = directory.resolve(LAYOUT_MARKER);
+        try {
+            if (Files.exists(marker) && Integer.parseInt(Files.readString(marker, StandardCharsets.UTF_8).trim()) == this.fanOutLevels) {
+                return;
+            }
+            if (!this.containsBlocks(directory, MAX_FAN_OUT_LEVELS)) {
+                this.writeMarker(directory);
+                return;
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn("unable to read layout of storage-directory {}", directory, e);
+        }
+
+        if (this.migratingDirectories.add(directory)) {
+            LOGGER.info("migrating storage-directory {} to {} levels of buckets", directory, this.fanOutLevels);
+            this.taskExecutor.execute(() -> {
+                try {
+                    this.migrate(directory);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("unable to migrate storage-directory {}", directory, e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public Path resolve(Path directory, String id) {
+        Path path = this.resolve(directory, id, this.fanOutLevels);
+        if (this.fanOutLevels > 0) {
+            try {
+                Files.createDirectories(path.getParent());
+            } catch (IOException e) {
+                throw new UncheckedIOException("unable to create bucket-directory for block " + id, e);
+            }
+        }
+        return path;
+    }
+
+    private Path resolve(Path directory, String id, int levels) {
+        int hash = BUCKET_HASH.hashString(id, StandardCharsets.UTF_8).asInt();
+        Path path = directory;
+        for (int level = 0; level < levels; level++) {
+            path = path.resolve(String.format("%02x", (hash >>> (8 * level)) & 0xFF));
+        }
+        return path.resolve(id);
+    }
+
+    @Override
+    public Optional<Path> locate(Path directory, String id) {
+        Path path = this.resolve(directory, id, this.fanOutLevels);
+        if (Files.exists(path)) {
+            return Optional.of(path);
+        }
+        if (this.migratingDirectories.contains(directory)) {
+            for (int levels = 0; levels <= MAX_FAN_OUT_LEVELS; levels++) {
+                Path previousPath = this.resolve(directory, id, levels);
+                if (levels != this.fanOutLevels && Files.exists(previousPath)) {
+                    return Optional.of(previousPath);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Path> list(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        List<Path> blocks = new ArrayList<>();
+        try {
+            // walks the buckets of all layouts, so that blocks are also listed during a migration
+            Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), MAX_FAN_OUT_LEVELS + 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(directory) || BUCKET_PATTERN.matcher(dir.getFileName().toString()).matches() ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String name = file.getFileName().toString();
+                    if (attrs.isRegularFile() && !name.equals(LAYOUT_MARKER) && !name.endsWith(FileUtils.TEMP_FILE_SUFFIX)) {
+                        blocks.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    LOGGER.warn("unable to read {}", file, exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to list storage-directory " + directory, e);
+        }
+        return blocks;
+    }
+
+    /**
+     * Checks if the given directory or one of its bucket-directories contains a block. Stops at the first block found,
+     * so a large storage-directory written without buckets is not listed completely.
+     */
+    private boolean containsBlocks(Path directory, int remainingLevels) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (Files.isRegularFile(entry)) {
+                    if (!name.equals(LAYOUT_MARKER) && !name.endsWith(FileUtils.TEMP_FILE_SUFFIX)) {
+                        return true;
+                    }
+                } else if (remainingLevels > 0 && BUCKET_PATTERN.matcher(name).matches() && this.containsBlocks(entry, remainingLevels - 1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long migrate(Path directory) {
+        this.migratingDirectories.add(directory);
+        long nrOfMovedBlocks = 0;
+        boolean completed = true;
+        for (Path block : this.list(directory)) {
+            String id = block.getFileName().toString();
+            Path target = this.resolve(directory, id);
+            if (block.equals(target)) {
+                continue;
+            }
+            try {
+                if (Files.exists(target)) {
+                    // the block was saved again during the migration
+                    Files.deleteIfExists(block);
+                } else {
+                    Files.move(block, target, StandardCopyOption.ATOMIC_MOVE);
+                    nrOfMovedBlocks++;
+                }
+            } catch (NoSuchFileException e) {
+                LOGGER.debug("block {} was removed during the migration", block);
+            } catch (IOException e) {
+                LOGGER.warn("unable to move block {} to {}", block, target, e);
+                completed = false;
+            }
+        }
+
+        if (completed) {
+            try {
+                this.writeMarker(directory);
+                this.migratingDirectories.remove(directory);
+            } catch (IOException e) {
+                LOGGER.warn("unable to write layout of storage-directory {}", directory, e);
+            }
+        }
+        LOGGER.info("migrated {} blocks of storage-directory {}", nrOfMovedBlocks, directory);
+        return nrOfMovedBlocks;
+    }
+
+    private void writeMarker(Path directory) throws IOException {
+        this.fileUtils.writeAtomically(directory.resolve(LAYOUT_MARKER), StandardCharsets.UTF_8.encode(Integer.toString(this.fanOutLevels)));
+    }
+}
@@ -1,6 +1,6 @@
 package at.lucny.p2pbackup.protocol.service.handler;
 
-import at.lucny.p2pbackup.backup.support.BackupConstants;
+import at.lucny.p2pbackup.core.service.BlockCompressionService;
 import at.lucny.p2pbackup.core.service.BlockEncryptionService;
 import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
 import at.lucny.p2pbackup.network.dto.ProtocolMessage;
@@ -23,10 +23,6 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
@@ -41,15 +37,18 @@ public class RecoverHandler extends MessageToMessageDecoder<ProtocolMessageWrapp
 
     private final BlockEncryptionService blockEncryptionService;
 
+    private final BlockCompressionService blockCompressionService;
+
     private final VerificationService verificationService;
 
     private final VerificationValueService verificationValueService;
 
     private final RecoveryService recoveryService;
 
-    public RecoverHandler(LocalStorageService localStorageService, BlockEncryptionService blockEncryptionService, VerificationService verificationService, VerificationValueService verificationValueService, RecoveryService recoveryService) {
+    public RecoverHandler(LocalStorageService localStorageService, BlockEncryptionService blockEncryptionService, BlockCompressionService blockCompressionService, VerificationService verificationService, VerificationValueService verificationValueService, RecoveryService recoveryService) {
         this.localStorageService = localStorageService;
         this.blockEncryptionService = blockEncryptionService;
+        this.blockCompressionService = blockCompressionService;
         this.verificationService = verificationService;
         this.verificationValueService = verificationValueService;
         this.recoveryService = recoveryService;
@@ -71,21 +70,25 @@ public class RecoverHandler extends MessageToMessageDecoder<ProtocolMessageWrapp
         var response = RecoverBlocksResponse.newBuilder().addAllBlockIds(blockIds);
         ctx.write(ProtocolMessage.newBuilder().setRecoverBlocksResponse(response).build());
 
-        List<Path> backupIndexBlocks = this.localStorageService.loadFromLocalStorageByPrefix(userId, BackupConstants.BACKUP_INDEX_BLOCK_PREFIX);
-        Optional<Path> pathToLatestBackupIndexBlock = backupIndexBlocks.stream().max(Comparator.comparing(p -> p.getFileName().toString()));
-        if (pathToLatestBackupIndexBlock.isPresent()) {
-            try (InputStream is = Files.newInputStream(pathToLatestBackupIndexBlock.get(), StandardOpenOption.READ)) {
-                ByteString data = ByteString.readFrom(is);
-                var backupIndexResponse = RecoverBackupIndexResponse.newBuilder().setLatestBackupIndexId(pathToLatestBackupIndexBlock.get().getFileName().toString()).setLatestBackupIndex(data);
-                ctx.write(ProtocolMessage.newBuilder().setRecoverBackupIndexReponse(backupIndexResponse).build());
+        Optional<String> latestBackupIndexBlockId = this.localStorageService.getLatestBackupIndexBlockId(userId);
+        if (latestBackupIndexBlockId.isPresent()) {
+            try {
+                Optional<InputStream> block = this.localStorageService.loadFromLocalStorage(userId, latestBackupIndexBlockId.get());
+                if (block.isPresent()) {
+                    try (InputStream is = block.get()) {
+                        ByteString data = ByteString.readFrom(is);
+                        var backupIndexResponse = RecoverBackupIndexResponse.newBuilder().setLatestBackupIndexId(latestBackupIndexBlockId.get()).setLatestBackupIndex(data);
+                        ctx.write(ProtocolMessage.newBuilder().setRecoverBackupIndexReponse(backupIndexResponse).build());
+                    }
+                }
             } catch (IOException e) {
-                LOGGER.warn("could not get backup-index-block {} to recover for user {}", pathToLatestBackupIndexBlock.get(), userId, e);
+                LOGGER.warn("could not get backup-index-block {} to recover for user {}", latestBackupIndexBlockId.get(), userId, e);
             }
         } else {
             LOGGER.info("no backup-index-block for user {} found", userId);
         }
 
-        LOGGER.debug("found backup-index-block {} and {} blocks and send to user {}", pathToLatestBackupIndexBlock, blockIds.size(), userId);
+        LOGGER.debug("found backup-index-block {} and {} blocks and send to user {}", latestBackupIndexBlockId, blockIds.size(), userId);
         ctx.flush();
     }
 
@@ -94,10 +97,12 @@ public class RecoverHandler extends MessageToMessageDecoder<ProtocolMessageWrapp
 
         if (!recoverBackupIndexResponse.getLatestBackupIndex().isEmpty()) {
             try {
-                this.blockEncryptionService.decrypt(recoverBackupIndexResponse.getLatestBackupIndex().asReadOnlyByteBuffer(), recoverBackupIndexResponse.getLatestBackupIndexId().getBytes(StandardCharsets.UTF_8), plainDataBuffer -> {
-                    // save found version of backupIndex
-                    this.recoveryService.recoverBackupIndex(userId, plainDataBuffer.duplicate());
-                });
+                boolean hasCompressionHeader = this.blockEncryptionService.isSegmented(recoverBackupIndexResponse.getLatestBackupIndex().asReadOnlyByteBuffer());
+                this.blockEncryptionService.decrypt(recoverBackupIndexResponse.getLatestBackupIndex().asReadOnlyByteBuffer(), recoverBackupIndexResponse.getLatestBackupIndexId().getBytes(StandardCharsets.UTF_8), compressedDataBuffer ->
+                        this.blockCompressionService.decompress(compressedDataBuffer, hasCompressionHeader, plainDataBuffer -> {
+                            // save found version of backupIndex
+                            this.recoveryService.recoverBackupIndex(userId, plainDataBuffer.duplicate());
+                        }));
                 // mark location of backupIndex as verified and generate verification values for block
                 this.verificationService.markLocationVerified(recoverBackupIndexResponse.getLatestBackupIndexId(), userId);
                 this.verificationValueService.ensureVerificationValues(recoverBackupIndexResponse.getLatestBackupIndexId(), recoverBackupIndexResponse.getLatestBackupIndex().asReadOnlyByteBuffer());
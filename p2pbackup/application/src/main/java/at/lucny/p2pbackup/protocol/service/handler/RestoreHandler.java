@@ -21,9 +21,6 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Optional;
 
@@ -68,9 +65,18 @@ public class RestoreHandler extends MessageToMessageDecoder<ProtocolMessageWrapp
         LOGGER.debug("received restore block {} from user {}", restoreBlock.getIdList(), userId);
 
         for (String id : restoreBlock.getIdList()) {
-            Optional<Path> pathToBlock = this.localStorageService.loadFromLocalStorage(userId, id);
-            if (pathToBlock.isPresent()) {
-                try (InputStream is = Files.newInputStream(pathToBlock.get(), StandardOpenOption.READ)) {
+            Optional<InputStream> block;
+            try {
+                block = this.localStorageService.loadFromLocalStorage(userId, id);
+            } catch (IOException e) {
+                LOGGER.warn("could not get block {} to restore to user {}", id, userId, e);
+                var response = RestoreBlockFailure.newBuilder().setId(id).setType(RestoreBlockFailure.RestoreBlockFailureType.GENERAL);
+                ProtocolMessage message = ProtocolMessage.newBuilder().setRestoreBlockFailure(response).build();
+                ctx.writeAndFlush(message);
+                continue;
+            }
+            if (block.isPresent()) {
+                try (InputStream is = block.get()) {
                     ByteString data = ByteString.readFrom(is);
                     var response = RestoreBlockResponse.newBuilder().setId(id).setData(data).setFor(restoreBlock.getFor());
                     ProtocolMessage message = ProtocolMessage.newBuilder().setRestoreBlockResponse(response).build();
@@ -15,7 +15,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
-import java.nio.file.Path;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Optional;
 
@@ -48,17 +49,24 @@ public class VerificationHandler extends MessageToMessageDecoder<ProtocolMessage
     }
 
     private void processVerifyBlock(ChannelHandlerContext ctx, String userId, VerifyBlock verifyBlock) {
-        Optional<Path> pathToBlockOptional = this.localStorageService.loadFromLocalStorage(userId, verifyBlock.getId());
-        if (pathToBlockOptional.isEmpty()) {
-            LOGGER.info("block {} of user {} is missing from local storage", verifyBlock.getId(), userId);
-            var response = VerifyBlockFailure.newBuilder().setId(verifyBlock.getId()).setType(VerifyBlockFailure.VerifyBlockFailureType.BLOCK_MISSING);
-            ProtocolMessage message = ProtocolMessage.newBuilder().setVerifyBlockFailure(response).build();
-            ctx.writeAndFlush(message);
-            return;
+        Optional<String> hash;
+        try {
+            Optional<InputStream> block = this.localStorageService.loadFromLocalStorage(userId, verifyBlock.getId());
+            if (block.isEmpty()) {
+                LOGGER.info("block {} of user {} is missing from local storage", verifyBlock.getId(), userId);
+                var response = VerifyBlockFailure.newBuilder().setId(verifyBlock.getId()).setType(VerifyBlockFailure.VerifyBlockFailureType.BLOCK_MISSING);
+                ProtocolMessage message = ProtocolMessage.newBuilder().setVerifyBlockFailure(response).build();
+                ctx.writeAndFlush(message);
+                return;
+            }
+            try (InputStream is = block.get()) {
+                hash = this.verificationValueService.generateHashFromChallenge(is, verifyBlock.getVerificationValueId());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to read block {} of user {}", verifyBlock.getId(), userId, e);
+            hash = Optional.empty();
         }
-        Path pathToBlock = pathToBlockOptional.get();
 
-        Optional<String> hash = this.verificationValueService.generateHashFromChallenge(pathToBlock, verifyBlock.getVerificationValueId());
         if (hash.isEmpty()) {
             LOGGER.warn("could not calculate hash for block {} of user {}", verifyBlock.getId(), userId);
             var response = VerifyBlockFailure.newBuilder().setId(verifyBlock.getId()).setType(VerifyBlockFailure.VerifyBlockFailureType.GENERAL);
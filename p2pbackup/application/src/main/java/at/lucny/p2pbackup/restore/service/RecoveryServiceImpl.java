@@ -1,5 +1,6 @@
 package at.lucny.p2pbackup.restore.service;
 
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
 import at.lucny.p2pbackup.backup.dto.BackupIndex;
 import at.lucny.p2pbackup.backup.dto.PathDataVersion;
 import at.lucny.p2pbackup.backup.support.BackupConstants;
@@ -65,13 +66,13 @@ public class RecoveryServiceImpl implements RecoveryService {
 
     private final Configuration configuration;
 
-    private final HashUtils hashUtils = new HashUtils();
+    private final HashUtils hashUtils;
 
     private final RestoreTaskWorker restoreTaskService;
 
     private final RecoverMetadataWorker recoverMetadataWorker;
 
-    public RecoveryServiceImpl(BlockMetaDataRepository blockMetaDataRepository, @Lazy ClientService clientService, RootDirectoryRepository rootDirectoryRepository, RecoverBackupIndexRepository recoverBackupIndexRepository, Configuration configuration, RestoreTaskWorker restoreTaskService, RecoverMetadataWorker recoverMetadataWorker) {
+    public RecoveryServiceImpl(BlockMetaDataRepository blockMetaDataRepository, @Lazy ClientService clientService, RootDirectoryRepository rootDirectoryRepository, RecoverBackupIndexRepository recoverBackupIndexRepository, Configuration configuration, RestoreTaskWorker restoreTaskService, RecoverMetadataWorker recoverMetadataWorker, P2PBackupProperties p2PBackupProperties) {
         this.blockMetaDataRepository = blockMetaDataRepository;
         this.clientService = clientService;
         this.rootDirectoryRepository = rootDirectoryRepository;
@@ -79,6 +80,7 @@ public class RecoveryServiceImpl implements RecoveryService {
         this.configuration = configuration;
         this.restoreTaskService = restoreTaskService;
         this.recoverMetadataWorker = recoverMetadataWorker;
+        this.hashUtils = new HashUtils(p2PBackupProperties.getBackupProperties().getHashAlgorithm());
     }
 
     @Override
@@ -153,7 +155,7 @@ public class RecoveryServiceImpl implements RecoveryService {
 
             LOGGER.debug("saving block-meta-data for {} version-blocks", backupIndex.getVersionBlockIdsList().size());
             for (String blockId : backupIndex.getVersionBlockIdsList()) {
-                this.recoverMetadataWorker.createOrUpdateBlockMetaData(blockId, null);
+                this.recoverMetadataWorker.createOrUpdateBlockMetaData(blockId, null, null);
             }
 
             LOGGER.info("recovered backup-index {}/{} from user {}", backupIndex.getDate(), backupDate, userId);
@@ -259,7 +261,7 @@ public class RecoveryServiceImpl implements RecoveryService {
         // otherwise it's a data-block
         LOGGER.debug("block {} is a data-block", blockId);
         String hash = this.hashUtils.generateBlockHash(data.duplicate());
-        this.recoverMetadataWorker.createOrUpdateBlockMetaData(blockId, hash);
+        this.recoverMetadataWorker.createOrUpdateBlockMetaData(blockId, hash, this.hashUtils.getHashAlgorithm());
         if (userId != null) {
             this.recoverMetadataWorker.addLocation(userId, blockId);
         }
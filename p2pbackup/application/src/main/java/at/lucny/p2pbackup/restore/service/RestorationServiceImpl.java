@@ -4,6 +4,7 @@ import at.lucny.p2pbackup.configuration.support.ConfigurationConstants;
 import at.lucny.p2pbackup.configuration.support.RecoveryState;
 import at.lucny.p2pbackup.core.domain.BlockMetaData;
 import at.lucny.p2pbackup.core.domain.DataLocation;
+import at.lucny.p2pbackup.core.domain.PathVersion;
 import at.lucny.p2pbackup.core.repository.BlockMetaDataRepository;
 import at.lucny.p2pbackup.core.repository.PathVersionRepository;
 import at.lucny.p2pbackup.core.support.FileUtils;
@@ -169,7 +170,8 @@ public class RestorationServiceImpl implements RestorationService {
      * @return true if the file could be restored, otherwise false
      */
     private boolean restoreFile(RestorePath restorePath) {
-        List<BlockMetaData> blockMetaDatas = this.pathVersionRepository.findByIdFetchBlockMetaData(restorePath.getPathVersion().getId()).getBlocks();
+        PathVersion pathVersion = this.pathVersionRepository.findByIdFetchBlockMetaData(restorePath.getPathVersion().getId());
+        List<BlockMetaData> blockMetaDatas = pathVersion.getBlocks();
         List<Path> blockPaths = new ArrayList<>();
         List<BlockMetaData> missingBlocks = new ArrayList<>();
 
@@ -189,38 +191,77 @@ public class RestorationServiceImpl implements RestorationService {
             this.restoreTaskWorker.addRestoreTasksForMissingBlocks(restorePath, missingBlocks);
             return false;
         } else {
-            return this.restoreFileFromBlocks(restorePath, blockPaths);
+            return this.restoreFileFromBlocks(restorePath, pathVersion, blockPaths);
         }
     }
 
     /**
-     * Restores the file represented by the given {@link RestorePath} from the given blocks.
+     * Restores the file represented by the given {@link RestorePath} from the given blocks. Zero-blocks of the version
+     * are not written, they become holes in the file.
      *
      * @param restorePath the {@link RestorePath} representing the file to be restored
-     * @param blockPaths  the blocks the file is contained of
+     * @param pathVersion the version of the file to be restored
+     * @param blockPaths  the data-blocks the file is contained of
      * @return true if the file could be restored, otherwise false
      */
-    private boolean restoreFileFromBlocks(RestorePath restorePath, List<Path> blockPaths) {
+    private boolean restoreFileFromBlocks(RestorePath restorePath, PathVersion pathVersion, List<Path> blockPaths) {
         Path destinationFile = Paths.get(restorePath.getPath());
         try {
             Files.deleteIfExists(destinationFile); // delete the file if it already exists to recreate it
             Files.createDirectories(destinationFile.getParent()); // create all parent directories
-            Files.createFile(destinationFile); // create the empty file
-            try (FileChannel destinationChannel = FileChannel.open(destinationFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
-                for (Path path : blockPaths) {
-                    try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
-                        readChannel.transferTo(0, Long.MAX_VALUE, destinationChannel);
+            try (FileChannel destinationChannel = FileChannel.open(destinationFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.SPARSE, StandardOpenOption.WRITE)) {
+                Iterator<Path> blockPathIterator = blockPaths.iterator();
+                int nrOfBlocks = blockPaths.size() + pathVersion.getZeroBlocks().size();
+                long position = 0;
+                for (int blockNr = 0; blockNr < nrOfBlocks; blockNr++) {
+                    Long zeroBlockLength = pathVersion.getZeroBlocks().get(blockNr);
+                    if (zeroBlockLength != null) {
+                        position += zeroBlockLength;
+                        continue;
                     }
+
+                    try (FileChannel readChannel = FileChannel.open(blockPathIterator.next(), StandardOpenOption.READ)) {
+                        if (pathVersion.getPackLength() != null) {
+                            // a packed file is only a part of its block
+                            position += this.transfer(readChannel, pathVersion.getPackOffset(), pathVersion.getPackLength(), destinationChannel, position);
+                        } else {
+                            position += this.transfer(readChannel, 0, readChannel.size(), destinationChannel, position);
+                        }
+                    }
+                }
+
+                // a trailing hole is only part of the file if the file is extended to its full size
+                if (destinationChannel.size() < position) {
+                    destinationChannel.write(ByteBuffer.allocate(1), position - 1);
                 }
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             this.fileUtils.deleteIfExistsSilent(destinationFile);
-            LOGGER.error("unable to delete already restored file {}", destinationFile, e);
+            LOGGER.error("unable to restore file {}", destinationFile, e);
             return false;
         }
         return true;
     }
 
+    /**
+     * Transfers a part of a block into the destination at the given position. The destination is positioned explicitly,
+     * because {@link FileChannel#transferFrom} doesn't write behind the end of the file, which is needed after a hole.
+     *
+     * @return the number of transferred bytes
+     */
+    private long transfer(FileChannel readChannel, long offset, long length, FileChannel destinationChannel, long position) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            destinationChannel.position(position + transferred);
+            long count = readChannel.transferTo(offset + transferred, length - transferred, destinationChannel);
+            if (count <= 0) {
+                throw new IOException("unexpected end of block after " + transferred + " of " + length + " bytes");
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
     private void requestFromLocalStorage() {
         List<String> offlineUsers = this.clientService.getClients().stream().filter(NettyClient::isDisconnected).map(NettyClient::getUser).map(User::getId).toList();
 
@@ -5,6 +5,7 @@ import at.lucny.p2pbackup.cloud.CloudStorageService;
 import at.lucny.p2pbackup.cloud.CloudStorageServiceProvider;
 import at.lucny.p2pbackup.core.domain.BlockMetaData;
 import at.lucny.p2pbackup.core.domain.CloudUpload;
+import at.lucny.p2pbackup.core.service.BlockCompressionService;
 import at.lucny.p2pbackup.core.service.BlockEncryptionService;
 import at.lucny.p2pbackup.localstorage.dto.LocalStorageEntry;
 import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
@@ -39,6 +40,8 @@ public class RestoreCloudUploadServiceImpl implements RestoreCloudUploadService
 
     private final BlockEncryptionService blockEncryptionService;
 
+    private final BlockCompressionService blockCompressionService;
+
     private final CloudUploadService cloudUploadService;
 
     private final RecoverMetadataWorker recoverMetadataWorker;
@@ -47,10 +50,11 @@ public class RestoreCloudUploadServiceImpl implements RestoreCloudUploadService
 
     private final RecoveryService recoveryService;
 
-    public RestoreCloudUploadServiceImpl(CloudStorageServiceProvider cloudStorageServiceProvider, LocalStorageService localStorageService, BlockEncryptionService blockEncryptionService, CloudUploadService cloudUploadService, RecoverMetadataWorker recoverMetadataWorker, VerificationValueService verificationValueService, RecoveryService recoveryService) {
+    public RestoreCloudUploadServiceImpl(CloudStorageServiceProvider cloudStorageServiceProvider, LocalStorageService localStorageService, BlockEncryptionService blockEncryptionService, BlockCompressionService blockCompressionService, CloudUploadService cloudUploadService, RecoverMetadataWorker recoverMetadataWorker, VerificationValueService verificationValueService, RecoveryService recoveryService) {
         this.cloudStorageServiceProvider = cloudStorageServiceProvider;
         this.localStorageService = localStorageService;
         this.blockEncryptionService = blockEncryptionService;
+        this.blockCompressionService = blockCompressionService;
         this.cloudUploadService = cloudUploadService;
         this.recoverMetadataWorker = recoverMetadataWorker;
         this.verificationValueService = verificationValueService;
@@ -82,7 +86,7 @@ public class RestoreCloudUploadServiceImpl implements RestoreCloudUploadService
 
     private void recoverFromCloudStorage(CloudStorageService cloudStorageService, String blockId) {
         LOGGER.trace("begin recoverFromCloudStorage(cloudStorageService={}, blockId={})", cloudStorageService, blockId);
-        BlockMetaData bmd = this.recoverMetadataWorker.createOrUpdateBlockMetaData(blockId, null);
+        BlockMetaData bmd = this.recoverMetadataWorker.createOrUpdateBlockMetaData(blockId, null, null);
 
         Optional<CloudUpload> cloudUploadOptional = this.cloudUploadService.getCloudUpload(blockId);
         if (cloudUploadOptional.isPresent()) {
@@ -97,9 +101,10 @@ public class RestoreCloudUploadServiceImpl implements RestoreCloudUploadService
             ByteBuffer dataInByteBuffer = ByteBuffer.wrap(data);
             LOGGER.debug("downloaded {} from url {}", blockId, url);
 
-            this.blockEncryptionService.decrypt(dataInByteBuffer, blockId.getBytes(StandardCharsets.UTF_8), plainData -> {
+            boolean hasCompressionHeader = this.blockEncryptionService.isSegmented(dataInByteBuffer);
+            this.blockEncryptionService.decrypt(dataInByteBuffer, blockId.getBytes(StandardCharsets.UTF_8), compressedData -> {
                 if (bmd.getId().startsWith(BackupConstants.BACKUP_INDEX_BLOCK_PREFIX)) {
-                    this.recoveryService.recoverBackupIndex(null, plainData.duplicate());
+                    this.blockCompressionService.decompress(compressedData, hasCompressionHeader, plainData -> this.recoveryService.recoverBackupIndex(null, plainData.duplicate()));
                 }
             });
 
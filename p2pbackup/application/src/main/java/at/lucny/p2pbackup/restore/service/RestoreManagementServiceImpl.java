@@ -68,7 +68,7 @@ public class RestoreManagementServiceImpl implements RestoreManagementService {
             RestorePath restorePath = new RestorePath(pathVersion, targetDir.resolve(pathData.getPath()).toString());
 
             for (BlockMetaData blockMetaData : pathVersion.getBlocks()) {
-                RestoreBlockData restoreBlockData = this.restoreBlockDataRepository.findByBlockMetaDataId(blockMetaData.getId()).orElse(this.restoreBlockDataRepository.save(new RestoreBlockData(blockMetaData, RestoreType.RESTORE)));
+                RestoreBlockData restoreBlockData = this.restoreBlockDataRepository.findByBlockMetaDataId(blockMetaData.getId()).orElseGet(() -> this.restoreBlockDataRepository.save(new RestoreBlockData(blockMetaData, RestoreType.RESTORE)));
                 restorePath.getMissingBlocks().add(restoreBlockData);
             }
             this.restorePathRepository.save(restorePath);
@@ -1,6 +1,8 @@
 package at.lucny.p2pbackup.restore.service.worker;
 
 import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.application.config.ChunkerType;
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
 import at.lucny.p2pbackup.backup.dto.PathDataVersion;
 import at.lucny.p2pbackup.core.domain.*;
 import at.lucny.p2pbackup.core.repository.BlockMetaDataRepository;
@@ -43,17 +45,17 @@ public class RecoverMetadataWorker {
 
     @Transactional
     public BlockMetaData createOrUpdateBlockMetaDataAndAddLocation(String blockId, String userId) {
-        this.createOrUpdateBlockMetaData(blockId, null);
+        this.createOrUpdateBlockMetaData(blockId, null, null);
         return this.addLocation(userId, blockId);
     }
 
     @Transactional
-    public BlockMetaData createOrUpdateBlockMetaData(String blockId, String hash) {
+    public BlockMetaData createOrUpdateBlockMetaData(String blockId, String hash, HashAlgorithm hashAlgorithm) {
         // create new block meta data if none exists for the block id
         Optional<BlockMetaData> bmdOptional = this.blockMetaDataRepository.findById(blockId);
         BlockMetaData bmd = null;
         if (bmdOptional.isEmpty()) {
-            bmd = this.blockMetaDataRepository.save(new BlockMetaData(blockId, hash));
+            bmd = this.blockMetaDataRepository.save(new BlockMetaData(blockId, hash, hash != null ? hashAlgorithm : null));
         } else {
             bmd = bmdOptional.get();
             if (hash != null) {
@@ -61,6 +63,7 @@ public class RecoverMetadataWorker {
                     throw new IllegalStateException("block " + blockId + " already has hash " + bmd.getHash() + ", but the hash " + hash + " should be set");
                 }
                 bmd.setHash(hash);
+                bmd.setHashAlgorithm(hashAlgorithm);
             }
         }
         return bmd;
@@ -81,14 +84,25 @@ public class RecoverMetadataWorker {
         if (pathDataVersion.getDeleted()) {
             version = new PathVersion(timestampOfVersion, true);
         } else {
-            version = new PathVersion(timestampOfVersion, pathDataVersion.getHash());
+            ChunkerType chunker = pathDataVersion.getChunker().isEmpty() ? null : ChunkerType.valueOf(pathDataVersion.getChunker());
+            // versions created before the algorithm was recorded were hashed with SHA-256
+            HashAlgorithm hashAlgorithm = pathDataVersion.getHashAlgorithm().isEmpty() ? HashAlgorithm.SHA_256 : HashAlgorithm.valueOf(pathDataVersion.getHashAlgorithm());
+            version = new PathVersion(timestampOfVersion, pathDataVersion.getHash(), hashAlgorithm, chunker);
 
             for (String dataBlockId : pathDataVersion.getBlockIdsList()) {
-                BlockMetaData bmd = this.createOrUpdateBlockMetaData(dataBlockId, null);
+                BlockMetaData bmd = this.createOrUpdateBlockMetaData(dataBlockId, null, null);
                 version.getBlocks().add(bmd);
             }
+            version.getZeroBlocks().putAll(pathDataVersion.getZeroBlocksMap());
+            if (pathDataVersion.getBlockSize() > 0) {
+                version.setBlockSize(pathDataVersion.getBlockSize());
+            }
+            if (pathDataVersion.getPackLength() > 0) {
+                version.setPackOffset(pathDataVersion.getPackOffset());
+                version.setPackLength(pathDataVersion.getPackLength());
+            }
         }
-        version.setVersionBlock(this.createOrUpdateBlockMetaData(blockId, null));
+        version.setVersionBlock(this.createOrUpdateBlockMetaData(blockId, null, null));
 
         pathData.getVersions().add(version);
         pathData = this.pathDataRepository.save(pathData);
@@ -1,5 +1,6 @@
 package at.lucny.p2pbackup.restore.service.worker;
 
+import at.lucny.p2pbackup.core.service.BlockCompressionService;
 import at.lucny.p2pbackup.core.service.BlockEncryptionService;
 import at.lucny.p2pbackup.localstorage.service.LocalStorageService;
 import at.lucny.p2pbackup.localstorage.service.RestorationStorageService;
@@ -33,6 +34,8 @@ public class RestoreBlockWorker {
 
     private final BlockEncryptionService blockEncryptionService;
 
+    private final BlockCompressionService blockCompressionService;
+
     private final RecoveryServiceImpl recoveryService;
 
     private final RestoreBlockDataRepository restoreBlockDataRepository;
@@ -43,8 +46,9 @@ public class RestoreBlockWorker {
 
     private final RestorePathRepository restorePathRepository;
 
-    public RestoreBlockWorker(BlockEncryptionService blockEncryptionService, RecoveryServiceImpl recoveryService, RestoreBlockDataRepository restoreBlockDataRepository, RestorationStorageService restorationStorageService, LocalStorageService localStorageService, RestorePathRepository restorePathRepository) {
+    public RestoreBlockWorker(BlockEncryptionService blockEncryptionService, BlockCompressionService blockCompressionService, RecoveryServiceImpl recoveryService, RestoreBlockDataRepository restoreBlockDataRepository, RestorationStorageService restorationStorageService, LocalStorageService localStorageService, RestorePathRepository restorePathRepository) {
         this.blockEncryptionService = blockEncryptionService;
+        this.blockCompressionService = blockCompressionService;
         this.recoveryService = recoveryService;
         this.restoreBlockDataRepository = restoreBlockDataRepository;
         this.restorationStorageService = restorationStorageService;
@@ -72,7 +76,8 @@ public class RestoreBlockWorker {
 
     @Transactional
     public void restoreBlock(String userId, String blockId, ByteBuffer encryptedData) {
-        this.blockEncryptionService.decrypt(encryptedData, blockId.getBytes(StandardCharsets.UTF_8), plainDataBuffer -> {
+        boolean hasCompressionHeader = this.blockEncryptionService.isSegmented(encryptedData);
+        this.blockEncryptionService.decrypt(encryptedData, blockId.getBytes(StandardCharsets.UTF_8), compressedDataBuffer -> this.blockCompressionService.decompress(compressedDataBuffer, hasCompressionHeader, plainDataBuffer -> {
             LOGGER.debug("restoring block {}", blockId);
             boolean isDataBlock = true;
             if (this.recoveryService.isRecoveryActive()) {
@@ -83,7 +88,7 @@ public class RestoreBlockWorker {
             if (isDataBlock) {
                 this.saveBlock(blockId, plainDataBuffer.duplicate()); // save block for data restoration
             }
-        });
+        }));
 
         this.deleteRestoreBlockData(blockId);
     }
@@ -87,7 +87,9 @@ public class RestoreTaskWorker {
     @Transactional
     public void addRestoreTasksForMissingBlocks(RestorePath restorePath, List<BlockMetaData> missingBlocks) {
         for (BlockMetaData missingBlock : missingBlocks) {
-            restorePath.getMissingBlocks().add(this.restoreBlockDataRepository.save(new RestoreBlockData(missingBlock, RestoreType.RESTORE)));
+            // a block can be shared by multiple files (e.g. packed small files), so reuse an existing restore-task
+            restorePath.getMissingBlocks().add(this.restoreBlockDataRepository.findByBlockMetaDataId(missingBlock.getId())
+                    .orElseGet(() -> this.restoreBlockDataRepository.save(new RestoreBlockData(missingBlock, RestoreType.RESTORE))));
         }
         this.restorePathRepository.save(restorePath);
     }
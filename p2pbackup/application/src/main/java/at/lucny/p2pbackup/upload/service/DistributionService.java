@@ -6,6 +6,7 @@ import at.lucny.p2pbackup.core.domain.DataLocation;
 import jakarta.validation.constraints.NotNull;
 import java.time.LocalDateTime;
 import java.util.Map;
+import java.util.Optional;
 
 public interface DistributionService {
 
@@ -16,6 +17,14 @@ public interface DistributionService {
 
     int getNumberOfVerifiedReplicas(@NotNull BlockMetaData bmd);
 
+    /**
+     * Calculates the date until the block has enough verified replicas, if none of its replicas is verified again.
+     *
+     * @param bmd the block with its locations
+     * @return the date, or an empty optional if the block doesn't have enough verified replicas
+     */
+    @NotNull Optional<LocalDateTime> calculateEnoughVerifiedReplicasUntil(@NotNull BlockMetaData bmd);
+
     boolean hasNotEnoughVerifiedReplicas(@NotNull String bmdId);
 
     boolean hasEnoughVerifiedReplicas(@NotNull String blockMetaDataId);
@@ -66,6 +66,18 @@ public class DistributionServiceImpl implements DistributionService {
         return nrOfVerifiedLocations;
     }
 
+    @Override
+    public Optional<LocalDateTime> calculateEnoughVerifiedReplicasUntil(BlockMetaData bmd) {
+        List<LocalDateTime> verifiedDates = bmd.getLocations().stream().map(DataLocation::getVerified).sorted(Comparator.reverseOrder()).toList();
+        if (verifiedDates.size() < this.p2PBackupProperties.getMinimalReplicas()) {
+            return Optional.empty();
+        }
+        // the block has enough verified replicas until the replica with the oldest relevant verification becomes invalid
+        LocalDateTime enoughVerifiedReplicasUntil = verifiedDates.get(this.p2PBackupProperties.getMinimalReplicas() - 1)
+                .plus(this.p2PBackupProperties.getVerificationProperties().getDurationBeforeVerificationInvalid());
+        return enoughVerifiedReplicasUntil.isAfter(LocalDateTime.now(ZoneOffset.UTC)) ? Optional.of(enoughVerifiedReplicasUntil) : Optional.empty();
+    }
+
     @Override
     public LocalDateTime calulateVerificationInvalidDateTime() {
         return LocalDateTime.now(ZoneOffset.UTC).minus(this.p2PBackupProperties.getVerificationProperties().getDurationBeforeVerificationInvalid());
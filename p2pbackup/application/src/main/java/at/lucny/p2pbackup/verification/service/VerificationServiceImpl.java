@@ -1,6 +1,7 @@
 package at.lucny.p2pbackup.verification.service;
 
 import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.backup.service.BlockHashIndexService;
 import at.lucny.p2pbackup.backup.support.BackupUtils;
 import at.lucny.p2pbackup.core.domain.DataLocation;
 import at.lucny.p2pbackup.core.repository.DataLocationRepository;
@@ -34,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Validated
 @Service
@@ -51,12 +53,15 @@ public class VerificationServiceImpl implements VerificationService {
 
     private final P2PBackupProperties p2PBackupProperties;
 
-    public VerificationServiceImpl(@Lazy ClientService clientService, VerificationValueService verificationValueService, DataLocationRepository dataLocationRepository, LocalStorageService localStorageService, P2PBackupProperties p2PBackupProperties) {
+    private final BlockHashIndexService blockHashIndexService;
+
+    public VerificationServiceImpl(@Lazy ClientService clientService, VerificationValueService verificationValueService, DataLocationRepository dataLocationRepository, LocalStorageService localStorageService, P2PBackupProperties p2PBackupProperties, BlockHashIndexService blockHashIndexService) {
         this.clientService = clientService;
         this.verificationValueService = verificationValueService;
         this.dataLocationRepository = dataLocationRepository;
         this.localStorageService = localStorageService;
         this.p2PBackupProperties = p2PBackupProperties;
+        this.blockHashIndexService = blockHashIndexService;
     }
 
     /**
@@ -73,6 +78,7 @@ public class VerificationServiceImpl implements VerificationService {
         var deleteBlockBuilder = DeleteBlock.newBuilder().addId(dataLocation.getBlockMetaData().getId());
         ProtocolMessage message = ProtocolMessage.newBuilder().setDeleteBlock(deleteBlockBuilder).build();
         NettyClient client = this.clientService.getClient(dataLocation.getUserId());
+        String hash = dataLocation.getBlockMetaData().getHash();
 
         try {
             ChannelFuture future = client.write(message);
@@ -80,6 +86,7 @@ public class VerificationServiceImpl implements VerificationService {
             // after sucessfully sending a delete-message to the user remove the location from the block-locations
             future.addListener(new SuccessListener(() -> {
                 this.dataLocationRepository.flush();
+                this.blockHashIndexService.invalidate(hash);
                 this.dataLocationRepository.deleteAllInBatch(Collections.singletonList(dataLocation));
             }));
         } catch (RuntimeException rte) {
@@ -223,6 +230,7 @@ public class VerificationServiceImpl implements VerificationService {
             LOGGER.debug("data-location for block {} and user {} does not exist", blockMetaDataId, userId);
             return;
         }
+        this.blockHashIndexService.invalidate(optionalDataLocation.get().getBlockMetaData().getHash());
         this.dataLocationRepository.delete(optionalDataLocation.get());
     }
 
@@ -237,6 +245,7 @@ public class VerificationServiceImpl implements VerificationService {
         }
         LocalDateTime dateForLocationUnverified = LocalDateTime.now(ZoneOffset.UTC).minus(this.p2PBackupProperties.getVerificationProperties().getDurationBeforeVerificationInvalid());
         if (dateForLocationUnverified.isBefore(optionalDataLocation.get().getVerified())) {
+            this.blockHashIndexService.invalidate(optionalDataLocation.get().getBlockMetaData().getHash());
             optionalDataLocation.get().setVerified(dateForLocationUnverified);
         }
     }
@@ -265,6 +274,7 @@ public class VerificationServiceImpl implements VerificationService {
 
         if (!verificationValue.get().getHash().equals(hash)) {
             LOGGER.info("user {} failed the verification of the block {}", userId, blockMetaDataId);
+            this.blockHashIndexService.invalidate(optionalLocation.get().getBlockMetaData().getHash());
             optionalLocation.get().setVerified(LocalDateTime.now(ZoneOffset.UTC).minus(this.p2PBackupProperties.getVerificationProperties().getDurationBeforeVerificationInvalid()));
             return false;
         }
@@ -289,6 +299,10 @@ public class VerificationServiceImpl implements VerificationService {
     public void markLocationsForVerification(String userId) {
         LocalDateTime verificationInvalid = LocalDateTime.now(ZoneOffset.UTC).minus(this.p2PBackupProperties.getVerificationProperties().getDurationBetweenVerifications());
         long updated = this.dataLocationRepository.updateVerifiedDateByUserId(userId, verificationInvalid);
+        // the entries of the blocks expire at the previous verification dates, which are later than the reset dates
+        try (Stream<String> hashes = this.dataLocationRepository.streamBlockHashesByUserId(userId)) {
+            hashes.forEach(this.blockHashIndexService::invalidate);
+        }
         LOGGER.info("reset verification date of {} blocks", updated);
     }
 }
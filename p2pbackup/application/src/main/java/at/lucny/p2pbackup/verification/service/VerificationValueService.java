@@ -1,11 +1,14 @@
 package at.lucny.p2pbackup.verification.service;
 
+import at.lucny.p2pbackup.core.domain.BlockMetaData;
 import at.lucny.p2pbackup.verification.domain.ActiveVerificationValue;
 import at.lucny.p2pbackup.verification.domain.VerificationValue;
 
 import jakarta.validation.constraints.NotNull;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 
 public interface VerificationValueService {
@@ -20,10 +23,28 @@ public interface VerificationValueService {
 
     void ensureVerificationValues(@NotNull String blockMetaDataId, @NotNull ByteBuffer data);
 
+    /**
+     * Generates all required verification-values for a new block without persisting them.
+     *
+     * @param bmd  the block-meta-data of the block
+     * @param data the encrypted data of the block
+     * @return the generated verification-values
+     */
+    @NotNull List<VerificationValue> createVerificationValues(@NotNull BlockMetaData bmd, @NotNull ByteBuffer data);
+
     @NotNull Optional<VerificationValue> getVerificationValue(@NotNull String id);
 
     @NotNull Optional<String> generateHashFromChallenge(@NotNull Path filePath, @NotNull String challenge);
 
+    /**
+     * Generates the hash of the data read from the stream for the given challenge. The stream is not closed.
+     *
+     * @param data      the data of the block
+     * @param challenge the challenge
+     * @return the hash, or an empty optional if the data can't be read
+     */
+    @NotNull Optional<String> generateHashFromChallenge(@NotNull InputStream data, @NotNull String challenge);
+
     /**
      * Return the currently set active-verification-value.
      *
@@ -17,6 +17,7 @@ import org.springframework.util.CollectionUtils;
 import org.springframework.validation.annotation.Validated;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
@@ -69,24 +70,33 @@ public class VerificationValueServiceImpl implements VerificationValueService {
             LOGGER.debug("only {} verification values available for block-meta-data {}", count, blockMetaDataId);
 
             BlockMetaData bmd = this.blockMetaDataRepository.getById(blockMetaDataId);
-            List<VerificationValue> values = new ArrayList<>();
-            MessageDigest digest = DigestUtils.getSha3_512Digest();
+            List<VerificationValue> values = this.generateVerificationValues(bmd, data, NR_OF_VERIFICATION_VALUES - count);
+            this.verificationValueRepository.saveAll(values);
+        }
+    }
+
+    @Override
+    public List<VerificationValue> createVerificationValues(BlockMetaData bmd, ByteBuffer data) {
+        return this.generateVerificationValues(bmd, data, NR_OF_VERIFICATION_VALUES);
+    }
 
-            ByteBuffer bufferToUse = data.duplicate();
-            bufferToUse.mark();
+    private List<VerificationValue> generateVerificationValues(BlockMetaData bmd, ByteBuffer data, long nrOfValues) {
+        List<VerificationValue> values = new ArrayList<>();
+        MessageDigest digest = DigestUtils.getSha3_512Digest();
 
-            for (long i = count; i < NR_OF_VERIFICATION_VALUES; i++) {
-                String id = Base64.getEncoder().encodeToString(this.cryptoUtils.nextBytes(16));
-                VerificationValue vv = new VerificationValue(id, bmd);
-                vv.setHash(this.generateHashFromChallenge(digest, bufferToUse, vv.getId()));
-                digest.reset();
-                bufferToUse.reset();
+        ByteBuffer bufferToUse = data.duplicate();
+        bufferToUse.mark();
 
-                values.add(vv);
-            }
+        for (long i = 0; i < nrOfValues; i++) {
+            String id = Base64.getEncoder().encodeToString(this.cryptoUtils.nextBytes(16));
+            VerificationValue vv = new VerificationValue(id, bmd);
+            vv.setHash(this.generateHashFromChallenge(digest, bufferToUse, vv.getId()));
+            digest.reset();
+            bufferToUse.reset();
 
-            this.verificationValueRepository.saveAll(values);
+            values.add(vv);
         }
+        return values;
     }
 
     String generateHashFromChallenge(MessageDigest digest, ByteBuffer data, String challenge) {
@@ -109,6 +119,19 @@ public class VerificationValueServiceImpl implements VerificationValueService {
         }
     }
 
+    @Override
+    public Optional<String> generateHashFromChallenge(InputStream data, String challenge) {
+        MessageDigest digest = DigestUtils.getSha3_512Digest();
+        digest.update(challenge.getBytes(StandardCharsets.UTF_8));
+        try {
+            byte[] hash = DigestUtils.digest(digest, data);
+            return Optional.of(Base64.getEncoder().encodeToString(hash));
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to calculate hash with challenge {}", challenge);
+            return Optional.empty();
+        }
+    }
+
     @Transactional(readOnly = true)
     @Override
     public Optional<ActiveVerificationValue> getActiveVerificationValue(String blockMetaDataId) {
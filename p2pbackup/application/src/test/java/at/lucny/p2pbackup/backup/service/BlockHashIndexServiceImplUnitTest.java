@@ -0,0 +1,252 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.configuration.support.ConfigurationConstants;
+import at.lucny.p2pbackup.core.repository.BlockMetaDataIdAndHash;
+import at.lucny.p2pbackup.core.repository.BlockMetaDataRepository;
+import at.lucny.p2pbackup.core.service.CryptoService;
+import at.lucny.p2pbackup.core.support.SecretKeyGenerator;
+import at.lucny.p2pbackup.upload.service.DistributionService;
+import org.apache.commons.configuration2.BaseConfiguration;
+import org.apache.commons.configuration2.Configuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class BlockHashIndexServiceImplUnitTest {
+
+    @TempDir
+    private Path databaseDir;
+
+    @Mock
+    private BlockMetaDataRepository blockMetaDataRepositoryMock;
+
+    @Mock
+    private DistributionService distributionServiceMock;
+
+    @Mock
+    private CryptoService cryptoServiceMock;
+
+    @Mock
+    private PlatformTransactionManager transactionManagerMock;
+
+    private P2PBackupProperties p2PBackupProperties;
+
+    private Configuration configuration;
+
+    private BlockHashIndexServiceImpl blockHashIndexService;
+
+    @BeforeEach
+    void beforeEach() {
+        this.p2PBackupProperties = new P2PBackupProperties();
+        this.p2PBackupProperties.getDatabase().setDatabaseDir(this.databaseDir);
+        this.configuration = new BaseConfiguration();
+        when(this.cryptoServiceMock.getSecretKeyGenerator()).thenReturn(new SecretKeyGenerator("secret".getBytes(StandardCharsets.UTF_8), 256, 1000));
+        when(this.blockMetaDataRepositoryMock.streamCompletelyProcessedBlocks(anyLong(), any(), anyLong())).thenAnswer(invocation -> Stream.empty());
+        when(this.distributionServiceMock.calulateVerificationInvalidDateTime()).thenReturn(LocalDateTime.now(ZoneOffset.UTC).minusDays(30));
+        this.blockHashIndexService = this.createService();
+    }
+
+    @AfterEach
+    void afterEach() {
+        this.blockHashIndexService.close();
+    }
+
+    private BlockHashIndexServiceImpl createService() {
+        return this.createService(new TaskExecutorAdapter(Runnable::run));
+    }
+
+    private BlockHashIndexServiceImpl createService(AsyncTaskExecutor taskExecutor) {
+        BlockHashIndexServiceImpl service = new BlockHashIndexServiceImpl(this.p2PBackupProperties, this.blockMetaDataRepositoryMock, this.distributionServiceMock, this.cryptoServiceMock, this.transactionManagerMock, taskExecutor, this.configuration);
+        service.open();
+        return service;
+    }
+
+    private String createId() {
+        return UUID.randomUUID().toString().toUpperCase();
+    }
+
+    @Test
+    void testPutAndFind() {
+        String id = this.createId();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+
+        this.blockHashIndexService.put("HASH", id, Instant.MAX);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).contains(id);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("OTHER_HASH")).isEmpty();
+
+        String newId = this.createId();
+        this.blockHashIndexService.put("HASH", newId, Instant.MAX);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).contains(newId);
+    }
+
+    @Test
+    void testPut_idIsNoUuid() {
+        this.blockHashIndexService.put("HASH", "BACKUP_INDEX_1", Instant.MAX);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+    }
+
+    @Test
+    void testFind_expiredEntry() {
+        this.p2PBackupProperties.getBackupProperties().setBlockHashIndexValidity(Duration.ofMillis(-1));
+        this.blockHashIndexService.put("HASH", this.createId(), Instant.MAX);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+    }
+
+    @Test
+    void testFind_entryExpiredBeforeValidity() {
+        // the replicas of the block are no longer verified before the validity of the index ends
+        this.blockHashIndexService.put("HASH", this.createId(), Instant.now().minusMillis(1));
+        this.blockHashIndexService.put("OTHER_HASH", this.createId(), Instant.now().plus(Duration.ofHours(1)));
+
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("OTHER_HASH")).isPresent();
+    }
+
+    @Test
+    void testInvalidate() {
+        this.blockHashIndexService.put("HASH", this.createId(), Instant.MAX);
+        this.blockHashIndexService.put("OTHER_HASH", this.createId(), Instant.MAX);
+
+        this.blockHashIndexService.invalidate("HASH");
+        this.blockHashIndexService.invalidate(null);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("OTHER_HASH")).isPresent();
+
+        String id = this.createId();
+        this.blockHashIndexService.put("HASH", id, Instant.MAX);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).contains(id);
+    }
+
+    @Test
+    void testPut_growsIndex() throws IOException {
+        Path indexFile = this.databaseDir.resolve("block-hash-index.dat");
+        long initialSize = Files.size(indexFile);
+
+        String id = this.createId();
+        for (int i = 0; i < 50000; i++) {
+            this.blockHashIndexService.put("HASH" + i, id, Instant.MAX);
+        }
+
+        assertThat(Files.size(indexFile)).isGreaterThan(initialSize);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH0")).contains(id);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH49999")).contains(id);
+    }
+
+    @Test
+    void testOpen_reusesProperlyClosedIndex() {
+        String id = this.createId();
+        this.blockHashIndexService.put("HASH", id, Instant.MAX);
+        this.blockHashIndexService.close();
+
+        this.blockHashIndexService = this.createService();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).contains(id);
+        verify(this.blockMetaDataRepositoryMock, times(1)).streamCompletelyProcessedBlocks(anyLong(), any(), anyLong());
+    }
+
+    @Test
+    void testOpen_rebuildsDirtyIndex() {
+        String id = this.createId();
+        this.blockHashIndexService.put("HASH", id, Instant.MAX);
+
+        // the first service is not closed, so the index is still marked as dirty
+        BlockHashIndexServiceImpl secondService = this.createService();
+        assertThat(secondService.findCompletelyProcessedBlock("HASH")).isEmpty();
+        verify(this.blockMetaDataRepositoryMock, times(2)).streamCompletelyProcessedBlocks(anyLong(), any(), anyLong());
+        secondService.close();
+    }
+
+    @Test
+    void testOpen_rebuildsIndexOfOtherDatabase() {
+        this.blockHashIndexService.put("HASH", this.createId(), Instant.MAX);
+        this.blockHashIndexService.close();
+
+        // a new database doesn't know the id of the existing index
+        this.configuration.clearProperty(ConfigurationConstants.PROPERTY_BLOCK_HASH_INDEX_ID);
+        this.blockHashIndexService = this.createService();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+        assertThat(this.configuration.getString(ConfigurationConstants.PROPERTY_BLOCK_HASH_INDEX_ID)).isNotNull();
+        verify(this.blockMetaDataRepositoryMock, times(2)).streamCompletelyProcessedBlocks(anyLong(), any(), anyLong());
+    }
+
+    @Test
+    void testOpen_rebuildsIndexInBackground() {
+        String id = this.createId();
+        this.blockHashIndexService.put("HASH", id, Instant.MAX);
+        this.blockHashIndexService.close();
+        this.configuration.clearProperty(ConfigurationConstants.PROPERTY_BLOCK_HASH_INDEX_ID);
+        when(this.blockMetaDataRepositoryMock.streamCompletelyProcessedBlocks(anyLong(), any(), anyLong()))
+                .thenAnswer(invocation -> Stream.of(new BlockMetaDataIdAndHash(id, "HASH")));
+
+        List<Runnable> tasks = new ArrayList<>();
+        this.blockHashIndexService = this.createService(new TaskExecutorAdapter(tasks::add));
+        // until the index is rebuilt every block is checked against the database
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+        this.blockHashIndexService.put("HASH", id, Instant.MAX);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+
+        assertThat(tasks).hasSize(1);
+        tasks.get(0).run();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).contains(id);
+    }
+
+    @Test
+    void testRebuild_invalidatedWhileRebuilding() {
+        String id = this.createId();
+        when(this.blockMetaDataRepositoryMock.streamCompletelyProcessedBlocks(anyLong(), any(), anyLong()))
+                .thenAnswer(invocation -> {
+                    this.blockHashIndexService.invalidate("HASH");
+                    return Stream.of(new BlockMetaDataIdAndHash(id, "HASH"), new BlockMetaDataIdAndHash(this.createId(), "OTHER_HASH"));
+                });
+
+        this.blockHashIndexService.rebuild();
+
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).isEmpty();
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("OTHER_HASH")).isPresent();
+    }
+
+    @Test
+    void testRebuild() {
+        String id = this.createId();
+        when(this.blockMetaDataRepositoryMock.streamCompletelyProcessedBlocks(anyLong(), any(), anyLong()))
+                .thenAnswer(invocation -> Stream.of(new BlockMetaDataIdAndHash(id, "HASH"), new BlockMetaDataIdAndHash("BACKUP_INDEX_1", "OTHER_HASH")));
+
+        LocalDateTime verificationInvalidDate = LocalDateTime.now(ZoneOffset.UTC).minusDays(30);
+        when(this.distributionServiceMock.calulateVerificationInvalidDateTime()).thenReturn(verificationInvalidDate);
+
+        this.blockHashIndexService.rebuild();
+
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("HASH")).contains(id);
+        assertThat(this.blockHashIndexService.findCompletelyProcessedBlock("OTHER_HASH")).isEmpty();
+        // only blocks whose replicas are still verified when the entries expire are indexed
+        verify(this.blockMetaDataRepositoryMock).streamCompletelyProcessedBlocks(anyLong(), eq(verificationInvalidDate.plus(this.p2PBackupProperties.getBackupProperties().getBlockHashIndexValidity())), anyLong());
+    }
+}
@@ -0,0 +1,185 @@
+package at.lucny.p2pbackup.backup.service;
+
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.backup.dto.Block;
+import at.lucny.p2pbackup.core.service.ByteBufferPoolServiceImpl;
+import at.lucny.p2pbackup.core.support.HashUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ContentDefinedChunkIteratorUnitTest {
+
+    private static final int MIN_SIZE = 2 * 1024;
+
+    private static final int AVERAGE_SIZE = 8 * 1024;
+
+    private static final int MAX_SIZE = 32 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private final HashUtils hashUtils = new HashUtils();
+
+    private List<Block> chunk(byte[] data) throws IOException {
+        return this.chunk(this.createIterator(data, Long.MAX_VALUE, 0));
+    }
+
+    private List<Block> chunk(ChunkIterator iterator) {
+        List<Block> blocks = new ArrayList<>();
+        iterator.forEachRemaining(blocks::add);
+        return blocks;
+    }
+
+    private ChunkIterator createIterator(byte[] data) throws IOException {
+        return this.createIterator(data, Long.MAX_VALUE, 0);
+    }
+
+    private ChunkIterator createIterator(byte[] data, long mappedReadThreshold, long mappedWindowSize) throws IOException {
+        return this.createIterator(data, mappedReadThreshold, mappedWindowSize, HashAlgorithm.SHA_256);
+    }
+
+    private ChunkIterator createIterator(byte[] data, long mappedReadThreshold, long mappedWindowSize, HashAlgorithm hashAlgorithm) throws IOException {
+        Path file = Files.createTempFile(this.tempDir, "cdc", ".bin");
+        Files.write(file, data);
+        return new ContentDefinedChunkIterator(file, MIN_SIZE, AVERAGE_SIZE, MAX_SIZE, null, mappedReadThreshold, mappedWindowSize, hashAlgorithm);
+    }
+
+    private byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void testChunk_blocksReassembleFile() throws IOException {
+        byte[] data = this.randomData(1024 * 1024);
+
+        List<Block> blocks = this.chunk(data);
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            int size = block.content().remaining();
+            assertThat(size).isLessThanOrEqualTo(MAX_SIZE);
+            if (i < blocks.size() - 1) {
+                assertThat(size).isGreaterThan(MIN_SIZE);
+            }
+            byte[] content = new byte[size];
+            block.content().duplicate().get(content);
+            reassembled.write(content);
+        }
+        assertThat(reassembled.toByteArray()).isEqualTo(data);
+        assertThat(blocks.size()).isBetween(1024 * 1024 / MAX_SIZE, 1024 * 1024 / MIN_SIZE);
+    }
+
+    @Test
+    void testChunk_insertedDataOnlyChangesSurroundingBlocks() throws IOException {
+        byte[] data = this.randomData(1024 * 1024);
+        byte[] shiftedData = new byte[data.length + 1];
+        System.arraycopy(data, 0, shiftedData, 0, 1000);
+        shiftedData[1000] = 42;
+        System.arraycopy(data, 1000, shiftedData, 1001, data.length - 1000);
+
+        Set<String> originalHashes = new HashSet<>(this.chunk(data).stream().map(Block::hash).toList());
+        List<Block> shiftedBlocks = this.chunk(shiftedData);
+
+        long nrOfChangedBlocks = shiftedBlocks.stream().map(Block::hash).filter(hash -> !originalHashes.contains(hash)).count();
+        assertThat(nrOfChangedBlocks).isBetween(1L, 2L);
+    }
+
+    @Test
+    void testChunk_emptyFile() throws IOException {
+        assertThat(this.chunk(new byte[0])).isEmpty();
+    }
+
+    @Test
+    void testGetFileHash() throws IOException {
+        byte[] data = this.randomData(100 * 1024);
+        ChunkIterator iterator = this.createIterator(data);
+
+        assertThat(iterator.hasNext()).isTrue();
+        iterator.next();
+        assertThatThrownBy(iterator::getFileHash).isInstanceOf(IllegalStateException.class);
+
+        iterator.forEachRemaining(block -> {
+        });
+        assertThat(iterator.getFileHash()).isEqualTo(this.hashUtils.generateBlockHash(data));
+    }
+
+    @Test
+    void testGetFileHash_blake3() throws IOException {
+        // more than one leaf of the tree-hash, with a partial last leaf
+        byte[] data = this.randomData(3 * 1024 * 1024 + 1234);
+        HashUtils blake3HashUtils = new HashUtils(HashAlgorithm.BLAKE3);
+
+        for (ChunkIterator iterator : List.of(this.createIterator(data, Long.MAX_VALUE, 0, HashAlgorithm.BLAKE3), this.createIterator(data, 0, 100 * 1024, HashAlgorithm.BLAKE3))) {
+            List<Block> blocks = this.chunk(iterator);
+            for (Block block : blocks) {
+                assertThat(block.hashAlgorithm()).isEqualTo(HashAlgorithm.BLAKE3);
+                assertThat(block.hash()).isEqualTo(blake3HashUtils.generateBlockHash(block.content().duplicate()));
+            }
+            assertThat(iterator.getFileHash()).isEqualTo(blake3HashUtils.generateHashForFile(data)).isNotEqualTo(blake3HashUtils.generateBlockHash(data));
+        }
+    }
+
+    @Test
+    void testChunk_zeroBlocksAreNotHashed() throws IOException {
+        byte[] data = this.randomData(300 * 1024);
+        Arrays.fill(data, 50 * 1024, 250 * 1024, (byte) 0);
+
+        for (ChunkIterator iterator : List.of(this.createIterator(data), this.createIterator(data, 0, 100 * 1024))) {
+            List<Block> blocks = this.chunk(iterator);
+            assertThat(blocks).filteredOn(Block::isZeroBlock).isNotEmpty().allSatisfy(block -> assertThat(block.hash()).isNull());
+            assertThat(blocks).filteredOn(block -> !block.isZeroBlock())
+                    .allSatisfy(block -> assertThat(block.hash()).isEqualTo(this.hashUtils.generateBlockHash(block.content().duplicate())));
+            assertThat(iterator.getFileHash()).isEqualTo(this.hashUtils.generateBlockHash(data));
+        }
+    }
+
+    @Test
+    void testChunk_mappedFileHasSameBlocks() throws IOException {
+        byte[] data = this.randomData(1024 * 1024);
+
+        List<Block> blocks = this.chunk(data);
+        // a window of 100KB forces multiple remappings of the file
+        ChunkIterator mappedIterator = this.createIterator(data, 0, 100 * 1024);
+        List<Block> mappedBlocks = this.chunk(mappedIterator);
+
+        assertThat(mappedBlocks).extracting(Block::hash).containsExactlyElementsOf(blocks.stream().map(Block::hash).toList());
+        assertThat(mappedBlocks).extracting(Block::content).containsExactlyElementsOf(blocks.stream().map(Block::content).toList());
+        assertThat(mappedIterator.getFileHash()).isEqualTo(this.hashUtils.generateBlockHash(data));
+    }
+
+    @Test
+    void testRelease_returnsBuffersToPool() throws IOException {
+        byte[] data = this.randomData(256 * 1024);
+        Path file = Files.createTempFile(this.tempDir, "cdc", ".bin");
+        Files.write(file, data);
+        ByteBufferPoolServiceImpl byteBufferPoolService = new ByteBufferPoolServiceImpl(new P2PBackupProperties());
+
+        List<Block> blocks;
+        try (ChunkIterator iterator = new ContentDefinedChunkIterator(file, MIN_SIZE, AVERAGE_SIZE, MAX_SIZE, byteBufferPoolService, Long.MAX_VALUE, 0, HashAlgorithm.SHA_256)) {
+            blocks = this.chunk(iterator);
+            assertThat(blocks).allSatisfy(block -> assertThat(block.content().isDirect()).isTrue());
+            assertThat(blocks.stream().mapToInt(block -> block.content().remaining()).sum()).isEqualTo(data.length);
+            blocks.forEach(iterator::release);
+        }
+
+        assertThat(byteBufferPoolService.getStatistics().outstandingBytes()).isZero();
+    }
+}
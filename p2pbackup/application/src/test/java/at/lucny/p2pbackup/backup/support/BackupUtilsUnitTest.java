@@ -0,0 +1,28 @@
+package at.lucny.p2pbackup.backup.support;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BackupUtilsUnitTest {
+
+    @Test
+    void testIsZeroBlock() {
+        assertThat(BackupUtils.isZeroBlock(ByteBuffer.allocate(200 * 1024))).isTrue();
+        assertThat(BackupUtils.isZeroBlock(ByteBuffer.allocateDirect(100))).isTrue();
+        assertThat(BackupUtils.isZeroBlock(ByteBuffer.allocate(0))).as("an empty block is no zero-block").isFalse();
+    }
+
+    @Test
+    void testIsZeroBlock_nonZeroByte() {
+        ByteBuffer content = ByteBuffer.allocate(200 * 1024);
+        content.put(150 * 1024, (byte) 1);
+        assertThat(BackupUtils.isZeroBlock(content)).isFalse();
+
+        // only the remaining content is checked
+        assertThat(BackupUtils.isZeroBlock(content.position(150 * 1024 + 1))).isTrue();
+        assertThat(content.position()).isEqualTo(150 * 1024 + 1);
+    }
+}
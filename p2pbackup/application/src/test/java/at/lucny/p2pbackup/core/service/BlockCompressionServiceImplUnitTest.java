@@ -0,0 +1,125 @@
+package at.lucny.p2pbackup.core.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BlockCompressionServiceImplUnitTest {
+
+    private P2PBackupProperties p2PBackupProperties;
+
+    private BlockCompressionServiceImpl blockCompressionService;
+
+    @BeforeEach
+    void beforeEach() {
+        this.p2PBackupProperties = new P2PBackupProperties();
+        this.blockCompressionService = this.createService();
+    }
+
+    private BlockCompressionServiceImpl createService() {
+        return new BlockCompressionServiceImpl(this.p2PBackupProperties, new ByteBufferPoolServiceImpl(this.p2PBackupProperties), List.of(new DeflateBlockCompressionCodec()));
+    }
+
+    private byte[] compress(byte[] data) {
+        AtomicReference<byte[]> result = new AtomicReference<>();
+        this.blockCompressionService.compress(ByteBuffer.wrap(data), buffer -> result.set(this.toArray(buffer)));
+        return result.get();
+    }
+
+    private byte[] decompress(byte[] data) {
+        return this.decompress(data, true);
+    }
+
+    private byte[] decompress(byte[] data, boolean hasHeader) {
+        AtomicReference<byte[]> result = new AtomicReference<>();
+        this.blockCompressionService.decompress(ByteBuffer.wrap(data), hasHeader, buffer -> result.set(this.toArray(buffer)));
+        return result.get();
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private byte[] createText() {
+        return "a compressible line of text in a log-file\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] createRandomData() {
+        byte[] data = new byte[40000];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void testCompress_compressibleData() {
+        byte[] data = this.createText();
+
+        byte[] compressedData = this.compress(data);
+        assertThat(compressedData.length).isLessThan(data.length / 10);
+        assertThat(this.decompress(compressedData)).isEqualTo(data);
+    }
+
+    @Test
+    void testCompress_incompressibleData() {
+        byte[] data = this.createRandomData();
+
+        byte[] compressedData = this.compress(data);
+        assertThat(compressedData.length).isEqualTo(data.length + 13);
+        assertThat(this.decompress(compressedData)).isEqualTo(data);
+    }
+
+    @Test
+    void testCompress_compressionDisabled() {
+        this.p2PBackupProperties.getBackupProperties().setCompression("none");
+        this.blockCompressionService = this.createService();
+        byte[] data = this.createText();
+
+        byte[] compressedData = this.compress(data);
+        assertThat(compressedData.length).isEqualTo(data.length + 13);
+        assertThat(this.decompress(compressedData)).isEqualTo(data);
+    }
+
+    @Test
+    void testCompress_emptyData() {
+        byte[] compressedData = this.compress(new byte[0]);
+        assertThat(this.decompress(compressedData)).isEmpty();
+    }
+
+    @Test
+    void testCompress_unknownCodec() {
+        this.p2PBackupProperties.getBackupProperties().setCompression("unknown");
+        assertThatThrownBy(this::createService).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testDecompress_dataWithoutHeader() {
+        byte[] data = this.createText();
+        assertThat(this.decompress(data, false)).isEqualTo(data);
+        assertThatThrownBy(() -> this.decompress(data)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testDecompress_dataWithoutHeaderStartingLikeHeader() {
+        // plain data of a block without header that happens to start like a header
+        byte[] data = this.compress(this.createText());
+        assertThat(this.decompress(data, false)).isEqualTo(data);
+    }
+
+    @Test
+    void testDecompress_corruptData() {
+        byte[] compressedData = this.compress(this.createText());
+        compressedData[compressedData.length / 2] ^= 0x55;
+        assertThatThrownBy(() -> this.decompress(compressedData)).isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,122 @@
+package at.lucny.p2pbackup.core.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.core.dto.ByteBufferPoolStatistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ByteBufferPoolServiceImplUnitTest {
+
+    private ByteBufferPoolServiceImpl byteBufferPoolService;
+
+    @BeforeEach
+    void beforeEach() {
+        P2PBackupProperties p2PBackupProperties = new P2PBackupProperties();
+        p2PBackupProperties.setMaxDirectBufferMemory(DataSize.ofKilobytes(64));
+        this.byteBufferPoolService = new ByteBufferPoolServiceImpl(p2PBackupProperties);
+    }
+
+    @Test
+    void testCalculateBufferSize() {
+        assertThat(this.byteBufferPoolService.calculateBufferSize(0)).isEqualTo(8);
+        assertThat(this.byteBufferPoolService.calculateBufferSize(8 * 1024 + 1)).isEqualTo(10);
+        assertThat(this.byteBufferPoolService.calculateBufferSize(500 * 1024 + 112)).isEqualTo(512);
+        assertThat(this.byteBufferPoolService.calculateBufferSize(513 * 1024)).isEqualTo(640);
+    }
+
+    @Test
+    void testBorrowObject_reusesReturnedBuffer() {
+        ByteBuffer buffer = this.byteBufferPoolService.borrowObject(8);
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(buffer.capacity()).isEqualTo(8 * 1024);
+        buffer.putInt(42);
+        this.byteBufferPoolService.returnObject(8, buffer);
+
+        ByteBuffer reusedBuffer = this.byteBufferPoolService.borrowObject(8);
+        assertThat(reusedBuffer).isSameAs(buffer);
+        assertThat(reusedBuffer.position()).isZero();
+        assertThat(reusedBuffer.remaining()).isEqualTo(8 * 1024);
+
+        ByteBufferPoolStatistics statistics = this.byteBufferPoolService.getStatistics();
+        assertThat(statistics.hits()).isEqualTo(1);
+        assertThat(statistics.misses()).isEqualTo(1);
+        assertThat(statistics.outstandingBytes()).isEqualTo(8 * 1024);
+        assertThat(statistics.directBytes()).isEqualTo(8 * 1024);
+    }
+
+    @Test
+    void testBorrowObject_bufferReturnedByOtherThread() {
+        ByteBuffer buffer = this.byteBufferPoolService.borrowObject(8);
+        this.byteBufferPoolService.returnObject(8, buffer);
+
+        // the buffer is cached by the returning thread and not visible to other threads
+        ByteBuffer[] buffers = CompletableFuture.supplyAsync(() -> new ByteBuffer[]{this.byteBufferPoolService.borrowObject(8), this.byteBufferPoolService.borrowObject(8), this.byteBufferPoolService.borrowObject(8)}).join();
+        for (ByteBuffer borrowedBuffer : buffers) {
+            this.byteBufferPoolService.returnObject(8, borrowedBuffer);
+        }
+        CompletableFuture.supplyAsync(() -> this.byteBufferPoolService.borrowObject(8)).join();
+
+        ByteBufferPoolStatistics statistics = this.byteBufferPoolService.getStatistics();
+        assertThat(statistics.hits()).isEqualTo(1);
+        assertThat(statistics.misses()).isEqualTo(4);
+        assertThat(statistics.directBytes()).isEqualTo(4 * 8 * 1024);
+    }
+
+    @Test
+    void testBorrowObject_directMemoryExhausted() {
+        ByteBuffer first = this.byteBufferPoolService.borrowObject(32);
+        ByteBuffer second = this.byteBufferPoolService.borrowObject(32);
+        ByteBuffer third = this.byteBufferPoolService.borrowObject(32);
+
+        assertThat(first.isDirect()).isTrue();
+        assertThat(second.isDirect()).isTrue();
+        assertThat(third.isDirect()).isFalse();
+        assertThat(third.capacity()).isEqualTo(32 * 1024);
+
+        ByteBufferPoolStatistics statistics = this.byteBufferPoolService.getStatistics();
+        assertThat(statistics.heapFallbacks()).isEqualTo(1);
+        assertThat(statistics.outstandingBytes()).isEqualTo(3 * 32 * 1024);
+        assertThat(statistics.directBytes()).isEqualTo(64 * 1024);
+
+        this.byteBufferPoolService.returnObject(32, third);
+        assertThat(this.byteBufferPoolService.getStatistics().outstandingBytes()).isEqualTo(2 * 32 * 1024);
+    }
+
+    @Test
+    void testBorrowObject_releasesIdleBuffersOfFreeList() {
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = this.byteBufferPoolService.borrowObject(16);
+        }
+        // two buffers are cached by the thread, the others are put onto the free-list
+        for (ByteBuffer buffer : buffers) {
+            this.byteBufferPoolService.returnObject(16, buffer);
+        }
+
+        ByteBuffer buffer = this.byteBufferPoolService.borrowObject(32);
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(this.byteBufferPoolService.getStatistics().directBytes()).isEqualTo(64 * 1024);
+    }
+
+    @Test
+    void testBorrowObject_releasesIdleBuffersOfTerminatedThread() throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            ByteBuffer first = this.byteBufferPoolService.borrowObject(32);
+            ByteBuffer second = this.byteBufferPoolService.borrowObject(32);
+            this.byteBufferPoolService.returnObject(32, first);
+            this.byteBufferPoolService.returnObject(32, second);
+        });
+        thread.start();
+        thread.join();
+
+        ByteBuffer buffer = this.byteBufferPoolService.borrowObject(64);
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(this.byteBufferPoolService.getStatistics().heapFallbacks()).isZero();
+    }
+}
@@ -0,0 +1,65 @@
+package at.lucny.p2pbackup.core.support;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileUtilsUnitTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final FileUtils fileUtils = new FileUtils();
+
+    @Test
+    void testWriteAtomically() throws IOException {
+        Path target = this.tempDir.resolve("block");
+        Files.writeString(target, "old content of the block, that is longer than the new content");
+
+        ByteBuffer data = ByteBuffer.allocateDirect(64);
+        data.put("new content".getBytes(StandardCharsets.UTF_8)).flip();
+        this.fileUtils.writeAtomically(target, data);
+
+        assertThat(target).hasContent("new content");
+        assertThat(data.position()).isZero();
+        try (var files = Files.list(this.tempDir)) {
+            assertThat(files).containsExactly(target);
+        }
+    }
+
+    @Test
+    void testDeleteTempFilesSilent() throws IOException {
+        Path block = Files.writeString(this.tempDir.resolve("block"), "block");
+        Files.writeString(this.tempDir.resolve("block.123" + FileUtils.TEMP_FILE_SUFFIX), "partial block");
+
+        this.fileUtils.deleteTempFilesSilent(this.tempDir);
+
+        try (var files = Files.list(this.tempDir)) {
+            assertThat(files).containsExactly(block);
+        }
+    }
+
+    @Test
+    void testDeleteTempFilesSilent_keepsRecentTempFiles() throws IOException {
+        Instant modifiedBefore = Instant.now();
+        Path oldTempFile = Files.writeString(this.tempDir.resolve("block1.123" + FileUtils.TEMP_FILE_SUFFIX), "partial block");
+        Files.setLastModifiedTime(oldTempFile, FileTime.from(modifiedBefore.minusSeconds(60)));
+        Path recentTempFile = Files.writeString(this.tempDir.resolve("block2.123" + FileUtils.TEMP_FILE_SUFFIX), "block that is written");
+        Files.setLastModifiedTime(recentTempFile, FileTime.from(modifiedBefore.plusSeconds(60)));
+
+        this.fileUtils.deleteTempFilesSilent(this.tempDir, modifiedBefore);
+
+        try (var files = Files.list(this.tempDir)) {
+            assertThat(files).containsExactly(recentTempFile);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package at.lucny.p2pbackup.core.support;
+
+import at.lucny.p2pbackup.application.config.HashAlgorithm;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TreeDigestUnitTest {
+
+    private byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void testDigest_independentOfUpdateSizes() {
+        byte[] data = this.randomData(5 * CryptoConstants.TREE_HASH_LEAF_SIZE + 17);
+
+        byte[] expectedHash = HashUtils.createFileDigest(HashAlgorithm.BLAKE3).digest(data);
+
+        MessageDigest digest = HashUtils.createFileDigest(HashAlgorithm.BLAKE3);
+        int position = 0;
+        int updateSize = 1;
+        while (position < data.length) {
+            int length = Math.min(updateSize, data.length - position);
+            digest.update(ByteBuffer.wrap(data, position, length));
+            position += length;
+            updateSize = updateSize * 3 + 1;
+        }
+        assertThat(digest.digest()).isEqualTo(expectedHash);
+    }
+
+    @Test
+    void testDigest_isResetAfterDigest() {
+        byte[] data = this.randomData(CryptoConstants.TREE_HASH_LEAF_SIZE + 1);
+        MessageDigest digest = HashUtils.createFileDigest(HashAlgorithm.BLAKE3);
+
+        byte[] hash = digest.digest(data);
+        assertThat(digest.digest(data)).isEqualTo(hash);
+        assertThat(digest.digest()).isNotEqualTo(hash).hasSize(32);
+    }
+
+    @Test
+    void testDigest_limitsPendingLeaves() {
+        byte[] data = this.randomData(10 * CryptoConstants.TREE_HASH_LEAF_SIZE);
+        MessageDigest singleLeafDigest = new TreeDigest(CryptoConstants.BLAKE3_TREE_HASH_ALGORITHM, () -> HashUtils.createBlockDigest(HashAlgorithm.BLAKE3), Runnable::run, 1);
+
+        assertThat(singleLeafDigest.digest(data)).isEqualTo(HashUtils.createFileDigest(HashAlgorithm.BLAKE3).digest(data));
+    }
+
+    @Test
+    void testDigest_leavesAreHashedWithPrefix() {
+        byte[] data = this.randomData(100);
+
+        // a file that consists of the leaf-hashes of another file must not have the same hash
+        MessageDigest leafDigest = HashUtils.createBlockDigest(HashAlgorithm.BLAKE3);
+        leafDigest.update((byte) 0);
+        byte[] leafHash = leafDigest.digest(data);
+
+        MessageDigest digest = HashUtils.createFileDigest(HashAlgorithm.BLAKE3);
+        assertThat(digest.digest(data)).isNotEqualTo(digest.digest(leafHash));
+    }
+}
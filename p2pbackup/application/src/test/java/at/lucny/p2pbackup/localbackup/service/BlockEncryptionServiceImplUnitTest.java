@@ -1,9 +1,12 @@
 package at.lucny.p2pbackup.localbackup.service;
 
+import at.lucny.p2pbackup.application.config.BlockCipher;
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
 import at.lucny.p2pbackup.backup.support.BackupConstants;
 import at.lucny.p2pbackup.core.service.BlockEncryptionServiceImpl;
 import at.lucny.p2pbackup.core.service.ByteBufferPoolService;
 import at.lucny.p2pbackup.core.service.CryptoService;
+import at.lucny.p2pbackup.core.support.CryptoConstants;
 import at.lucny.p2pbackup.core.support.CryptoUtils;
 import at.lucny.p2pbackup.core.support.SecretKeyGenerator;
 import org.junit.jupiter.api.BeforeEach;
@@ -19,9 +22,11 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -44,13 +49,13 @@ class BlockEncryptionServiceImplUnitTest {
         SecretKey secretKey = KeyGenerator.getInstance("AES").generateKey();
         when(this.secretKeyGeneratorMock.generateAES("blockEncryption")).thenReturn(secretKey);
 
-        this.blockEncryptionService = new BlockEncryptionServiceImpl(new CryptoUtils(), this.cryptoServiceMock, this.byteBufferPoolServiceMock);
+        this.blockEncryptionService = new BlockEncryptionServiceImpl(new CryptoUtils(), this.cryptoServiceMock, this.byteBufferPoolServiceMock, new P2PBackupProperties());
     }
 
     @Test
     void testEncrypt_withByteBufferToSmall() {
         ByteBuffer data = ByteBuffer.wrap("This is my Testdata".getBytes(StandardCharsets.UTF_8));
-        ByteBuffer encryptedData = ByteBuffer.allocate(data.remaining() * 5 - 1);
+        ByteBuffer encryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()) - 1); // header and authentication-tag don't fit
 
         assertThatThrownBy(() -> this.blockEncryptionService.encrypt(data, null, encryptedData))
                 .isInstanceOf(IllegalArgumentException.class);
@@ -59,7 +64,7 @@ class BlockEncryptionServiceImplUnitTest {
     @Test
     void testDecrypt_withByteBufferToSmall() {
         ByteBuffer encryptedData = ByteBuffer.wrap("This is my Testdata".getBytes(StandardCharsets.UTF_8));
-        ByteBuffer data = ByteBuffer.allocate(encryptedData.remaining() * 5 - 1);
+        ByteBuffer data = ByteBuffer.allocate(encryptedData.remaining() - 1);
 
         assertThatThrownBy(() -> this.blockEncryptionService.decrypt(encryptedData, null, data))
                 .isInstanceOf(IllegalArgumentException.class);
@@ -84,6 +89,16 @@ class BlockEncryptionServiceImplUnitTest {
         }
     }
 
+    @Test
+    void testIsSegmented() {
+        ByteBuffer encryptedData = ByteBuffer.allocate(BackupConstants.ONE_KILOBYTE);
+        this.blockEncryptionService.encrypt(ByteBuffer.wrap("This is my Testdata".getBytes(StandardCharsets.UTF_8)), null, encryptedData);
+
+        assertThat(this.blockEncryptionService.isSegmented(encryptedData)).isTrue();
+        assertThat(encryptedData.position()).isZero();
+        assertThat(this.blockEncryptionService.isSegmented(ByteBuffer.wrap(new byte[100]))).isFalse();
+    }
+
     @Test
     void testEncryptAndDecrypt_ciphertextModified() {
         ByteBuffer data = ByteBuffer.wrap("This is my Testdata".getBytes(StandardCharsets.UTF_8));
@@ -94,8 +109,7 @@ class BlockEncryptionServiceImplUnitTest {
         data.rewind();
         assertThat(data.remaining()).isNotEqualTo(encryptedData.remaining());
 
-        encryptedData.putInt(32); // overwrite the first bytes of the buffer
-        encryptedData.rewind();
+        encryptedData.putInt(encryptedData.limit() - 20, 32); // overwrite the last bytes of the ciphertext
 
         ByteBuffer plainData = ByteBuffer.allocate(BackupConstants.ONE_KILOBYTE);
         assertThatThrownBy(() -> this.blockEncryptionService.decrypt(encryptedData, null, plainData))
@@ -139,4 +153,130 @@ class BlockEncryptionServiceImplUnitTest {
                 .hasCauseExactlyInstanceOf(AEADBadTagException.class);
     }
 
+    private ByteBuffer randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    private void mockByteBufferPool() {
+        when(this.byteBufferPoolServiceMock.calculateBufferSize(anyInt())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(this.byteBufferPoolServiceMock.borrowObject(anyInt())).thenAnswer(invocation -> ByteBuffer.allocate(invocation.getArgument(0)));
+    }
+
+    @Test
+    void testEncryptAndDecrypt_multipleSegments() {
+        ByteBuffer data = this.randomData(3 * CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE + 17);
+        byte[] aad = "MyAAD".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()));
+
+        this.blockEncryptionService.encrypt(data, aad, encryptedData);
+        assertThat(encryptedData.remaining()).isEqualTo(encryptedData.capacity());
+
+        ByteBuffer plainData = ByteBuffer.allocate(data.capacity());
+        this.blockEncryptionService.decrypt(encryptedData, aad, plainData);
+
+        assertThat(plainData).isEqualTo(data.rewind());
+    }
+
+    @Test
+    void testEncryptAndDecrypt_emptyData() {
+        ByteBuffer encryptedData = ByteBuffer.allocate(BackupConstants.ONE_KILOBYTE);
+        this.blockEncryptionService.encrypt(ByteBuffer.allocate(0), null, encryptedData);
+
+        ByteBuffer plainData = ByteBuffer.allocate(BackupConstants.ONE_KILOBYTE);
+        this.blockEncryptionService.decrypt(encryptedData, null, plainData);
+
+        assertThat(plainData.remaining()).isZero();
+    }
+
+    @Test
+    void testDecryptRange() {
+        this.mockByteBufferPool();
+        int segmentSize = CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE;
+        ByteBuffer data = this.randomData(3 * segmentSize + 17);
+        byte[] aad = "MyAAD".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()));
+        this.blockEncryptionService.encrypt(data, aad, encryptedData);
+
+        // the range spans the end of the first, the whole second and the beginning of the third segment
+        ByteBuffer plainData = ByteBuffer.allocate(2 * segmentSize);
+        this.blockEncryptionService.decrypt(encryptedData.duplicate(), aad, segmentSize - 10, segmentSize + 20, plainData);
+        assertThat(plainData).isEqualTo(data.slice(segmentSize - 10, segmentSize + 20));
+
+        // the range at the end of the final segment
+        plainData.clear();
+        this.blockEncryptionService.decrypt(encryptedData.duplicate(), aad, 3 * segmentSize, 17, plainData);
+        assertThat(plainData).isEqualTo(data.slice(3 * segmentSize, 17));
+
+        // only the segment of the range is verified
+        encryptedData.put(encryptedData.limit() - 1, (byte) (encryptedData.get(encryptedData.limit() - 1) + 1));
+        plainData.clear();
+        this.blockEncryptionService.decrypt(encryptedData.duplicate(), aad, 0, 100, plainData);
+        assertThat(plainData).isEqualTo(data.slice(0, 100));
+
+        ByteBuffer rangeOfFinalSegment = ByteBuffer.allocate(17);
+        assertThatThrownBy(() -> this.blockEncryptionService.decrypt(encryptedData.duplicate(), aad, 3 * segmentSize, 17, rangeOfFinalSegment))
+                .isInstanceOf(IllegalStateException.class)
+                .hasCauseExactlyInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void testDecrypt_truncatedAtSegmentBoundary() {
+        int segmentSize = CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE;
+        ByteBuffer data = this.randomData(2 * segmentSize);
+        ByteBuffer encryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()));
+        this.blockEncryptionService.encrypt(data, null, encryptedData);
+
+        // drop the final segment, the first segment was not encrypted as final segment
+        encryptedData.limit(encryptedData.limit() - segmentSize - 16);
+
+        ByteBuffer plainData = ByteBuffer.allocate(data.capacity());
+        assertThatThrownBy(() -> this.blockEncryptionService.decrypt(encryptedData, null, plainData))
+                .isInstanceOf(IllegalStateException.class)
+                .hasCauseExactlyInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void testVerify() {
+        this.mockByteBufferPool();
+        ByteBuffer data = this.randomData(2 * CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE + 1);
+        byte[] aad = "MyAAD".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()));
+        this.blockEncryptionService.encrypt(data, aad, encryptedData);
+
+        this.blockEncryptionService.verify(encryptedData, aad);
+        assertThat(encryptedData.position()).isZero();
+
+        byte[] wrongAAD = "MyWrongAAD".getBytes(StandardCharsets.UTF_8);
+        assertThatThrownBy(() -> this.blockEncryptionService.verify(encryptedData, wrongAAD))
+                .isInstanceOf(IllegalStateException.class)
+                .hasCauseExactlyInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void testEncryptAndDecrypt_chaCha20Poly1305() {
+        ByteBuffer data = this.randomData(2 * CryptoConstants.BLOCK_ENCRYPTION_SEGMENT_SIZE + 17);
+        byte[] aad = "MyAAD".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer aesEncryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()));
+        ByteBuffer chaChaEncryptedData = ByteBuffer.allocate(this.blockEncryptionService.getEncryptedSize(data.remaining()));
+
+        this.blockEncryptionService.encrypt(data.duplicate(), aad, aesEncryptedData, BlockCipher.AES_256_GCM);
+        this.blockEncryptionService.encrypt(data.duplicate(), aad, chaChaEncryptedData, BlockCipher.CHACHA20_POLY1305);
+
+        // the cipher is read from the header of the block
+        ByteBuffer plainData = ByteBuffer.allocate(data.capacity());
+        this.blockEncryptionService.decrypt(aesEncryptedData, aad, plainData);
+        assertThat(plainData).isEqualTo(data);
+
+        plainData.clear();
+        this.blockEncryptionService.decrypt(chaChaEncryptedData.duplicate(), aad, plainData);
+        assertThat(plainData).isEqualTo(data);
+
+        chaChaEncryptedData.put(chaChaEncryptedData.limit() - 1, (byte) (chaChaEncryptedData.get(chaChaEncryptedData.limit() - 1) + 1));
+        plainData.clear();
+        assertThatThrownBy(() -> this.blockEncryptionService.decrypt(chaChaEncryptedData, aad, plainData))
+                .isInstanceOf(IllegalStateException.class)
+                .hasCauseExactlyInstanceOf(AEADBadTagException.class);
+    }
 }
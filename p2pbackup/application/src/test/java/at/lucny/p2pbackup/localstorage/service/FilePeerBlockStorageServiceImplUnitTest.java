@@ -0,0 +1,66 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import com.google.common.util.concurrent.RateLimiter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FilePeerBlockStorageServiceImplUnitTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2026, 10, 18);
+
+    @TempDir
+    Path directory;
+
+    private FilePeerBlockStorageServiceImpl peerBlockStorageService;
+
+    private Path deleteFolder;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        StorageLayoutServiceImpl storageLayoutService = new StorageLayoutServiceImpl(new P2PBackupProperties(), new TaskExecutorAdapter(Runnable::run));
+        this.peerBlockStorageService = new FilePeerBlockStorageServiceImpl(storageLayoutService);
+        this.peerBlockStorageService.initializeDirectory(this.directory);
+        this.deleteFolder = this.directory.resolve(FilePeerBlockStorageServiceImpl.FOLDER_DELETED);
+    }
+
+    private Path writeRemovedBlock(LocalDate keepUntil, String id, String content) throws IOException {
+        return Files.writeString(this.deleteFolder.resolve(keepUntil + "_" + id), content);
+    }
+
+    @Test
+    void testReclaim_deletesExpiredBlocks() throws IOException {
+        Path expiredBlock = this.writeRemovedBlock(TODAY.minusDays(1), "block1", "data1");
+        Path keptBlock = this.writeRemovedBlock(TODAY, "block2", "data2");
+        Path unknownFile = Files.writeString(this.deleteFolder.resolve("block3"), "data3");
+
+        long reclaimedBytes = this.peerBlockStorageService.reclaim(this.directory, TODAY, RateLimiter.create(1000), () -> false);
+
+        assertThat(reclaimedBytes).isEqualTo(5);
+        assertThat(expiredBlock).doesNotExist();
+        assertThat(keptBlock).exists();
+        assertThat(unknownFile).exists();
+    }
+
+    @Test
+    void testReclaim_deletesOldestBlocksUntilStopped() throws IOException {
+        Path oldestBlock = this.writeRemovedBlock(TODAY.plusDays(1), "block2", "data2");
+        Path newestBlock = this.writeRemovedBlock(TODAY.plusDays(2), "block1", "data1");
+        long[] reclaimedBlocks = {0};
+
+        long reclaimedBytes = this.peerBlockStorageService.reclaim(this.directory, LocalDate.MAX, RateLimiter.create(1000), () -> reclaimedBlocks[0]++ > 0);
+
+        assertThat(reclaimedBytes).isEqualTo(5);
+        assertThat(oldestBlock).doesNotExist();
+        assertThat(newestBlock).exists();
+    }
+}
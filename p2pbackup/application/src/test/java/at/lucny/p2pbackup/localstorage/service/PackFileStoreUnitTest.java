@@ -0,0 +1,192 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PackFileStoreUnitTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2026, 10, 18);
+
+    @TempDir
+    Path directory;
+
+    private byte[] data(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long countSegments() throws IOException {
+        try (var files = Files.list(this.directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(PackFileStore.SEGMENT_SUFFIX)).count();
+        }
+    }
+
+    @Test
+    void testAppendAndRead() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            store.append("block1", this.data("data1"), "mac1");
+            store.append("block2", this.data("data2"), "mac2");
+
+            assertThat(store.read("block1")).hasValue(this.data("data1"));
+            assertThat(store.read("block2")).hasValue(this.data("data2"));
+            assertThat(store.read("block3")).isEmpty();
+            assertThat(store.getLocation("block2")).hasValueSatisfying(location -> assertThat(location.mac()).isEqualTo("mac2"));
+            assertThat(store.getBlockSizes()).containsExactlyInAnyOrderEntriesOf(Map.of("block1", 5L, "block2", 5L));
+        }
+    }
+
+    @Test
+    void testReopen_replaysIndex() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            store.append("block1", this.data("data1"), "mac1");
+            store.append("block2", this.data("data2"), "mac2");
+            store.remove(List.of("block1"), TODAY.plusMonths(3));
+        }
+
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            assertThat(store.contains("block1")).isFalse();
+            assertThat(store.read("block2")).hasValue(this.data("data2"));
+            store.append("block3", this.data("data3"), "mac3");
+            assertThat(store.getBlockSizes()).containsOnlyKeys("block2", "block3");
+        }
+    }
+
+    @Test
+    void testReopen_cutsOffTornRecord() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            store.append("block1", this.data("data1"), "mac1");
+            store.append("block2", this.data("data2"), "mac2");
+        }
+        Path index = this.directory.resolve(PackFileStore.INDEX_FILE);
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            assertThat(store.getBlockSizes()).containsOnlyKeys("block1");
+            store.append("block3", this.data("data3"), "mac3");
+        }
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            assertThat(store.getBlockSizes()).containsOnlyKeys("block1", "block3");
+            assertThat(store.read("block3")).hasValue(this.data("data3"));
+        }
+    }
+
+    @Test
+    void testAppend_sealsFullSegment() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 8)) {
+            store.append("block1", this.data("data-of-block1"), "mac1");
+            store.append("block2", this.data("data-of-block2"), "mac2");
+            store.append("block3", this.data("data-of-block3"), "mac3");
+
+            assertThat(this.countSegments()).isEqualTo(3);
+            assertThat(store.read("block1")).hasValue(this.data("data-of-block1"));
+            assertThat(store.read("block3")).hasValue(this.data("data-of-block3"));
+        }
+    }
+
+    @Test
+    void testCompact_keepsRemovedBlocksUntilGracePeriodEnded() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 8)) {
+            store.append("block1", this.data("data-of-block1"), "mac1");
+            store.append("block2", this.data("data-of-block2"), "mac2");
+            store.append("block3", this.data("data-of-block3"), "mac3");
+            store.remove(List.of("block1", "block2"), TODAY.plusMonths(3));
+
+            // the data of removed blocks is kept during the grace-period
+            assertThat(store.compact(TODAY, 50)).isZero();
+            assertThat(this.countSegments()).isEqualTo(3);
+            assertThat(store.read("block1")).isEmpty();
+
+            // afterwards the sealed segments of the removed blocks are deleted
+            assertThat(store.compact(TODAY.plusMonths(3).plusDays(1), 50)).isEqualTo(28);
+            assertThat(this.countSegments()).isEqualTo(1);
+            assertThat(store.read("block3")).hasValue(this.data("data-of-block3"));
+        }
+
+        try (PackFileStore store = new PackFileStore(this.directory, 8)) {
+            assertThat(store.getBlockSizes()).containsOnlyKeys("block3");
+            assertThat(store.read("block3")).hasValue(this.data("data-of-block3"));
+        }
+    }
+
+    @Test
+    void testCompact_copiesRemainingBlocks() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 15)) {
+            store.append("block1", this.data("data1"), "mac1");
+            store.append("block2", this.data("data2"), "mac2");
+            store.append("block3", this.data("data3"), "mac3");
+            store.append("block4", this.data("data4"), "mac4");
+            store.remove(List.of("block1", "block2"), TODAY.minusDays(1));
+
+            assertThat(store.compact(TODAY, 50)).isEqualTo(10);
+            assertThat(store.read("block3")).hasValue(this.data("data3"));
+            assertThat(store.read("block4")).hasValue(this.data("data4"));
+            // the remaining block is copied to a new segment-file, the current segment-file stays unchanged
+            assertThat(store.getLocation("block3")).hasValueSatisfying(location -> assertThat(location.segment()).isEqualTo(3));
+            assertThat(store.getLocation("block4")).hasValueSatisfying(location -> assertThat(location.segment()).isEqualTo(2));
+        }
+
+        try (PackFileStore store = new PackFileStore(this.directory, 15)) {
+            assertThat(store.getBlockSizes()).containsOnlyKeys("block3", "block4");
+            assertThat(store.read("block3")).hasValue(this.data("data3"));
+            assertThat(store.getLocation("block3")).hasValueSatisfying(location -> assertThat(location.mac()).isEqualTo("mac3"));
+
+            // the new segment-file is continued after a restart
+            store.append("block5", this.data("data5"), "mac5");
+            assertThat(store.getLocation("block5")).hasValueSatisfying(location -> assertThat(location.segment()).isEqualTo(3));
+            assertThat(store.read("block4")).hasValue(this.data("data4"));
+        }
+    }
+
+    @Test
+    void testCompact_forgetsOldestRemovedBlocksFirst() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 8)) {
+            store.append("block1", this.data("data-of-block1"), "mac1");
+            store.append("block2", this.data("data-of-block2"), "mac2");
+            store.append("block3", this.data("data-of-block3"), "mac3");
+            store.remove(List.of("block2"), TODAY.plusMonths(3));
+            store.remove(List.of("block1"), TODAY.plusMonths(1));
+
+            // only the segment-file of the block with the earliest end of its grace-period is deleted before the stop
+            int[] checks = {0};
+            assertThat(store.compact(LocalDate.MAX, 50, () -> checks[0]++ > 0)).isEqualTo(14);
+            assertThat(this.countSegments()).isEqualTo(2);
+
+            assertThat(store.compact(LocalDate.MAX, 50)).isEqualTo(14);
+            assertThat(this.countSegments()).isEqualTo(1);
+            assertThat(store.read("block3")).hasValue(this.data("data-of-block3"));
+        }
+    }
+
+    @Test
+    void testCompact_keepsRemovedBlockThatWasSavedAgain() throws IOException {
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            store.append("block1", this.data("data1"), "mac1");
+            store.append("block2", this.data("data2"), "mac2");
+            store.remove(List.of("block1"), TODAY.plusMonths(3));
+            store.remove(List.of("block2"), TODAY.minusDays(1));
+            store.append("block1", this.data("data3"), "mac3");
+
+            // the expired block2 causes the index to be rewritten
+            store.compact(TODAY, 50);
+            assertThat(store.read("block1")).hasValue(this.data("data3"));
+        }
+
+        try (PackFileStore store = new PackFileStore(this.directory, 1024)) {
+            assertThat(store.getBlockSizes()).containsOnlyKeys("block1");
+            assertThat(store.read("block1")).hasValue(this.data("data3"));
+        }
+    }
+}
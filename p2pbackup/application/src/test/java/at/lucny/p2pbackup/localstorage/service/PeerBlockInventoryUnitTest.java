@@ -0,0 +1,62 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.backup.support.BackupConstants;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PeerBlockInventoryUnitTest {
+
+    @Test
+    void testBuild() {
+        PeerBlockInventory inventory = new PeerBlockInventory();
+        assertThat(inventory.isBuilt()).isFalse();
+
+        inventory.build(Map.of("block1", 10L, "block2", 20L, BackupConstants.BACKUP_INDEX_BLOCK_PREFIX + "1", 5L));
+
+        assertThat(inventory.isBuilt()).isTrue();
+        assertThat(inventory.contains("block1")).isTrue();
+        assertThat(inventory.contains("block3")).isFalse();
+        assertThat(inventory.getSize("block2")).hasValue(20L);
+        assertThat(inventory.getBlockIds()).containsExactly("IDX_1", "block1", "block2");
+        assertThat(inventory.getNrOfBlocks()).isEqualTo(3);
+        assertThat(inventory.getBytes()).isEqualTo(35);
+        assertThat(inventory.getLatestBackupIndexBlockId()).hasValue("IDX_1");
+    }
+
+    @Test
+    void testBuild_keepsChangesWhileBuilding() {
+        PeerBlockInventory inventory = new PeerBlockInventory();
+        inventory.add("block1", 15L);
+        inventory.remove("block2");
+
+        inventory.build(Map.of("block1", 10L, "block2", 20L, "block3", 30L));
+
+        assertThat(inventory.getSize("block1")).hasValue(15L);
+        assertThat(inventory.contains("block2")).isFalse();
+        assertThat(inventory.getBytes()).isEqualTo(45);
+    }
+
+    @Test
+    void testAddAndRemove() {
+        PeerBlockInventory inventory = new PeerBlockInventory();
+        inventory.build(Map.of());
+        assertThat(inventory.getLatestBackupIndexBlockId()).isEmpty();
+
+        inventory.add("IDX_2023-01-01", 5L);
+        inventory.add("IDX_2023-02-01", 6L);
+        inventory.add("block1", 10L);
+        inventory.add("block1", 12L);
+        assertThat(inventory.getLatestBackupIndexBlockId()).hasValue("IDX_2023-02-01");
+        assertThat(inventory.getBytes()).isEqualTo(23);
+
+        inventory.remove("IDX_2023-02-01");
+        inventory.remove("block1");
+        inventory.remove("block4");
+        assertThat(inventory.getLatestBackupIndexBlockId()).hasValue("IDX_2023-01-01");
+        assertThat(inventory.getNrOfBlocks()).isEqualTo(1);
+        assertThat(inventory.getBytes()).isEqualTo(5);
+    }
+}
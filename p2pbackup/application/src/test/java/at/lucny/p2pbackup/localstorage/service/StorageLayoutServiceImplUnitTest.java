@@ -0,0 +1,106 @@
+package at.lucny.p2pbackup.localstorage.service;
+
+import at.lucny.p2pbackup.application.config.P2PBackupProperties;
+import at.lucny.p2pbackup.core.support.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StorageLayoutServiceImplUnitTest {
+
+    @TempDir
+    Path directory;
+
+    private StorageLayoutServiceImpl createService(int fanOutLevels, Executor executor) {
+        P2PBackupProperties p2PBackupProperties = new P2PBackupProperties();
+        p2PBackupProperties.setStorageFanOutLevels(fanOutLevels);
+        return new StorageLayoutServiceImpl(p2PBackupProperties, new TaskExecutorAdapter(executor));
+    }
+
+    @Test
+    void testResolve() {
+        StorageLayoutServiceImpl storageLayoutService = this.createService(2, Runnable::run);
+
+        Path path = storageLayoutService.resolve(this.directory, "block1");
+
+        assertThat(path.getFileName()).hasToString("block1");
+        assertThat(this.directory.relativize(path).getNameCount()).isEqualTo(3);
+        assertThat(path.getParent()).isDirectory();
+        assertThat(storageLayoutService.resolve(this.directory, "block1")).isEqualTo(path);
+        assertThat(storageLayoutService.locate(this.directory, "block1")).isEmpty();
+    }
+
+    @Test
+    void testList() throws IOException {
+        StorageLayoutServiceImpl storageLayoutService = this.createService(2, Runnable::run);
+        storageLayoutService.initializeDirectory(this.directory);
+        Path block1 = Files.writeString(storageLayoutService.resolve(this.directory, "block1"), "1");
+        Path block2 = Files.writeString(storageLayoutService.resolve(this.directory, "block2"), "2");
+        Files.createDirectories(this.directory.resolve("_DELETED"));
+        Files.writeString(this.directory.resolve("_DELETED").resolve("block3"), "3");
+
+        assertThat(storageLayoutService.list(this.directory)).containsExactlyInAnyOrder(block1, block2);
+        assertThat(storageLayoutService.locate(this.directory, "block1")).contains(block1);
+    }
+
+    @Test
+    void testInitializeDirectory_migratesFlatDirectory() throws IOException {
+        Path block1 = Files.writeString(this.directory.resolve("block1"), "1");
+        Files.writeString(this.directory.resolve("block2"), "2");
+
+        // the migration is not started yet, so the blocks are found at their previous location
+        List<Runnable> migrations = new ArrayList<>();
+        StorageLayoutServiceImpl storageLayoutService = this.createService(1, migrations::add);
+        storageLayoutService.initializeDirectory(this.directory);
+        assertThat(migrations).hasSize(1);
+        assertThat(storageLayoutService.locate(this.directory, "block1")).contains(block1);
+
+        // a block saved during the migration replaces the block at the previous location
+        Path savedBlock2 = Files.writeString(storageLayoutService.resolve(this.directory, "block2"), "2");
+
+        migrations.get(0).run();
+
+        Path migratedBlock1 = storageLayoutService.resolve(this.directory, "block1");
+        assertThat(storageLayoutService.list(this.directory)).containsExactlyInAnyOrder(migratedBlock1, savedBlock2);
+        assertThat(migratedBlock1).hasContent("1");
+        assertThat(block1).doesNotExist();
+        assertThat(storageLayoutService.locate(this.directory, "block1")).contains(migratedBlock1);
+
+        // the layout is recorded, so the directory is not migrated again
+        migrations.clear();
+        this.createService(1, migrations::add).initializeDirectory(this.directory);
+        assertThat(migrations).isEmpty();
+    }
+
+    @Test
+    void testInitializeDirectory_directoryWithoutBlocks() throws IOException {
+        Files.createDirectories(this.directory.resolve("0a").resolve("1b"));
+        Files.writeString(this.directory.resolve("block1" + FileUtils.TEMP_FILE_SUFFIX), "1");
+
+        List<Runnable> migrations = new ArrayList<>();
+        this.createService(1, migrations::add).initializeDirectory(this.directory);
+
+        assertThat(migrations).isEmpty();
+        assertThat(this.directory.resolve(StorageLayoutServiceImpl.LAYOUT_MARKER)).hasContent("1");
+    }
+
+    @Test
+    void testMigrate_toFewerLevels() throws IOException {
+        StorageLayoutServiceImpl twoLevels = this.createService(2, Runnable::run);
+        Files.writeString(twoLevels.resolve(this.directory, "block1"), "1");
+
+        StorageLayoutServiceImpl flat = this.createService(0, Runnable::run);
+        assertThat(flat.migrate(this.directory)).isEqualTo(1);
+        assertThat(flat.list(this.directory)).containsExactly(this.directory.resolve("block1"));
+        assertThat(flat.migrate(this.directory)).isZero();
+    }
+}
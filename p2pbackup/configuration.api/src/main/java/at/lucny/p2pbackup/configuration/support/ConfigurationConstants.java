@@ -34,4 +34,9 @@ public final class ConfigurationConstants {
      * This property is set to the current recovery state.
      */
     public static final String PROPERTY_RECOVERY_STATE = "RECOVERY.STATE";
+
+    /**
+     * This property is set to the id of the block-hash-index that belongs to this database.
+     */
+    public static final String PROPERTY_BLOCK_HASH_INDEX_ID = "BACKUP.BLOCK_HASH_INDEX_ID";
 }